@@ -19,6 +19,8 @@ package com.android.ddmlib;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,14 +29,17 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Helper class to handle requests and connections to adb.
  * <p/>{@link AndroidDebugBridge} is the public API to connection to adb, while {@link AdbHelper}
  * does the low level stuff.
- * <p/>This currently uses spin-wait non-blocking I/O. A Selector would be more efficient,
- * but seems like overkill for what we're doing here.
+ * <p/>Shell commands are run on the shared selector of {@link ShellCommandExecutor}. The other
+ * requests still use spin-wait non-blocking I/O.
  */
 final class AdbHelper {
 
@@ -383,6 +388,46 @@ final class AdbHelper {
                 maxTimeUnits, null /* inputStream */);
     }
 
+    /**
+     * Executes a shell command on the device without waiting for it. The output is handed to
+     * <var>rcvr</var> on <var>executor</var> as it arrives.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param command the shell command to execute
+     * @param device the {@link IDevice} on which to execute the command.
+     * @param rcvr the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @param maxTimeToOutputResponse max time between command output. A value of 0 means the
+     *            command may stay silent forever.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @param executor the {@link Executor} on which <var>rcvr</var> is called.
+     * @return a future completed once the receiver got all the output, which fails with the
+     *            exceptions thrown by
+     *            {@link #executeRemoteCommand(InetSocketAddress, String, IDevice, IShellOutputReceiver, long, TimeUnit)}.
+     */
+    @NonNull
+    static ListenableFuture<Void> executeRemoteCommandAsync(@NonNull InetSocketAddress adbSockAddr,
+            @NonNull String command, @Nullable IDevice device, @Nullable IShellOutputReceiver rcvr,
+            long maxTimeToOutputResponse, @Nullable TimeUnit maxTimeUnits,
+            @NonNull Executor executor) {
+        return executeRemoteCommandAsync(adbSockAddr, AdbService.SHELL, command, device, rcvr,
+                maxTimeToOutputResponse, maxTimeUnits, executor);
+    }
+
+    @NonNull
+    private static ListenableFuture<Void> executeRemoteCommandAsync(
+            @NonNull InetSocketAddress adbSockAddr, @NonNull AdbService adbService,
+            @NonNull String command, @Nullable IDevice device, @Nullable IShellOutputReceiver rcvr,
+            long maxTimeToOutputResponse, @Nullable TimeUnit maxTimeUnits,
+            @NonNull Executor executor) {
+        try {
+            return ShellCommandExecutor.getInstance().execute(adbSockAddr, adbService, command,
+                    device, rcvr, maxTimeToOutputResponse, maxTimeUnits, executor);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
     /**
      * Identify which adb service the command should target.
      */
@@ -431,6 +476,14 @@ final class AdbHelper {
             @Nullable InputStream is) throws TimeoutException, AdbCommandRejectedException,
             ShellCommandUnresponsiveException, IOException {
 
+        // Without input to stream up, the command is run on the shared selector.
+        if (is == null) {
+            waitForCommand(executeRemoteCommandAsync(adbSockAddr, adbService, command, device,
+                    rcvr, maxTimeToOutputResponse, maxTimeUnits,
+                    ShellCommandExecutor.OUTPUT_EXECUTOR));
+            return;
+        }
+
         long maxTimeToOutputMs = 0;
         if (maxTimeToOutputResponse > 0) {
             if (maxTimeUnits == null) {
@@ -529,6 +582,41 @@ final class AdbHelper {
         }
     }
 
+    /**
+     * Waits for a command run by the {@link ShellCommandExecutor}, and rethrows its failure.
+     */
+    private static void waitForCommand(@NonNull ListenableFuture<Void> future)
+            throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            // Throw a timeout exception in place of interrupted exception to avoid API changes.
+            throw new TimeoutException("executeRemoteCommand interrupted with immediate timeout via interruption.");
+        } catch (CancellationException e) {
+            // the executor was stopped.
+            throw new IOException("executeRemoteCommand cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw (TimeoutException) cause;
+            } else if (cause instanceof AdbCommandRejectedException) {
+                throw (AdbCommandRejectedException) cause;
+            } else if (cause instanceof ShellCommandUnresponsiveException) {
+                throw (ShellCommandUnresponsiveException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
     /**
      * Runs the Event log service on the {@link Device}, and provides its output to the
      * {@link LogReceiver}.
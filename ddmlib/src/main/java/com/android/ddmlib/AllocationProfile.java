@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.GuardedBy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocations aggregated over many allocation tracking dumps, by allocation site: the class of
+ * the allocated objects and the stack trace of the allocation.
+ * <p/>The names, stack frames, stack traces and sites are interned into tables of ints shared
+ * by all the dumps, so that adding a dump does not create objects for each allocation. Each
+ * site counts its allocations since the start, and in the last {@link #getWindow()} dumps.
+ * <p/>The number of sites is bounded: when there are too many, the sites which allocated the
+ * least in the last dumps are dropped, and their allocations are only counted in
+ * {@link #getDroppedCount()} and {@link #getDroppedSize()}.
+ * <p/>This class is thread-safe.
+ *
+ * @see AllocationSampler
+ */
+public final class AllocationProfile {
+
+    public static final int DEFAULT_MAX_SITES = 20000;
+    public static final int DEFAULT_WINDOW = 10;
+
+    private final int mMaxSites;
+    private final int mWindow;
+
+    @GuardedBy("this")
+    private List<String> mStrings;
+    @GuardedBy("this")
+    private Map<String, Integer> mStringIds;
+
+    /** Stack frames: class, method and file name ids, and line number. */
+    @GuardedBy("this")
+    private IntTupleTable mFrames;
+    /** Stack traces: frame ids. */
+    @GuardedBy("this")
+    private IntTupleTable mStacks;
+    /** Allocation sites: class name id and stack trace id. */
+    @GuardedBy("this")
+    private IntTupleTable mSites;
+
+    /** Counters, by site id. */
+    @GuardedBy("this")
+    private long[] mCounts;
+    @GuardedBy("this")
+    private long[] mSizes;
+    /** Counters of the last dumps, mWindow by site id. */
+    @GuardedBy("this")
+    private long[] mRecentCounts;
+    @GuardedBy("this")
+    private long[] mRecentSizes;
+    /** The index of the current dump in the recent counters. */
+    @GuardedBy("this")
+    private int mSlot;
+
+    @GuardedBy("this")
+    private int mDumpCount;
+    @GuardedBy("this")
+    private long mDroppedCount;
+    @GuardedBy("this")
+    private long mDroppedSize;
+
+    private final DumpVisitor mVisitor = new DumpVisitor();
+
+    public AllocationProfile() {
+        this(DEFAULT_MAX_SITES, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a profile.
+     * @param maxSites the maximum number of allocation sites kept.
+     * @param window the number of dumps the recent counters cover.
+     */
+    public AllocationProfile(int maxSites, int window) {
+        if (maxSites < 1 || window < 1) {
+            throw new IllegalArgumentException();
+        }
+        mMaxSites = maxSites;
+        mWindow = window;
+        clear();
+    }
+
+    /**
+     * Adds the allocations of a dump, as sent by the VM.
+     * @param data the encoded allocations. See {@link AllocationsParser#parse(ByteBuffer)}.
+     * @see ClientData#getAllocationsData()
+     */
+    public synchronized void add(@NonNull ByteBuffer data) {
+        mDumpCount++;
+        mSlot = (mSlot + 1) % mWindow;
+        for (int site = 0; site < mSites.size(); site++) {
+            mRecentCounts[site * mWindow + mSlot] = 0;
+            mRecentSizes[site * mWindow + mSlot] = 0;
+        }
+
+        AllocationsParser.parse(data, mVisitor);
+
+        if (mSites.size() > mMaxSites) {
+            // drop more than needed, so that this does not happen at every dump.
+            trim(mMaxSites - mMaxSites / 4);
+        }
+    }
+
+    /**
+     * Forgets all the allocations.
+     */
+    public synchronized void clear() {
+        mStrings = new ArrayList<String>();
+        mStringIds = new HashMap<String, Integer>();
+        mFrames = new IntTupleTable();
+        mStacks = new IntTupleTable();
+        mSites = new IntTupleTable();
+        mCounts = new long[64];
+        mSizes = new long[64];
+        mRecentCounts = new long[64 * mWindow];
+        mRecentSizes = new long[64 * mWindow];
+        mSlot = 0;
+        mDumpCount = 0;
+        mDroppedCount = 0;
+        mDroppedSize = 0;
+    }
+
+    /**
+     * Returns the number of dumps added.
+     */
+    public synchronized int getDumpCount() {
+        return mDumpCount;
+    }
+
+    /**
+     * Returns the number of dumps the recent counters of the sites cover.
+     */
+    public int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Returns the number of allocation sites.
+     */
+    public synchronized int getSiteCount() {
+        return mSites.size();
+    }
+
+    /**
+     * Returns the number of allocations of the sites which were dropped.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the size of the allocations of the sites which were dropped, in bytes.
+     */
+    public synchronized long getDroppedSize() {
+        return mDroppedSize;
+    }
+
+    /**
+     * Returns the allocation sites which allocated the most, in bytes.
+     * @param max the maximum number of sites returned.
+     * @param recent whether to rank the sites by their recent allocations, rather than by all
+     *               their allocations.
+     */
+    @NonNull
+    public synchronized List<AllocationSite> getTopSites(int max, boolean recent) {
+        Integer[] sites = rankSites(recent);
+        List<AllocationSite> result = new ArrayList<AllocationSite>(Math.min(max, sites.length));
+        for (int i = 0; i < sites.length && i < max; i++) {
+            result.add(createSite(sites[i]));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private AllocationSite createSite(int site) {
+        int stack = mSites.get(site, 1);
+        StackTraceElement[] stackTrace = new StackTraceElement[mStacks.getLength(stack)];
+        for (int i = 0; i < stackTrace.length; i++) {
+            int frame = mStacks.get(stack, i);
+            stackTrace[i] = new StackTraceElement(
+                    mStrings.get(mFrames.get(frame, 0)),
+                    mStrings.get(mFrames.get(frame, 1)),
+                    mStrings.get(mFrames.get(frame, 2)),
+                    mFrames.get(frame, 3));
+        }
+        return new AllocationSite(mStrings.get(mSites.get(site, 0)), stackTrace,
+                mCounts[site], mSizes[site], getRecent(mRecentCounts, site),
+                getRecent(mRecentSizes, site));
+    }
+
+    private long getRecent(long[] counters, int site) {
+        long total = 0;
+        for (int i = site * mWindow; i < (site + 1) * mWindow; i++) {
+            total += counters[i];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the site ids, from the one which allocated the most to the one which allocated
+     * the least.
+     */
+    private Integer[] rankSites(final boolean recent) {
+        final long[] scores = new long[mSites.size()];
+        Integer[] sites = new Integer[mSites.size()];
+        for (int site = 0; site < sites.length; site++) {
+            sites[site] = site;
+            scores[site] = recent ? getRecent(mRecentSizes, site) : mSizes[site];
+        }
+        Arrays.sort(sites, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer site1, Integer site2) {
+                long score1 = scores[site1];
+                long score2 = scores[site2];
+                if (score1 != score2) {
+                    return score1 > score2 ? -1 : 1;
+                }
+                // then the older sites, which allocated the most overall.
+                return site1 - site2;
+            }
+        });
+        return sites;
+    }
+
+    /**
+     * Keeps the <var>count</var> sites which allocated the most recently, and rebuilds the
+     * tables without the others.
+     */
+    private void trim(int count) {
+        Integer[] sites = rankSites(true);
+        for (int i = count; i < sites.length; i++) {
+            mDroppedCount += mCounts[sites[i]];
+            mDroppedSize += mSizes[sites[i]];
+        }
+
+        List<String> strings = mStrings;
+        IntTupleTable frames = mFrames;
+        IntTupleTable stacks = mStacks;
+        IntTupleTable oldSites = mSites;
+        long[] counts = mCounts;
+        long[] sizes = mSizes;
+        long[] recentCounts = mRecentCounts;
+        long[] recentSizes = mRecentSizes;
+        int slot = mSlot;
+        int dumpCount = mDumpCount;
+        long droppedCount = mDroppedCount;
+        long droppedSize = mDroppedSize;
+        clear();
+        mSlot = slot;
+        mDumpCount = dumpCount;
+        mDroppedCount = droppedCount;
+        mDroppedSize = droppedSize;
+
+        int[] frameIds = new int[frames.size()];
+        Arrays.fill(frameIds, -1);
+        int[] tuple = new int[IntTupleTable.MAX_FRAME_TUPLE];
+        int[] stack = new int[16];
+        for (int i = 0; i < count && i < sites.length; i++) {
+            int oldSite = sites[i];
+            int oldStack = oldSites.get(oldSite, 1);
+            int depth = stacks.getLength(oldStack);
+            if (stack.length < depth) {
+                stack = new int[depth];
+            }
+            for (int j = 0; j < depth; j++) {
+                int oldFrame = stacks.get(oldStack, j);
+                if (frameIds[oldFrame] == -1) {
+                    tuple[0] = intern(strings.get(frames.get(oldFrame, 0)));
+                    tuple[1] = intern(strings.get(frames.get(oldFrame, 1)));
+                    tuple[2] = intern(strings.get(frames.get(oldFrame, 2)));
+                    tuple[3] = frames.get(oldFrame, 3);
+                    frameIds[oldFrame] = mFrames.intern(tuple, 4);
+                }
+                stack[j] = frameIds[oldFrame];
+            }
+            tuple[0] = intern(strings.get(oldSites.get(oldSite, 0)));
+            tuple[1] = mStacks.intern(stack, depth);
+            int site = mSites.intern(tuple, 2);
+
+            ensureSiteCapacity(site + 1);
+            mCounts[site] = counts[oldSite];
+            mSizes[site] = sizes[oldSite];
+            System.arraycopy(recentCounts, oldSite * mWindow, mRecentCounts, site * mWindow,
+                    mWindow);
+            System.arraycopy(recentSizes, oldSite * mWindow, mRecentSizes, site * mWindow,
+                    mWindow);
+        }
+    }
+
+    private int intern(String string) {
+        Integer id = mStringIds.get(string);
+        if (id == null) {
+            id = mStrings.size();
+            mStrings.add(string);
+            mStringIds.put(string, id);
+        }
+        return id;
+    }
+
+    private void ensureSiteCapacity(int siteCount) {
+        if (siteCount > mCounts.length) {
+            int capacity = Math.max(siteCount, mCounts.length * 2);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mRecentCounts = Arrays.copyOf(mRecentCounts, capacity * mWindow);
+            mRecentSizes = Arrays.copyOf(mRecentSizes, capacity * mWindow);
+        }
+    }
+
+    /**
+     * Adds the entries of a dump to the tables and the counters.
+     */
+    private final class DumpVisitor implements AllocationsParser.EntryVisitor {
+        /** The ids of the names of the current dump, by index in its string tables. */
+        private int[] mClassIds = new int[0];
+        private int[] mMethodIds = new int[0];
+        private int[] mFileIds = new int[0];
+
+        private final int[] mTuple = new int[IntTupleTable.MAX_FRAME_TUPLE];
+        private int[] mStack = new int[16];
+
+        @Override
+        public void visitHeader(int numEntries, @NonNull String[] classNames,
+                @NonNull String[] methodNames, @NonNull String[] fileNames) {
+            mClassIds = internAll(classNames);
+            mMethodIds = internAll(methodNames);
+            mFileIds = internAll(fileNames);
+        }
+
+        @Override
+        public void visitEntry(int totalSize, int threadId, int classNameIndex,
+                @NonNull int[] frames, int stackDepth) {
+            if (mStack.length < stackDepth) {
+                mStack = new int[stackDepth];
+            }
+            for (int i = 0; i < stackDepth; i++) {
+                int frame = i * AllocationsParser.FRAME_SIZE;
+                mTuple[0] = mClassIds[frames[frame]];
+                mTuple[1] = mMethodIds[frames[frame + 1]];
+                mTuple[2] = mFileIds[frames[frame + 2]];
+                mTuple[3] = frames[frame + 3];
+                mStack[i] = mFrames.intern(mTuple, 4);
+            }
+            mTuple[0] = mClassIds[classNameIndex];
+            mTuple[1] = mStacks.intern(mStack, stackDepth);
+            int site = mSites.intern(mTuple, 2);
+
+            ensureSiteCapacity(site + 1);
+            mCounts[site]++;
+            mSizes[site] += totalSize;
+            mRecentCounts[site * mWindow + mSlot]++;
+            mRecentSizes[site * mWindow + mSlot] += totalSize;
+        }
+
+        private int[] internAll(String[] strings) {
+            int[] ids = new int[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                ids[i] = intern(strings[i]);
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Interns tuples of ints, identified by their index in the table.
+     */
+    private static final class IntTupleTable {
+        /** The size of the largest fixed size tuple: stack frames. */
+        static final int MAX_FRAME_TUPLE = 4;
+
+        /** The tuples, one after the other. */
+        private int[] mData = new int[256];
+        private int mDataSize = 0;
+        /** The start of each tuple in mData, and its end at the next index. */
+        private int[] mOffsets = new int[65];
+        private int[] mHashes = new int[64];
+        private int mSize = 0;
+
+        /** Hash table of the tuple ids plus one, 0 for free slots. */
+        private int[] mIndex = new int[128];
+
+        int size() {
+            return mSize;
+        }
+
+        int getLength(int id) {
+            return mOffsets[id + 1] - mOffsets[id];
+        }
+
+        int get(int id, int index) {
+            return mData[mOffsets[id] + index];
+        }
+
+        /**
+         * Returns the id of the tuple made of the first <var>length</var> ints of
+         * <var>tuple</var>, adding it to the table if needed.
+         */
+        int intern(int[] tuple, int length) {
+            int hash = 1;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + tuple[i];
+            }
+            hash ^= hash >>> 16;
+
+            int mask = mIndex.length - 1;
+            int slot = hash & mask;
+            for (int id; (id = mIndex[slot] - 1) >= 0; slot = (slot + 1) & mask) {
+                if (mHashes[id] == hash && matches(id, tuple, length)) {
+                    return id;
+                }
+            }
+
+            int id = mSize++;
+            if (mSize == mHashes.length) {
+                mHashes = Arrays.copyOf(mHashes, mSize * 2);
+                mOffsets = Arrays.copyOf(mOffsets, mSize * 2 + 1);
+            }
+            if (mDataSize + length > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mDataSize + length, mData.length * 2));
+            }
+            System.arraycopy(tuple, 0, mData, mDataSize, length);
+            mDataSize += length;
+            mOffsets[id + 1] = mDataSize;
+            mHashes[id] = hash;
+
+            if (mSize * 2 > mIndex.length) {
+                rehash(mIndex.length * 2);
+            } else {
+                mIndex[slot] = id + 1;
+            }
+            return id;
+        }
+
+        private boolean matches(int id, int[] tuple, int length) {
+            int offset = mOffsets[id];
+            if (mOffsets[id + 1] - offset != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (mData[offset + i] != tuple[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rehash(int capacity) {
+            mIndex = new int[capacity];
+            int mask = capacity - 1;
+            for (int id = 0; id < mSize; id++) {
+                int slot = mHashes[id] & mask;
+                while (mIndex[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                mIndex[slot] = id + 1;
+            }
+        }
+    }
+}
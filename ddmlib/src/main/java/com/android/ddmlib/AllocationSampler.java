@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.ddmlib.AndroidDebugBridge.IClientChangeListener;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the allocations of a client continuously, into an {@link AllocationProfile}.
+ * <p/>The allocation tracker of the VM only keeps its most recent allocations. The sampler
+ * periodically requests them and restarts the tracker, so that each dump only holds the
+ * allocations since the previous one, and adds the dump to the profile. The allocations made
+ * while the tracker restarts, and the ones beyond what the VM keeps between two requests, are
+ * not counted: a shorter period makes the profile more complete, at the cost of more traffic.
+ * <p/>Stopping the sampler requests the allocations one last time, so that the allocations since
+ * the last period are not lost. Restarting it restarts the tracker.
+ * <p/>The allocation tracker of the client should not be used by anything else while the
+ * sampler runs.
+ */
+public final class AllocationSampler {
+
+    private static final ScheduledExecutorService sExecutor;
+    static {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Allocation Sampler %d")
+                        .setDaemon(true)
+                        .build());
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        sExecutor = executor;
+    }
+
+    private final Client mClient;
+    private final AllocationProfile mProfile;
+    private final long mPeriodMs;
+
+    @GuardedBy("this")
+    private ScheduledFuture<?> mPoll;
+
+    /** Whether {@link #mListener} is registered. */
+    @GuardedBy("this")
+    private boolean mListening;
+
+    /** The number of dumps requested and not received yet. */
+    @GuardedBy("this")
+    private int mPendingDumps;
+
+    /** Counts the calls to {@link #stop()}, to ignore the timeouts of the previous ones. */
+    @GuardedBy("this")
+    private int mStopCount;
+
+    private final IClientChangeListener mListener = new IClientChangeListener() {
+        @Override
+        public void clientChanged(Client client, int changeMask) {
+            if (client != mClient || (changeMask & Client.CHANGE_HEAP_ALLOCATIONS) == 0
+                    || !onDumpReceived()) {
+                return;
+            }
+            // only available during the notification.
+            byte[] data = client.getClientData().getAllocationsData();
+            if (data != null) {
+                try {
+                    mProfile.add(ByteBuffer.wrap(data));
+                } catch (RuntimeException e) {
+                    Log.w("ddms", "Malformed allocation data from " + client + ": " + e);
+                }
+            }
+        }
+    };
+
+    /**
+     * Creates a sampler.
+     * @param client the client whose allocations are sampled.
+     * @param profile the profile the allocations are added to.
+     * @param period the time between two requests of the allocations.
+     * @param unit the unit of <var>period</var>.
+     */
+    public AllocationSampler(@NonNull Client client, @NonNull AllocationProfile profile,
+            long period, @NonNull TimeUnit unit) {
+        mClient = client;
+        mProfile = profile;
+        mPeriodMs = Math.max(unit.toMillis(period), 1);
+    }
+
+    @NonNull
+    public Client getClient() {
+        return mClient;
+    }
+
+    @NonNull
+    public AllocationProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Starts the allocation tracking of the client, and the periodic requests.
+     */
+    public synchronized void start() {
+        if (mPoll != null) {
+            return;
+        }
+        if (!mListening) {
+            AndroidDebugBridge.addClientChangeListener(mListener);
+            mListening = true;
+        }
+        mClient.enableAllocationTracker(true);
+        mPoll = sExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, mPeriodMs, mPeriodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic requests and the allocation tracking of the client. The allocations
+     * since the last period are requested one last time, and are added to the profile when the
+     * client sends them, shortly after this returns. The profile keeps the allocations sampled
+     * so far.
+     */
+    public synchronized void stop() {
+        if (mPoll == null) {
+            return;
+        }
+        mPoll.cancel(false);
+        mPoll = null;
+        if (!mClient.isValid()) {
+            stopListening();
+            return;
+        }
+        mClient.requestAllocationDetails();
+        mPendingDumps++;
+        mClient.enableAllocationTracker(false);
+
+        // don't wait forever for a client which doesn't answer.
+        final int stopCount = ++mStopCount;
+        sExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AllocationSampler.this) {
+                    if (stopCount == mStopCount && mPoll == null) {
+                        stopListening();
+                    }
+                }
+            }
+        }, DdmPreferences.getTimeOut(), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isRunning() {
+        return mPoll != null;
+    }
+
+    private synchronized void poll() {
+        if (mPoll == null) {
+            // stopped while this was about to run.
+            return;
+        }
+        if (!mClient.isValid()) {
+            stop();
+            return;
+        }
+        // The VM handles the requests in order: the dump holds the allocations since the
+        // tracker was last enabled, and restarting it clears them.
+        mClient.requestAllocationDetails();
+        mPendingDumps++;
+        mClient.enableAllocationTracker(false);
+        mClient.enableAllocationTracker(true);
+    }
+
+    /**
+     * Returns whether a dump was expected. Once stopped, the listener is removed after the last
+     * requested dump.
+     */
+    private synchronized boolean onDumpReceived() {
+        if (mPendingDumps == 0) {
+            return isRunning();
+        }
+        mPendingDumps--;
+        if (mPendingDumps == 0 && mPoll == null) {
+            stopListening();
+        }
+        return true;
+    }
+
+    @GuardedBy("this")
+    private void stopListening() {
+        if (mListening) {
+            AndroidDebugBridge.removeClientChangeListener(mListener);
+            mListening = false;
+        }
+        mPendingDumps = 0;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+/**
+ * The allocations of a class of objects from a single stack trace, as aggregated by an
+ * {@link AllocationProfile}.
+ */
+public final class AllocationSite implements IStackTraceInfo {
+
+    private final String mAllocatedClass;
+    private final StackTraceElement[] mStackTrace;
+    private final long mCount;
+    private final long mTotalSize;
+    private final long mRecentCount;
+    private final long mRecentSize;
+
+    AllocationSite(@NonNull String allocatedClass, @NonNull StackTraceElement[] stackTrace,
+            long count, long totalSize, long recentCount, long recentSize) {
+        mAllocatedClass = allocatedClass;
+        mStackTrace = stackTrace;
+        mCount = count;
+        mTotalSize = totalSize;
+        mRecentCount = recentCount;
+        mRecentSize = recentSize;
+    }
+
+    /**
+     * Returns the name of the class of the allocated objects.
+     */
+    @NonNull
+    public String getAllocatedClass() {
+        return mAllocatedClass;
+    }
+
+    /**
+     * Returns the stack trace of the allocations, most recent call first.
+     */
+    @Override
+    @NonNull
+    public StackTraceElement[] getStackTrace() {
+        return mStackTrace;
+    }
+
+    /**
+     * Returns the number of allocations since the profile started.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the size of the allocated objects since the profile started, in bytes.
+     */
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Returns the number of allocations in the last dumps of the profile.
+     * @see AllocationProfile#getWindow()
+     */
+    public long getRecentCount() {
+        return mRecentCount;
+    }
+
+    /**
+     * Returns the size of the objects allocated in the last dumps of the profile, in bytes.
+     * @see AllocationProfile#getWindow()
+     */
+    public long getRecentSize() {
+        return mRecentSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d allocations, %d bytes (%d, %d bytes recently) at %s",
+                mAllocatedClass, mCount, mTotalSize, mRecentCount, mRecentSize,
+                mStackTrace.length > 0 ? mStackTrace[0] : "<unknown>");
+    }
+}
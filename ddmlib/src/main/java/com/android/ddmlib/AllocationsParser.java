@@ -114,6 +114,71 @@ public class AllocationsParser {
   */
   @NonNull
   public static AllocationInfo[] parse(@NonNull ByteBuffer data) {
+    final AllocationInfo[][] result = new AllocationInfo[1][];
+    parse(data, new EntryVisitor() {
+      private String[] mClassNames, mMethodNames, mFileNames;
+      private int mIndex = 0;
+
+      @Override
+      public void visitHeader(int numEntries, @NonNull String[] classNames,
+                              @NonNull String[] methodNames, @NonNull String[] fileNames) {
+        result[0] = new AllocationInfo[numEntries];
+        mClassNames = classNames;
+        mMethodNames = methodNames;
+        mFileNames = fileNames;
+      }
+
+      @Override
+      public void visitEntry(int totalSize, int threadId, int classNameIndex,
+                             @NonNull int[] frames, int stackDepth) {
+        StackTraceElement[] steArray = new StackTraceElement[stackDepth];
+        for (int sti = 0; sti < stackDepth; sti++) {
+          int frame = sti * FRAME_SIZE;
+          steArray[sti] = new StackTraceElement(mClassNames[frames[frame]],
+                                                mMethodNames[frames[frame + 1]],
+                                                mFileNames[frames[frame + 2]],
+                                                frames[frame + 3]);
+        }
+
+        AllocationInfo[] allocations = result[0];
+        allocations[mIndex] = new AllocationInfo(allocations.length - mIndex,
+                                                 mClassNames[classNameIndex], totalSize,
+                                                 (short) threadId, steArray);
+        mIndex++;
+      }
+    });
+    return result[0];
+  }
+
+  /** The number of ints describing a stack frame in {@link EntryVisitor#visitEntry}. */
+  static final int FRAME_SIZE = 4;
+
+  /**
+   * Receives the content of an allocation message, without the stack traces being converted
+   * to objects.
+   */
+  interface EntryVisitor {
+    /**
+     * Called first, with the string tables the entries refer to.
+     */
+    void visitHeader(int numEntries, @NonNull String[] classNames, @NonNull String[] methodNames,
+                     @NonNull String[] fileNames);
+
+    /**
+     * Called for each entry, from the most recent allocation to the oldest.
+     * @param frames the stack frames, {@link #FRAME_SIZE} ints each: the indices of the class,
+     *               method and source file names, and the line number. Only valid during
+     *               the call.
+     */
+    void visitEntry(int totalSize, int threadId, int classNameIndex, @NonNull int[] frames,
+                    int stackDepth);
+  }
+
+  /**
+   * Parses an allocation message, the same as {@link #parse(ByteBuffer)}, but hands its
+   * content to <var>visitor</var> instead of building {@link AllocationInfo}s.
+   */
+  static void parse(@NonNull ByteBuffer data, @NonNull EntryVisitor visitor) {
     int messageHdrLen, entryHdrLen, stackFrameLen;
     int numEntries, offsetToStrings;
     int numClassNames, numMethodNames, numFileNames;
@@ -144,13 +209,15 @@ public class AllocationsParser {
     readStringTable(data, methodNames);
     readStringTable(data, fileNames);
 
+    visitor.visitHeader(numEntries, classNames, methodNames, fileNames);
+
     /*
      * Skip back to a point just past the header and start reading
      * entries.
      */
     data.position(messageHdrLen);
 
-    AllocationInfo[] allocations = new AllocationInfo[numEntries];
+    int[] frames = new int[16 * FRAME_SIZE];
     for (int i = 0; i < numEntries; i++) {
       int totalSize;
       int threadId, classNameIndex, stackDepth;
@@ -163,36 +230,26 @@ public class AllocationsParser {
       for (int skip = 9; skip < entryHdrLen; skip++)
         data.get();
 
-      StackTraceElement[] steArray = new StackTraceElement[stackDepth];
+      if (frames.length < stackDepth * FRAME_SIZE) {
+        frames = new int[stackDepth * FRAME_SIZE];
+      }
 
       /*
        * Pull out the stack trace.
        */
       for (int sti = 0; sti < stackDepth; sti++) {
-        int methodClassNameIndex, methodNameIndex;
-        int methodSourceFileIndex;
-        short lineNumber;
-        String methodClassName, methodName, methodSourceFile;
-
-        methodClassNameIndex = (data.getShort() & 0xffff);
-        methodNameIndex = (data.getShort() & 0xffff);
-        methodSourceFileIndex = (data.getShort() & 0xffff);
-        lineNumber = data.getShort();
-
-        methodClassName = classNames[methodClassNameIndex];
-        methodName = methodNames[methodNameIndex];
-        methodSourceFile = fileNames[methodSourceFileIndex];
-
-        steArray[sti] = new StackTraceElement(methodClassName,
-                                              methodName, methodSourceFile, lineNumber);
+        int frame = sti * FRAME_SIZE;
+        frames[frame] = (data.getShort() & 0xffff);      // method's class name
+        frames[frame + 1] = (data.getShort() & 0xffff);  // method name
+        frames[frame + 2] = (data.getShort() & 0xffff);  // method source file
+        frames[frame + 3] = data.getShort();             // line number
 
         /* we've consumed 8 bytes; gobble up any extra */
         for (int skip = 8; skip < stackFrameLen; skip++)
           data.get();
       }
 
-      allocations[i] = new AllocationInfo(numEntries - i, classNames[classNameIndex], totalSize, (short) threadId, steArray);
+      visitor.visitEntry(totalSize, threadId, classNameIndex, frames, stackDepth);
     }
-    return allocations;
   }
 }
@@ -34,6 +34,7 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -236,6 +237,8 @@ public final class AndroidDebugBridge {
             monitorThread.quit();
         }
 
+        ShellCommandExecutor.shutdown();
+
         sInitialized = false;
     }
 
@@ -247,6 +250,16 @@ public final class AndroidDebugBridge {
         return sClientSupport;
     }
 
+    /**
+     * Returns the activity of the threads handling the DDM chunks sent by the {@link Client}s,
+     * or null if the library is not initialized.
+     */
+    @Nullable
+    public static ChunkDispatchMetrics getChunkDispatchMetrics() {
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        return monitorThread != null ? monitorThread.getChunkDispatchMetrics() : null;
+    }
+
     /**
      * Returns the socket address of the ADB server on the host.
      */
@@ -478,6 +491,65 @@ public final class AndroidDebugBridge {
         }
     }
 
+    /**
+     * Pushes local files to a remote directory on several devices at once.
+     * <p/>Each local file is read once, through a memory mapping shared by all the transfers.
+     * Every device gets its own sync connection, and at most <var>parallelism</var> devices are
+     * served concurrently.
+     * <p/>This call is blocking until all the transfers are done. Failures on some devices do
+     * not stop the transfers to the others.
+     *
+     * @param devices the devices to push to.
+     * @param localFiles the paths of the local files to push.
+     * @param remoteDir the remote directory receiving the files.
+     * @param parallelism the maximum number of devices served at the same time.
+     * @param monitor the progress monitor, receiving the aggregated progress of all the
+     *            transfers. The work is counted in bytes, scaled down if the total would not
+     *            fit in an int. Cancelling it stops all the transfers.
+     * @return the devices on which the push failed, mapped to the reason of the failure.
+     * @throws SyncException if a local file does not exist or is a directory.
+     * @throws IOException if a local file could not be read.
+     */
+    @NonNull
+    public static Map<IDevice, Exception> pushFiles(
+            @NonNull Collection<? extends IDevice> devices, @NonNull List<String> localFiles,
+            @NonNull String remoteDir, int parallelism,
+            @NonNull SyncService.ISyncProgressMonitor monitor)
+            throws SyncException, IOException {
+        return DeviceFanOut.pushFiles(devices, localFiles, remoteDir, parallelism, monitor);
+    }
+
+    /**
+     * Installs an application, made of one or more APKs, on several devices at once.
+     * <p/>A single APK is read once, through a memory mapping shared by all the transfers, then
+     * installed from a temporary remote file. Split APKs go through
+     * {@link IDevice#installPackages(List, int, boolean, String...)} on each device. At most
+     * <var>parallelism</var> devices are served concurrently.
+     * <p/>This call is blocking until all the installations are done.
+     *
+     * @param devices the devices to install on.
+     * @param apks the paths of the local APKs, the main APK first.
+     * @param reinstall set to <code>true</code> if re-install of app should be performed
+     * @param parallelism the maximum number of devices served at the same time.
+     * @param monitor the progress monitor, receiving the aggregated progress of all the
+     *            uploads.
+     * @param extraArgs optional extra arguments to pass. See 'adb shell pm install --help' for
+     *            available options.
+     * @return the devices on which the installation failed, mapped to the reason of the
+     *         failure.
+     * @throws SyncException if a local file does not exist or is a directory.
+     * @throws IOException if a local file could not be read.
+     */
+    @NonNull
+    public static Map<IDevice, Exception> installPackages(
+            @NonNull Collection<? extends IDevice> devices, @NonNull List<String> apks,
+            boolean reinstall, int parallelism,
+            @NonNull SyncService.ISyncProgressMonitor monitor, String... extraArgs)
+            throws SyncException, IOException {
+        return DeviceFanOut.installPackages(devices, apks, reinstall, parallelism, monitor,
+                extraArgs);
+    }
+
 
     /**
      * Returns the devices.
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.GuardedBy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of large read buffers, shared by all the {@link Client}s.
+ * <p/>The buffers are direct, so that the socket channels read into them without an
+ * intermediate copy, and their sizes are powers of two between {@link #MIN_POOLED_SIZE} and
+ * {@link #MAX_POOLED_SIZE}. Larger requests get a heap buffer of the exact size, which is not
+ * kept once released. The pool keeps at most a fixed number of bytes of released buffers;
+ * buffers released beyond that are left to the garbage collector.
+ */
+final class ByteBufferPool {
+
+    /** Smallest buffer handed out by the pool. */
+    static final int MIN_POOLED_SIZE = 64 * 1024;
+
+    /** Largest buffer kept by the pool. */
+    static final int MAX_POOLED_SIZE = 64 * 1024 * 1024;
+
+    private static final long DEFAULT_MAX_RETAINED_BYTES = 128 * 1024 * 1024;
+
+    private static final ByteBufferPool sInstance =
+            new ByteBufferPool(DEFAULT_MAX_RETAINED_BYTES);
+
+    private final long mMaxRetainedBytes;
+
+    /** Released buffers, indexed by the log2 of their size minus the one of MIN_POOLED_SIZE. */
+    @GuardedBy("this")
+    private final List<ArrayDeque<ByteBuffer>> mFreeBuffers =
+            new ArrayList<ArrayDeque<ByteBuffer>>();
+
+    @GuardedBy("this")
+    private long mRetainedBytes = 0;
+
+    ByteBufferPool(long maxRetainedBytes) {
+        mMaxRetainedBytes = maxRetainedBytes;
+        for (int size = MIN_POOLED_SIZE; size <= MAX_POOLED_SIZE; size <<= 1) {
+            mFreeBuffers.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Returns the pool shared by all the clients.
+     */
+    @NonNull
+    static ByteBufferPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns a cleared buffer of at least <var>size</var> bytes, in the default (big endian)
+     * byte order.
+     */
+    @NonNull
+    ByteBuffer acquire(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+
+        int index = getIndex(size);
+        synchronized (this) {
+            ByteBuffer buffer = mFreeBuffers.get(index).poll();
+            if (buffer != null) {
+                mRetainedBytes -= buffer.capacity();
+                buffer.clear();
+                buffer.order(ChunkHandler.CHUNK_ORDER);
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(MIN_POOLED_SIZE << index);
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers which were not acquired from the pool are
+     * ignored, and so are the ones which do not fit in the pool anymore.
+     * <p/>The buffer must not be used by the caller after this.
+     */
+    void release(@NonNull ByteBuffer buffer) {
+        if (!isPooled(buffer)) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        synchronized (this) {
+            if (mRetainedBytes + capacity > mMaxRetainedBytes) {
+                return;
+            }
+            mRetainedBytes += capacity;
+            mFreeBuffers.get(getIndex(capacity)).push(buffer);
+        }
+    }
+
+    /**
+     * Returns whether <var>buffer</var> may be a buffer of the pool, as opposed to a
+     * buffer its owner can keep.
+     */
+    static boolean isPooled(@NonNull ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        return buffer.isDirect() && !buffer.isReadOnly()
+                && capacity >= MIN_POOLED_SIZE && capacity <= MAX_POOLED_SIZE
+                && Integer.bitCount(capacity) == 1;
+    }
+
+    synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    private static int getIndex(int size) {
+        if (size <= MIN_POOLED_SIZE) {
+            return 0;
+        }
+        // log2 of the next power of two, relative to MIN_POOLED_SIZE.
+        return Integer.numberOfLeadingZeros(MIN_POOLED_SIZE - 1)
+                - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
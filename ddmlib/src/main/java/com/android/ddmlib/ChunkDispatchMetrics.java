@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+/**
+ * A snapshot of the activity of the threads handling the DDM chunks sent by the clients.
+ *
+ * @see AndroidDebugBridge#getChunkDispatchMetrics()
+ */
+public final class ChunkDispatchMetrics {
+
+    private final int mQueuedChunks;
+    private final int mMaxQueueDepth;
+    private final long mHandledChunks;
+    private final long mTotalWaitNs;
+    private final long mTotalHandlerNs;
+    private final long mMaxHandlerNs;
+
+    ChunkDispatchMetrics(int queuedChunks, int maxQueueDepth, long handledChunks,
+            long totalWaitNs, long totalHandlerNs, long maxHandlerNs) {
+        mQueuedChunks = queuedChunks;
+        mMaxQueueDepth = maxQueueDepth;
+        mHandledChunks = handledChunks;
+        mTotalWaitNs = totalWaitNs;
+        mTotalHandlerNs = totalHandlerNs;
+        mMaxHandlerNs = maxHandlerNs;
+    }
+
+    /**
+     * Returns the number of chunks received and not handled yet, all clients included.
+     */
+    public int getQueuedChunks() {
+        return mQueuedChunks;
+    }
+
+    /**
+     * Returns the largest number of chunks which were waiting at the same time for a single
+     * client.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * Returns the number of chunks handled.
+     */
+    public long getHandledChunks() {
+        return mHandledChunks;
+    }
+
+    /**
+     * Returns the total time the handled chunks waited in their queue, in nanoseconds.
+     */
+    public long getTotalWaitNs() {
+        return mTotalWaitNs;
+    }
+
+    /**
+     * Returns the total time spent in the handlers, in nanoseconds.
+     */
+    public long getTotalHandlerNs() {
+        return mTotalHandlerNs;
+    }
+
+    /**
+     * Returns the longest time spent handling a single chunk, in nanoseconds.
+     */
+    public long getMaxHandlerNs() {
+        return mMaxHandlerNs;
+    }
+
+    @Override
+    public String toString() {
+        long handled = Math.max(mHandledChunks, 1);
+        return String.format(
+                "%d chunks queued (max %d per client), %d handled, avg wait %d us, "
+                        + "avg handler %d us, max handler %d us",
+                mQueuedChunks, mMaxQueueDepth, mHandledChunks, mTotalWaitNs / handled / 1000,
+                mTotalHandlerNs / handled / 1000, mMaxHandlerNs / 1000);
+    }
+}
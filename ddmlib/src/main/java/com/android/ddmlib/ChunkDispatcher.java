@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.GuardedBy;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the {@link ChunkHandler}s off the {@link MonitorThread}.
+ * <p/>Each {@link Client} has its own queue of chunks, handled one at a time and in the order
+ * they were received, so the handlers of a client never run concurrently. The queues of
+ * different clients are handled in parallel by a shared pool of threads, so that a slow
+ * handler, decoding a heap dump for instance, does not hold the JDWP traffic of the other
+ * clients.
+ */
+final class ChunkDispatcher {
+
+    /** Maximum number of chunks of a client handled in a row, before letting others run. */
+    private static final int MAX_BATCH = 16;
+
+    private static final long IDLE_THREAD_TIMEOUT_SEC = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final Map<Client, ClientQueue> mQueues = new ConcurrentHashMap<Client, ClientQueue>();
+
+    private final AtomicInteger mQueuedChunks = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mHandledChunks = new AtomicLong();
+    private final AtomicLong mTotalWaitNs = new AtomicLong();
+    private final AtomicLong mTotalHandlerNs = new AtomicLong();
+    private final AtomicLong mMaxHandlerNs = new AtomicLong();
+
+    /**
+     * Creates a dispatcher.
+     * @param threadCount the maximum number of handlers running at the same time.
+     */
+    ChunkDispatcher(int threadCount) {
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+                IDLE_THREAD_TIMEOUT_SEC, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Chunk Dispatcher %d")
+                        .setDaemon(true)
+                        .build());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a chunk to be handled by <var>handler</var>, after the chunks previously queued
+     * for the same client.
+     * <p/>The data is copied, so the caller can reuse its buffer right away. This is only
+     * called from the monitor thread.
+     */
+    void dispatch(@NonNull Client client, @NonNull ChunkHandler handler, int type,
+            @NonNull ByteBuffer data, boolean isReply, int msgId) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        ByteBuffer roCopy = copy.asReadOnlyBuffer(); // enforce R/O
+        roCopy.order(ChunkHandler.CHUNK_ORDER);
+
+        queue(client, new Chunk(handler, type, roCopy, isReply, msgId, null, null, 0));
+    }
+
+    /**
+     * Queues a chunk to be handled by <var>handler</var>, like
+     * {@link #dispatch(Client, ChunkHandler, int, ByteBuffer, boolean, int)}, but without
+     * copying it: <var>data</var> lies in <var>owner</var>, a buffer of the
+     * {@link ByteBufferPool} which the caller hands over, and which is given back to the pool
+     * once the chunk is handled.
+     */
+    void dispatch(@NonNull Client client, @NonNull ChunkHandler handler, int type,
+            @NonNull ByteBuffer data, boolean isReply, int msgId, @NonNull ByteBuffer owner) {
+        ByteBuffer roData = data.asReadOnlyBuffer(); // enforce R/O
+        roData.order(ChunkHandler.CHUNK_ORDER);
+
+        queue(client, new Chunk(handler, type, roData, isReply, msgId, owner, null, 0));
+    }
+
+    /**
+     * Queues a chunk to be handled by <var>handler</var>, like
+     * {@link #dispatch(Client, ChunkHandler, int, ByteBuffer, boolean, int)}, but without
+     * copying it: <var>data</var> lies in the file of <var>spool</var>, from
+     * <var>offset</var>, which the caller hands over, and which is deleted once the chunk is
+     * handled.
+     *
+     * @see ChunkHandler#handleSpooledChunk(Client, int, ByteBuffer, boolean, int, File, long)
+     */
+    void dispatch(@NonNull Client client, @NonNull ChunkHandler handler, int type,
+            @NonNull ByteBuffer data, boolean isReply, int msgId, @NonNull SpoolFile spool,
+            long offset) {
+        ByteBuffer roData = data.asReadOnlyBuffer(); // enforce R/O
+        roData.order(ChunkHandler.CHUNK_ORDER);
+
+        queue(client, new Chunk(handler, type, roData, isReply, msgId, null, spool, offset));
+    }
+
+    /**
+     * Forgets the queue of a client which is gone. The chunks already queued are still handled.
+     */
+    void clientDropped(@NonNull Client client) {
+        mQueues.remove(client);
+    }
+
+    /**
+     * Stops the threads once the queued chunks are handled.
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void queue(Client client, Chunk chunk) {
+        ClientQueue queue = mQueues.get(client);
+        if (queue == null) {
+            queue = new ClientQueue(client);
+            mQueues.put(client, queue);
+        }
+        mQueuedChunks.incrementAndGet();
+        queue.add(chunk);
+    }
+
+    @NonNull
+    ChunkDispatchMetrics getMetrics() {
+        return new ChunkDispatchMetrics(mQueuedChunks.get(), mMaxQueueDepth.get(),
+                mHandledChunks.get(), mTotalWaitNs.get(), mTotalHandlerNs.get(),
+                mMaxHandlerNs.get());
+    }
+
+    private void handle(Client client, Chunk chunk) {
+        long start = System.nanoTime();
+        try {
+            if (chunk.mSpool != null) {
+                chunk.mHandler.handleSpooledChunk(client, chunk.mType, chunk.mData,
+                        chunk.mIsReply, chunk.mMsgId, chunk.mSpool.getFile(), chunk.mSpoolOffset);
+            } else {
+                chunk.mHandler.handleChunk(client, chunk.mType, chunk.mData, chunk.mIsReply,
+                        chunk.mMsgId);
+            }
+        } catch (Exception e) {
+            // same as when the handler ran on the monitor thread: drop the client.
+            Log.e("ddms", e);
+            MonitorThread monitor = MonitorThread.getInstance();
+            if (monitor != null) {
+                monitor.dropClient(client, true /* notify */);
+            }
+        } finally {
+            if (chunk.mOwner != null) {
+                ByteBufferPool.getInstance().release(chunk.mOwner);
+            }
+            if (chunk.mSpool != null) {
+                chunk.mSpool.delete();
+            }
+        }
+        long end = System.nanoTime();
+
+        mQueuedChunks.decrementAndGet();
+        mHandledChunks.incrementAndGet();
+        mTotalWaitNs.addAndGet(start - chunk.mQueuedNs);
+        mTotalHandlerNs.addAndGet(end - start);
+        long max;
+        while ((max = mMaxHandlerNs.get()) < end - start
+                && !mMaxHandlerNs.compareAndSet(max, end - start)) {
+            // retry
+        }
+    }
+
+    private static final class Chunk {
+        final ChunkHandler mHandler;
+        final int mType;
+        final ByteBuffer mData;
+        final boolean mIsReply;
+        final int mMsgId;
+        /** The pooled buffer holding mData, released once handled, or null. */
+        final ByteBuffer mOwner;
+        /** The temporary file holding mData, deleted once handled, or null. */
+        final SpoolFile mSpool;
+        final long mSpoolOffset;
+        final long mQueuedNs = System.nanoTime();
+
+        Chunk(ChunkHandler handler, int type, ByteBuffer data, boolean isReply, int msgId,
+                ByteBuffer owner, SpoolFile spool, long spoolOffset) {
+            mHandler = handler;
+            mType = type;
+            mData = data;
+            mIsReply = isReply;
+            mMsgId = msgId;
+            mOwner = owner;
+            mSpool = spool;
+            mSpoolOffset = spoolOffset;
+        }
+    }
+
+    /**
+     * The chunks of a client. It is scheduled on the executor when it has chunks to handle,
+     * and never more than once at a time.
+     */
+    private final class ClientQueue implements Runnable {
+        private final Client mClient;
+
+        @GuardedBy("this")
+        private final ArrayDeque<Chunk> mChunks = new ArrayDeque<Chunk>();
+
+        @GuardedBy("this")
+        private boolean mScheduled = false;
+
+        ClientQueue(Client client) {
+            mClient = client;
+        }
+
+        void add(Chunk chunk) {
+            synchronized (this) {
+                mChunks.add(chunk);
+                int depth = mChunks.size();
+                int max;
+                while ((max = mMaxQueueDepth.get()) < depth
+                        && !mMaxQueueDepth.compareAndSet(max, depth)) {
+                    // retry
+                }
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                Chunk chunk;
+                synchronized (this) {
+                    chunk = mChunks.poll();
+                    if (chunk == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                handle(mClient, chunk);
+            }
+
+            // give the other clients a chance, and come back later.
+            synchronized (this) {
+                if (mChunks.isEmpty()) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+            mExecutor.execute(this);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.ddmlib;
 
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -60,11 +61,26 @@ abstract class ChunkHandler {
      * client for this event.  Note that it's possible to receive chunks
      * in reply packets for which we are not registered.
      *
-     * The handler may not modify the contents of "data".
+     * The handler may not modify the contents of "data".  A direct
+     * "data" belongs to a pooled buffer, which is reused once the handler
+     * returns: a handler keeping the data around must copy it first.
      */
     abstract void handleChunk(Client client, int type,
         ByteBuffer data, boolean isReply, int msgId);
 
+    /**
+     * Handle an incoming chunk too large to be read into memory.  The
+     * data is both mapped by "data", as with handleChunk(), and stored
+     * in "file" from "offset" on.  The file is deleted once the handler
+     * returns.
+     *
+     * By default this calls handleChunk().
+     */
+    void handleSpooledChunk(Client client, int type, ByteBuffer data,
+        boolean isReply, int msgId, File file, long offset) {
+        handleChunk(client, type, data, isReply, msgId);
+    }
+
     /**
      * Handle chunks not recognized by handlers.  The handleChunk() method
      * in sub-classes should call this if the chunk type isn't recognized.
@@ -98,12 +98,20 @@ public class Client {
      * request from the debugger.  Requests from the debugger, and from us,
      * are much smaller.
      *
+     * Packets which do not fit in the initial buffer are read into a
+     * buffer of the shared ByteBufferPool, sized for the whole packet.
+     * Packets too large for the pool, like heap dumps, are read into a
+     * memory-mapped temporary file instead.
+     *
      * Pass-through debugger traffic is sent without copying.  "mWriteBuffer"
      * is only used for data generated within Client.
      */
     private static final int INITIAL_BUF_SIZE = 2*1024;
     private static final int MAX_BUF_SIZE = 800*1024*1024;
     private ByteBuffer mReadBuffer;
+    private final ByteBuffer mInitialReadBuffer;
+    /** The temporary file mapped by mReadBuffer, or null. */
+    private SpoolFile mReadSpool;
 
     private static final int WRITE_BUF_SIZE = 256;
     private ByteBuffer mWriteBuffer;
@@ -133,7 +141,8 @@ public class Client {
         mDevice = device;
         mChan = chan;
 
-        mReadBuffer = ByteBuffer.allocate(INITIAL_BUF_SIZE);
+        mInitialReadBuffer = ByteBuffer.allocate(INITIAL_BUF_SIZE);
+        mReadBuffer = mInitialReadBuffer;
         mWriteBuffer = ByteBuffer.allocate(WRITE_BUF_SIZE);
 
         mOutstandingReqs = new HashMap<Integer,ChunkHandler>();
@@ -722,21 +731,44 @@ public class Client {
 
         int count;
 
-        if (mReadBuffer.position() == mReadBuffer.capacity()) {
-            if (mReadBuffer.capacity() * 2 > MAX_BUF_SIZE) {
+        /*
+         * Once the length of the pending packet is known, the buffer is
+         * replaced at once by a pooled buffer large enough for all of it,
+         * rather than doubled until the packet fits.  The handshake is
+         * short, and has no length.
+         */
+        int needed = mReadBuffer.capacity();
+        if (mConnState != ST_AWAIT_SHAKE) {
+            needed = Math.max(needed, JdwpPacket.peekLength(mReadBuffer));
+        }
+        if (mReadBuffer.position() == mReadBuffer.capacity()
+                && needed == mReadBuffer.capacity()) {
+            needed = mReadBuffer.capacity() * 2;
+        }
+        if (needed > mReadBuffer.capacity()) {
+            if (needed > MAX_BUF_SIZE) {
                 Log.e("ddms", "Exceeded MAX_BUF_SIZE!");
                 throw new BufferOverflowException();
             }
-            Log.d("ddms", "Expanding read buffer to "
-                + mReadBuffer.capacity() * 2);
-
-            ByteBuffer newBuffer = ByteBuffer.allocate(mReadBuffer.capacity() * 2);
+            Log.d("ddms", "Expanding read buffer to " + needed);
+
+            SpoolFile spool = null;
+            if (needed > ByteBufferPool.MAX_POOLED_SIZE) {
+                try {
+                    spool = SpoolFile.create(needed);
+                } catch (IOException e) {
+                    Log.w("ddms", "Failed to create a spool file, reading into memory: " + e);
+                }
+            }
+            ByteBuffer newBuffer = spool != null
+                    ? spool.getBuffer() : ByteBufferPool.getInstance().acquire(needed);
 
-            // copy entire buffer to new buffer
-            mReadBuffer.position(0);
+            // copy the pending data to new buffer
+            mReadBuffer.flip();
             newBuffer.put(mReadBuffer);  // leaves "position" at end of copied
 
-            mReadBuffer = newBuffer;
+            setReadBuffer(newBuffer);
+            mReadSpool = spool;
         }
 
         count = mChan.read(mReadBuffer);
@@ -813,7 +845,11 @@ public class Client {
                 if (Log.Config.LOGV) Log.v("ddms",
                     "Checking " + mReadBuffer.position() + " bytes");
             }
-            return JdwpPacket.findPacket(mReadBuffer);
+            JdwpPacket packet = JdwpPacket.findPacket(mReadBuffer);
+            if (packet == null) {
+                shrinkReadBuffer();
+            }
+            return packet;
         } else {
             /*
              * Not expecting data when in this state.
@@ -824,6 +860,93 @@ public class Client {
         return null;
     }
 
+    /**
+     * Hands the read buffer over to the caller, when <var>packet</var> is large and sits in
+     * a buffer from the {@link ByteBufferPool}, so that its payload can be handled without
+     * being copied.
+     * <p/>The data following the packet is moved to a new read buffer. The returned buffer
+     * must be given back to the pool once the payload is handled, and the packet must not be
+     * consumed.
+     *
+     * @return the buffer holding the packet, or null if the packet stays in the read buffer.
+     */
+    ByteBuffer detachPacketBuffer(JdwpPacket packet) {
+        ByteBuffer buffer = mReadBuffer;
+        if (buffer == mInitialReadBuffer || mReadSpool != null
+                || packet.getLength() < ByteBufferPool.MIN_POOLED_SIZE / 2) {
+            return null;
+        }
+
+        movePendingData(packet);
+        return buffer;
+    }
+
+    /**
+     * Hands the temporary file the read buffer maps over to the caller, when
+     * <var>packet</var> was read into one.
+     * <p/>The data following the packet is moved to a new read buffer. The caller must delete
+     * the file once the payload is handled, and the packet must not be consumed.
+     *
+     * @return the file holding the packet, from its first byte, or null if the packet stays in
+     *         the read buffer.
+     */
+    SpoolFile detachPacketSpool(JdwpPacket packet) {
+        SpoolFile spool = mReadSpool;
+        if (spool == null) {
+            return null;
+        }
+
+        movePendingData(packet);
+        mReadSpool = null;
+        return spool;
+    }
+
+    /**
+     * Moves the data following <var>packet</var> to a new read buffer, leaving the current one
+     * as it is.
+     */
+    private void movePendingData(JdwpPacket packet) {
+        ByteBuffer buffer = mReadBuffer;
+        int pending = buffer.position() - packet.getLength();
+        ByteBuffer newBuffer = pending <= INITIAL_BUF_SIZE
+                ? mInitialReadBuffer
+                : ByteBufferPool.getInstance().acquire(pending);
+        newBuffer.clear();
+        ByteBuffer data = buffer.duplicate();
+        data.limit(buffer.position());
+        data.position(packet.getLength());
+        newBuffer.put(data);
+        mReadBuffer = newBuffer;
+    }
+
+    /**
+     * Replaces the read buffer, giving the previous one back to the pool.
+     */
+    private void setReadBuffer(ByteBuffer buffer) {
+        ByteBufferPool.getInstance().release(mReadBuffer);
+        if (mReadSpool != null) {
+            mReadSpool.delete();
+            mReadSpool = null;
+        }
+        mReadBuffer = buffer;
+    }
+
+    /**
+     * Goes back to the small read buffer once the large packets are consumed, so that
+     * the pooled buffer can be used by other clients.
+     */
+    private void shrinkReadBuffer() {
+        if (mReadBuffer == mInitialReadBuffer || mReadBuffer.position() > INITIAL_BUF_SIZE
+                || JdwpPacket.peekLength(mReadBuffer) > INITIAL_BUF_SIZE) {
+            return;
+        }
+
+        mInitialReadBuffer.clear();
+        mReadBuffer.flip();
+        mInitialReadBuffer.put(mReadBuffer);
+        setReadBuffer(mInitialReadBuffer);
+    }
+
     /*
      * Add the specified ID to the list of request IDs for which we await
      * a response.
@@ -927,6 +1050,11 @@ public class Client {
                 mDebugger.close();
                 mDebugger = null;
             }
+
+            if (mReadSpool != null) {
+                mReadSpool.delete();
+                mReadSpool = null;
+            }
         }
         catch (IOException ioe) {
             Log.w("ddms", "failed to close " + this);
@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.HeapSegment.HeapSegmentElement;
 
+import java.io.File;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -335,23 +336,56 @@ public class ClientData {
     public static class HprofData {
         public enum Type {
             FILE,
-            DATA
+            DATA,
+            /**
+             * The dump was streamed into a local file, which can be memory-mapped, for instance
+             * with perflib's MemoryMappedFileBuffer. Only used when enabled with
+             * {@link DdmPreferences#setHprofLocalFile(boolean)}.
+             * <p/>The file is deleted once the {@link Client#CHANGE_HPROF} notification is over:
+             * the dump must be read, mapped or copied during the notification.
+             */
+            LOCAL_FILE
         }
 
         public final Type type;
         public final String filename;
         public final byte[] data;
 
+        /**
+         * The local file holding the dump, for {@link Type#LOCAL_FILE}. It is only valid during
+         * the {@link Client#CHANGE_HPROF} notification.
+         */
+        public final File file;
+        /** The position of the dump in {@link #file}. */
+        public final long offset;
+        /** The size of the dump in {@link #file}. */
+        public final long length;
+
         public HprofData(@NonNull String filename) {
             type = Type.FILE;
             this.filename = filename;
             this.data = null;
+            this.file = null;
+            this.offset = 0;
+            this.length = 0;
         }
 
         public HprofData(@NonNull byte[] data) {
             type = Type.DATA;
             this.data = data;
             this.filename = null;
+            this.file = null;
+            this.offset = 0;
+            this.length = data.length;
+        }
+
+        public HprofData(@NonNull File file, long offset, long length) {
+            type = Type.LOCAL_FILE;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.filename = null;
+            this.data = null;
         }
     }
 
@@ -436,6 +470,10 @@ public class ClientData {
         mHprofData = new HprofData(filename);
     }
 
+    public void setHprofData(@NonNull File file, long offset, long length) {
+        mHprofData = new HprofData(file, offset, length);
+    }
+
     public void clearHprofData() {
         mHprofData = null;
     }
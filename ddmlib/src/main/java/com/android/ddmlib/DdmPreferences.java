@@ -47,6 +47,8 @@ public final class DdmPreferences {
     /** Default values for the use of the ADBHOST environment variable. */
     public static final boolean DEFAULT_USE_ADBHOST = false;
     public static final String DEFAULT_ADBHOST_VALUE = "127.0.0.1";
+    /** Default value for the delivery of streamed hprof dumps as local files. */
+    public static final boolean DEFAULT_HPROF_LOCAL_FILE = false;
 
     private static boolean sThreadUpdate = DEFAULT_INITIAL_THREAD_UPDATE;
     private static boolean sInitialHeapUpdate = DEFAULT_INITIAL_HEAP_UPDATE;
@@ -60,6 +62,8 @@ public final class DdmPreferences {
     private static boolean sUseAdbHost = DEFAULT_USE_ADBHOST;
     private static String sAdbHostValue = DEFAULT_ADBHOST_VALUE;
 
+    private static boolean sHprofLocalFile = DEFAULT_HPROF_LOCAL_FILE;
+
     /**
      * Returns the initial {@link Client} flag for thread updates.
      * @see #setInitialThreadUpdate(boolean)
@@ -211,6 +215,28 @@ public final class DdmPreferences {
         sAdbHostValue = adbHostValue;
     }
 
+    /**
+     * Returns whether streamed hprof dumps are handed to the listeners as local files.
+     * @see #setHprofLocalFile(boolean)
+     */
+    public static boolean getHprofLocalFile() {
+        return sHprofLocalFile;
+    }
+
+    /**
+     * Sets whether streamed hprof dumps are handed to the {@link Client#CHANGE_HPROF} listeners
+     * as {@link ClientData.HprofData.Type#LOCAL_FILE} rather than
+     * {@link ClientData.HprofData.Type#DATA}.
+     * <p/>Only enable this if all the listeners handle local files: the dump is then never
+     * loaded in memory, but the file only exists for the duration of the notification, after
+     * which it is deleted. A listener that needs the dump later must read, map or copy it
+     * before returning.
+     * @param localFile true to get the dumps as local files.
+     */
+    public static void setHprofLocalFile(boolean localFile) {
+        sHprofLocalFile = localFile;
+    }
+
     /**
      * Non accessible constructor.
      */
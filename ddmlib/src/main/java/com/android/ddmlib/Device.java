@@ -29,6 +29,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Atomics;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.BufferedInputStream;
 import java.io.File;
@@ -46,6 +47,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -94,7 +96,7 @@ final class Device implements IDevice {
     private static final long INITIAL_GET_PROP_TIMEOUT_MS = 250;
     private static final int QUERY_IS_ROOT_TIMEOUT_MS = 1000;
 
-    private static final long INSTALL_TIMEOUT_MINUTES;
+    static final long INSTALL_TIMEOUT_MINUTES;
 
     static {
         String installTimeout = System.getenv("ADB_INSTALL_TIMEOUT");
@@ -614,6 +616,23 @@ final class Device implements IDevice {
                 receiver, maxTimeToOutputResponse, maxTimeUnits);
     }
 
+    @NonNull
+    @Override
+    public ListenableFuture<Void> executeShellCommandAsync(@NonNull String command,
+            @NonNull IShellOutputReceiver receiver, @NonNull Executor executor) {
+        return executeShellCommandAsync(command, receiver, DdmPreferences.getTimeOut(),
+                TimeUnit.MILLISECONDS, executor);
+    }
+
+    @NonNull
+    @Override
+    public ListenableFuture<Void> executeShellCommandAsync(@NonNull String command,
+            @NonNull IShellOutputReceiver receiver, long maxTimeToOutputResponse,
+            @Nullable TimeUnit maxTimeUnits, @NonNull Executor executor) {
+        return AdbHelper.executeRemoteCommandAsync(AndroidDebugBridge.getSocketAddress(),
+                command, this, receiver, maxTimeToOutputResponse, maxTimeUnits, executor);
+    }
+
     @Override
     public void runEventLogService(LogReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, IOException {
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.SyncException.SyncError;
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes files and installs packages on several devices at once.
+ * <p/>Each local file is memory-mapped once and the same read-only buffer is streamed to all
+ * the devices, each device getting its own sync connection. At most <var>parallelism</var>
+ * devices are served at the same time, and the progress of all the transfers is reported to a
+ * single {@link ISyncProgressMonitor}.
+ */
+final class DeviceFanOut {
+
+    private static final String REMOTE_TMP_DIR = "/data/local/tmp/"; //$NON-NLS-1$
+
+    /** do not instantiate */
+    private DeviceFanOut() {
+    }
+
+    /**
+     * A local file mapped in memory.
+     */
+    private static final class LocalFile {
+        final String mName;
+        final long mLastModified;
+        final ByteBuffer mData;
+
+        LocalFile(@NonNull String path) throws IOException, SyncException {
+            File file = new File(path);
+            if (!file.exists()) {
+                throw new SyncException(SyncError.NO_LOCAL_FILE);
+            }
+            if (file.isDirectory()) {
+                throw new SyncException(SyncError.LOCAL_IS_DIRECTORY);
+            }
+            mName = file.getName();
+            mLastModified = file.lastModified();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+            try {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException(path + " is too large to be pushed");
+                }
+                // the mapping stays valid after the channel is closed.
+                mData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * A task run for one device.
+     */
+    private interface DeviceTask {
+        void run(@NonNull IDevice device, @NonNull ISyncProgressMonitor monitor)
+                throws Exception;
+    }
+
+    /**
+     * Pushes local files to a remote directory on each device.
+     * @return the devices on which the push failed, with the reason of the failure.
+     * @see AndroidDebugBridge#pushFiles(Collection, List, String, int, ISyncProgressMonitor)
+     */
+    @NonNull
+    static Map<IDevice, Exception> pushFiles(@NonNull Collection<? extends IDevice> devices,
+            @NonNull List<String> localFiles, @NonNull String remoteDir, int parallelism,
+            @NonNull ISyncProgressMonitor monitor) throws IOException, SyncException {
+        final String dir = remoteDir.endsWith("/") ? remoteDir : remoteDir + "/";
+        final List<LocalFile> files = mapFiles(localFiles);
+
+        return run(devices, files, parallelism, monitor, new DeviceTask() {
+            @Override
+            public void run(@NonNull IDevice device, @NonNull ISyncProgressMonitor monitor)
+                    throws Exception {
+                push(device, files, dir, monitor);
+            }
+        });
+    }
+
+    /**
+     * Installs packages on each device.
+     * @return the devices on which the installation failed, with the reason of the failure.
+     * @see AndroidDebugBridge#installPackages(Collection, List, boolean, int,
+     *      ISyncProgressMonitor, String...)
+     */
+    @NonNull
+    static Map<IDevice, Exception> installPackages(
+            @NonNull Collection<? extends IDevice> devices, @NonNull final List<String> apks,
+            final boolean reinstall, int parallelism, @NonNull ISyncProgressMonitor monitor,
+            final String... extraArgs) throws IOException, SyncException {
+        if (apks.isEmpty()) {
+            throw new IllegalArgumentException("No package to install");
+        }
+        final List<LocalFile> files = mapFiles(apks);
+
+        return run(devices, files, parallelism, monitor, new DeviceTask() {
+            @Override
+            public void run(@NonNull IDevice device, @NonNull ISyncProgressMonitor monitor)
+                    throws Exception {
+                if (files.size() > 1) {
+                    // split APKs are streamed by the install session itself.
+                    int timeOutInMs =
+                            (int) TimeUnit.MINUTES.toMillis(Device.INSTALL_TIMEOUT_MINUTES);
+                    device.installPackages(apks, timeOutInMs, reinstall, extraArgs);
+                    for (LocalFile file : files) {
+                        monitor.advance(file.mData.remaining());
+                    }
+                    return;
+                }
+                push(device, files, REMOTE_TMP_DIR, monitor);
+                String remote = REMOTE_TMP_DIR + files.get(0).mName;
+                try {
+                    device.installRemotePackage(remote, reinstall, extraArgs);
+                } finally {
+                    device.removeRemotePackage(remote);
+                }
+            }
+        });
+    }
+
+    @NonNull
+    private static List<LocalFile> mapFiles(@NonNull List<String> paths)
+            throws IOException, SyncException {
+        List<LocalFile> files = new ArrayList<LocalFile>(paths.size());
+        for (String path : paths) {
+            files.add(new LocalFile(path));
+        }
+        return files;
+    }
+
+    private static void push(@NonNull IDevice device, @NonNull List<LocalFile> files,
+            @NonNull String remoteDir, @NonNull ISyncProgressMonitor monitor)
+            throws TimeoutException, AdbCommandRejectedException, IOException, SyncException {
+        SyncService sync = device.getSyncService();
+        if (sync == null) {
+            throw new IOException("Unable to open sync connection!");
+        }
+        try {
+            for (LocalFile file : files) {
+                monitor.startSubTask(device.getSerialNumber() + ": " + file.mName);
+                sync.pushData(file.mData, file.mLastModified, remoteDir + file.mName, monitor);
+            }
+        } finally {
+            sync.close();
+        }
+    }
+
+    @NonNull
+    private static Map<IDevice, Exception> run(@NonNull Collection<? extends IDevice> devices,
+            @NonNull List<LocalFile> files, int parallelism,
+            @NonNull ISyncProgressMonitor monitor, @NonNull final DeviceTask task) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        long bytesPerDevice = 0;
+        for (LocalFile file : files) {
+            bytesPerDevice += file.mData.remaining();
+        }
+        final AggregateMonitor aggregate =
+                new AggregateMonitor(monitor, bytesPerDevice * devices.size());
+
+        Map<IDevice, Exception> failures = new LinkedHashMap<IDevice, Exception>();
+        if (devices.isEmpty()) {
+            return failures;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(parallelism, devices.size()),
+                new ThreadFactoryBuilder().setNameFormat("Device Fan-out %d") //$NON-NLS-1$
+                        .setDaemon(true).build());
+        Map<IDevice, Future<?>> futures = new LinkedHashMap<IDevice, Future<?>>();
+        aggregate.begin();
+        try {
+            for (final IDevice device : devices) {
+                futures.put(device, executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        if (aggregate.isCanceled()) {
+                            throw new SyncException(SyncError.CANCELED);
+                        }
+                        task.run(device, aggregate);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Map.Entry<IDevice, Future<?>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    Log.e("ddms", String.format("Transfer to '%1$s' failed: %2$s",
+                            entry.getKey().getSerialNumber(), cause.getMessage()));
+                    failures.put(entry.getKey(), cause instanceof Exception
+                            ? (Exception) cause : new ExecutionException(cause));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failures.put(entry.getKey(), e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            aggregate.end();
+        }
+        return failures;
+    }
+
+    /**
+     * Folds the progress of all the transfers into a single monitor. The work is counted in
+     * bytes, scaled down if the total would overflow an int. Calls to the wrapped monitor are
+     * serialized.
+     */
+    private static final class AggregateMonitor implements ISyncProgressMonitor {
+        private final ISyncProgressMonitor mMonitor;
+        private final long mTotal;
+        private final int mShift;
+        private long mDone = 0;
+
+        AggregateMonitor(@NonNull ISyncProgressMonitor monitor, long total) {
+            mMonitor = monitor;
+            mTotal = total;
+            int shift = 0;
+            while ((total >> shift) > Integer.MAX_VALUE) {
+                shift++;
+            }
+            mShift = shift;
+        }
+
+        synchronized void begin() {
+            mMonitor.start((int) (mTotal >> mShift));
+        }
+
+        synchronized void end() {
+            mMonitor.stop();
+        }
+
+        @Override
+        public void start(int totalWork) {
+            // the total is known upfront, see begin().
+        }
+
+        @Override
+        public void stop() {
+            // a single transfer is done, see end().
+        }
+
+        @Override
+        public synchronized boolean isCanceled() {
+            return mMonitor.isCanceled();
+        }
+
+        @Override
+        public synchronized void startSubTask(String name) {
+            mMonitor.startSubTask(name);
+        }
+
+        @Override
+        public synchronized void advance(int work) {
+            long before = mDone >> mShift;
+            mDone += work;
+            int delta = (int) ((mDone >> mShift) - before);
+            if (delta > 0) {
+                mMonitor.advance(delta);
+            }
+        }
+    }
+}
@@ -16,11 +16,15 @@
 
 package com.android.ddmlib;
 
+import com.google.common.base.Objects;
+
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -103,9 +107,19 @@ public final class FileListingService {
             ".*" + // toolbox ls (<=M) didn't have the filename in the "/sdcard/" case!
             "$"); //$NON-NLS-1$
 
+    /**
+     * Regexp pattern to find the errors of a recursive ls, such as an unreadable directory.
+     * Toybox prints the path, toolbox doesn't.
+     */
+    private static final Pattern LS_ERROR_PATTERN = Pattern.compile(
+            "^(?:ls: (.+): [^:]+|opendir failed, .*)$"); //$NON-NLS-1$
+
     private Device mDevice;
     private FileEntry mRoot;
 
+    /** The known entries, per full path. */
+    private final HashMap<String, FileEntry> mEntries = new HashMap<String, FileEntry>();
+
     // Used for locking so final.
     final private ArrayList<Thread> mThreadList = new ArrayList<Thread>();
 
@@ -425,8 +439,11 @@ public final class FileListingService {
 
         private ArrayList<FileEntry> mEntryList;
         private ArrayList<String> mLinkList;
-        private FileEntry[] mCurrentChildren;
+        private HashMap<String, FileEntry> mCurrentChildren;
         private FileEntry mParentEntry;
+        private final ArrayList<FileEntry> mAddedList = new ArrayList<FileEntry>();
+        private final ArrayList<FileEntry> mModifiedList = new ArrayList<FileEntry>();
+        private final ArrayList<FileEntry> mReplacedList = new ArrayList<FileEntry>();
 
         /**
          * Create an ls receiver/parser.
@@ -441,7 +458,11 @@ public final class FileListingService {
         public LsReceiver(FileEntry parentEntry, ArrayList<FileEntry> entryList,
                 ArrayList<String> linkList) {
             mParentEntry = parentEntry;
-            mCurrentChildren = parentEntry.getCachedChildren();
+            // directories can hold tens of thousands of entries, so they are looked up by name.
+            mCurrentChildren = new HashMap<String, FileEntry>();
+            for (FileEntry child : parentEntry.mChildren) {
+                mCurrentChildren.put(child.name, child);
+            }
             mEntryList = entryList;
             mLinkList = linkList;
         }
@@ -534,6 +555,19 @@ public final class FileListingService {
                 FileEntry entry = getExistingEntry(name);
                 if (entry == null) {
                     entry = new FileEntry(mParentEntry, name, objectType, false /* isRoot */);
+                    mAddedList.add(entry);
+                } else if (entry.type != objectType
+                        && !(entry.type == TYPE_DIRECTORY_LINK && objectType == TYPE_LINK)) {
+                    // the name is now used by another kind of entry (a link to a directory
+                    // is only known as a link here): the content of the old one is gone.
+                    mReplacedList.addAll(entry.mChildren);
+                    entry.setChildren(new ArrayList<FileEntry>());
+                    entry.setType(objectType);
+                    mModifiedList.add(entry);
+                } else if (!Objects.equal(entry.size, size) || !Objects.equal(entry.date, date)
+                        || !Objects.equal(entry.time, time)
+                        || !Objects.equal(entry.permissions, permissions)) {
+                    mModifiedList.add(entry);
                 }
 
                 // add some misc info
@@ -558,25 +592,34 @@ public final class FileListingService {
          * name exists.
          */
         private FileEntry getExistingEntry(String name) {
-            for (int i = 0 ; i < mCurrentChildren.length; i++) {
-                FileEntry e = mCurrentChildren[i];
-
-                // since we're going to "erase" the one we use, we need to
-                // check that the item is not null.
-                if (e != null) {
-                    // compare per name, case-sensitive.
-                    if (name.equals(e.name)) {
-                        // erase from the list
-                        mCurrentChildren[i] = null;
-
-                        // and return the object
-                        return e;
-                    }
-                }
-            }
+            // since we're going to "erase" the one we use, what is left at the end are the
+            // entries which are gone.
+            return mCurrentChildren.remove(name);
+        }
 
-            // couldn't find any matching object, return null
-            return null;
+        /**
+         * Returns the entries which were created for names not found in the current children.
+         */
+        ArrayList<FileEntry> getAddedEntries() {
+            return mAddedList;
+        }
+
+        /**
+         * Returns the current children whose size, date, time or permissions changed.
+         */
+        ArrayList<FileEntry> getModifiedEntries() {
+            return mModifiedList;
+        }
+
+        /**
+         * Returns the current children which were not in the output, and the children of the
+         * directories which were replaced by another kind of entry. Only meaningful once all
+         * the output has been processed.
+         */
+        Collection<FileEntry> getRemovedEntries() {
+            ArrayList<FileEntry> removed = new ArrayList<FileEntry>(mCurrentChildren.values());
+            removed.addAll(mReplacedList);
+            return removed;
         }
 
         @Override
@@ -643,6 +686,160 @@ public final class FileListingService {
         void refreshEntry(FileEntry entry);
     }
 
+    /**
+     * The changes found by a listing, compared to the entries known before it.
+     *
+     * @see FileListingService#refreshTree(FileEntry)
+     */
+    public static final class ListingDiff {
+        final ArrayList<FileEntry> mAdded = new ArrayList<FileEntry>();
+        final ArrayList<FileEntry> mModified = new ArrayList<FileEntry>();
+        final ArrayList<FileEntry> mRemoved = new ArrayList<FileEntry>();
+
+        /**
+         * Returns the entries which were not known before the listing.
+         */
+        public FileEntry[] getAddedEntries() {
+            return mAdded.toArray(new FileEntry[mAdded.size()]);
+        }
+
+        /**
+         * Returns the known entries whose size, date, time or permissions changed.
+         */
+        public FileEntry[] getModifiedEntries() {
+            return mModified.toArray(new FileEntry[mModified.size()]);
+        }
+
+        /**
+         * Returns the known entries which are gone, including the content of the removed
+         * directories. Their parent is still set, so that their path can be computed.
+         */
+        public FileEntry[] getRemovedEntries() {
+            return mRemoved.toArray(new FileEntry[mRemoved.size()]);
+        }
+
+        /**
+         * Returns whether nothing changed.
+         */
+        public boolean isEmpty() {
+            return mAdded.isEmpty() && mModified.isEmpty() && mRemoved.isEmpty();
+        }
+    }
+
+    /**
+     * Parses the output of a recursive <code>ls -l -R</code>, where the listing of each
+     * directory is preceded by its path, except maybe for the directory being listed.
+     * The directories which could not be listed keep their cached children.
+     */
+    final class TreeReceiver extends MultiLineReceiver {
+        private final FileEntry mTop;
+        private final String mTopPath;
+        private final ListingDiff mDiff = new ListingDiff();
+        private final HashSet<FileEntry> mListed = new HashSet<FileEntry>();
+        private final HashSet<String> mFailedPaths = new HashSet<String>();
+
+        private FileEntry mDirectory;
+        private LsReceiver mSection;
+        private ArrayList<FileEntry> mSectionList;
+        private boolean mSectionHasOutput;
+        private boolean mSectionFailed;
+        private boolean mHeaderFound;
+
+        TreeReceiver(FileEntry top) {
+            mTop = top;
+            mTopPath = top.getFullPath();
+            startSection(top);
+        }
+
+        ListingDiff getDiff() {
+            return mDiff;
+        }
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                if (line.startsWith(FILE_SEPARATOR) && line.endsWith(":")) { //$NON-NLS-1$
+                    startDirectory(normalizePath(line.substring(0, line.length() - 1)));
+                } else if (!line.isEmpty()) {
+                    Matcher m = LS_ERROR_PATTERN.matcher(line);
+                    if (m.matches()) {
+                        fail(m.group(1));
+                    } else if (mSection != null) {
+                        mSectionHasOutput = true;
+                        mSection.processNewLines(new String[] { line });
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void done() {
+            if (mSection != null) {
+                finishSection();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        private void startDirectory(String path) {
+            // the listing of the top directory may or may not have a header.
+            if (mSection != null && (mHeaderFound || mSectionHasOutput)) {
+                finishSection();
+            }
+            mSection = null;
+            mHeaderFound = true;
+
+            if (!path.equals(mTopPath) && !path.startsWith(
+                    mTop.isRoot() ? FILE_ROOT : mTopPath + FILE_SEPARATOR)) {
+                return;
+            }
+            // the directory was found in the listing of its parent, which comes first.
+            FileEntry directory = getEntry(path);
+            if (directory != null && !mListed.contains(directory)) {
+                startSection(directory);
+            }
+        }
+
+        private void startSection(FileEntry directory) {
+            mDirectory = directory;
+            mSectionList = new ArrayList<FileEntry>();
+            mSection = new LsReceiver(directory, mSectionList, new ArrayList<String>());
+            mSectionHasOutput = false;
+            mSectionFailed = mFailedPaths.contains(directory.getFullPath());
+        }
+
+        /**
+         * Records an error about a path, or about the directory being listed if the error
+         * doesn't say.
+         */
+        private void fail(String path) {
+            if (path != null && path.startsWith(FILE_SEPARATOR)) {
+                path = normalizePath(path);
+                if (mSection == null || !path.equals(mDirectory.getFullPath())) {
+                    // the error may come before the header of the directory.
+                    mFailedPaths.add(path);
+                    return;
+                }
+            }
+            if (mSection != null) {
+                mSectionHasOutput = true;
+                mSectionFailed = true;
+            }
+        }
+
+        private void finishSection() {
+            mListed.add(mDirectory);
+            // an incomplete listing would report the cached children as removed.
+            if (!mSectionFailed) {
+                finishListing(mDirectory, mSection, mSectionList, mDiff);
+            }
+            mSection = null;
+        }
+    }
+
     /**
      * Creates a File Listing Service for a specified {@link Device}.
      * @param device The Device the service is connected to.
@@ -661,6 +858,9 @@ public final class FileListingService {
             if (mRoot == null) {
                 mRoot = new FileEntry(null /* parent */, "" /* name */, TYPE_DIRECTORY,
                         true /* isRoot */);
+                synchronized (mEntries) {
+                    mEntries.put(FILE_ROOT, mRoot);
+                }
             }
 
             return mRoot;
@@ -813,6 +1013,48 @@ public final class FileListingService {
         return entry.getCachedChildren();
     }
 
+    /**
+     * Returns the known entry for a path, from the entries found by the listings so far.
+     * @param path the full path of the entry, using {@link #FILE_SEPARATOR} as separator.
+     * @return the entry or <code>null</code> if it is not known.
+     */
+    public FileEntry getEntry(String path) {
+        synchronized (mEntries) {
+            return mEntries.get(normalizePath(path));
+        }
+    }
+
+    /**
+     * Lists a whole directory tree with a single recursive <code>ls</code> command, and returns
+     * how it changed since it was last listed.
+     * <p/>
+     * The children of every directory of the tree are cached as if they had been fetched by
+     * {@link #getChildren(FileEntry, boolean, IListingReceiver)}, and its entries can be found
+     * with {@link #getEntry(String)}. The known entries are kept and only reported as modified
+     * if their size, date, time or permissions changed, so refreshing a large tree gives the
+     * differences rather than a new tree. Entries which were never listed before are reported
+     * as added.
+     * <p/>
+     * Links are not followed, and the links which were not resolved by
+     * {@link #getChildren(FileEntry, boolean, IListingReceiver)} are of type
+     * {@link #TYPE_LINK}. The directories which can't be read keep their cached children.
+     *
+     * @param entry The directory at the top of the tree.
+     * @return the changes in the tree.
+     * @throws TimeoutException in case of timeout on the connection when sending the command.
+     * @throws AdbCommandRejectedException if adb rejects the command.
+     * @throws ShellCommandUnresponsiveException in case the shell command doesn't send any output
+     *            for a period longer than <var>maxTimeToOutputResponse</var>.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    public ListingDiff refreshTree(FileEntry entry) throws TimeoutException,
+            AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+        String command = "ls -l -R " + entry.getFullEscapedPath() + FILE_SEPARATOR; //$NON-NLS-1$
+        TreeReceiver receiver = new TreeReceiver(entry);
+        mDevice.executeShellCommand(command, receiver);
+        return receiver.getDiff();
+    }
+
     private void doLs(FileEntry entry) {
         try {
             doLsAndThrow(entry);
@@ -829,6 +1071,9 @@ public final class FileListingService {
         // create a list that will receive the link to compute post ls;
         ArrayList<String> linkList = new ArrayList<String>();
 
+        // create the receiver object that will parse the result from ls
+        LsReceiver receiver = new LsReceiver(entry, entryList, linkList);
+
         try {
             // create the command
             String command = "ls -l " + entry.getFullEscapedPath(); //$NON-NLS-1$
@@ -839,22 +1084,73 @@ public final class FileListingService {
                 command += FILE_SEPARATOR;
             }
 
-            // create the receiver object that will parse the result from ls
-            LsReceiver receiver = new LsReceiver(entry, entryList, linkList);
-
             // call ls.
             mDevice.executeShellCommand(command, receiver);
 
             // finish the process of the receiver to handle links
             receiver.finishLinks(mDevice, entryList);
         } finally {
-            // at this point we need to refresh the viewer
-            entry.fetchTime = System.currentTimeMillis();
+            finishListing(entry, receiver, entryList, null);
+        }
+    }
+
+    /**
+     * Sets the listed entries as the new children of a directory, and updates the known entries.
+     * @param diff the diff the changes are added to, or <code>null</code>.
+     */
+    private void finishListing(FileEntry entry, LsReceiver receiver,
+            ArrayList<FileEntry> entryList, ListingDiff diff) {
+        // at this point we need to refresh the viewer
+        entry.fetchTime = System.currentTimeMillis();
+
+        // the removed entries are only known until the new children are set.
+        ArrayList<FileEntry> removed = new ArrayList<FileEntry>();
+        for (FileEntry child : receiver.getRemovedEntries()) {
+            addWithDescendants(child, removed);
+        }
 
-            // sort the children and set them as the new children
-            Collections.sort(entryList, FileEntry.sEntryComparator);
-            entry.setChildren(entryList);
+        // sort the children and set them as the new children
+        Collections.sort(entryList, FileEntry.sEntryComparator);
+        entry.setChildren(entryList);
+
+        synchronized (mEntries) {
+            for (FileEntry child : removed) {
+                String path = child.getFullPath();
+                if (mEntries.get(path) == child) {
+                    mEntries.remove(path);
+                }
+            }
+            for (FileEntry child : receiver.getAddedEntries()) {
+                mEntries.put(child.getFullPath(), child);
+            }
+        }
+
+        if (diff != null) {
+            diff.mAdded.addAll(receiver.getAddedEntries());
+            diff.mModified.addAll(receiver.getModifiedEntries());
+            diff.mRemoved.addAll(removed);
+        }
+    }
+
+    private static void addWithDescendants(FileEntry entry, ArrayList<FileEntry> list) {
+        list.add(entry);
+        for (FileEntry child : entry.mChildren) {
+            addWithDescendants(child, list);
+        }
+    }
+
+    /**
+     * Removes the repeated and trailing separators of a path, as printed by some versions of
+     * <code>ls</code>.
+     */
+    static String normalizePath(String path) {
+        StringBuilder sb = new StringBuilder(path.length() + 1);
+        for (String segment : path.split(FILE_SEPARATOR)) {
+            if (!segment.isEmpty()) {
+                sb.append(FILE_SEPARATOR).append(segment);
+            }
         }
+        return sb.length() == 0 ? FILE_ROOT : sb.toString();
     }
 
 }
@@ -19,6 +19,7 @@ package com.android.ddmlib;
 import com.android.ddmlib.ClientData.AllocationTrackingStatus;
 import com.android.ddmlib.ClientData.IHprofDumpHandler;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
@@ -110,6 +111,20 @@ final class HandleHeap extends ChunkHandler {
         }
     }
 
+    /**
+     * Chunk handler entry point for chunks read into a file.
+     */
+    @Override
+    void handleSpooledChunk(Client client, int type, ByteBuffer data, boolean isReply, int msgId,
+            File file, long offset) {
+        if (type == CHUNK_HPDS) {
+            Log.d("ddm-heap", "handling " + ChunkHandler.name(type) + " from " + file);
+            handleHPDS(client, data, file, offset);
+        } else {
+            super.handleSpooledChunk(client, type, data, isReply, msgId, file, offset);
+        }
+    }
+
     /*
      * Handle a heap info message.
      */
@@ -178,10 +193,13 @@ final class HandleHeap extends ChunkHandler {
      * Handle a heap segment message.
      */
     private void handleHPSG(Client client, ByteBuffer data) {
-        byte dataCopy[] = new byte[data.limit()];
+        // the segments keep the data: only copy it if the buffer is recycled.
         data.rewind();
-        data.get(dataCopy);
-        data = ByteBuffer.wrap(dataCopy);
+        if (data.isDirect()) {
+            byte dataCopy[] = new byte[data.limit()];
+            data.get(dataCopy);
+            data = ByteBuffer.wrap(dataCopy);
+        }
         client.getClientData().getVmHeapData().addHeapData(data);
 //xxx todo: add to the heap mentioned in <data>
     }
@@ -317,6 +335,30 @@ final class HandleHeap extends ChunkHandler {
         client.getClientData().clearHprofData();
     }
 
+    /*
+     * Handle HeaP Dump Streaming response read into a file.  Unless local
+     * files were enabled in DdmPreferences, the listeners get the dump in
+     * memory as before.  Otherwise they get the file, which holds the hprof
+     * dump from "offset" on, and only the deprecated dump handler gets a
+     * copy of the dump in memory.
+     */
+    private void handleHPDS(Client client, ByteBuffer data, File file, long offset) {
+        if (!DdmPreferences.getHprofLocalFile()) {
+            handleHPDS(client, data);
+            return;
+        }
+        Log.d("ddm-hprof", "got hprof file, size: " + data.capacity() + " bytes, in " + file);
+        client.getClientData().setHprofData(file, offset, data.capacity());
+        IHprofDumpHandler handler = ClientData.getHprofDumpHandler();
+        if (handler != null) {
+            byte[] stuff = new byte[data.capacity()];
+            data.get(stuff, 0, stuff.length);
+            handler.onSuccess(stuff, client);
+        }
+        client.update(Client.CHANGE_HPROF);
+        client.getClientData().clearHprofData();
+    }
+
     /**
      * Sends a REAE (REcent Allocation Enable) request to the client.
      */
@@ -112,12 +112,33 @@ public final class HandleViewDebug extends ChunkHandler {
                 return;
             }
 
-            handleViewDebugResult(data);
+            handleViewDebugResult(copyIfRecycled(data));
             mLatch.countDown();
         }
 
+        /**
+         * Called with the result of the request. The data belongs to the handler, which may
+         * keep it around.
+         */
         protected abstract void handleViewDebugResult(ByteBuffer data);
 
+        /**
+         * Returns a heap copy of a direct chunk, whose pooled buffer is reused once
+         * {@link #handleChunk} returns.
+         */
+        private static ByteBuffer copyIfRecycled(ByteBuffer data) {
+            if (!data.isDirect()) {
+                return data;
+            }
+            byte[] copy = new byte[data.limit()];
+            ByteBuffer source = data.duplicate();
+            source.rewind();
+            source.get(copy);
+            ByteBuffer result = ByteBuffer.wrap(copy).order(data.order());
+            result.position(data.position());
+            return result;
+        }
+
         protected void waitForResult(long timeout, TimeUnit unit) {
             try {
                 mLatch.await(timeout, unit);
@@ -310,8 +310,10 @@ public final class HeapSegment implements Comparable<HeapSegment> {
              */
             int pos = mUsageData.position();
 
-            // Guarantee that we have enough room for the new data.
-            if (mUsageData.capacity() - mUsageData.limit() <
+            // Guarantee that we have enough room for the new data, in a
+            // buffer we can write to.
+            if (mUsageData.isReadOnly() ||
+                    mUsageData.capacity() - mUsageData.limit() <
                     other.mUsageData.limit()) {
                 /* Grow more than necessary in case another append()
                  * is about to happen.
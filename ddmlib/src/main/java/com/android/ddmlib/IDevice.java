@@ -19,11 +19,13 @@ package com.android.ddmlib;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -364,6 +366,44 @@ public interface IDevice extends IShellEnabledDevice {
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException;
 
+    /**
+     * Executes a shell command on the device without blocking, and sends the result to a
+     * <var>receiver</var>.
+     * <p/>This is similar to calling
+     * <code>executeShellCommandAsync(command, receiver, DdmPreferences.getTimeOut(),
+     * TimeUnit.MILLISECONDS, executor)</code>.
+     *
+     * @see #executeShellCommandAsync(String, IShellOutputReceiver, long, TimeUnit, Executor)
+     * @see DdmPreferences#getTimeOut()
+     */
+    @NonNull
+    ListenableFuture<Void> executeShellCommandAsync(@NonNull String command,
+            @NonNull IShellOutputReceiver receiver, @NonNull Executor executor);
+
+    /**
+     * Executes a shell command on the device without blocking, and sends the result to a
+     * <var>receiver</var>. The output is handed to the receiver on <var>executor</var> as it
+     * arrives, one piece at a time.
+     * <p/>The returned future completes once the receiver got all the output, or when the
+     * receiver's {@link IShellOutputReceiver#isCancelled()} returns <code>true</code>. It fails
+     * with the exceptions thrown by
+     * {@link #executeShellCommand(String, IShellOutputReceiver, long, TimeUnit)}, wrapped in an
+     * {@link ExecutionException}. Cancelling it stops the command.
+     *
+     * @param command the shell command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is allowed
+     *            to not output any response. A value of 0 means the command may stay silent
+     *            forever.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @param executor the {@link Executor} on which the receiver is called.
+     */
+    @NonNull
+    ListenableFuture<Void> executeShellCommandAsync(@NonNull String command,
+            @NonNull IShellOutputReceiver receiver, long maxTimeToOutputResponse,
+            @Nullable TimeUnit maxTimeUnits, @NonNull Executor executor);
+
     /**
      * Runs the event log service and outputs the event log to the {@link LogReceiver}.
      * <p/>This call is blocking until {@link LogReceiver#isCancelled()} returns true.
@@ -270,6 +270,22 @@ final class JdwpPacket {
         //    + ", limit=" + mBuffer.limit());
     }
 
+    /**
+     * Returns the length of the JDWP packet at the start of "buf", header
+     * included, or -1 if the length was not received yet.
+     *
+     * The packet data in "buf" must start at offset 0 and end at
+     * "position".  This method does not alter "buf"s attributes.
+     */
+    static int peekLength(ByteBuffer buf) {
+        if (buf.position() < 4)
+            return -1;
+
+        // big endian, whatever the order of "buf" is.
+        return ((buf.get(0x00) & 0xff) << 24) | ((buf.get(0x01) & 0xff) << 16)
+                | ((buf.get(0x02) & 0xff) << 8) | (buf.get(0x03) & 0xff);
+    }
+
     /**
      * Find the JDWP packet at the start of "buf".  The start is known,
      * but the length has to be parsed out.
@@ -63,6 +63,9 @@ final class MonitorThread extends Thread {
     // Used for locking so final.
     final private HashMap<Integer, ChunkHandler> mHandlerMap;
 
+    // Runs the handlers, one client at a time but clients in parallel
+    final private ChunkDispatcher mDispatcher;
+
     // port for "debug selected"
     private ServerSocketChannel mDebugSelectedChan;
 
@@ -85,6 +88,8 @@ final class MonitorThread extends Thread {
         super("Monitor");
         mClientList = new ArrayList<Client>();
         mHandlerMap = new HashMap<Integer, ChunkHandler>();
+        mDispatcher = new ChunkDispatcher(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
 
         mNewDebugSelectedPort = DdmPreferences.getSelectedDebugPort();
     }
@@ -176,6 +181,13 @@ final class MonitorThread extends Thread {
         }
     }
 
+    /**
+     * Returns the activity of the threads running the chunk handlers.
+     */
+    ChunkDispatchMetrics getChunkDispatchMetrics() {
+        return mDispatcher.getMetrics();
+    }
+
     /**
      * Register "handler" as the handler for type "type".
      */
@@ -322,21 +334,22 @@ final class MonitorThread extends Thread {
                     // unsolicited DDM request - hand it off
                     assert !packet.isReply();
                     callHandler(client, packet, null);
-                    packet.consume();
                 } else if (packet.isReply()
                         && client.isResponseToUs(packet.getId()) != null) {
                     // reply to earlier DDM request
                     ChunkHandler handler = client
                             .isResponseToUs(packet.getId());
-                    if (packet.isError())
+                    if (packet.isError()) {
                         client.packetFailed(packet);
-                    else if (packet.isEmpty())
+                        packet.consume();
+                    } else if (packet.isEmpty()) {
                         Log.d("ddms", "Got empty reply for 0x"
                                 + Integer.toHexString(packet.getId())
                                 + " from " + client);
-                    else
+                        packet.consume();
+                    } else {
                         callHandler(client, packet, handler);
-                    packet.consume();
+                    }
                     client.removeRequestId(packet.getId());
                 } else {
                     Log.v("ddms", "Forwarding client "
@@ -377,6 +390,10 @@ final class MonitorThread extends Thread {
      * Process an incoming DDM packet. If this is a reply to an earlier request,
      * "handler" will be set to the handler responsible for the original
      * request. The spec allows a JDWP message to include multiple DDM chunks.
+     * The chunk is handled later, on one of the threads of the ChunkDispatcher.
+     *
+     * The packet is consumed, unless its buffer is handed over to the
+     * ChunkDispatcher with it.
      */
     private void callHandler(Client client, JdwpPacket packet,
             ChunkHandler handler) {
@@ -403,17 +420,25 @@ final class MonitorThread extends Thread {
         if (handler == null) {
             Log.w("ddms", "Received unsupported chunk type "
                     + ChunkHandler.name(type) + " (len=" + length + ")");
+            packet.consume();
         } else {
-            Log.d("ddms", "Calling handler for " + ChunkHandler.name(type)
+            Log.d("ddms", "Dispatching to handler for " + ChunkHandler.name(type)
                     + " [" + handler + "] (len=" + length + ")");
-            ByteBuffer ibuf = buf.slice();
-            ByteBuffer roBuf = ibuf.asReadOnlyBuffer(); // enforce R/O
-            roBuf.order(ChunkHandler.CHUNK_ORDER);
-            // do the handling of the chunk synchronized on the client list
-            // to be sure there's no concurrency issue when we look for HOME
-            // in hasApp()
-            synchronized (mClientList) {
-                handler.handleChunk(client, type, roBuf, reply, packet.getId());
+            // the handlers of a client run one at a time, in order, but they no longer
+            // hold the client list: the handlers of other clients can run meanwhile.
+            SpoolFile spool = client.detachPacketSpool(packet);
+            ByteBuffer packetBuffer = spool == null ? client.detachPacketBuffer(packet) : null;
+            if (spool != null) {
+                // huge packet: it was read into a file, which goes with it.
+                mDispatcher.dispatch(client, handler, type, buf.slice(), reply, packet.getId(),
+                        spool, JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN);
+            } else if (packetBuffer != null) {
+                // large packet: its pooled buffer goes with it, instead of a copy.
+                mDispatcher.dispatch(client, handler, type, buf.slice(), reply, packet.getId(),
+                        packetBuffer);
+            } else {
+                mDispatcher.dispatch(client, handler, type, buf.slice(), reply, packet.getId());
+                packet.consume();
             }
         }
     }
@@ -434,6 +459,7 @@ final class MonitorThread extends Thread {
                 return;
             }
         }
+        mDispatcher.clientDropped(client);
         client.close(notify);
         broadcast(CLIENT_DISCONNECTED, client);
 
@@ -600,6 +626,7 @@ final class MonitorThread extends Thread {
                 }
                 mClientList.clear();
             }
+            mDispatcher.shutdown();
 
             if (mDebugSelectedChan != null) {
                 mDebugSelectedChan.close();
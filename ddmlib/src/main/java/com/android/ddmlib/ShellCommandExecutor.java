@@ -0,0 +1,667 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.AdbHelper.AdbService;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes remote commands through adb, multiplexing all the connections over a single
+ * {@link Selector}.
+ * <p/>Each command is a small state machine driven by one shared thread: connect to adb,
+ * optionally select the device transport, send the service request, then queue the output as
+ * it arrives until adb closes the connection. There is no thread per command and no
+ * sleep-based polling; the outcome of each command is reported through a
+ * {@link ListenableFuture}.
+ * <p/>The executor thread only asks the {@link IShellOutputReceiver} whether it is cancelled:
+ * the output is handed to it on the {@link Executor} given with the command, one piece at a
+ * time, so a slow receiver only slows down its own command. Once too much output is queued for
+ * a command, the executor stops reading it until the receiver catches up.
+ */
+final class ShellCommandExecutor {
+
+    /**
+     * Upper bound on a single select, so that {@link IShellOutputReceiver#isCancelled()} is
+     * noticed even when a command is not sending any output.
+     */
+    private static final long MAX_SELECT_MS = 250;
+
+    private static final int BUFFER_SIZE = 16384;
+
+    /**
+     * Amount of output queued for a command above which the executor stops reading it. It
+     * resumes once half of it has been handed to the receiver.
+     */
+    static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+    /** Marks the end of the output of a command, once its outcome is known. */
+    private static final byte[] NO_OUTPUT = new byte[0];
+
+    /**
+     * Hands the output of the commands run by the blocking methods to their receivers, with a
+     * thread per command being delivered at once.
+     */
+    static final Executor OUTPUT_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("Shell Command Output %d") //$NON-NLS-1$
+                    .setDaemon(true)
+                    .build());
+
+    private static ShellCommandExecutor sInstance;
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    private volatile boolean mQuit = false;
+
+    /** Commands submitted but not registered with the selector yet. */
+    private final Queue<Command> mPending = new ConcurrentLinkedQueue<Command>();
+
+    /** Paused commands whose receiver caught up. */
+    private final Queue<Command> mResumed = new ConcurrentLinkedQueue<Command>();
+
+    /** Commands owned by the executor thread. */
+    private final List<Command> mActive = new ArrayList<Command>();
+
+    /** Read buffer shared by all the commands, only used by the executor thread. */
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            mSelector.wakeup();
+        }
+    };
+
+    /**
+     * Returns the shared executor, starting it if needed. A new one is started if the thread of
+     * the previous one died.
+     * @throws IOException if the selector could not be opened.
+     */
+    @NonNull
+    static synchronized ShellCommandExecutor getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new ShellCommandExecutor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Stops the shared executor, if it was started. Commands still running are cancelled.
+     */
+    static synchronized void shutdown() {
+        if (sInstance != null) {
+            sInstance.stop();
+            sInstance = null;
+        }
+    }
+
+    ShellCommandExecutor() throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread("Shell Command Executor") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Executes a remote command on the device. The output is handed to <var>rcvr</var> on
+     * <var>executor</var> as it arrives, one piece at a time.
+     * <p/>The returned future completes once the receiver got all the output, and was flushed if
+     * adb closed the connection, or when the receiver cancels the command. It fails with
+     * {@link TimeoutException} if adb does not answer the request in time,
+     * {@link AdbCommandRejectedException} if adb rejects it,
+     * {@link ShellCommandUnresponsiveException} if the command does not output anything for
+     * longer than <var>maxTimeToOutputResponse</var>, {@link IOException} on a connection
+     * error, or with the exception thrown by the receiver. Cancelling the future closes the
+     * connection.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param adbService the {@link AdbService} to use to run the command.
+     * @param command the shell command to execute
+     * @param device the {@link IDevice} on which to execute the command. Can be null in which
+     *            case the command goes to the only connected device.
+     * @param rcvr the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @param maxTimeToOutputResponse max time between command output. A value of 0 means the
+     *            command may stay silent forever.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @param executor the {@link Executor} on which the receiver is called.
+     */
+    @NonNull
+    ListenableFuture<Void> execute(@NonNull InetSocketAddress adbSockAddr,
+            @NonNull AdbService adbService, @NonNull String command, @Nullable IDevice device,
+            @Nullable IShellOutputReceiver rcvr, long maxTimeToOutputResponse,
+            @Nullable TimeUnit maxTimeUnits, @NonNull Executor executor) {
+        long maxTimeToOutputMs = 0;
+        if (maxTimeToOutputResponse > 0) {
+            if (maxTimeUnits == null) {
+                throw new NullPointerException("Time unit must not be null for non-zero max.");
+            }
+            maxTimeToOutputMs = maxTimeUnits.toMillis(maxTimeToOutputResponse);
+        }
+
+        Log.v("ddms", "execute: queuing " + command);
+
+        List<byte[]> requests = new ArrayList<byte[]>(2);
+        if (device != null) {
+            requests.add(AdbHelper.formAdbRequest(
+                    "host:transport:" + device.getSerialNumber())); //$NON-NLS-1$
+        }
+        requests.add(AdbHelper.formAdbRequest(
+                adbService.name().toLowerCase() + ":" + command)); //$NON-NLS-1$
+
+        final Command cmd = new Command(adbSockAddr, command, device != null, requests,
+                maxTimeToOutputMs, rcvr, executor);
+        cmd.mDelivery = new Runnable() {
+            @Override
+            public void run() {
+                deliver(cmd);
+            }
+        };
+        // the result is set once the rest of the output is handed to the receiver.
+        cmd.mFuture.addListener(new Runnable() {
+            @Override
+            public void run() {
+                cmd.mOutput.offer(NO_OUTPUT);
+                scheduleDelivery(cmd);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        cmd.mResult.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (cmd.mResult.isCancelled()) {
+                    cmd.mFuture.cancel(false);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        if (mQuit) {
+            cmd.mFuture.setException(new IOException("Shell command executor stopped"));
+            return cmd.mResult;
+        }
+        cmd.mFuture.addListener(mWakeup, MoreExecutors.sameThreadExecutor());
+        mPending.add(cmd);
+        mSelector.wakeup();
+        return cmd.mResult;
+    }
+
+    /**
+     * Stops the executor thread. Commands still running are cancelled.
+     */
+    void stop() {
+        mQuit = true;
+        mSelector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (!mQuit) {
+                registerPending();
+                resumeCommands();
+                checkCommands();
+
+                mSelector.select(getSelectTimeout());
+                if (mQuit) {
+                    break;
+                }
+
+                Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    Command cmd = (Command) key.attachment();
+                    if (key.isValid()) {
+                        process(cmd);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e("ddms", "Shell command executor failed: " + e);
+        } finally {
+            mQuit = true;
+            synchronized (ShellCommandExecutor.class) {
+                // the next command starts a new executor.
+                if (sInstance == this) {
+                    sInstance = null;
+                }
+            }
+            for (Command cmd : mActive) {
+                cmd.close();
+                cmd.mFuture.cancel(false);
+            }
+            mActive.clear();
+            Command cmd;
+            while ((cmd = mPending.poll()) != null) {
+                cmd.mFuture.cancel(false);
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Opens the connections of the newly submitted commands.
+     */
+    private void registerPending() {
+        Command cmd;
+        while ((cmd = mPending.poll()) != null) {
+            if (cmd.mFuture.isDone()) {
+                continue;
+            }
+            mActive.add(cmd);
+            try {
+                cmd.mChannel = SocketChannel.open();
+                cmd.mChannel.configureBlocking(false);
+                cmd.mKey = cmd.mChannel.register(mSelector, 0, cmd);
+                cmd.setDeadline(DdmPreferences.getTimeOut());
+                if (cmd.mChannel.connect(cmd.mAdbSockAddr)) {
+                    cmd.startRequest();
+                    process(cmd);
+                } else {
+                    cmd.mKey.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                fail(cmd, e);
+            }
+        }
+    }
+
+    /**
+     * Reads again the paused commands whose receiver caught up.
+     */
+    private void resumeCommands() {
+        Command cmd;
+        while ((cmd = mResumed.poll()) != null) {
+            if (cmd.mPaused && !cmd.mFuture.isDone()
+                    && cmd.mQueuedBytes.get() <= MAX_QUEUED_BYTES / 2) {
+                cmd.mPaused = false;
+                cmd.setDeadline(cmd.mMaxTimeToOutputMs);
+                cmd.mKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Retires the commands that were cancelled, by their future or their receiver, and the ones
+     * that timed out.
+     */
+    private void checkCommands() {
+        long now = System.currentTimeMillis();
+        Iterator<Command> iter = mActive.iterator();
+        while (iter.hasNext()) {
+            Command cmd = iter.next();
+            if (cmd.mFuture.isDone()) {
+                cmd.close();
+                iter.remove();
+            } else if (cmd.mRcvr != null && cmd.mRcvr.isCancelled()) {
+                Log.v("ddms", "execute: cancelled");
+                cmd.close();
+                cmd.mFuture.set(null);
+                iter.remove();
+            } else if (now >= cmd.mDeadline) {
+                cmd.close();
+                if (cmd.mState == State.STREAMING) {
+                    cmd.mFuture.setException(new ShellCommandUnresponsiveException());
+                } else {
+                    Log.d("ddms", "execute: timeout");
+                    cmd.mFuture.setException(new TimeoutException());
+                }
+                iter.remove();
+            }
+        }
+    }
+
+    private long getSelectTimeout() {
+        if (mActive.isEmpty()) {
+            return 0; // no command to check, wait for wakeup()
+        }
+        long timeout = MAX_SELECT_MS;
+        long now = System.currentTimeMillis();
+        for (Command cmd : mActive) {
+            timeout = Math.min(timeout, cmd.mDeadline - now);
+        }
+        return Math.max(timeout, 1);
+    }
+
+    /**
+     * Makes as much progress as possible on the command without blocking.
+     */
+    private void process(@NonNull Command cmd) {
+        try {
+            while (true) {
+                switch (cmd.mState) {
+                    case CONNECTING:
+                        if (!cmd.mChannel.finishConnect()) {
+                            return;
+                        }
+                        cmd.startRequest();
+                        break;
+                    case WRITING:
+                        cmd.mChannel.write(cmd.mIo);
+                        if (cmd.mIo.hasRemaining()) {
+                            cmd.mKey.interestOps(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        cmd.mState = State.READING_STATUS;
+                        cmd.mIo = ByteBuffer.allocate(4);
+                        cmd.mKey.interestOps(SelectionKey.OP_READ);
+                        break;
+                    case READING_STATUS:
+                    case READING_LENGTH:
+                    case READING_MESSAGE:
+                        if (!fill(cmd)) {
+                            return;
+                        }
+                        onReplyRead(cmd);
+                        break;
+                    case STREAMING:
+                        stream(cmd);
+                        return;
+                }
+                if (cmd.mFuture.isDone()) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            fail(cmd, e);
+        }
+    }
+
+    private static boolean fill(@NonNull Command cmd) throws IOException {
+        if (cmd.mChannel.read(cmd.mIo) < 0) {
+            Log.d("ddms", "read: channel EOF");
+            throw new IOException("EOF");
+        }
+        return !cmd.mIo.hasRemaining();
+    }
+
+    private void onReplyRead(@NonNull Command cmd) throws AdbCommandRejectedException {
+        byte[] reply = cmd.mIo.array();
+        switch (cmd.mState) {
+            case READING_STATUS:
+                if (!AdbHelper.isOkay(reply)) {
+                    cmd.mState = State.READING_LENGTH;
+                    cmd.mIo = ByteBuffer.allocate(4);
+                } else if (cmd.mRequestIndex + 1 < cmd.mRequests.size()) {
+                    cmd.mRequestIndex++;
+                    cmd.startRequest();
+                } else {
+                    // the command is running, from now on the deadline is the time allowed
+                    // without output.
+                    cmd.mState = State.STREAMING;
+                    cmd.setDeadline(cmd.mMaxTimeToOutputMs);
+                }
+                break;
+            case READING_LENGTH:
+                String lenStr = AdbHelper.replyToString(reply);
+                int len;
+                try {
+                    len = Integer.parseInt(lenStr, 16);
+                } catch (NumberFormatException nfe) {
+                    Log.w("ddms", "Expected digits, got '" + lenStr + "'");
+                    reject(cmd, "");
+                    break;
+                }
+                cmd.mState = State.READING_MESSAGE;
+                cmd.mIo = ByteBuffer.allocate(len);
+                if (len == 0) {
+                    reject(cmd, "");
+                }
+                break;
+            case READING_MESSAGE:
+                reject(cmd, AdbHelper.replyToString(reply));
+                break;
+            default:
+                throw new IllegalStateException(cmd.mState.name());
+        }
+    }
+
+    private void reject(@NonNull Command cmd, @NonNull String message) {
+        boolean deviceSelection = cmd.mHasTransport && cmd.mRequestIndex == 0;
+        if (!deviceSelection) {
+            Log.e("ddms", "ADB rejected shell command (" + cmd.mCommand + "): " + message);
+        }
+        fail(cmd, new AdbCommandRejectedException(message, deviceSelection));
+    }
+
+    private void stream(@NonNull Command cmd) throws IOException {
+        mBuffer.clear();
+        int count = cmd.mChannel.read(mBuffer);
+        if (count < 0) {
+            // we're at the end, the receiver is flushed once it got all the output.
+            Log.v("ddms", "execute '" + cmd.mCommand + "': EOF hit.");
+            cmd.close();
+            cmd.mEof = true;
+            cmd.mFuture.set(null);
+        } else if (count > 0) {
+            cmd.setDeadline(cmd.mMaxTimeToOutputMs);
+            byte[] output = new byte[count];
+            System.arraycopy(mBuffer.array(), mBuffer.arrayOffset(), output, 0, count);
+            cmd.mOutput.offer(output);
+            if (cmd.mQueuedBytes.addAndGet(count) > MAX_QUEUED_BYTES) {
+                // the receiver is too slow: stop reading, and don't count it as the command
+                // being unresponsive.
+                cmd.mKey.interestOps(0);
+                cmd.mDeadline = Long.MAX_VALUE;
+                cmd.mPaused = true;
+                // the receiver may have caught up before it could see the command paused.
+                if (cmd.mQueuedBytes.get() <= MAX_QUEUED_BYTES / 2) {
+                    mResumed.add(cmd);
+                }
+            }
+            scheduleDelivery(cmd);
+        }
+    }
+
+    private static void fail(@NonNull Command cmd, @NonNull Throwable t) {
+        cmd.close();
+        cmd.mFuture.setException(t);
+    }
+
+    private enum State {
+        CONNECTING, WRITING, READING_STATUS, READING_LENGTH, READING_MESSAGE, STREAMING
+    }
+
+    /**
+     * Makes sure the output queued for the command gets handed to its receiver, by at most one
+     * delivery at a time.
+     */
+    private static void scheduleDelivery(@NonNull Command cmd) {
+        if (cmd.mDeliveryRequests.getAndIncrement() == 0) {
+            try {
+                cmd.mExecutor.execute(cmd.mDelivery);
+            } catch (RejectedExecutionException e) {
+                cmd.mResult.setException(e);
+                cmd.mFuture.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Hands the queued output of the command to its receiver, on the executor of the command.
+     */
+    private void deliver(@NonNull Command cmd) {
+        int requests = cmd.mDeliveryRequests.get();
+        while (true) {
+            byte[] output;
+            while ((output = cmd.mOutput.poll()) != null) {
+                if (output == NO_OUTPUT) {
+                    complete(cmd);
+                } else {
+                    deliver(cmd, output);
+                }
+            }
+            requests = cmd.mDeliveryRequests.addAndGet(-requests);
+            if (requests == 0) {
+                return;
+            }
+        }
+    }
+
+    private void deliver(@NonNull Command cmd, @NonNull byte[] output) {
+        IShellOutputReceiver rcvr = cmd.mRcvr;
+        if (rcvr != null && cmd.mReceiverFailure == null && !rcvr.isCancelled()) {
+            try {
+                rcvr.addOutput(output, 0, output.length);
+            } catch (RuntimeException e) {
+                cmd.mReceiverFailure = e;
+                cmd.mFuture.cancel(false);
+            }
+            if (rcvr.isCancelled()) {
+                Log.v("ddms", "execute: cancelled");
+                cmd.mFuture.set(null);
+            }
+        }
+        if (cmd.mQueuedBytes.addAndGet(-output.length) <= MAX_QUEUED_BYTES / 2
+                && cmd.mPaused) {
+            mResumed.add(cmd);
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Sets the result of the command once all its output was handed to the receiver, flushing
+     * the receiver if adb closed the connection.
+     */
+    private static void complete(@NonNull Command cmd) {
+        if (cmd.mReceiverFailure != null) {
+            cmd.mResult.setException(cmd.mReceiverFailure);
+            return;
+        }
+        try {
+            cmd.mFuture.get();
+            if (cmd.mEof && cmd.mRcvr != null) {
+                cmd.mRcvr.flush();
+            }
+            cmd.mResult.set(null);
+        } catch (ExecutionException e) {
+            cmd.mResult.setException(e.getCause());
+        } catch (CancellationException e) {
+            cmd.mResult.cancel(false);
+        } catch (InterruptedException e) {
+            // the future is done, get() doesn't wait.
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            cmd.mResult.setException(e);
+        }
+    }
+
+    /**
+     * A command in flight, only touched by the executor thread apart from its futures, its
+     * output queue, its paused state and the delivery of its output.
+     */
+    private static final class Command {
+        final InetSocketAddress mAdbSockAddr;
+        final String mCommand;
+        final boolean mHasTransport;
+        final List<byte[]> mRequests;
+        final long mMaxTimeToOutputMs;
+        @Nullable final IShellOutputReceiver mRcvr;
+        final Executor mExecutor;
+        /** The outcome of the command, set before its output is all delivered. */
+        final SettableFuture<Void> mFuture = SettableFuture.create();
+        /** The future returned to the caller, set once the output is all delivered. */
+        final SettableFuture<Void> mResult = SettableFuture.create();
+
+        /** The output not handed to the receiver yet. */
+        final Queue<byte[]> mOutput = new ConcurrentLinkedQueue<byte[]>();
+        final AtomicInteger mQueuedBytes = new AtomicInteger();
+        /** Hands the queued output to the receiver, run on {@link #mExecutor}. */
+        Runnable mDelivery;
+        /** The number of times the delivery was asked for since it last found the queue empty. */
+        final AtomicInteger mDeliveryRequests = new AtomicInteger();
+        /** The exception thrown by the receiver, only touched by the delivery. */
+        RuntimeException mReceiverFailure;
+        /** Whether the executor stopped reading the command until its receiver catches up. */
+        volatile boolean mPaused = false;
+        /** Whether adb closed the connection, set before the future completes. */
+        volatile boolean mEof = false;
+
+        SocketChannel mChannel;
+        SelectionKey mKey;
+        State mState = State.CONNECTING;
+        int mRequestIndex = 0;
+        ByteBuffer mIo;
+        long mDeadline = Long.MAX_VALUE;
+
+        Command(@NonNull InetSocketAddress adbSockAddr, @NonNull String command,
+                boolean hasTransport, @NonNull List<byte[]> requests, long maxTimeToOutputMs,
+                @Nullable IShellOutputReceiver rcvr, @NonNull Executor executor) {
+            mAdbSockAddr = adbSockAddr;
+            mCommand = command;
+            mHasTransport = hasTransport;
+            mRequests = requests;
+            mMaxTimeToOutputMs = maxTimeToOutputMs;
+            mRcvr = rcvr;
+            mExecutor = executor;
+        }
+
+        void startRequest() {
+            mState = State.WRITING;
+            mIo = ByteBuffer.wrap(mRequests.get(mRequestIndex));
+            setDeadline(DdmPreferences.getTimeOut());
+        }
+
+        /**
+         * Sets the deadline to <var>timeoutMs</var> from now, a value of 0 meaning no deadline.
+         */
+        void setDeadline(long timeoutMs) {
+            mDeadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+        }
+
+        void close() {
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
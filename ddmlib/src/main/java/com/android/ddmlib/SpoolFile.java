@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A temporary file mapped in memory, into which a {@link Client} reads a packet too large for
+ * the {@link ByteBufferPool}, such as a streamed heap dump.
+ * <p/>The data goes to the file as it is read, instead of being kept on the heap, and the file
+ * can be handed to a reader of its own once the packet is complete.
+ */
+final class SpoolFile {
+
+    private final File mFile;
+    private final ByteBuffer mBuffer;
+
+    private SpoolFile(@NonNull File file, @NonNull ByteBuffer buffer) {
+        mFile = file;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Creates a temporary file of <var>size</var> bytes, and maps it.
+     */
+    @NonNull
+    static SpoolFile create(int size) throws IOException {
+        File file = File.createTempFile("ddmlib", ".packet");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                // the mapping stays valid once the file is closed.
+                return new SpoolFile(file, buffer);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    @NonNull
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the buffer mapping the whole file, initially empty.
+     */
+    @NonNull
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Deletes the file. Mappings of the file, if any, stay valid where the system allows the
+     * deletion of a mapped file; elsewhere, the file is deleted when the VM exits.
+     */
+    void delete() {
+        if (!mFile.delete() && mFile.exists()) {
+            mFile.deleteOnExit();
+        }
+    }
+}
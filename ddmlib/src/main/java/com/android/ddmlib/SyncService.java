@@ -23,15 +23,18 @@ import com.android.ddmlib.FileListingService.FileEntry;
 import com.android.ddmlib.SyncException.SyncError;
 import com.android.ddmlib.utils.ArrayHelper;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Sync service class to push/pull to/from devices/emulators, through the debug bridge.
@@ -81,6 +84,11 @@ public class SyncService {
     private static final int SYNC_DATA_MAX = 64*1024;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
+    /** Maximum number of pushed files waiting for the device to acknowledge them. */
+    private static final int MAX_PIPELINED_FILES = 32;
+    /** Maximum number of stat requests sent before reading the responses. */
+    private static final int MAX_BATCHED_STATS = 128;
+
     /**
      * Classes which implement this interface provide methods that deal
      * with displaying transfer progress.
@@ -381,6 +389,56 @@ public class SyncService {
         monitor.stop();
     }
 
+    /**
+     * Push several files, streaming them back to back before collecting the device responses.
+     * <p/>Directories are pushed recursively, like {@link #push(String[], FileEntry,
+     * ISyncProgressMonitor)}, but the files are sent without waiting for each one to be
+     * acknowledged, which removes a round trip per file. This matters when pushing many small
+     * files.
+     * <p/>With <var>skipUnchanged</var>, the remote files are first checked with batches of
+     * stat requests, and the ones with the same size and modification time as the local file
+     * are not pushed again.
+     * <p/>If the device rejects a file, the files pipelined after it are lost and the
+     * connection should be closed.
+     * @param local An array of local files to push
+     * @param remote the full path of the remote directory.
+     * @param skipUnchanged whether to skip the files which are already up to date on the device.
+     * @param monitor The progress monitor. Cannot be null.
+     * @return the number of files actually pushed.
+     * @throws SyncException if file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public int pushPipelined(String[] local, String remote, boolean skipUnchanged,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        FileStat remoteStat = statFile(remote);
+        if (remoteStat != null
+                && getFileType(remoteStat.getMode()) == FileListingService.TYPE_FILE) {
+            throw new SyncException(SyncError.REMOTE_IS_FILE);
+        }
+
+        List<File> files = new ArrayList<File>();
+        List<String> remotePaths = new ArrayList<String>();
+        for (String path : local) {
+            collectFiles(new File(path), remote, files, remotePaths);
+        }
+
+        if (skipUnchanged) {
+            removeUnchanged(files, remotePaths, monitor);
+        }
+
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        monitor.start((int) total);
+
+        doPushPipelined(files, remotePaths, monitor);
+
+        monitor.stop();
+        return files.size();
+    }
+
     /**
      * Push a single file.
      * @param local the local filepath.
@@ -409,6 +467,30 @@ public class SyncService {
         monitor.stop();
     }
 
+    /**
+     * Push a single file from memory.
+     * <p/>Only the content of <var>data</var> between its position and limit is sent, and the
+     * buffer itself is left untouched. This lets several threads push the same buffer, for
+     * instance a memory-mapped file, to different devices at once.
+     * @param data the content of the file.
+     * @param lastModified the modification time to give to the remote file, in ms since epoch.
+     * @param remote The remote filepath.
+     * @param monitor The progress monitor. Cannot be null.
+     *
+     * @throws SyncException if file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    void pushData(@NonNull ByteBuffer data, long lastModified, @NonNull String remote,
+            @NonNull ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        monitor.start(data.remaining());
+
+        doPushData(data.duplicate(), (int) (lastModified / 1000), remote, monitor);
+
+        monitor.stop();
+    }
+
     /**
      * compute the recursive file size of all the files in the list. Folder
      * have a weight of 1.
@@ -637,6 +719,113 @@ public class SyncService {
         }
     }
 
+    /**
+     * Lists the files to push, recursively.
+     * @param f the local file or directory.
+     * @param remotePath the remote directory receiving <var>f</var>.
+     * @param files receives the local files.
+     * @param remotePaths receives the remote path of each file in <var>files</var>.
+     */
+    private static void collectFiles(File f, String remotePath, List<File> files,
+            List<String> remotePaths) {
+        String dest = remotePath + "/" + f.getName(); // $NON-NLS-1S
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    collectFiles(child, dest, files, remotePaths);
+                }
+            }
+        } else if (f.isFile()) {
+            files.add(f);
+            remotePaths.add(dest);
+        }
+    }
+
+    /**
+     * Removes from the lists the files whose remote copy has the same size and modification
+     * time. The remote files are checked by batches of stat requests, each batch costing a
+     * single round trip.
+     */
+    private void removeUnchanged(List<File> files, List<String> remotePaths,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
+        List<File> changedFiles = new ArrayList<File>(files.size());
+        List<String> changedPaths = new ArrayList<String>(remotePaths.size());
+
+        for (int start = 0; start < files.size(); start += MAX_BATCHED_STATS) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+            int end = Math.min(files.size(), start + MAX_BATCHED_STATS);
+
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            for (int i = start; i < end; i++) {
+                byte[] msg = createFileReq(ID_STAT, remotePaths.get(i));
+                if (msg == null) {
+                    throw new SyncException(SyncError.REMOTE_PATH_ENCODING);
+                }
+                requests.write(msg, 0, msg.length);
+            }
+            AdbHelper.write(mChannel, requests.toByteArray(), -1, timeOut);
+
+            // each response contains 4 ints (id, mode, size, time)
+            byte[] results = new byte[16 * (end - start)];
+            AdbHelper.read(mChannel, results, -1 /* full length */, timeOut);
+
+            for (int i = start; i < end; i++) {
+                int offset = 16 * (i - start);
+                File f = files.get(i);
+                boolean unchanged = results[offset] == ID_STAT[0]
+                        && results[offset + 1] == ID_STAT[1]
+                        && results[offset + 2] == ID_STAT[2]
+                        && results[offset + 3] == ID_STAT[3]
+                        && getFileType(ArrayHelper.swap32bitFromArray(results, offset + 4))
+                                == FileListingService.TYPE_FILE
+                        && ArrayHelper.swap32bitFromArray(results, offset + 8) == f.length()
+                        && ArrayHelper.swap32bitFromArray(results, offset + 12)
+                                == (int) (f.lastModified() / 1000);
+                if (!unchanged) {
+                    changedFiles.add(f);
+                    changedPaths.add(remotePaths.get(i));
+                }
+            }
+        }
+
+        files.clear();
+        files.addAll(changedFiles);
+        remotePaths.clear();
+        remotePaths.addAll(changedPaths);
+    }
+
+    /**
+     * Pushes files back to back, only waiting for the device responses when
+     * {@link #MAX_PIPELINED_FILES} files are waiting to be acknowledged.
+     * @param files the local files to push.
+     * @param remotePaths the remote path of each file in <var>files</var>.
+     * @param monitor the monitor. The monitor must be started already.
+     */
+    private void doPushPipelined(List<File> files, List<String> remotePaths,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
+        int pending = 0;
+        for (int i = 0; i < files.size(); i++) {
+            // check if we're canceled
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+            monitor.startSubTask(remotePaths.get(i));
+            sendFile(files.get(i).getAbsolutePath(), remotePaths.get(i), monitor);
+            if (++pending == MAX_PIPELINED_FILES) {
+                readPushResult(timeOut);
+                pending--;
+            }
+        }
+        while (pending-- > 0) {
+            readPushResult(timeOut);
+        }
+    }
+
     /**
      * Push a single file
      * @param localPath the local file to push
@@ -649,6 +838,23 @@ public class SyncService {
      */
     private void doPushFile(String localPath, String remotePath,
             ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        sendFile(localPath, remotePath, monitor);
+        readPushResult(DdmPreferences.getTimeOut());
+    }
+
+    /**
+     * Sends a single file, without waiting for the device to acknowledge it. The result must
+     * be read with {@link #readPushResult(int)}.
+     * @param localPath the local file to push
+     * @param remotePath the remote file (length max is 1024)
+     * @param monitor the monitor. The monitor must be started already.
+     *
+     * @throws SyncException if file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void sendFile(String localPath, String remotePath,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
         FileInputStream fis = null;
         byte[] msg;
 
@@ -708,13 +914,83 @@ public class SyncService {
             }
         }
 
+        sendDone((int) (f.lastModified() / 1000), timeOut);
+    }
+
+    /**
+     * Push data from memory into a single remote file
+     * @param data the data to push, from its position to its limit. The position is advanced
+     *      as the data is sent.
+     * @param lastModifiedSecs the modification time to give to the remote file.
+     * @param remotePath the remote file (length max is 1024)
+     * @param monitor the monitor. The monitor must be started already.
+     *
+     * @throws SyncException if the data could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void doPushData(ByteBuffer data, int lastModifiedSecs, String remotePath,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
+
+        byte[] remotePathContent;
+        try {
+            remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
+        }
+        if (remotePathContent.length > REMOTE_PATH_MAX_LENGTH) {
+            throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
+        }
+
+        AdbHelper.write(mChannel, createSendFileReq(ID_SEND, remotePathContent, 0644), -1,
+                timeOut);
+
+        System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
+
+        while (data.hasRemaining()) {
+            // check if we're canceled
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+
+            int count = Math.min(data.remaining(), SYNC_DATA_MAX);
+            data.get(getBuffer(), 8, count);
+            ArrayHelper.swap32bitsToArray(count, getBuffer(), 4);
+            AdbHelper.write(mChannel, getBuffer(), count + 8, timeOut);
+
+            monitor.advance(count);
+        }
+
+        sendDone(lastModifiedSecs, timeOut);
+        readPushResult(timeOut);
+    }
+
+    /**
+     * Sends the DONE message ending a push.
+     * @param lastModifiedSecs the modification time to give to the remote file.
+     * @param timeOut the timeout in ms.
+     *
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout writing to the device.
+     */
+    private void sendDone(int lastModifiedSecs, int timeOut) throws IOException, TimeoutException {
         // create the DONE message
-        long time = f.lastModified() / 1000;
-        msg = createReq(ID_DONE, (int)time);
+        byte[] msg = createReq(ID_DONE, lastModifiedSecs);
 
         // and send it.
         AdbHelper.write(mChannel, msg, -1, timeOut);
+    }
 
+    /**
+     * Reads the response to a push, and checks the device accepted the file.
+     * @param timeOut the timeout in ms.
+     *
+     * @throws SyncException if the device reported an error
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void readPushResult(int timeOut) throws SyncException, IOException, TimeoutException {
         // read the result, in a byte array containing 2 ints
         // (id, size)
         byte[] result = new byte[8];
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Class to parse the raw output of {@code adb logcat -B} to {@link LogCatMessage} objects.
+ * <p/>The binary format is a sequence of {@code logger_entry} structures, each one followed by
+ * its payload: the priority byte, the tag and the message, both NUL terminated. The entries
+ * are decoded straight from the bytes, without going through lines of text and regular
+ * expressions. Incomplete entries are kept in a reusable buffer until the rest of their data
+ * arrives.
+ * <p/>Like {@link LogCatMessageParser}, a message spanning several lines results in one
+ * {@link LogCatMessage} per line, all sharing the same {@link LogCatHeader}.
+ */
+public final class LogCatBinaryParser {
+
+    /** Size of the version 1 header, which has no hdr_size field. */
+    private static final int V1_HEADER_SIZE = 20;
+
+    /** Upper bound on an entry payload, see LOGGER_ENTRY_MAX_PAYLOAD. */
+    private static final int MAX_PAYLOAD_SIZE = 4068;
+
+    private static final int TAG_CACHE_SIZE = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+    private static final LogLevel[] LEVELS_BY_PRIORITY = {
+            LogLevel.VERBOSE, // unknown
+            LogLevel.VERBOSE, // default
+            LogLevel.VERBOSE,
+            LogLevel.DEBUG,
+            LogLevel.INFO,
+            LogLevel.WARN,
+            LogLevel.ERROR,
+            LogLevel.ASSERT, // fatal
+            LogLevel.ASSERT, // silent
+    };
+
+    /** Bytes of an entry which is not complete yet. */
+    private byte[] mPending = new byte[V1_HEADER_SIZE + MAX_PAYLOAD_SIZE];
+    private int mPendingLength = 0;
+
+    /** Small cache of the decoded tags, indexed by a hash of their bytes. */
+    private final String[] mTags = new String[TAG_CACHE_SIZE];
+    private final byte[][] mTagBytes = new byte[TAG_CACHE_SIZE][];
+
+    private final Calendar mCalendar;
+    private int mLastSec = -1;
+    private int mLastMilli = -1;
+    private LogCatTimestamp mLastTimestamp;
+
+    /**
+     * Creates a parser converting the entry times to the default time zone, which is what
+     * logcat does as long as the host and the device share the same time zone.
+     */
+    public LogCatBinaryParser() {
+        this(TimeZone.getDefault());
+    }
+
+    /**
+     * Creates a parser converting the entry times to the given time zone.
+     */
+    public LogCatBinaryParser(@NonNull TimeZone timeZone) {
+        mCalendar = Calendar.getInstance(timeZone);
+    }
+
+    /**
+     * Parses new data from {@code logcat -B}. This method maintains state from previous calls,
+     * so that an entry split across several calls is parsed once it is complete.
+     *
+     * @param data the data buffer
+     * @param offset the offset into the buffer signaling the beginning of the new data.
+     * @param length the length of the new data.
+     * @param device device from which these log messages have been received
+     * @return the messages of the entries completed by this data.
+     */
+    @NonNull
+    public List<LogCatMessage> processLogData(@NonNull byte[] data, int offset, int length,
+            @Nullable IDevice device) {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+
+        if (mPendingLength > 0) {
+            // complete the pending entry first, copying only what it needs.
+            while (length > 0) {
+                int size = getEntrySize(mPending, 0, mPendingLength);
+                ensurePendingCapacity(size);
+                int needed = size - mPendingLength;
+                int count = Math.min(needed, length);
+                System.arraycopy(data, offset, mPending, mPendingLength, count);
+                mPendingLength += count;
+                offset += count;
+                length -= count;
+                if (count == needed && getEntrySize(mPending, 0, mPendingLength)
+                        == mPendingLength) {
+                    parseEntry(mPending, 0, device, messages);
+                    mPendingLength = 0;
+                    break;
+                }
+            }
+        }
+
+        // then parse the complete entries in place.
+        int end = offset + length;
+        while (offset < end) {
+            int size = getEntrySize(data, offset, end - offset);
+            if (size > end - offset) {
+                break;
+            }
+            parseEntry(data, offset, device, messages);
+            offset += size;
+        }
+
+        // and keep what's left for the next call.
+        if (offset < end) {
+            ensurePendingCapacity(end - offset);
+            System.arraycopy(data, offset, mPending, 0, end - offset);
+            mPendingLength = end - offset;
+        }
+
+        return messages;
+    }
+
+    /**
+     * Returns the total size of the entry starting at <var>offset</var>, header included, or
+     * a lower bound of it if not enough of the header is available.
+     */
+    private static int getEntrySize(byte[] data, int offset, int available) {
+        if (available < 4) {
+            return V1_HEADER_SIZE;
+        }
+        return getHeaderSize(data, offset) + readU16(data, offset);
+    }
+
+    /**
+     * Returns the size of the header of the entry starting at <var>offset</var>.
+     */
+    private static int getHeaderSize(byte[] data, int offset) {
+        // version 1 has no hdr_size field, it was padding.
+        return Math.max(readU16(data, offset + 2), V1_HEADER_SIZE);
+    }
+
+    private void ensurePendingCapacity(int size) {
+        if (size > mPending.length) {
+            byte[] pending = new byte[Math.max(size, 2 * mPending.length)];
+            System.arraycopy(mPending, 0, pending, 0, mPendingLength);
+            mPending = pending;
+        }
+    }
+
+    private void parseEntry(byte[] data, int offset, @Nullable IDevice device,
+            List<LogCatMessage> messages) {
+        int len = readU16(data, offset);
+        int headerSize = getHeaderSize(data, offset);
+        int pid = readS32(data, offset + 4);
+        int tid = readS32(data, offset + 8);
+        int sec = readS32(data, offset + 12);
+        int nsec = readS32(data, offset + 16);
+
+        int start = offset + headerSize;
+        int end = start + len;
+        if (len == 0) {
+            return;
+        }
+
+        int priority = data[start] & 0xFF;
+        LogLevel logLevel = priority < LEVELS_BY_PRIORITY.length
+                ? LEVELS_BY_PRIORITY[priority] : LogLevel.WARN;
+
+        int tagStart = start + 1;
+        int tagEnd = indexOf(data, tagStart, end, (byte) 0);
+        String tag = getTag(data, tagStart, tagEnd);
+
+        String pkgName = null;
+        if (device != null && pid != -1) {
+            pkgName = device.getClientName(pid);
+        }
+        if (pkgName == null || pkgName.isEmpty()) {
+            pkgName = "?"; //$NON-NLS-1$
+        }
+
+        LogCatHeader header = new LogCatHeader(logLevel, pid, tid, pkgName, tag,
+                getTimestamp(sec, nsec / 1000000));
+
+        // the message, without its NUL terminator and trailing new lines.
+        int msgStart = Math.min(tagEnd + 1, end);
+        int msgEnd = indexOf(data, msgStart, end, (byte) 0);
+        while (msgEnd > msgStart && (data[msgEnd - 1] == '\n' || data[msgEnd - 1] == '\r')) {
+            msgEnd--;
+        }
+
+        // one message per non empty line, like the text format.
+        int lineStart = msgStart;
+        while (lineStart < msgEnd) {
+            int lineEnd = indexOf(data, lineStart, msgEnd, (byte) '\n');
+            if (lineEnd > lineStart) {
+                messages.add(new LogCatMessage(header,
+                        new String(data, lineStart, lineEnd - lineStart, UTF_8)));
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Returns the tag stored in the given bytes, reusing the previous {@link String} when the
+     * same tag was seen recently.
+     */
+    @NonNull
+    private String getTag(byte[] data, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + data[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (TAG_CACHE_SIZE - 1);
+
+        byte[] cached = mTagBytes[slot];
+        if (cached != null && cached.length == end - start) {
+            boolean same = true;
+            for (int i = 0; i < cached.length; i++) {
+                if (cached[i] != data[start + i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return mTags[slot];
+            }
+        }
+
+        byte[] bytes = new byte[end - start];
+        System.arraycopy(data, start, bytes, 0, bytes.length);
+        String tag = new String(bytes, UTF_8);
+        mTagBytes[slot] = bytes;
+        mTags[slot] = tag;
+        return tag;
+    }
+
+    /**
+     * Returns the timestamp matching the given time, reusing the previous one for entries
+     * logged in the same millisecond.
+     */
+    @NonNull
+    private LogCatTimestamp getTimestamp(int sec, int milli) {
+        if (sec != mLastSec) {
+            mCalendar.setTimeInMillis(sec * 1000L);
+            mLastSec = sec;
+            mLastMilli = -1;
+        }
+        if (milli != mLastMilli) {
+            mLastTimestamp = new LogCatTimestamp(mCalendar.get(Calendar.MONTH) + 1,
+                    mCalendar.get(Calendar.DAY_OF_MONTH), mCalendar.get(Calendar.HOUR_OF_DAY),
+                    mCalendar.get(Calendar.MINUTE), mCalendar.get(Calendar.SECOND), milli);
+            mLastMilli = milli;
+        }
+        return mLastTimestamp;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int readU16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readS32(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Receives the log of a device through logcat's binary format, and hands the messages to the
+ * {@link LogCatListener}s in batches, one batch per chunk of data read from adb.
+ * <p/>This is a cheaper alternative to {@link LogCatReceiverTask} for chatty devices: the
+ * entries are decoded by a {@link LogCatBinaryParser} straight from the bytes read from adb.
+ * <p/>Before API 24, adb runs shell commands through a pty, which mangles binary output. On
+ * those devices, this falls back to the text format.
+ */
+public class LogCatBinaryReceiverTask implements Runnable {
+    private static final String LOGCAT_COMMAND = "logcat -B"; //$NON-NLS-1$
+    private static final int DEVICE_POLL_INTERVAL_MSEC = 1000;
+
+    /** First API level whose adbd runs shell commands without a pty. */
+    private static final int MIN_API_LEVEL = 24;
+
+    private static final LogCatMessage sDeviceDisconnectedMsg =
+            new LogCatMessage(LogLevel.ERROR, "Device disconnected: 1");
+    private static final LogCatMessage sConnectionTimeoutMsg =
+            new LogCatMessage(LogLevel.ERROR, "LogCat Connection timed out");
+    private static final LogCatMessage sConnectionErrorMsg =
+            new LogCatMessage(LogLevel.ERROR, "LogCat Connection error");
+
+    private final IDevice mDevice;
+    private final LogCatBinaryParser mParser;
+    private final AtomicBoolean mCancelled;
+
+    @GuardedBy("this")
+    private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
+
+    @GuardedBy("this")
+    private LogCatReceiverTask mTextTask;
+
+    public LogCatBinaryReceiverTask(@NonNull IDevice device) {
+        mDevice = device;
+
+        mParser = new LogCatBinaryParser();
+        mCancelled = new AtomicBoolean();
+    }
+
+    @Override
+    public void run() {
+        // wait while device comes online
+        while (!mDevice.isOnline()) {
+            try {
+                Thread.sleep(DEVICE_POLL_INTERVAL_MSEC);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+
+        if (mDevice.getApiLevel() < MIN_API_LEVEL) {
+            runTextTask();
+            return;
+        }
+
+        try {
+            mDevice.executeShellCommand(LOGCAT_COMMAND, new LogCatOutputReceiver(), 0,
+                    TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            notifyListeners(Collections.singletonList(sConnectionTimeoutMsg));
+        } catch (AdbCommandRejectedException ignored) {
+            // will not be thrown as long as the shell supports logcat
+        } catch (ShellCommandUnresponsiveException ignored) {
+            // this will not be thrown since the last argument is 0
+        } catch (IOException e) {
+            notifyListeners(Collections.singletonList(sConnectionErrorMsg));
+        }
+
+        notifyListeners(Collections.singletonList(sDeviceDisconnectedMsg));
+    }
+
+    public void stop() {
+        mCancelled.set(true);
+        synchronized (this) {
+            if (mTextTask != null) {
+                mTextTask.stop();
+            }
+        }
+    }
+
+    private void runTextTask() {
+        LogCatReceiverTask task = new LogCatReceiverTask(mDevice);
+        task.addLogCatListener(new LogCatListener() {
+            @Override
+            public void log(List<LogCatMessage> msgList) {
+                notifyListeners(msgList);
+            }
+        });
+        synchronized (this) {
+            if (mCancelled.get()) {
+                return;
+            }
+            mTextTask = task;
+        }
+        task.run();
+    }
+
+    private class LogCatOutputReceiver implements IShellOutputReceiver {
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            if (!mCancelled.get()) {
+                List<LogCatMessage> newMessages =
+                        mParser.processLogData(data, offset, length, mDevice);
+                if (!newMessages.isEmpty()) {
+                    notifyListeners(newMessages);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        /** Implements {@link IShellOutputReceiver#isCancelled() }. */
+        @Override
+        public boolean isCancelled() {
+            return mCancelled.get();
+        }
+    }
+
+    public synchronized void addLogCatListener(LogCatListener l) {
+        mListeners.add(l);
+    }
+
+    public synchronized void removeLogCatListener(LogCatListener l) {
+        mListeners.remove(l);
+    }
+
+    private synchronized void notifyListeners(List<LogCatMessage> messages) {
+        for (LogCatListener l: mListeners) {
+            l.log(messages);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package com.android.ddmlib.logcat;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.ddmlib.Log.LogLevel;
 
 import java.util.ArrayList;
@@ -186,6 +187,22 @@ public final class LogCatFilter {
         return mLogLevel;
     }
 
+    /**
+     * Returns the compiled app name regex, or null if this filter does not check the app name.
+     */
+    @Nullable
+    Pattern getAppNamePattern() {
+        return mCheckAppName ? mAppNamePattern : null;
+    }
+
+    /**
+     * Returns the compiled tag regex, or null if this filter does not check the tag.
+     */
+    @Nullable
+    Pattern getTagPattern() {
+        return mCheckTag ? mTagPattern : null;
+    }
+
     /**
      * Check whether a given message will make it through this filter.
      * @param m message to check
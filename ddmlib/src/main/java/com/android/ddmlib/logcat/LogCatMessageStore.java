@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.ddmlib.Log.LogLevel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded store of {@link LogCatMessage}s, meant to retain the log of a device for a long
+ * time and to be queried with {@link LogCatFilter}s.
+ * <p/>The messages are kept in a ring buffer, the oldest ones being evicted once the store
+ * holds more than a maximum number of messages or (an estimate of) a maximum number of bytes.
+ * <p/>The store keeps an index of the messages by pid, tag, app name and log level, so that
+ * a query only looks at the messages of the smallest matching set instead of running the
+ * regexes of the filter on every message. Tags and app names are interned, so that the
+ * retained messages do not each hold their own copy.
+ * <p/>The store can be registered as a {@link LogCatListener} of a {@link LogCatReceiverTask}
+ * or a {@link LogCatBinaryReceiverTask}. It is thread safe.
+ */
+public final class LogCatMessageStore implements LogCatListener {
+
+    /** Rough size of a retained message, its header and index entries, besides its text. */
+    private static final int MESSAGE_OVERHEAD = 96;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    private final int mMaxMessages;
+    private final long mMaxBytes;
+
+    /** Message with sequence number n is at index n % mMessages.length. */
+    @GuardedBy("this")
+    private LogCatMessage[] mMessages;
+
+    /** Sequence number of the oldest message. */
+    @GuardedBy("this")
+    private long mFirst = 0;
+
+    /** Sequence number of the next message. */
+    @GuardedBy("this")
+    private long mNext = 0;
+
+    @GuardedBy("this")
+    private long mBytes = 0;
+
+    @GuardedBy("this")
+    private final Map<Integer, SequenceList> mByPid = new HashMap<Integer, SequenceList>();
+    @GuardedBy("this")
+    private final Map<String, SequenceList> mByTag = new HashMap<String, SequenceList>();
+    @GuardedBy("this")
+    private final Map<String, SequenceList> mByAppName = new HashMap<String, SequenceList>();
+    @GuardedBy("this")
+    private final SequenceList[] mByLevel = new SequenceList[LEVELS.length];
+
+    /** Last header added, and its interned version, so that messages keep sharing headers. */
+    @GuardedBy("this")
+    private LogCatHeader mLastHeader;
+    @GuardedBy("this")
+    private LogCatHeader mLastInternedHeader;
+
+    /**
+     * Creates a store.
+     * @param maxMessages the maximum number of messages to retain.
+     * @param maxBytes the maximum estimated size of the retained messages, in bytes.
+     */
+    public LogCatMessageStore(int maxMessages, long maxBytes) {
+        if (maxMessages <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Should be > 0");
+        }
+        mMaxMessages = maxMessages;
+        mMaxBytes = maxBytes;
+        mMessages = new LogCatMessage[Math.min(maxMessages, INITIAL_CAPACITY)];
+        for (int i = 0; i < LEVELS.length; i++) {
+            mByLevel[i] = new SequenceList(null);
+        }
+    }
+
+    /** Implements {@link LogCatListener#log(List)} by adding the messages to the store. */
+    @Override
+    public void log(List<LogCatMessage> msgList) {
+        addAll(msgList);
+    }
+
+    /**
+     * Adds messages to the store, evicting the oldest messages as needed.
+     */
+    public synchronized void addAll(@NonNull List<LogCatMessage> messages) {
+        for (LogCatMessage m : messages) {
+            add(m);
+        }
+    }
+
+    /**
+     * Adds a message to the store, evicting the oldest messages as needed.
+     */
+    public synchronized void add(@NonNull LogCatMessage message) {
+        long size = getSize(message);
+        while (mNext > mFirst
+                && (mNext - mFirst >= mMaxMessages || mBytes + size > mMaxBytes)) {
+            evict();
+        }
+
+        if (mNext - mFirst == mMessages.length) {
+            grow();
+        }
+
+        long seq = mNext++;
+        message = intern(message, seq);
+        mMessages[slot(seq)] = message;
+        mBytes += size;
+    }
+
+    /**
+     * Returns the number of retained messages.
+     */
+    public synchronized int size() {
+        return (int) (mNext - mFirst);
+    }
+
+    /**
+     * Returns the estimated size of the retained messages, in bytes.
+     */
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * Removes all the messages.
+     */
+    public synchronized void clear() {
+        Arrays.fill(mMessages, null);
+        mFirst = mNext;
+        mBytes = 0;
+        mByPid.clear();
+        mByTag.clear();
+        mByAppName.clear();
+        for (SequenceList list : mByLevel) {
+            list.clear();
+        }
+        mLastHeader = null;
+        mLastInternedHeader = null;
+    }
+
+    /**
+     * Returns the retained messages, oldest first.
+     */
+    @NonNull
+    public synchronized List<LogCatMessage> getMessages() {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>(size());
+        for (long seq = mFirst; seq < mNext; seq++) {
+            messages.add(mMessages[slot(seq)]);
+        }
+        return messages;
+    }
+
+    /**
+     * Returns the retained messages matching the filter, oldest first.
+     */
+    @NonNull
+    public List<LogCatMessage> query(@NonNull LogCatFilter filter) {
+        return query(Collections.singletonList(filter));
+    }
+
+    /**
+     * Returns the retained messages matching all the filters, oldest first. This is how the
+     * filters returned by {@link LogCatFilter#fromString(String, LogLevel)} are applied.
+     */
+    @NonNull
+    public synchronized List<LogCatMessage> query(@NonNull List<LogCatFilter> filters) {
+        // find the smallest set of candidates the indexes can give.
+        List<SequenceList> candidates = null;
+        long candidateCount = mNext - mFirst;
+        for (LogCatFilter filter : filters) {
+            for (List<SequenceList> lists : getCandidates(filter)) {
+                long count = 0;
+                for (SequenceList list : lists) {
+                    count += list.size();
+                }
+                if (count == 0) {
+                    return Collections.emptyList();
+                }
+                if (count < candidateCount) {
+                    candidates = lists;
+                    candidateCount = count;
+                }
+            }
+        }
+
+        // and check the whole filters, message text included, on those only.
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        if (candidates == null) {
+            for (long seq = mFirst; seq < mNext; seq++) {
+                addIfMatches(mMessages[slot(seq)], filters, messages);
+            }
+        } else {
+            for (long seq : merge(candidates, (int) candidateCount)) {
+                addIfMatches(mMessages[slot(seq)], filters, messages);
+            }
+        }
+        return messages;
+    }
+
+    private static void addIfMatches(LogCatMessage m, List<LogCatFilter> filters,
+            List<LogCatMessage> messages) {
+        for (LogCatFilter filter : filters) {
+            if (!filter.matches(m)) {
+                return;
+            }
+        }
+        messages.add(m);
+    }
+
+    /**
+     * Returns, for each field of the filter which can be looked up in an index, the lists
+     * holding the messages which may match it.
+     */
+    @GuardedBy("this")
+    private List<List<SequenceList>> getCandidates(LogCatFilter filter) {
+        List<List<SequenceList>> candidates = new ArrayList<List<SequenceList>>();
+
+        int priority = filter.getLogLevel().getPriority();
+        if (priority > LEVELS[0].getPriority()) {
+            List<SequenceList> lists = new ArrayList<SequenceList>();
+            for (LogLevel level : LEVELS) {
+                if (level.getPriority() >= priority) {
+                    lists.add(mByLevel[level.ordinal()]);
+                }
+            }
+            candidates.add(lists);
+        }
+
+        if (!filter.getPid().isEmpty()) {
+            List<SequenceList> lists = new ArrayList<SequenceList>(1);
+            try {
+                SequenceList list = mByPid.get(Integer.parseInt(filter.getPid()));
+                if (list != null) {
+                    lists.add(list);
+                }
+            } catch (NumberFormatException e) {
+                // matches no message.
+            }
+            candidates.add(lists);
+        }
+
+        Pattern tag = filter.getTagPattern();
+        if (tag != null) {
+            candidates.add(getMatching(mByTag, tag));
+        }
+
+        Pattern appName = filter.getAppNamePattern();
+        if (appName != null) {
+            candidates.add(getMatching(mByAppName, appName));
+        }
+
+        return candidates;
+    }
+
+    private static List<SequenceList> getMatching(Map<String, SequenceList> index,
+            Pattern pattern) {
+        List<SequenceList> lists = new ArrayList<SequenceList>();
+        for (SequenceList list : index.values()) {
+            if (pattern.matcher(list.getKey()).find()) {
+                lists.add(list);
+            }
+        }
+        return lists;
+    }
+
+    /**
+     * Returns the sequence numbers of the given lists, in order. The lists are disjoint.
+     */
+    private static long[] merge(List<SequenceList> lists, int count) {
+        long[] seqs = new long[count];
+        int n = 0;
+        for (SequenceList list : lists) {
+            n = list.copyTo(seqs, n);
+        }
+        if (lists.size() > 1) {
+            Arrays.sort(seqs);
+        }
+        return seqs;
+    }
+
+    /**
+     * Indexes a message being added, and returns it with interned tag and app name.
+     */
+    @GuardedBy("this")
+    private LogCatMessage intern(LogCatMessage m, long seq) {
+        SequenceList pid = mByPid.get(m.getPid());
+        if (pid == null) {
+            pid = new SequenceList(null);
+            mByPid.put(m.getPid(), pid);
+        }
+        pid.add(seq);
+
+        SequenceList tag = index(mByTag, m.getTag(), seq);
+        SequenceList appName = index(mByAppName, m.getAppName(), seq);
+        mByLevel[m.getLogLevel().ordinal()].add(seq);
+
+        LogCatHeader header = m.getHeader();
+        if (header.getTag() == tag.getKey() && header.getAppName() == appName.getKey()) {
+            return m;
+        }
+        if (header != mLastHeader) {
+            mLastHeader = header;
+            mLastInternedHeader = new LogCatHeader(header.getLogLevel(), header.getPid(),
+                    header.getTid(), appName.getKey(), tag.getKey(), header.getTimestamp());
+        }
+        return new LogCatMessage(mLastInternedHeader, m.getMessage());
+    }
+
+    private static SequenceList index(Map<String, SequenceList> index, String key, long seq) {
+        SequenceList list = index.get(key);
+        if (list == null) {
+            list = new SequenceList(key);
+            index.put(key, list);
+        }
+        list.add(seq);
+        return list;
+    }
+
+    @GuardedBy("this")
+    private void evict() {
+        int slot = slot(mFirst);
+        LogCatMessage m = mMessages[slot];
+        mMessages[slot] = null;
+
+        if (mByPid.get(m.getPid()).removeFirst()) {
+            mByPid.remove(m.getPid());
+        }
+        if (mByTag.get(m.getTag()).removeFirst()) {
+            mByTag.remove(m.getTag());
+        }
+        if (mByAppName.get(m.getAppName()).removeFirst()) {
+            mByAppName.remove(m.getAppName());
+        }
+        mByLevel[m.getLogLevel().ordinal()].removeFirst();
+
+        mBytes -= getSize(m);
+        mFirst++;
+    }
+
+    @GuardedBy("this")
+    private void grow() {
+        LogCatMessage[] messages =
+                new LogCatMessage[(int) Math.min(2L * mMessages.length, mMaxMessages)];
+        for (long seq = mFirst; seq < mNext; seq++) {
+            messages[(int) (seq % messages.length)] = mMessages[slot(seq)];
+        }
+        mMessages = messages;
+    }
+
+    @GuardedBy("this")
+    private int slot(long seq) {
+        return (int) (seq % mMessages.length);
+    }
+
+    private static long getSize(LogCatMessage m) {
+        return MESSAGE_OVERHEAD + 2L * m.getMessage().length();
+    }
+
+    /**
+     * Growable queue of increasing sequence numbers: the messages with a given pid, tag, app
+     * name or log level. Since the messages are evicted oldest first, an evicted message is
+     * always the first of its lists.
+     */
+    private static final class SequenceList {
+        @Nullable
+        private final String mKey;
+        private long[] mSeqs = new long[16];
+        private int mHead = 0;
+        private int mSize = 0;
+
+        SequenceList(@Nullable String key) {
+            mKey = key;
+        }
+
+        /** Returns the interned tag or app name of the messages in this list. */
+        String getKey() {
+            return mKey;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void add(long seq) {
+            if (mHead + mSize == mSeqs.length) {
+                if (mSize <= mSeqs.length / 2) {
+                    System.arraycopy(mSeqs, mHead, mSeqs, 0, mSize);
+                } else {
+                    long[] seqs = new long[2 * mSeqs.length];
+                    System.arraycopy(mSeqs, mHead, seqs, 0, mSize);
+                    mSeqs = seqs;
+                }
+                mHead = 0;
+            }
+            mSeqs[mHead + mSize++] = seq;
+        }
+
+        /**
+         * Removes the first sequence number.
+         * @return true if the list is now empty.
+         */
+        boolean removeFirst() {
+            mHead++;
+            mSize--;
+            if (mSize == 0) {
+                mHead = 0;
+            }
+            return mSize == 0;
+        }
+
+        void clear() {
+            mHead = 0;
+            mSize = 0;
+        }
+
+        int copyTo(long[] dest, int offset) {
+            System.arraycopy(mSeqs, mHead, dest, offset, mSize);
+            return offset + mSize;
+        }
+    }
+}
@@ -289,8 +289,7 @@ public class InstrumentationResultParser extends MultiLineReceiver {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
-            // these codes signal the end of the instrumentation run
-            mTestRunFinished = true;
+            handleRunFinished();
             // just ignore the remaining data on this line
         } else if (line.startsWith(Prefixes.TIME_REPORT)) {
             parseTime(line);
@@ -310,45 +309,55 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      */
     private void submitCurrentKeyValue() {
         if (mCurrentKey != null && mCurrentValue != null) {
-            String statusValue = mCurrentValue.toString();
-            if (mInInstrumentationResultKey) {
-                if (!KNOWN_KEYS.contains(mCurrentKey)) {
-                    mInstrumentationResultBundle.put(mCurrentKey, statusValue);
-                } else if (mCurrentKey.equals(StatusKeys.SHORTMSG)) {
-                    // test run must have failed
-                    handleTestRunFailed(String.format("Instrumentation run failed due to '%1$s'",
-                            statusValue));
-                }
-            } else {
-                TestResult testInfo = getCurrentTestInfo();
-
-                if (mCurrentKey.equals(StatusKeys.CLASS)) {
-                    testInfo.mTestClass = statusValue.trim();
-                } else if (mCurrentKey.equals(StatusKeys.TEST)) {
-                    testInfo.mTestName = statusValue.trim();
-                } else if (mCurrentKey.equals(StatusKeys.NUMTESTS)) {
-                    try {
-                        testInfo.mNumTests = Integer.parseInt(statusValue);
-                    } catch (NumberFormatException e) {
-                        Log.w(LOG_TAG, "Unexpected integer number of tests, received "
-                                + statusValue);
-                    }
-                } else if (mCurrentKey.equals(StatusKeys.ERROR)) {
-                    // test run must have failed
-                    handleTestRunFailed(statusValue);
-                } else if (mCurrentKey.equals(StatusKeys.STACK)) {
-                    testInfo.mStackTrace = statusValue;
-                } else if (!KNOWN_KEYS.contains(mCurrentKey)) {
-                    // Not one of the recognized key/value pairs, so dump it in mTestMetrics
-                    mTestMetrics.put(mCurrentKey, statusValue);
-                }
-            }
-
+            submitKeyValue(mCurrentKey, mCurrentValue.toString(), mInInstrumentationResultKey);
             mCurrentKey = null;
             mCurrentValue = null;
         }
     }
 
+    /**
+     * Stores a parsed key-value pair in the appropriate place.
+     *
+     * @param key the status key
+     * @param statusValue the status value, lines separated by "\r\n"
+     * @param inInstrumentationResult true if the pair is under the INSTRUMENTATION_RESULT
+     *            header
+     */
+    void submitKeyValue(String key, String statusValue, boolean inInstrumentationResult) {
+        if (inInstrumentationResult) {
+            if (!KNOWN_KEYS.contains(key)) {
+                mInstrumentationResultBundle.put(key, statusValue);
+            } else if (key.equals(StatusKeys.SHORTMSG)) {
+                // test run must have failed
+                handleTestRunFailed(String.format("Instrumentation run failed due to '%1$s'",
+                        statusValue));
+            }
+        } else {
+            TestResult testInfo = getCurrentTestInfo();
+
+            if (key.equals(StatusKeys.CLASS)) {
+                testInfo.mTestClass = statusValue.trim();
+            } else if (key.equals(StatusKeys.TEST)) {
+                testInfo.mTestName = statusValue.trim();
+            } else if (key.equals(StatusKeys.NUMTESTS)) {
+                try {
+                    testInfo.mNumTests = Integer.parseInt(statusValue);
+                } catch (NumberFormatException e) {
+                    Log.w(LOG_TAG, "Unexpected integer number of tests, received "
+                            + statusValue);
+                }
+            } else if (key.equals(StatusKeys.ERROR)) {
+                // test run must have failed
+                handleTestRunFailed(statusValue);
+            } else if (key.equals(StatusKeys.STACK)) {
+                testInfo.mStackTrace = statusValue;
+            } else if (!KNOWN_KEYS.contains(key)) {
+                // Not one of the recognized key/value pairs, so dump it in mTestMetrics
+                mTestMetrics.put(key, statusValue);
+            }
+        }
+    }
+
     /**
      * A utility method to return the test metrics from the current test case execution and get
      * ready for the next one.
@@ -400,16 +409,24 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     /**
      * Parses out a status code result.
      */
-    private void parseStatusCode(String line) {
+    void parseStatusCode(String line) {
         String value = line.substring(Prefixes.STATUS_CODE.length()).trim();
-        TestResult testInfo = getCurrentTestInfo();
-        testInfo.mCode = StatusCodes.ERROR;
+        int code;
         try {
-            testInfo.mCode = Integer.parseInt(value);
+            code = Integer.parseInt(value);
         } catch (NumberFormatException e) {
             Log.w(LOG_TAG, "Expected integer status code, received: " + value);
-            testInfo.mCode = StatusCodes.ERROR;
+            code = StatusCodes.ERROR;
         }
+        handleStatusCode(code);
+    }
+
+    /**
+     * Handles a parsed status code result.
+     */
+    void handleStatusCode(int code) {
+        TestResult testInfo = getCurrentTestInfo();
+        testInfo.mCode = code;
         if (testInfo.mCode != StatusCodes.IN_PROGRESS) {
             // this means we're done with current test result bundle
             reportResult(testInfo);
@@ -417,6 +434,13 @@ public class InstrumentationResultParser extends MultiLineReceiver {
         }
     }
 
+    /**
+     * Handles a line signaling the end of the instrumentation run.
+     */
+    void handleRunFinished() {
+        mTestRunFinished = true;
+    }
+
     /**
      * Returns true if test run canceled.
      *
@@ -541,7 +565,7 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     /**
      * Parses out and store the elapsed time.
      */
-    private void parseTime(String line) {
+    void parseTime(String line) {
         final Pattern timePattern = Pattern.compile(String.format("%s\\s*([\\d\\.]+)",
                 Prefixes.TIME_REPORT));
         Matcher timeMatcher = timePattern.matcher(line);
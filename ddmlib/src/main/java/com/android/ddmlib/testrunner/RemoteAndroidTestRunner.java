@@ -47,7 +47,7 @@ public class RemoteAndroidTestRunner implements IRemoteAndroidTestRunner  {
 
     /** map of name-value instrumentation argument pairs */
     private Map<String, String> mArgMap;
-    private InstrumentationResultParser mParser;
+    private StreamingInstrumentationResultParser mParser;
 
     private static final String LOG_TAG = "RemoteAndroidTest";
     private static final String DEFAULT_RUNNER_NAME = "android.test.InstrumentationTestRunner";
@@ -254,7 +254,7 @@ public class RemoteAndroidTestRunner implements IRemoteAndroidTestRunner  {
         Log.i(LOG_TAG, String.format("Running %1$s on %2$s", runCaseCommandStr,
                 mRemoteDevice.getName()));
         String runName = mRunName == null ? mPackageName : mRunName;
-        mParser = new InstrumentationResultParser(runName, listeners);
+        mParser = new StreamingInstrumentationResultParser(runName, listeners);
 
         try {
             mRemoteDevice.executeShellCommand(runCaseCommandStr, mParser, mMaxTimeToOutputResponse,
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.testrunner;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log;
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Parses the 'raw output mode' results of an instrumentation test run from shell and informs
+ * ITestRunListeners of the results, like {@link InstrumentationResultParser}.
+ * <p/>Instead of converting the output to lines of text first, this parser scans the bytes
+ * read from adb: the prefixes and the status keys are matched in place, and the values are
+ * accumulated as bytes and converted to a {@link String} once, when the status key-value pair
+ * is complete. The values of the status keys which are ignored, such as the "stream" output
+ * of the test runner, are never converted.
+ * <p/>The listeners are informed of the same events, in the same order, as with
+ * {@link InstrumentationResultParser}. Unlike it, the lines are not dumped to the verbose log.
+ */
+public class StreamingInstrumentationResultParser implements IShellOutputReceiver {
+
+    private static final byte[] STATUS = bytes("INSTRUMENTATION_STATUS: ");
+    private static final byte[] STATUS_CODE = bytes("INSTRUMENTATION_STATUS_CODE: ");
+    private static final byte[] STATUS_FAILED = bytes("INSTRUMENTATION_FAILED: ");
+    private static final byte[] CODE = bytes("INSTRUMENTATION_CODE: ");
+    private static final byte[] RESULT = bytes("INSTRUMENTATION_RESULT: ");
+    private static final byte[] TIME_REPORT = bytes("Time: ");
+
+    private static final byte[] LINE_SEPARATOR = bytes("\r\n");
+
+    /** Frequent status keys, so that they are not converted again for every test. */
+    private static final String[] KEYS = {
+            "class", "test", "numtests", "stack", "current", "id", "stream", "Error", "shortMsg"
+    };
+    private static final byte[][] KEY_BYTES = new byte[KEYS.length][];
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEY_BYTES[i] = bytes(KEYS[i]);
+        }
+    }
+
+    /** Known but unused status keys, whose values are skipped. */
+    private static final String[] IGNORED_KEYS = { "current", "id", "stream" };
+
+    private static final String LOG_TAG = "InstrumentationResultParser";
+
+    /** Handles the parsed status key-value pairs, and informs the listeners. */
+    private final InstrumentationResultParser mParser;
+
+    /** Unfinished line, stored for next packet. */
+    private byte[] mLine = new byte[256];
+    private int mLineLength = 0;
+
+    /** The current status key being parsed, or null. */
+    private String mCurrentKey = null;
+
+    /** True if the current status key is under the INSTRUMENTATION_RESULT header. */
+    private boolean mInInstrumentationResultKey = false;
+
+    /** True if the value of the current status key is not needed. */
+    private boolean mSkipValue = false;
+
+    /** The value of the current status key, as read so far. */
+    private byte[] mValue = new byte[256];
+    private int mValueLength = 0;
+
+    /**
+     * Creates the StreamingInstrumentationResultParser.
+     *
+     * @param runName the test run name to provide to
+     *            {@link ITestRunListener#testRunStarted(String, int)}
+     * @param listeners informed of test results as the tests are executing
+     */
+    public StreamingInstrumentationResultParser(String runName,
+            Collection<ITestRunListener> listeners) {
+        mParser = new InstrumentationResultParser(runName, listeners);
+    }
+
+    /**
+     * Creates the StreamingInstrumentationResultParser for a single listener.
+     *
+     * @param runName the test run name to provide to
+     *            {@link ITestRunListener#testRunStarted(String, int)}
+     * @param listener informed of test results as the tests are executing
+     */
+    public StreamingInstrumentationResultParser(String runName, ITestRunListener listener) {
+        this(runName, Collections.singletonList(listener));
+    }
+
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+
+        int end = offset + length;
+        int start = offset;
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int newline;
+        while ((newline = indexOfNewline(data, buffer, start, end)) != -1) {
+            if (mLineLength > 0) {
+                appendLine(data, start, newline - start);
+                parseLine(mLine, 0, mLineLength);
+                mLineLength = 0;
+            } else {
+                parseLine(data, start, newline - start);
+            }
+            start = newline + 1;
+        }
+
+        if (start < end) {
+            appendLine(data, start, end - start);
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (mLineLength > 0) {
+            parseLine(mLine, 0, mLineLength);
+            mLineLength = 0;
+        }
+        mParser.done();
+    }
+
+    /**
+     * Returns true if test run canceled.
+     *
+     * @see IShellOutputReceiver#isCancelled()
+     */
+    @Override
+    public boolean isCancelled() {
+        return mParser.isCancelled();
+    }
+
+    /**
+     * Requests cancellation of test run.
+     */
+    public void cancel() {
+        mParser.cancel();
+    }
+
+    /**
+     * Inform the parser of a instrumentation run failure. Should be called when the adb command
+     * used to run the test fails.
+     */
+    public void handleTestRunFailed(String errorMsg) {
+        mParser.handleTestRunFailed(errorMsg);
+    }
+
+    private void appendLine(byte[] data, int offset, int length) {
+        if (mLineLength + length > mLine.length) {
+            byte[] line = new byte[Math.max(mLineLength + length, 2 * mLine.length)];
+            System.arraycopy(mLine, 0, line, 0, mLineLength);
+            mLine = line;
+        }
+        System.arraycopy(data, offset, mLine, mLineLength, length);
+        mLineLength += length;
+    }
+
+    private void appendValue(byte[] data, int offset, int length) {
+        if (mValueLength + length > mValue.length) {
+            byte[] value = new byte[Math.max(mValueLength + length, 2 * mValue.length)];
+            System.arraycopy(mValue, 0, value, 0, mValueLength);
+            mValue = value;
+        }
+        System.arraycopy(data, offset, mValue, mValueLength, length);
+        mValueLength += length;
+    }
+
+    /**
+     * Parses a line, without its line feed. See {@link InstrumentationResultParser} for the
+     * kinds of lines expected.
+     */
+    private void parseLine(byte[] data, int start, int length) {
+        // lines are trimmed, like MultiLineReceiver does, "\r" included.
+        int end = start + length;
+        while (start < end && (data[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+
+        if (startsWith(data, start, end, STATUS_CODE)) {
+            submitCurrentKeyValue();
+            parseStatusCode(data, start + STATUS_CODE.length, end);
+        } else if (startsWith(data, start, end, STATUS)) {
+            submitCurrentKeyValue();
+            parseKey(data, start + STATUS.length, end, false);
+        } else if (startsWith(data, start, end, RESULT)) {
+            submitCurrentKeyValue();
+            parseKey(data, start + RESULT.length, end, true);
+        } else if (startsWith(data, start, end, STATUS_FAILED)
+                || startsWith(data, start, end, CODE)) {
+            submitCurrentKeyValue();
+            mParser.handleRunFinished();
+        } else if (startsWith(data, start, end, TIME_REPORT)) {
+            mParser.parseTime(new String(data, start, end - start, Charsets.UTF_8));
+        } else if (mCurrentKey != null) {
+            // this is a value that has wrapped to next line.
+            if (!mSkipValue) {
+                appendValue(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+                appendValue(data, start, end - start);
+            }
+        } else if (end > start) {
+            Log.d(LOG_TAG, "unrecognized line "
+                    + new String(data, start, end - start, Charsets.UTF_8));
+        }
+    }
+
+    /**
+     * Parses the "key=value" part of a status line.
+     */
+    private void parseKey(byte[] data, int start, int end, boolean inInstrumentationResult) {
+        int equals = indexOf(data, start, end, (byte) '=');
+        if (equals == -1) {
+            return;
+        }
+
+        int keyStart = start;
+        int keyEnd = equals;
+        while (keyStart < keyEnd && (data[keyStart] & 0xFF) <= ' ') {
+            keyStart++;
+        }
+        while (keyEnd > keyStart && (data[keyEnd - 1] & 0xFF) <= ' ') {
+            keyEnd--;
+        }
+
+        mCurrentKey = getKey(data, keyStart, keyEnd);
+        mInInstrumentationResultKey = inInstrumentationResult;
+        mSkipValue = false;
+        for (String key : IGNORED_KEYS) {
+            if (key == mCurrentKey) {
+                mSkipValue = true;
+                break;
+            }
+        }
+        mValueLength = 0;
+        if (!mSkipValue) {
+            appendValue(data, equals + 1, end - equals - 1);
+        }
+    }
+
+    /**
+     * Parses the status code of a status code line, falling back to
+     * {@link InstrumentationResultParser} for anything else than a plain integer.
+     */
+    private void parseStatusCode(byte[] data, int start, int end) {
+        int i = start;
+        boolean negative = i < end && data[i] == '-';
+        if (negative) {
+            i++;
+        }
+        // at most 9 digits, so that it cannot overflow.
+        if (i == end || end - i > 9) {
+            mParser.parseStatusCode(new String(data, start - STATUS_CODE.length,
+                    end - start + STATUS_CODE.length, Charsets.UTF_8));
+            return;
+        }
+        int code = 0;
+        for (; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                mParser.parseStatusCode(new String(data, start - STATUS_CODE.length,
+                        end - start + STATUS_CODE.length, Charsets.UTF_8));
+                return;
+            }
+            code = 10 * code + digit;
+        }
+        mParser.handleStatusCode(negative ? -code : code);
+    }
+
+    private void submitCurrentKeyValue() {
+        if (mCurrentKey != null) {
+            // the values of ignored keys are not stored by InstrumentationResultParser.
+            if (!mSkipValue) {
+                mParser.submitKeyValue(mCurrentKey,
+                        new String(mValue, 0, mValueLength, Charsets.UTF_8),
+                        mInInstrumentationResultKey);
+            }
+            mCurrentKey = null;
+            mValueLength = 0;
+        }
+    }
+
+    /**
+     * Returns the status key stored in the given bytes, reusing the constant strings of the
+     * frequent keys.
+     */
+    private static String getKey(byte[] data, int start, int end) {
+        for (int i = 0; i < KEY_BYTES.length; i++) {
+            byte[] key = KEY_BYTES[i];
+            if (key.length == end - start && startsWith(data, start, end, key)) {
+                return KEYS[i];
+            }
+        }
+        return new String(data, start, end - start, Charsets.UTF_8);
+    }
+
+    private static boolean startsWith(byte[] data, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first line feed in the given range, or -1. The bytes are
+     * checked eight at a time, since most of them are in long lines of stack traces and output.
+     */
+    private static int indexOfNewline(byte[] data, ByteBuffer buffer, int start, int end) {
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            long x = buffer.getLong(i) ^ 0x0A0A0A0A0A0A0A0AL;
+            // the lowest byte set in found is the first zero byte of x.
+            long found = (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < end; i++) {
+            if (data[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(Charsets.UTF_8);
+    }
+}
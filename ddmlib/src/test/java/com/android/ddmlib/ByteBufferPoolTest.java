@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class ByteBufferPoolTest extends TestCase {
+
+    public void testSizeClasses() {
+        ByteBufferPool pool = new ByteBufferPool(Long.MAX_VALUE);
+        assertEquals(ByteBufferPool.MIN_POOLED_SIZE, pool.acquire(1).capacity());
+        assertEquals(ByteBufferPool.MIN_POOLED_SIZE,
+                pool.acquire(ByteBufferPool.MIN_POOLED_SIZE).capacity());
+        assertEquals(2 * ByteBufferPool.MIN_POOLED_SIZE,
+                pool.acquire(ByteBufferPool.MIN_POOLED_SIZE + 1).capacity());
+        assertEquals(1024 * 1024, pool.acquire(1000 * 1000).capacity());
+        assertTrue(pool.acquire(100).isDirect());
+
+        // too large to be pooled: exact size, on the heap.
+        ByteBuffer large = pool.acquire(ByteBufferPool.MAX_POOLED_SIZE + 1);
+        assertEquals(ByteBufferPool.MAX_POOLED_SIZE + 1, large.capacity());
+        assertFalse(ByteBufferPool.isPooled(large));
+        pool.release(large);
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testReuse() {
+        ByteBufferPool pool = new ByteBufferPool(Long.MAX_VALUE);
+        ByteBuffer buffer = pool.acquire(100 * 1024);
+        buffer.putInt(42);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        pool.release(buffer);
+        assertEquals(buffer.capacity(), pool.getRetainedBytes());
+
+        // a smaller size class does not get it...
+        assertNotSame(buffer, pool.acquire(100));
+        // ...the same one does, cleared.
+        ByteBuffer reused = pool.acquire(buffer.capacity());
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        assertEquals(ByteOrder.BIG_ENDIAN, reused.order());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testRetainedBytesAreBounded() {
+        ByteBufferPool pool = new ByteBufferPool(3 * ByteBufferPool.MIN_POOLED_SIZE);
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(1);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(3 * ByteBufferPool.MIN_POOLED_SIZE, pool.getRetainedBytes());
+
+        // buffers which do not come from the pool are ignored.
+        pool = new ByteBufferPool(Long.MAX_VALUE);
+        pool.release(ByteBuffer.allocate(ByteBufferPool.MIN_POOLED_SIZE));
+        pool.release(ByteBuffer.allocateDirect(ByteBufferPool.MIN_POOLED_SIZE)
+                .asReadOnlyBuffer());
+        pool.release(ByteBuffer.allocateDirect(ByteBufferPool.MIN_POOLED_SIZE + 1));
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testPeekLength() {
+        ByteBuffer buffer = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 0x01);
+        buffer.put((byte) 0x02);
+        assertEquals(-1, JdwpPacket.peekLength(buffer));
+        buffer.put((byte) 0x03);
+        buffer.put((byte) 0x04);
+        assertEquals(0x01020304, JdwpPacket.peekLength(buffer));
+        assertEquals(4, buffer.position());
+    }
+}
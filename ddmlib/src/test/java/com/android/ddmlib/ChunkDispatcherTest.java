@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ChunkDispatcherTest extends TestCase {
+    private ChunkDispatcher mDispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDispatcher = new ChunkDispatcher(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDispatcher.shutdown();
+        super.tearDown();
+    }
+
+    public void testOrderPerClient() throws Exception {
+        Client[] clients = new Client[5];
+        RecordingHandler handler = new RecordingHandler(clients.length * 200);
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Client(null, null, i);
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(4);
+        for (int n = 0; n < 200; n++) {
+            for (Client client : clients) {
+                data.clear();
+                data.putInt(n);
+                data.flip();
+                mDispatcher.dispatch(client, handler, 0, data, false, n);
+            }
+        }
+        assertTrue(handler.mDone.await(10, TimeUnit.SECONDS));
+
+        for (Client client : clients) {
+            List<Integer> values = handler.getValues(client);
+            assertEquals(200, values.size());
+            for (int n = 0; n < 200; n++) {
+                assertEquals(n, values.get(n).intValue());
+            }
+        }
+
+        // the metrics are updated once the handler returns.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mDispatcher.getMetrics().getHandledChunks() < 1000
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        ChunkDispatchMetrics metrics = mDispatcher.getMetrics();
+        assertEquals(1000, metrics.getHandledChunks());
+        assertEquals(0, metrics.getQueuedChunks());
+        assertTrue(metrics.getMaxQueueDepth() >= 1);
+    }
+
+    public void testSlowHandlerDoesNotBlockOtherClients() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ChunkHandler slow = new TestHandler() {
+            @Override
+            void handleChunk(Client client, int type, ByteBuffer data, boolean isReply,
+                    int msgId) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        };
+        RecordingHandler fast = new RecordingHandler(1);
+
+        Client slowClient = new Client(null, null, 1);
+        Client fastClient = new Client(null, null, 2);
+        mDispatcher.dispatch(slowClient, slow, 0, ByteBuffer.allocate(4), false, 0);
+        mDispatcher.dispatch(slowClient, fast, 0, ByteBuffer.allocate(4), false, 1);
+        mDispatcher.dispatch(fastClient, fast, 0, ByteBuffer.allocate(4), false, 0);
+
+        // the other client is handled while the slow handler runs...
+        assertTrue(fast.mDone.await(10, TimeUnit.SECONDS));
+        assertEquals(1, fast.getValues(fastClient).size());
+        // ...but the next chunk of the same client waits for it.
+        assertTrue(fast.getValues(slowClient).isEmpty());
+        assertTrue(mDispatcher.getMetrics().getQueuedChunks() >= 2);
+
+        release.countDown();
+    }
+
+    public void testDataIsCopied() throws Exception {
+        RecordingHandler handler = new RecordingHandler(1);
+        ByteBuffer data = ByteBuffer.allocate(4);
+        data.putInt(42);
+        data.flip();
+        Client client = new Client(null, null, 1);
+        mDispatcher.dispatch(client, handler, 0, data, false, 0);
+        // the monitor thread reuses its buffer right away.
+        data.putInt(0, 7);
+        assertTrue(handler.mDone.await(10, TimeUnit.SECONDS));
+        assertEquals(42, handler.getValues(client).get(0).intValue());
+    }
+
+    public void testPooledBufferIsReleased() throws Exception {
+        ByteBufferPool pool = ByteBufferPool.getInstance();
+        ByteBuffer owner = pool.acquire(ByteBufferPool.MIN_POOLED_SIZE);
+        owner.putInt(0, 42);
+        long retained = pool.getRetainedBytes();
+
+        RecordingHandler handler = new RecordingHandler(1);
+        Client client = new Client(null, null, 1);
+        ByteBuffer data = owner.duplicate();
+        data.limit(4);
+        mDispatcher.dispatch(client, handler, 0, data, false, 0, owner);
+        assertTrue(handler.mDone.await(10, TimeUnit.SECONDS));
+        assertEquals(42, handler.getValues(client).get(0).intValue());
+
+        // the buffer goes back to the pool once the handler returns.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getRetainedBytes() == retained && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertSame(owner, pool.acquire(ByteBufferPool.MIN_POOLED_SIZE));
+    }
+
+    public void testViewDumpHandlerKeepsItsData() throws Exception {
+        ByteBufferPool pool = ByteBufferPool.getInstance();
+        ByteBuffer owner = pool.acquire(ByteBufferPool.MIN_POOLED_SIZE);
+        assertTrue(owner.isDirect());
+        owner.putInt(0, 42);
+
+        final ByteBuffer[] received = new ByteBuffer[1];
+        HandleViewDebug.ViewDumpHandler handler =
+                new HandleViewDebug.ViewDumpHandler(HandleViewDebug.CHUNK_VURT) {
+            @Override
+            protected void handleViewDebugResult(ByteBuffer data) {
+                received[0] = data;
+            }
+        };
+        ByteBuffer data = owner.duplicate();
+        data.limit(4);
+        mDispatcher.dispatch(new Client(null, null, 1), handler, HandleViewDebug.CHUNK_VURT,
+                data, false, 0, owner);
+        handler.waitForResult(10, TimeUnit.SECONDS);
+        assertNotNull(received[0]);
+        assertFalse(received[0].isDirect());
+
+        // the pooled buffer is reused, the handler's data is not.
+        long deadline = System.currentTimeMillis() + 10000;
+        ByteBuffer reused = null;
+        while (reused != owner && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            reused = pool.acquire(ByteBufferPool.MIN_POOLED_SIZE);
+        }
+        assertSame(owner, reused);
+        reused.putInt(0, 7);
+        assertEquals(42, received[0].getInt(0));
+    }
+
+    public void testSpoolFileIsDeleted() throws Exception {
+        SpoolFile spool = SpoolFile.create(16);
+        final File file = spool.getFile();
+        assertEquals(16, file.length());
+        ByteBuffer buffer = spool.getBuffer();
+        buffer.putLong(0);
+        buffer.putInt(42);
+        buffer.position(8);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] received = new long[2];
+        ChunkHandler handler = new RecordingHandler(1) {
+            @Override
+            void handleSpooledChunk(Client client, int type, ByteBuffer data, boolean isReply,
+                    int msgId, File spooled, long offset) {
+                assertEquals(file, spooled);
+                assertTrue(spooled.exists());
+                received[0] = offset;
+                received[1] = data.getInt();
+                done.countDown();
+            }
+        };
+        mDispatcher.dispatch(new Client(null, null, 1), handler, 0, buffer.slice(), false, 0,
+                spool, 8);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(8, received[0]);
+        assertEquals(42, received[1]);
+
+        // the file is gone once the handler returns.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (file.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(file.exists());
+    }
+
+    private abstract static class TestHandler extends ChunkHandler {
+        @Override
+        void clientReady(Client client) {
+        }
+
+        @Override
+        void clientDisconnected(Client client) {
+        }
+    }
+
+    /**
+     * Records the int at the start of each chunk, per client.
+     */
+    private static class RecordingHandler extends TestHandler {
+        final CountDownLatch mDone;
+        private final List<Client> mClients = new ArrayList<Client>();
+        private final List<Integer> mValues = new ArrayList<Integer>();
+
+        RecordingHandler(int count) {
+            mDone = new CountDownLatch(count);
+        }
+
+        @Override
+        void handleChunk(Client client, int type, ByteBuffer data, boolean isReply, int msgId) {
+            assertTrue(data.isReadOnly());
+            synchronized (this) {
+                mClients.add(client);
+                mValues.add(data.getInt());
+            }
+            mDone.countDown();
+        }
+
+        synchronized List<Integer> getValues(Client client) {
+            List<Integer> values = new ArrayList<Integer>();
+            for (int i = 0; i < mClients.size(); i++) {
+                if (mClients.get(i) == client) {
+                    values.add(mValues.get(i));
+                }
+            }
+            return Collections.unmodifiableList(values);
+        }
+    }
+}
@@ -15,6 +15,9 @@
  */
 package com.android.ddmlib;
 
+import com.android.ddmlib.FileListingService.FileEntry;
+import com.android.ddmlib.FileListingService.ListingDiff;
+
 import java.util.regex.Matcher;
 import junit.framework.TestCase;
 
@@ -78,4 +81,199 @@ public class FileListingServiceTest extends TestCase {
                 "drwxrwx--x 12 root sdcard_r 4096 2015-07-20 23:01 /sdcard/");
         assertTrue(m.matches());
     }
+
+    public void testRecursiveListing() {
+        FileListingService service = createService();
+        FileEntry root = service.getRoot();
+
+        // toybox prints the path of every directory, toolbox skips the first one.
+        ListingDiff diff = list(service, root,
+                "/:",
+                "total 8",
+                "drwxrwx--x 3 root sdcard_r 4096 2015-07-20 23:01 sdcard",
+                "-rw-r--r-- 1 root root 193 1970-01-01 00:00 build.prop",
+                "",
+                "/sdcard:",
+                "total 4",
+                "drwxrwx--x 2 root sdcard_r 4096 2015-07-20 23:01 DCIM",
+                "-rw-rw---- 1 root sdcard_r 12 2015-07-20 23:01 a b.txt",
+                "",
+                "/sdcard/DCIM:",
+                "total 0");
+        assertEquals(4, diff.getAddedEntries().length);
+        assertEquals(0, diff.getRemovedEntries().length);
+
+        FileEntry sdcard = service.getEntry("/sdcard/");
+        assertNotNull(sdcard);
+        assertSame(root, sdcard.getParent());
+        assertEquals(2, sdcard.getCachedChildren().length);
+        assertEquals("/sdcard/a b.txt", service.getEntry("/sdcard/a b.txt").getFullPath());
+        assertTrue(service.getEntry("/sdcard/DCIM").isDirectory());
+        assertEquals(0, service.getEntry("/sdcard/DCIM").getCachedChildren().length);
+
+        diff = list(service, sdcard,
+                "drwxrwx--x root     sdcard_r          2015-07-20 23:05 Music",
+                "-rw-rw---- root     sdcard_r       12 2015-07-20 23:01 a b.txt",
+                "",
+                "/sdcard//Music:",
+                "-rw-rw---- root     sdcard_r       42 2015-07-20 23:05 song.mp3");
+        assertEquals(2, diff.getAddedEntries().length);
+        assertEquals(0, diff.getModifiedEntries().length);
+        assertEquals(1, diff.getRemovedEntries().length);
+        assertEquals("/sdcard/DCIM", diff.getRemovedEntries()[0].getFullPath());
+        assertNull(service.getEntry("/sdcard/DCIM"));
+        assertEquals("42", service.getEntry("/sdcard/Music/song.mp3").getSize());
+        // the entries outside of the tree are left alone.
+        assertNotNull(service.getEntry("/build.prop"));
+    }
+
+    public void testRefreshReportsChanges() {
+        FileListingService service = createService();
+        FileEntry root = service.getRoot();
+        list(service, root,
+                "/:",
+                "drwxrwx--x 3 root sdcard_r 4096 2015-07-20 23:01 data",
+                "",
+                "/data:",
+                "drwxrwx--x 3 root sdcard_r 4096 2015-07-20 23:01 a",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 b",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 c",
+                "",
+                "/data/a:",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 d");
+        FileEntry b = service.getEntry("/data/b");
+
+        // nothing changed.
+        assertTrue(list(service, root,
+                "/:",
+                "drwxrwx--x 3 root sdcard_r 4096 2015-07-20 23:01 data",
+                "",
+                "/data:",
+                "drwxrwx--x 3 root sdcard_r 4096 2015-07-20 23:01 a",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 b",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 c",
+                "",
+                "/data/a:",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 d").isEmpty());
+
+        // b is written to, a is deleted with its content.
+        ListingDiff diff = list(service, root,
+                "/:",
+                "drwxrwx--x 3 root sdcard_r 4096 2015-07-20 23:09 data",
+                "",
+                "/data:",
+                "-rw-r--r-- 1 root root 20 2015-07-20 23:09 b",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 c");
+        assertEquals(0, diff.getAddedEntries().length);
+        assertEquals(2, diff.getModifiedEntries().length);
+        assertSame(b, diff.getModifiedEntries()[1]);
+        assertEquals("20", b.getSize());
+        assertEquals(2, diff.getRemovedEntries().length);
+        assertNull(service.getEntry("/data/a/d"));
+        assertSame(b, service.getEntry("/data/b"));
+    }
+
+    public void testUnreadableDirectoriesKeepTheirChildren() {
+        FileListingService service = createService();
+        FileEntry root = service.getRoot();
+        list(service, root,
+                "/:",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 data",
+                "",
+                "/data:",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 a",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 b",
+                "",
+                "/data/a:",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 c",
+                "",
+                "/data/b:",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 d");
+        FileEntry c = service.getEntry("/data/a/c");
+        FileEntry d = service.getEntry("/data/b/d");
+
+        // toolbox prints the header, and an error without the path.
+        ListingDiff diff = list(service, root,
+                "/:",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 data",
+                "",
+                "/data:",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 a",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 b",
+                "",
+                "/data/a:",
+                "opendir failed, Permission denied",
+                "",
+                "/data/b:",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 d");
+        assertTrue(diff.isEmpty());
+        assertSame(c, service.getEntry("/data/a/c"));
+        assertEquals(1, service.getEntry("/data/a").getCachedChildren().length);
+
+        // toybox prints the path, maybe before the header.
+        diff = list(service, root,
+                "/:",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 data",
+                "",
+                "/data:",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 a",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 b",
+                "ls: /data/b: Permission denied",
+                "",
+                "/data/a:",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 c",
+                "",
+                "/data/b:");
+        assertTrue(diff.isEmpty());
+        assertSame(d, service.getEntry("/data/b/d"));
+
+        // the same goes for the top directory.
+        FileEntry data = service.getEntry("/data");
+        assertTrue(list(service, data, "opendir failed, Permission denied").isEmpty());
+        assertTrue(list(service, data, "ls: /data/: Permission denied").isEmpty());
+        assertEquals(2, data.getCachedChildren().length);
+        assertSame(c, service.getEntry("/data/a/c"));
+    }
+
+    public void testTypeChange() {
+        FileListingService service = createService();
+        FileEntry root = service.getRoot();
+        list(service, root,
+                "/:",
+                "drwxrwx--x 3 root root 4096 2015-07-20 23:01 a",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 b",
+                "",
+                "/a:",
+                "-rw-r--r-- 1 root root 10 2015-07-20 23:01 c");
+        FileEntry a = service.getEntry("/a");
+        FileEntry b = service.getEntry("/b");
+
+        ListingDiff diff = list(service, root,
+                "/:",
+                "-rw-r--r-- 1 root root 4096 2015-07-20 23:01 a",
+                "drwxrwx--x 3 root root 10 2015-07-20 23:01 b",
+                "",
+                "/b:");
+        assertEquals(0, diff.getAddedEntries().length);
+        assertEquals(2, diff.getModifiedEntries().length);
+        assertEquals(1, diff.getRemovedEntries().length);
+        assertEquals("/a/c", diff.getRemovedEntries()[0].getFullPath());
+        assertNull(service.getEntry("/a/c"));
+        assertSame(a, service.getEntry("/a"));
+        assertEquals(FileListingService.TYPE_FILE, a.getType());
+        assertEquals(0, a.getCachedChildren().length);
+        assertSame(b, service.getEntry("/b"));
+        assertTrue(b.isDirectory());
+    }
+
+    private static FileListingService createService() {
+        return new FileListingService(new Device(null, "serial", IDevice.DeviceState.ONLINE));
+    }
+
+    private static ListingDiff list(FileListingService service, FileEntry top, String... lines) {
+        FileListingService.TreeReceiver receiver = service.new TreeReceiver(top);
+        receiver.processNewLines(lines);
+        receiver.done();
+        return receiver.getDiff();
+    }
 }
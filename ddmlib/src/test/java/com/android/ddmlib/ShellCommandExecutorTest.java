@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.AdbHelper.AdbService;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class ShellCommandExecutorTest extends TestCase {
+    private static final int BIG_OUTPUT_SIZE = 4 * ShellCommandExecutor.MAX_QUEUED_BYTES;
+
+    private FakeAdbServer mServer;
+    private ShellCommandExecutor mExecutor;
+    private ExecutorService mOutputExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeAdbServer();
+        mExecutor = new ShellCommandExecutor();
+        mOutputExecutor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.stop();
+        mServer.close();
+        mOutputExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testOutputIsStreamedToReceiver() throws Exception {
+        final Thread[] outputThread = new Thread[1];
+        ExecutorService outputExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                outputThread[0] = new Thread(r);
+                return outputThread[0];
+            }
+        });
+        final boolean[] onOutputThread = {true};
+        final boolean[] flushed = {false};
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver() {
+            @Override
+            public void addOutput(byte[] data, int offset, int length) {
+                onOutputThread[0] &= Thread.currentThread() == outputThread[0];
+                super.addOutput(data, offset, length);
+            }
+
+            @Override
+            public void flush() {
+                flushed[0] = true;
+            }
+        };
+        try {
+            mExecutor.execute(mServer.getAddress(), AdbService.SHELL, "echo hello", null,
+                    receiver, 5, TimeUnit.SECONDS, outputExecutor).get();
+        } finally {
+            outputExecutor.shutdown();
+        }
+        assertEquals("shell:echo hello\n", receiver.getOutput());
+        // the receiver is called on the given executor, and flushed before the future completes.
+        assertTrue(onOutputThread[0]);
+        assertTrue(flushed[0]);
+    }
+
+    public void testSlowReceiverDoesNotStallOtherCommands() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CollectingOutputReceiver slow = new CollectingOutputReceiver() {
+            @Override
+            public void addOutput(byte[] data, int offset, int length) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // done
+                }
+                super.addOutput(data, offset, length);
+            }
+        };
+        ListenableFuture<Void> slowFuture = mExecutor.execute(mServer.getAddress(),
+                AdbService.SHELL, "big", null, slow, 1, TimeUnit.SECONDS, mOutputExecutor);
+
+        // the other commands run while the slow receiver is stuck.
+        for (int i = 0; i < 5; i++) {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            mExecutor.execute(mServer.getAddress(), AdbService.SHELL, "cmd " + i, null, receiver,
+                    1, TimeUnit.SECONDS, mOutputExecutor).get();
+            assertEquals("shell:cmd " + i + "\n", receiver.getOutput());
+        }
+        // the output of the slow command is held back rather than timing out.
+        Thread.sleep(1500);
+        assertFalse(slowFuture.isDone());
+
+        release.countDown();
+        slowFuture.get(10, TimeUnit.SECONDS);
+        assertEquals(BIG_OUTPUT_SIZE, slow.getOutput().length());
+    }
+
+    public void testManyConcurrentCommands() throws Exception {
+        List<CollectingOutputReceiver> receivers = new ArrayList<CollectingOutputReceiver>();
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        for (int i = 0; i < 64; i++) {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            receivers.add(receiver);
+            futures.add(mExecutor.execute(mServer.getAddress(), AdbService.EXEC, "cmd " + i,
+                    null, receiver, 0, null, MoreExecutors.sameThreadExecutor()));
+        }
+        for (int i = 0; i < 64; i++) {
+            futures.get(i).get();
+            assertEquals("exec:cmd " + i + "\n", receivers.get(i).getOutput());
+        }
+    }
+
+    public void testRejectedCommand() throws Exception {
+        ListenableFuture<Void> future = mExecutor.execute(mServer.getAddress(),
+                AdbService.SHELL, "reject", null, new CollectingOutputReceiver(), 0, null,
+                mOutputExecutor);
+        try {
+            future.get();
+            fail("Expected the command to be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AdbCommandRejectedException);
+            assertEquals("no such command", e.getCause().getMessage());
+        }
+    }
+
+    public void testUnresponsiveCommand() throws Exception {
+        ListenableFuture<Void> future = mExecutor.execute(mServer.getAddress(),
+                AdbService.SHELL, "silent", null, new CollectingOutputReceiver(), 100,
+                TimeUnit.MILLISECONDS, mOutputExecutor);
+        try {
+            future.get();
+            fail("Expected the command to be unresponsive");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ShellCommandUnresponsiveException);
+        }
+    }
+
+    public void testReceiverCancellation() throws Exception {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        ListenableFuture<Void> future = mExecutor.execute(mServer.getAddress(),
+                AdbService.SHELL, "silent", null, receiver, 0, null, mOutputExecutor);
+        receiver.cancel();
+        future.get(5, TimeUnit.SECONDS);
+        assertFalse(future.isCancelled());
+    }
+
+    public void testReceiverFailure() throws Exception {
+        final RuntimeException failure = new IllegalStateException("receiver failed");
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver() {
+            @Override
+            public void addOutput(byte[] data, int offset, int length) {
+                throw failure;
+            }
+        };
+        ListenableFuture<Void> future = mExecutor.execute(mServer.getAddress(),
+                AdbService.SHELL, "echo hello", null, receiver, 5, TimeUnit.SECONDS,
+                mOutputExecutor);
+        try {
+            future.get();
+            fail("Expected the receiver failure");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    public void testStoppedInstanceIsReplaced() throws Exception {
+        ShellCommandExecutor stopped = ShellCommandExecutor.getInstance();
+        try {
+            stopped.stop();
+            ShellCommandExecutor instance = stopped;
+            for (int i = 0; i < 100 && instance == stopped; i++) {
+                Thread.sleep(50);
+                instance = ShellCommandExecutor.getInstance();
+            }
+            assertNotSame(stopped, instance);
+        } finally {
+            ShellCommandExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Minimal adb server: answers OKAY and echoes the request, except for the "reject",
+     * "silent" and "big" commands.
+     */
+    private static class FakeAdbServer implements Runnable {
+        private final ServerSocket mSocket;
+        private final List<Socket> mClients = new ArrayList<Socket>();
+
+        FakeAdbServer() throws IOException {
+            mSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "Fake adb server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress getAddress() throws IOException {
+            return new InetSocketAddress(InetAddress.getByName("127.0.0.1"), mSocket.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket client = mSocket.accept();
+                    synchronized (mClients) {
+                        mClients.add(client);
+                    }
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(client);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private static void serve(Socket client) {
+            try {
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                OutputStream out = client.getOutputStream();
+                byte[] len = new byte[4];
+                in.readFully(len);
+                byte[] request = new byte[Integer.parseInt(new String(len, "ISO-8859-1"), 16)];
+                in.readFully(request);
+                String command = new String(request, "ISO-8859-1");
+
+                if (command.endsWith(":reject")) {
+                    out.write("FAIL".getBytes("ISO-8859-1"));
+                    out.write(AdbHelper.formAdbRequest("no such command"));
+                    out.flush();
+                    return;
+                }
+                out.write("OKAY".getBytes("ISO-8859-1"));
+                out.flush();
+                if (command.endsWith(":silent")) {
+                    // wait for the executor to hang up
+                    in.read();
+                    return;
+                }
+                if (command.endsWith(":big")) {
+                    byte[] line = new byte[1024];
+                    Arrays.fill(line, (byte) 'x');
+                    for (int i = 0; i < BIG_OUTPUT_SIZE / line.length; i++) {
+                        out.write(line);
+                    }
+                    client.close();
+                    return;
+                }
+                out.write((command + "\n").getBytes("ISO-8859-1"));
+                out.flush();
+                client.close();
+            } catch (IOException e) {
+                // client went away
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+            synchronized (mClients) {
+                for (Socket client : mClients) {
+                    client.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SyncServiceTest extends TestCase {
+    private FakeSyncServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeSyncServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testPushData() throws Exception {
+        byte[] content = new byte[200 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        ByteBuffer data = ByteBuffer.wrap(content);
+
+        CountingMonitor monitor = new CountingMonitor();
+        SyncService sync = openSync();
+        try {
+            sync.pushData(data, 1000000L, "/data/local/tmp/a", monitor);
+            // the shared buffer is left untouched, it can be pushed again.
+            assertEquals(0, data.position());
+            sync.pushData(data, 1000000L, "/data/local/tmp/b", monitor);
+        } finally {
+            sync.close();
+        }
+
+        assertTrue(Arrays.equals(content, mServer.getFile("/data/local/tmp/a")));
+        assertTrue(Arrays.equals(content, mServer.getFile("/data/local/tmp/b")));
+        assertEquals(2 * content.length, monitor.mWork);
+    }
+
+    public void testPushFileMatchesPushData() throws Exception {
+        byte[] content = new byte[100 * 1024 + 3];
+        new Random(7).nextBytes(content);
+        File file = File.createTempFile("sync", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+
+            SyncService sync = openSync();
+            try {
+                sync.pushFile(file.getPath(), "/sdcard/c", SyncService.getNullProgressMonitor());
+            } finally {
+                sync.close();
+            }
+        } finally {
+            file.delete();
+        }
+
+        assertTrue(Arrays.equals(content, mServer.getFile("/sdcard/c")));
+    }
+
+    public void testPushPipelined() throws Exception {
+        File dir = createTree(40);
+        try {
+            SyncService sync = openSync();
+            try {
+                assertEquals(40, sync.pushPipelined(new String[] { dir.getPath() },
+                        "/data/local/tmp", true, SyncService.getNullProgressMonitor()));
+                assertEquals(40, mServer.getPushCount());
+
+                // nothing changed, nothing is pushed.
+                assertEquals(0, sync.pushPipelined(new String[] { dir.getPath() },
+                        "/data/local/tmp", true, SyncService.getNullProgressMonitor()));
+                assertEquals(40, mServer.getPushCount());
+
+                // only the modified file is pushed.
+                File modified = new File(new File(dir, "sub"), "file7");
+                FileOutputStream out = new FileOutputStream(modified, true);
+                try {
+                    out.write(new byte[] { 1, 2, 3 });
+                } finally {
+                    out.close();
+                }
+                assertEquals(1, sync.pushPipelined(new String[] { dir.getPath() },
+                        "/data/local/tmp", true, SyncService.getNullProgressMonitor()));
+                assertEquals(41, mServer.getPushCount());
+
+                // without skipping, everything is pushed again.
+                assertEquals(40, sync.pushPipelined(new String[] { dir.getPath() },
+                        "/data/local/tmp", false, SyncService.getNullProgressMonitor()));
+            } finally {
+                sync.close();
+            }
+
+            byte[] expected = new byte[10];
+            expected[0] = 6;
+            assertTrue(Arrays.equals(expected, mServer.getFile(
+                    "/data/local/tmp/" + dir.getName() + "/file6")));
+            assertEquals(13, mServer.getFile(
+                    "/data/local/tmp/" + dir.getName() + "/sub/file7").length);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * Creates a directory with <var>count</var> small files, half of them in a sub directory.
+     */
+    private static File createTree(int count) throws IOException {
+        File dir = File.createTempFile("sync", "");
+        assertTrue(dir.delete());
+        File sub = new File(dir, "sub");
+        assertTrue(sub.mkdirs());
+        for (int i = 0; i < count; i++) {
+            File f = new File(i % 2 == 0 ? dir : sub, "file" + i);
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                byte[] content = new byte[10];
+                content[0] = (byte) i;
+                out.write(content);
+            } finally {
+                out.close();
+            }
+        }
+        return dir;
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        f.delete();
+    }
+
+    private SyncService openSync() throws Exception {
+        SyncService sync = new SyncService(mServer.getAddress(), null);
+        assertTrue(sync.openSync());
+        return sync;
+    }
+
+    private static class CountingMonitor implements ISyncProgressMonitor {
+        long mWork;
+
+        @Override
+        public void start(int totalWork) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public void startSubTask(String name) {
+        }
+
+        @Override
+        public void advance(int work) {
+            mWork += work;
+        }
+    }
+
+    /**
+     * Minimal adb server accepting the "sync:" service and storing the pushed files.
+     */
+    static class FakeSyncServer implements Runnable {
+        private final ServerSocket mSocket;
+        private final Map<String, byte[]> mFiles = new ConcurrentHashMap<String, byte[]>();
+        private final Map<String, Integer> mTimes = new ConcurrentHashMap<String, Integer>();
+        private final AtomicInteger mPushCount = new AtomicInteger();
+
+        FakeSyncServer() throws IOException {
+            mSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "Fake sync server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress getAddress() throws IOException {
+            return new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                    mSocket.getLocalPort());
+        }
+
+        byte[] getFile(String path) {
+            return mFiles.get(path);
+        }
+
+        int getPushCount() {
+            return mPushCount.get();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket client = mSocket.accept();
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(client);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void serve(Socket client) {
+            try {
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                OutputStream out = client.getOutputStream();
+                byte[] len = new byte[4];
+                in.readFully(len);
+                byte[] request = new byte[Integer.parseInt(new String(len, "ISO-8859-1"), 16)];
+                in.readFully(request);
+                assertEquals("sync:", new String(request, "ISO-8859-1"));
+                out.write("OKAY".getBytes("ISO-8859-1"));
+
+                byte[] header = new byte[8];
+                while (true) {
+                    in.readFully(header);
+                    String id = new String(header, 0, 4, "ISO-8859-1");
+                    byte[] spec = new byte[readInt(header, 4)];
+                    in.readFully(spec);
+                    String path = new String(spec, "ISO-8859-1");
+
+                    if (id.equals("STAT")) {
+                        byte[] content = mFiles.get(path);
+                        byte[] stat = new byte[16];
+                        System.arraycopy(header, 0, stat, 0, 4);
+                        if (content != null) {
+                            writeInt(stat, 4, 0x8000 | 0644);
+                            writeInt(stat, 8, content.length);
+                            writeInt(stat, 12, mTimes.get(path));
+                        }
+                        out.write(stat);
+                        continue;
+                    }
+
+                    assertEquals("SEND", id);
+                    path = path.substring(0, path.lastIndexOf(','));
+
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    while (true) {
+                        in.readFully(header);
+                        id = new String(header, 0, 4, "ISO-8859-1");
+                        if (id.equals("DONE")) {
+                            break;
+                        }
+                        assertEquals("DATA", id);
+                        byte[] chunk = new byte[readInt(header, 4)];
+                        in.readFully(chunk);
+                        content.write(chunk);
+                    }
+                    mTimes.put(path, readInt(header, 4));
+                    mFiles.put(path, content.toByteArray());
+                    mPushCount.incrementAndGet();
+                    out.write(new byte[] { 'O', 'K', 'A', 'Y', 0, 0, 0, 0 });
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // client went away
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        private static int readInt(byte[] data, int offset) {
+            return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                    | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+        }
+
+        private static void writeInt(byte[] data, int offset, int value) {
+            data[offset] = (byte) value;
+            data[offset + 1] = (byte) (value >> 8);
+            data[offset + 2] = (byte) (value >> 16);
+            data[offset + 3] = (byte) (value >> 24);
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
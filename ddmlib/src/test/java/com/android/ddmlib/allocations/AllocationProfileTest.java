@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.allocations;
+
+import com.android.ddmlib.AllocationProfile;
+import com.android.ddmlib.AllocationSite;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class AllocationProfileTest extends TestCase {
+
+    private static final String[] CLASSES = {"path.Foo", "path.Bar", "path.Baz"};
+    private static final String[] METHODS = {"foo", "bar", "baz"};
+    private static final String[] FILES = {"Foo.java", "Bar.java"};
+
+    public void testAggregatesAcrossDumps() throws Exception {
+        AllocationProfile profile = new AllocationProfile(100, 2);
+
+        // two sites: Foo from bar() <- foo(), and Baz from baz() alone.
+        profile.add(dump(new int[][]{{16, 1, 0, 2}, {24, 1, 0, 2}, {8, 2, 2, 1}},
+                new short[][][]{{{1, 1, 1, 10}, {0, 0, 0, 5}},
+                                {{1, 1, 1, 10}, {0, 0, 0, 5}},
+                                {{2, 2, 1, -2}}}));
+        // the string tables differ from one dump to the other.
+        profile.add(putAllocationInfo(new String[]{"path.Baz", "path.Foo", "path.Bar"},
+                new String[]{"baz", "foo", "bar"}, new String[]{"Bar.java", "Foo.java"},
+                new int[][]{{32, 1, 1, 2}},
+                new short[][][]{{{2, 2, 0, 10}, {1, 1, 1, 5}}}));
+
+        assertEquals(2, profile.getDumpCount());
+        assertEquals(2, profile.getSiteCount());
+
+        List<AllocationSite> sites = profile.getTopSites(10, false);
+        assertEquals(2, sites.size());
+        AllocationSite foo = sites.get(0);
+        assertEquals("path.Foo", foo.getAllocatedClass());
+        assertEquals(3, foo.getCount());
+        assertEquals(72, foo.getTotalSize());
+        StackTraceElement[] stack = foo.getStackTrace();
+        assertEquals(2, stack.length);
+        assertEquals(new StackTraceElement("path.Bar", "bar", "Bar.java", 10), stack[0]);
+        assertEquals(new StackTraceElement("path.Foo", "foo", "Foo.java", 5), stack[1]);
+
+        AllocationSite baz = sites.get(1);
+        assertEquals("path.Baz", baz.getAllocatedClass());
+        assertEquals(1, baz.getCount());
+        assertEquals(8, baz.getTotalSize());
+        assertEquals(-2, baz.getStackTrace()[0].getLineNumber());
+
+        // the window covers the last 2 dumps.
+        assertEquals(3, foo.getRecentCount());
+        assertEquals(1, baz.getRecentCount());
+        profile.add(dump(new int[0][], new short[0][][]));
+        List<AllocationSite> recent = profile.getTopSites(10, true);
+        assertEquals("path.Foo", recent.get(0).getAllocatedClass());
+        assertEquals(1, recent.get(0).getRecentCount());
+        assertEquals(32, recent.get(0).getRecentSize());
+        assertEquals(0, recent.get(1).getRecentCount());
+        profile.add(dump(new int[0][], new short[0][][]));
+        recent = profile.getTopSites(10, true);
+        assertEquals(0, recent.get(0).getRecentCount());
+        assertEquals(3, recent.get(0).getCount());
+    }
+
+    public void testSitesAreBounded() throws Exception {
+        AllocationProfile profile = new AllocationProfile(4, 1);
+
+        // 6 sites, with a growing size.
+        int[][] entries = new int[6][];
+        short[][][] frames = new short[6][][];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new int[]{i + 1, 1, 0, 1};
+            frames[i] = new short[][]{{0, 0, 0, (short) i}};
+        }
+        profile.add(dump(entries, frames));
+
+        // the 3 largest ones are kept.
+        assertEquals(3, profile.getSiteCount());
+        assertEquals(3 + 2 + 1, profile.getDroppedSize());
+        assertEquals(3, profile.getDroppedCount());
+        List<AllocationSite> sites = profile.getTopSites(10, false);
+        assertEquals(6, sites.get(0).getTotalSize());
+        assertEquals(5, sites.get(0).getStackTrace()[0].getLineNumber());
+        assertEquals(4, sites.get(2).getTotalSize());
+
+        // the tables still work once rebuilt.
+        profile.add(dump(new int[][]{{10, 1, 0, 1}}, new short[][][]{{{0, 0, 0, 5}}}));
+        assertEquals(3, profile.getSiteCount());
+        assertEquals(16, profile.getTopSites(1, false).get(0).getTotalSize());
+        assertEquals(2, profile.getTopSites(1, false).get(0).getCount());
+    }
+
+    public void testNothingIsLost() throws Exception {
+        AllocationProfile profile = new AllocationProfile(500, 3);
+        long total = 0;
+        for (int n = 0; n < 10; n++) {
+            // 300 sites per dump, half of them new, with stacks of 1 to 3 frames.
+            int[][] entries = new int[300][];
+            short[][][] frames = new short[300][][];
+            for (int i = 0; i < entries.length; i++) {
+                int line = i < 150 ? i : n * 1000 + i;
+                entries[i] = new int[]{n + i, 1, i % 3, 1 + i % 3};
+                frames[i] = new short[1 + i % 3][];
+                for (int j = 0; j < frames[i].length; j++) {
+                    frames[i][j] = new short[]{(short) j, (short) (i % 3), 1, (short) (line + j)};
+                }
+                total += n + i;
+            }
+            profile.add(dump(entries, frames));
+            assertTrue(profile.getSiteCount() <= 500);
+        }
+
+        long size = profile.getDroppedSize();
+        for (AllocationSite site : profile.getTopSites(Integer.MAX_VALUE, false)) {
+            size += site.getTotalSize();
+        }
+        assertEquals(total, size);
+        // the sites allocating at every dump are kept.
+        assertEquals(10, profile.getTopSites(1, true).get(0).getCount());
+    }
+
+    public void testClear() throws Exception {
+        AllocationProfile profile = new AllocationProfile();
+        profile.add(dump(new int[][]{{16, 1, 0, 0}}, new short[][][]{{}}));
+        assertEquals(1, profile.getSiteCount());
+        profile.clear();
+        assertEquals(0, profile.getSiteCount());
+        assertEquals(0, profile.getDumpCount());
+        assertTrue(profile.getTopSites(10, false).isEmpty());
+    }
+
+    private static ByteBuffer dump(int[][] entries, short[][][] frames) throws Exception {
+        return putAllocationInfo(CLASSES, METHODS, FILES, entries, frames);
+    }
+
+    private static ByteBuffer putAllocationInfo(String[] classNames, String[] methodNames,
+            String[] fileNames, int[][] entries, short[][][] frames) throws Exception {
+        return AllocationsParserTest.putAllocationInfo(classNames, methodNames, fileNames,
+                entries, frames);
+    }
+}
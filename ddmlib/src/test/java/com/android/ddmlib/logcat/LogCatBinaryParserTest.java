@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Unit tests for {@link LogCatBinaryParser}.
+ */
+public final class LogCatBinaryParserTest extends TestCase {
+    /** 2015-08-11 19:11:07 UTC */
+    private static final int SEC = 1439320267;
+
+    private static byte[] createLog() throws UnsupportedEncodingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, createEntry(20, 3, 495, 0x1ef, SEC, 132000000, "dtag", "debug message"));
+        write(out, createEntry(24, 6, 495, 234, SEC, 132000000, "etag", "error message\n"));
+        write(out, createEntry(28, 4, 495, 0x1ef, SEC, 133000000, "itag", "line 1\nline 2"));
+        write(out, createEntry(20, 7, 540, 0x21c, SEC + 1, 754000000, "wtftag", "wtf message"));
+        write(out, createEntry(24, 2, 540, 0x21c, SEC + 1, 754000000, "vtag", "été"));
+        return out.toByteArray();
+    }
+
+    public void testParseAtOnce() throws Exception {
+        byte[] log = createLog();
+        LogCatBinaryParser parser = new LogCatBinaryParser(TimeZone.getTimeZone("UTC"));
+        check(parser.processLogData(log, 0, log.length, null));
+    }
+
+    public void testParseSplitData() throws Exception {
+        byte[] log = createLog();
+        for (int split = 1; split < 40; split++) {
+            LogCatBinaryParser parser = new LogCatBinaryParser(TimeZone.getTimeZone("UTC"));
+            List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+            for (int offset = 0; offset < log.length; offset += split) {
+                messages.addAll(parser.processLogData(log, offset,
+                        Math.min(split, log.length - offset), null));
+            }
+            check(messages);
+        }
+    }
+
+    private static void check(List<LogCatMessage> messages) {
+        assertEquals(6, messages.size());
+
+        LogCatMessage m = messages.get(0);
+        assertEquals(LogLevel.DEBUG, m.getLogLevel());
+        assertEquals(495, m.getPid());
+        assertEquals(0x1ef, m.getTid());
+        assertEquals("?", m.getAppName());
+        assertEquals("dtag", m.getTag());
+        assertEquals("debug message", m.getMessage());
+        assertEquals("08-11 19:11:07.132", m.getTimestamp().toString());
+
+        assertEquals(LogLevel.ERROR, messages.get(1).getLogLevel());
+        assertEquals("error message", messages.get(1).getMessage());
+
+        assertEquals("line 1", messages.get(2).getMessage());
+        assertEquals("line 2", messages.get(3).getMessage());
+        assertSame(messages.get(2).getHeader(), messages.get(3).getHeader());
+        assertEquals("08-11 19:11:07.133", messages.get(3).getTimestamp().toString());
+
+        assertEquals(LogLevel.ASSERT, messages.get(4).getLogLevel());
+        assertEquals("wtftag", messages.get(4).getTag());
+        assertEquals("08-11 19:11:08.754", messages.get(4).getTimestamp().toString());
+
+        assertEquals(LogLevel.VERBOSE, messages.get(5).getLogLevel());
+        assertEquals("été", messages.get(5).getMessage());
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+
+    /**
+     * Creates a {@code logger_entry} as written by {@code logcat -B}.
+     * @param headerSize the size of the header: 20 for version 1 (hdr_size left to 0), 24 for
+     *                   version 2 and 3, 28 for version 4.
+     */
+    static byte[] createEntry(int headerSize, int priority, int pid, int tid, int sec,
+            int nsec, String tag, String msg) throws UnsupportedEncodingException {
+        byte[] tagBytes = tag.getBytes("UTF-8");
+        byte[] msgBytes = msg.getBytes("UTF-8");
+        int len = 1 + tagBytes.length + 1 + msgBytes.length + 1;
+
+        byte[] entry = new byte[headerSize + len];
+        writeInt(entry, 0, len | (headerSize == 20 ? 0 : headerSize << 16));
+        writeInt(entry, 4, pid);
+        writeInt(entry, 8, tid);
+        writeInt(entry, 12, sec);
+        writeInt(entry, 16, nsec);
+
+        entry[headerSize] = (byte) priority;
+        System.arraycopy(tagBytes, 0, entry, headerSize + 1, tagBytes.length);
+        System.arraycopy(msgBytes, 0, entry, headerSize + 2 + tagBytes.length, msgBytes.length);
+        return entry;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
+    }
+}
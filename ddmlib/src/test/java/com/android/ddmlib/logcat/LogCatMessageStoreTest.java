@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link LogCatMessageStore}.
+ */
+public class LogCatMessageStoreTest extends TestCase {
+    private static final String[] TAGS = { "ActivityManager", "dalvikvm", "chatty", "Tag1" };
+    private static final String[] APPS = { "com.example.app", "system_process", "?" };
+
+    public void testEvictByCount() {
+        LogCatMessageStore store = new LogCatMessageStore(100, Long.MAX_VALUE);
+        for (int i = 0; i < 250; i++) {
+            store.add(createMessage(LogLevel.INFO, 1, "tag", "app", "message " + i));
+        }
+        assertEquals(100, store.size());
+        List<LogCatMessage> messages = store.getMessages();
+        assertEquals("message 150", messages.get(0).getMessage());
+        assertEquals("message 249", messages.get(99).getMessage());
+    }
+
+    public void testEvictByBytes() {
+        LogCatMessageStore store = new LogCatMessageStore(1000, 10000);
+        for (int i = 0; i < 1000; i++) {
+            store.add(createMessage(LogLevel.INFO, 1, "tag", "app", "message " + i));
+        }
+        assertTrue(store.getByteCount() <= 10000);
+        assertTrue(store.size() < 1000);
+        List<LogCatMessage> messages = store.getMessages();
+        assertEquals("message 999", messages.get(messages.size() - 1).getMessage());
+    }
+
+    public void testInterning() {
+        LogCatMessageStore store = new LogCatMessageStore(10, Long.MAX_VALUE);
+        store.add(createMessage(LogLevel.INFO, 1, new String("tag"), new String("app"), "a"));
+        LogCatHeader header = new LogCatHeader(LogLevel.INFO, 1, 1, new String("app"),
+                new String("tag"), LogCatTimestamp.ZERO);
+        store.add(new LogCatMessage(header, "b"));
+        store.add(new LogCatMessage(header, "c"));
+
+        List<LogCatMessage> messages = store.getMessages();
+        assertSame(messages.get(0).getTag(), messages.get(1).getTag());
+        assertSame(messages.get(0).getAppName(), messages.get(1).getAppName());
+        // messages sharing a header still do.
+        assertSame(messages.get(1).getHeader(), messages.get(2).getHeader());
+    }
+
+    public void testQueryMatchesFilter() {
+        LogCatMessageStore store = new LogCatMessageStore(500, Long.MAX_VALUE);
+        Random random = new Random(42);
+        List<LogCatMessage> all = new ArrayList<LogCatMessage>();
+        for (int i = 0; i < 2000; i++) {
+            LogLevel level = LogLevel.values()[random.nextInt(LogLevel.values().length)];
+            LogCatMessage m = createMessage(level, 100 + random.nextInt(5),
+                    TAGS[random.nextInt(TAGS.length)], APPS[random.nextInt(APPS.length)],
+                    "message " + random.nextInt(50));
+            all.add(m);
+            store.add(m);
+        }
+        List<LogCatMessage> retained = all.subList(1500, 2000);
+
+        check(store, retained, "", LogLevel.VERBOSE);
+        check(store, retained, "", LogLevel.WARN);
+        check(store, retained, "pid:102", LogLevel.VERBOSE);
+        check(store, retained, "pid:102 tag:^dalvik", LogLevel.INFO);
+        check(store, retained, "tag:a", LogLevel.DEBUG);
+        check(store, retained, "app:example message.1", LogLevel.VERBOSE);
+        check(store, retained, "message.4", LogLevel.ERROR);
+        check(store, retained, "pid:7", LogLevel.VERBOSE);
+        check(store, retained, "pid:abc", LogLevel.VERBOSE);
+        check(store, retained, "tag:nomatch", LogLevel.VERBOSE);
+    }
+
+    public void testClear() {
+        LogCatMessageStore store = new LogCatMessageStore(10, Long.MAX_VALUE);
+        store.add(createMessage(LogLevel.INFO, 1, "tag", "app", "a"));
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getByteCount());
+        store.add(createMessage(LogLevel.INFO, 2, "tag", "app", "b"));
+        assertEquals(1, store.query(LogCatFilter.fromString("pid:2", LogLevel.VERBOSE)).size());
+        assertEquals(0, store.query(LogCatFilter.fromString("pid:1", LogLevel.VERBOSE)).size());
+    }
+
+    private static void check(LogCatMessageStore store, List<LogCatMessage> retained,
+            String query, LogLevel level) {
+        List<LogCatFilter> filters = LogCatFilter.fromString(query, level);
+        List<String> expected = new ArrayList<String>();
+        for (LogCatMessage m : retained) {
+            boolean matches = true;
+            for (LogCatFilter filter : filters) {
+                matches &= filter.matches(m);
+            }
+            if (matches) {
+                expected.add(m.toString());
+            }
+        }
+
+        List<String> actual = new ArrayList<String>();
+        for (LogCatMessage m : store.query(filters)) {
+            actual.add(m.toString());
+        }
+        assertEquals(query, expected, actual);
+    }
+
+    private static LogCatMessage createMessage(LogLevel level, int pid, String tag,
+            String appName, String message) {
+        return new LogCatMessage(new LogCatHeader(level, pid, pid, appName, tag,
+                LogCatTimestamp.ZERO), message);
+    }
+}
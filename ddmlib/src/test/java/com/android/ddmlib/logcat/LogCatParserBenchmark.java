@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.MultiLineReceiver;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Compares the text ({@code logcat -v long}) and binary ({@code logcat -B}) ingestion paths
+ * on the same synthetic log, fed in 16KB chunks like the shell output receivers get it.
+ * <p/>Run with {@code java com.android.ddmlib.logcat.LogCatParserBenchmark [entries]}.
+ */
+public class LogCatParserBenchmark {
+    private static final int CHUNK_SIZE = 16384;
+    private static final int ROUNDS = 10;
+    private static final String[] TAGS = {
+            "ActivityManager", "PackageManager", "dalvikvm", "WindowManager", "InputReader",
+            "chatty", "NetworkController", "AudioFlinger"
+    };
+    private static final char[] LEVELS = { 'V', 'D', 'I', 'W', 'E' };
+
+    private static int sCount;
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        int sec = 1439320267;
+        for (int i = 0; i < entries; i++) {
+            String tag = TAGS[i % TAGS.length];
+            int level = i % LEVELS.length;
+            int pid = 400 + (i % 37);
+            int tid = pid + (i % 5);
+            int milli = i % 1000;
+            String msg = "Message number " + i + " with some payload to make it look real";
+
+            byte[] header = String.format("[ 08-11 19:%02d:%02d.%03d %5d:%5d %c/%-8s ]\n",
+                    (i / 60000) % 60, (i / 1000) % 60, milli, pid, tid, LEVELS[level], tag)
+                    .getBytes("UTF-8");
+            text.write(header);
+            text.write((msg + "\n\n").getBytes("UTF-8"));
+
+            byte[] entry = LogCatBinaryParserTest.createEntry(24, level + 2, pid, tid,
+                    sec + i / 1000, milli * 1000000, tag, msg);
+            binary.write(entry);
+        }
+        byte[] textLog = text.toByteArray();
+        byte[] binaryLog = binary.toByteArray();
+
+        System.out.printf("%d entries, text %d KB, binary %d KB%n", entries,
+                textLog.length / 1024, binaryLog.length / 1024);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long textNs = runText(textLog);
+            long binaryNs = runBinary(binaryLog);
+            System.out.printf("round %d: text %,d entries/s, binary %,d entries/s (%.1fx)%n",
+                    round, entries * 1000000000L / textNs, entries * 1000000000L / binaryNs,
+                    (double) textNs / binaryNs);
+        }
+        System.out.println(sCount);
+    }
+
+    private static long runText(byte[] log) {
+        final LogCatMessageParser parser = new LogCatMessageParser();
+        MultiLineReceiver receiver = new MultiLineReceiver() {
+            @Override
+            public void processNewLines(String[] lines) {
+                sCount += parser.processLogLines(lines, null).size();
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        receiver.setTrimLine(false);
+
+        long start = System.nanoTime();
+        for (int offset = 0; offset < log.length; offset += CHUNK_SIZE) {
+            receiver.addOutput(log, offset, Math.min(CHUNK_SIZE, log.length - offset));
+        }
+        receiver.flush();
+        return System.nanoTime() - start;
+    }
+
+    private static long runBinary(byte[] log) {
+        LogCatBinaryParser parser = new LogCatBinaryParser(TimeZone.getTimeZone("UTC"));
+
+        long start = System.nanoTime();
+        for (int offset = 0; offset < log.length; offset += CHUNK_SIZE) {
+            List<LogCatMessage> messages = parser.processLogData(log, offset,
+                    Math.min(CHUNK_SIZE, log.length - offset), null);
+            sCount += messages.size();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.testrunner;
+
+import com.android.ddmlib.IShellOutputReceiver;
+
+import java.util.Map;
+
+/**
+ * Compares {@link InstrumentationResultParser} and {@link StreamingInstrumentationResultParser}
+ * on the output of large test runs, fed in 16KB chunks like the shell output receivers get it.
+ * <p/>Run with
+ * {@code java com.android.ddmlib.testrunner.InstrumentationResultParserBenchmark [tests]}.
+ */
+public class InstrumentationResultParserBenchmark {
+    private static final int CHUNK_SIZE = 16384;
+    private static final int ROUNDS = 10;
+
+    private static int sCount;
+
+    public static void main(String[] args) throws Exception {
+        int tests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        // a passing run, and a run with many failures and stack traces.
+        run("passing", StreamingInstrumentationResultParserTest.createRunOutput(tests, 0)
+                .getBytes("UTF-8"), tests);
+        run("failing", StreamingInstrumentationResultParserTest.createRunOutput(tests, 3)
+                .getBytes("UTF-8"), tests);
+        System.out.println(sCount);
+    }
+
+    private static void run(String name, byte[] output, int tests) {
+        System.out.printf("%s: %d tests, %d KB%n", name, tests, output.length / 1024);
+        for (int round = 0; round < ROUNDS; round++) {
+            long lineNs = feed(output, new InstrumentationResultParser(name, new Listener()));
+            long streamNs = feed(output,
+                    new StreamingInstrumentationResultParser(name, new Listener()));
+            System.out.printf("round %d: lines %,d tests/s, streaming %,d tests/s (%.1fx)%n",
+                    round, tests * 1000000000L / lineNs, tests * 1000000000L / streamNs,
+                    (double) lineNs / streamNs);
+        }
+    }
+
+    private static long feed(byte[] output, IShellOutputReceiver receiver) {
+        long start = System.nanoTime();
+        for (int offset = 0; offset < output.length; offset += CHUNK_SIZE) {
+            receiver.addOutput(output, offset, Math.min(CHUNK_SIZE, output.length - offset));
+        }
+        receiver.flush();
+        return System.nanoTime() - start;
+    }
+
+    private static class Listener implements ITestRunListener {
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            sCount += trace.length();
+        }
+
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+        }
+
+        @Override
+        public void testIgnored(TestIdentifier test) {
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            sCount += testMetrics.size();
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        }
+    }
+}
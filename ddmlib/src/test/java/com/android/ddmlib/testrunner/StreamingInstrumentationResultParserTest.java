@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.testrunner;
+
+import junit.framework.TestCase;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Unit tests for {@link StreamingInstrumentationResultParser}, checking that it reports the
+ * same events as {@link InstrumentationResultParser}.
+ */
+public class StreamingInstrumentationResultParserTest extends TestCase {
+    private static final String RUN_NAME = "foo";
+
+    public void testRun() throws Exception {
+        checkSameEvents(createRunOutput(50, 7));
+    }
+
+    public void testEmpty() throws Exception {
+        checkSameEvents("");
+    }
+
+    public void testRunFailed() throws Exception {
+        checkSameEvents("INSTRUMENTATION_RESULT: shortMsg=Process crashed.\r\n"
+                + "INSTRUMENTATION_CODE: 0\r\n");
+        checkSameEvents("INSTRUMENTATION_STATUS: Error=Unable to find instrumentation info\n"
+                + "INSTRUMENTATION_FAILED: com.foo/android.test.InstrumentationTestRunner\n");
+    }
+
+    public void testIncomplete() throws Exception {
+        String output = createRunOutput(3, 0);
+        checkSameEvents(output.substring(0, output.indexOf("INSTRUMENTATION_STATUS_CODE: 0")));
+    }
+
+    public void testInvalidCode() throws Exception {
+        checkSameEvents("INSTRUMENTATION_STATUS: class=com.foo.FooTest\n"
+                + "INSTRUMENTATION_STATUS: test=testFoo\n"
+                + "INSTRUMENTATION_STATUS: numtests=1\n"
+                + "INSTRUMENTATION_STATUS_CODE: 1\n"
+                + "INSTRUMENTATION_STATUS: class=com.foo.FooTest\n"
+                + "INSTRUMENTATION_STATUS: test=testFoo\n"
+                + "INSTRUMENTATION_STATUS: numtests=1\n"
+                + "INSTRUMENTATION_STATUS_CODE: bad\n"
+                + "INSTRUMENTATION_STATUS_CODE: 12345678901\n"
+                + "INSTRUMENTATION_CODE: -1\n");
+    }
+
+    public void testNonAsciiValues() throws Exception {
+        checkSameEvents("INSTRUMENTATION_STATUS: class=com.foo.FooTest\n"
+                + "INSTRUMENTATION_STATUS: test=testÉté\n"
+                + "INSTRUMENTATION_STATUS: numtests=1\n"
+                + "INSTRUMENTATION_STATUS_CODE: 1\n"
+                + "INSTRUMENTATION_STATUS: class=com.foo.FooTest\n"
+                + "INSTRUMENTATION_STATUS: test=testÉté\n"
+                + "INSTRUMENTATION_STATUS: stack=java.lang.AssertionError: 日本語\n"
+                + "\tat com.foo.FooTest.testÉté(FooTest.java:12)\n"
+                + "INSTRUMENTATION_STATUS_CODE: -2\n"
+                + "INSTRUMENTATION_CODE: -1\n");
+    }
+
+    /**
+     * Feeds the output to {@link InstrumentationResultParser} at once, and to
+     * {@link StreamingInstrumentationResultParser} in chunks of various sizes, and checks that
+     * the listeners see the same events.
+     */
+    private static void checkSameEvents(String output) throws UnsupportedEncodingException {
+        byte[] data = output.getBytes("UTF-8");
+
+        RecordingListener expected = new RecordingListener();
+        InstrumentationResultParser parser = new InstrumentationResultParser(RUN_NAME, expected);
+        parser.addOutput(data, 0, data.length);
+        parser.flush();
+
+        for (int split : new int[] { 1, 2, 3, 7, 64, 1000, Math.max(data.length, 1) }) {
+            RecordingListener actual = new RecordingListener();
+            StreamingInstrumentationResultParser streaming =
+                    new StreamingInstrumentationResultParser(RUN_NAME, actual);
+            for (int offset = 0; offset < data.length; offset += split) {
+                streaming.addOutput(data, offset, Math.min(split, data.length - offset));
+            }
+            streaming.flush();
+            assertEquals("split " + split, expected.mEvents, actual.mEvents);
+        }
+    }
+
+    /**
+     * Creates the output of {@code am instrument -r} for a run of <var>tests</var> tests, one out
+     * of <var>failEvery</var> failing with a stack trace (none if 0), in the format of
+     * AndroidJUnitRunner.
+     */
+    static String createRunOutput(int tests, int failEvery) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < tests; i++) {
+            String testClass = "com.example.app.test.FeatureTest" + (i / 20);
+            String testName = "testSomething" + i;
+            boolean fail = failEvery != 0 && i % failEvery == failEvery - 1;
+
+            addStatus(out, tests, i, testClass, testName,
+                    i % 20 == 0 ? "\r\n" + testClass + ":" : "");
+            out.append("INSTRUMENTATION_STATUS_CODE: 1\r\n");
+            addStatus(out, tests, i, testClass, testName, fail ? "\r\nError in " + testName
+                    + ":\r\njava.lang.AssertionError: expected:<1> but was:<2>" : ".");
+            if (fail) {
+                out.append("INSTRUMENTATION_STATUS: stack=java.lang.AssertionError: ")
+                        .append("expected:<1> but was:<2>\r\n");
+                for (int frame = 0; frame < 30; frame++) {
+                    out.append("\tat android.support.test.runner.AndroidJUnitRunner.onStart(")
+                            .append("AndroidJUnitRunner.java:").append(frame + 220)
+                            .append(")\r\n");
+                }
+                out.append("\r\n");
+                out.append("INSTRUMENTATION_STATUS_CODE: -2\r\n");
+            } else {
+                out.append("INSTRUMENTATION_STATUS: duration_ms=").append(i % 300).append("\r\n");
+                out.append("INSTRUMENTATION_STATUS_CODE: 0\r\n");
+            }
+        }
+        out.append("INSTRUMENTATION_RESULT: stream=\r\n\r\nTime: 123.456\r\n\r\n");
+        out.append("OK (").append(tests).append(" tests)\r\n\r\n\r\n");
+        out.append("INSTRUMENTATION_RESULT: total_pss=2390\r\n");
+        out.append("INSTRUMENTATION_CODE: -1\r\n");
+        return out.toString();
+    }
+
+    private static void addStatus(StringBuilder out, int tests, int i, String testClass,
+            String testName, String stream) {
+        out.append("INSTRUMENTATION_STATUS: numtests=").append(tests).append("\r\n");
+        out.append("INSTRUMENTATION_STATUS: stream=").append(stream).append("\r\n");
+        out.append("INSTRUMENTATION_STATUS: id=AndroidJUnitRunner\r\n");
+        out.append("INSTRUMENTATION_STATUS: test=").append(testName).append("\r\n");
+        out.append("INSTRUMENTATION_STATUS: class=").append(testClass).append("\r\n");
+        out.append("INSTRUMENTATION_STATUS: current=").append(i + 1).append("\r\n");
+    }
+
+    /**
+     * Records the events as strings.
+     */
+    private static class RecordingListener implements ITestRunListener {
+        final List<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            mEvents.add("testRunStarted " + runName + " " + testCount);
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mEvents.add("testStarted " + test);
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            mEvents.add("testFailed " + test + " " + trace);
+        }
+
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+            mEvents.add("testAssumptionFailure " + test + " " + trace);
+        }
+
+        @Override
+        public void testIgnored(TestIdentifier test) {
+            mEvents.add("testIgnored " + test);
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            mEvents.add("testEnded " + test + " " + new TreeMap<String, String>(testMetrics));
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            mEvents.add("testRunFailed " + errorMessage);
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+            mEvents.add("testRunStopped " + elapsedTime);
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mEvents.add("testRunEnded " + elapsedTime + " "
+                    + new TreeMap<String, String>(runMetrics));
+        }
+    }
+}
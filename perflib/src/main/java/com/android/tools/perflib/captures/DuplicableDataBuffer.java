@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.captures;
+
+import com.android.annotations.NonNull;
+
+/**
+ * A {@link DataBuffer} whose content can be read by several threads at once.
+ */
+public interface DuplicableDataBuffer extends DataBuffer {
+
+    /**
+     * Returns a buffer sharing the same content, with its own independent position, so that several
+     * threads can read different parts of the content at once. Disposing a duplicate doesn't
+     * release the shared content.
+     */
+    @NonNull
+    DuplicableDataBuffer duplicate();
+}
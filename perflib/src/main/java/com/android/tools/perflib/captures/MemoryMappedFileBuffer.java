@@ -28,7 +28,7 @@ import java.nio.channels.FileChannel;
 
 import sun.nio.ch.DirectBuffer;
 
-public class MemoryMappedFileBuffer implements DataBuffer {
+public class MemoryMappedFileBuffer implements DuplicableDataBuffer {
 
     // Default chunk size is 1 << 30, or 1,073,741,824 bytes.
     private static final int DEFAULT_SIZE = 1 << 30;
@@ -50,9 +50,14 @@ public class MemoryMappedFileBuffer implements DataBuffer {
     @VisibleForTesting
     public MemoryMappedFileBuffer(@NonNull File f, int bufferSize,
             int padding) throws IOException {
+        this(f, 0, f.length(), bufferSize, padding);
+    }
+
+    private MemoryMappedFileBuffer(@NonNull File f, long start, long length, int bufferSize,
+            int padding) throws IOException {
         mBufferSize = bufferSize;
         mPadding = padding;
-        mLength = f.length();
+        mLength = length;
         int shards = (int) (mLength / mBufferSize) + 1;
         mByteBuffers = new ByteBuffer[shards];
 
@@ -62,7 +67,7 @@ public class MemoryMappedFileBuffer implements DataBuffer {
             for (int i = 0; i < shards; i++) {
                 long size = Math.min(mLength - offset, mBufferSize + mPadding);
                 mByteBuffers[i] = inputStream.getChannel()
-                        .map(FileChannel.MapMode.READ_ONLY, offset, size);
+                        .map(FileChannel.MapMode.READ_ONLY, start + offset, size);
                 mByteBuffers[i].order(HPROF_BYTE_ORDER);
                 offset += mBufferSize;
             }
@@ -72,6 +77,15 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         }
     }
 
+    private MemoryMappedFileBuffer(@NonNull ByteBuffer[] byteBuffers, int bufferSize, int padding,
+            long length) {
+        mBufferSize = bufferSize;
+        mPadding = padding;
+        mLength = length;
+        mByteBuffers = byteBuffers;
+        mCurrentPosition = 0;
+    }
+
     /**
      * Creates a buffer by memory-mapping file {@param f}.
      *
@@ -84,6 +98,15 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         this(f, DEFAULT_SIZE, DEFAULT_PADDING);
     }
 
+    /**
+     * Creates a buffer by memory-mapping the <var>length</var> bytes of file {@param f} found
+     * at <var>offset</var>, such as a heap dump streamed into a file after a packet header.
+     * Position 0 of the buffer is at <var>offset</var> in the file.
+     */
+    public MemoryMappedFileBuffer(@NonNull File f, long offset, long length) throws IOException {
+        this(f, offset, length, DEFAULT_SIZE, DEFAULT_PADDING);
+    }
+
     /**
      * Attempts to unmap the buffer. It is the caller's responsibility to ensure there are no other
      * accesses to this buffer, otherwise this can result in a crash and kill the JVM.
@@ -99,6 +122,22 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         }
     }
 
+    @NonNull
+    @Override
+    public DuplicableDataBuffer duplicate() {
+        ByteBuffer[] byteBuffers = new ByteBuffer[mByteBuffers.length];
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            byteBuffers[i] = mByteBuffers[i].duplicate();
+            byteBuffers[i].order(HPROF_BYTE_ORDER);
+        }
+        return new MemoryMappedFileBuffer(byteBuffers, mBufferSize, mPadding, mLength) {
+            @Override
+            public void dispose() {
+                // The mapping is owned by the original buffer.
+            }
+        };
+    }
+
     @Override
     public byte readByte() {
         byte result = mByteBuffers[getIndex()].get(getOffset());
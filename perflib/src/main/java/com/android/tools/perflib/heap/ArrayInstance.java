@@ -17,10 +17,6 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
-import com.android.tools.perflib.captures.DataBuffer;
-
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 
 public class ArrayInstance extends Instance {
 
@@ -62,14 +58,24 @@ public class ArrayInstance extends Instance {
     @NonNull
     public char[] asCharArray(int offset, int length) {
         assert mType == Type.CHAR;
-        // TODO: Make this copy less by supporting offset in asRawByteArray.
-        CharBuffer charBuffer = ByteBuffer.wrap(asRawByteArray(offset, length)).order(
-                DataBuffer.HPROF_BYTE_ORDER).asCharBuffer();
+        assert offset + length <= mLength;
         char[] result = new char[length];
-        charBuffer.get(result);
+        getBuffer().setPosition(mValuesOffset + (long) offset * mType.getSize());
+        for (int i = 0; i < length; i++) {
+            result[i] = getBuffer().readChar();
+        }
         return result;
     }
 
+    /**
+     * Returns the id of the instance referenced by the element at the given index, or 0 if null.
+     */
+    public long getReferenceValue(int index) {
+        assert mType == Type.OBJECT;
+        getBuffer().setPosition(mValuesOffset + (long) index * mHeap.mSnapshot.getTypeSize(mType));
+        return readId();
+    }
+
     @Override
     public final int getSize() {
         // TODO: Take the rest of the fields into account: length, type, etc (~16 bytes).
@@ -92,6 +98,21 @@ public class ArrayInstance extends Instance {
         }
     }
 
+    @Override
+    public void visitReferences(@NonNull ReferenceVisitor visitor) {
+        if (mType != Type.OBJECT) {
+            return;
+        }
+        int idSize = mHeap.mSnapshot.getTypeSize(mType);
+        for (int i = 0; i < mLength; i++) {
+            getBuffer().setPosition(mValuesOffset + (long) i * idSize);
+            long id = readId();
+            if (id != 0) {
+                visitor.visitReference(i, id);
+            }
+        }
+    }
+
     @Override
     public ClassObj getClassObj() {
         if (mType == Type.OBJECT) {
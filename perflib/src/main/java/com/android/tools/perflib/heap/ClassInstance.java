@@ -19,6 +19,7 @@ package com.android.tools.perflib.heap;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
+import com.android.tools.perflib.captures.DataBuffer;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -59,20 +60,134 @@ public class ClassInstance extends Instance {
         return result;
     }
 
+    /**
+     * Returns the number of instance fields, including the inherited ones.
+     */
+    public int getFieldCount() {
+        ClassObj clazz = getClassObj();
+        return clazz == null ? 0 : clazz.getAllFields().length;
+    }
+
+    /**
+     * Returns the field at the given index, in the same order as {@link #getValues()}.
+     */
+    @NonNull
+    public Field getField(int index) {
+        return getClassObj().getAllFields()[index];
+    }
+
+    /**
+     * Returns the index of the first field with the given name, or -1 if there is none.
+     */
+    public int getFieldIndex(@NonNull String name) {
+        ClassObj clazz = getClassObj();
+        if (clazz != null) {
+            Field[] fields = clazz.getAllFields();
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].getName().equals(name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Typed accessors to the value of the field at the given index. Unlike getValues(), they read
+     * the value straight from the buffer, without boxing it.
+     */
+
+    public boolean getBooleanField(int index) {
+        return seekField(index, Type.BOOLEAN).readByte() != 0;
+    }
+
+    public char getCharField(int index) {
+        return seekField(index, Type.CHAR).readChar();
+    }
+
+    public float getFloatField(int index) {
+        return seekField(index, Type.FLOAT).readFloat();
+    }
+
+    public double getDoubleField(int index) {
+        return seekField(index, Type.DOUBLE).readDouble();
+    }
+
+    public byte getByteField(int index) {
+        return seekField(index, Type.BYTE).readByte();
+    }
+
+    public short getShortField(int index) {
+        return seekField(index, Type.SHORT).readShort();
+    }
+
+    public int getIntField(int index) {
+        return seekField(index, Type.INT).readInt();
+    }
+
+    public long getLongField(int index) {
+        return seekField(index, Type.LONG).readLong();
+    }
+
+    /**
+     * Returns the id of the instance referenced by the field at the given index, or 0 if null.
+     */
+    public long getReferenceField(int index) {
+        seekField(index, Type.OBJECT);
+        return readId();
+    }
+
+    @NonNull
+    private DataBuffer seekField(int index, @NonNull Type type) {
+        ClassObj clazz = getClassObj();
+        assert clazz.getAllFields()[index].getType() == type;
+        DataBuffer buffer = getBuffer();
+        buffer.setPosition(mValuesOffset + clazz.getAllFieldOffsets()[index]);
+        return buffer;
+    }
+
     @Override
-    public final void accept(@NonNull Visitor visitor) {
+    public final void accept(@NonNull final Visitor visitor) {
         visitor.visitClassInstance(this);
-        for (FieldValue field : getValues()) {
-            if (field.getValue() instanceof Instance) {
-                if (!mReferencesAdded) {
-                    ((Instance) field.getValue()).addReference(field.getField(), this);
+        ClassObj clazz = getClassObj();
+        if (clazz == null) {
+            return;
+        }
+        final Field[] fields = clazz.getAllFields();
+        visitReferences(new ReferenceVisitor() {
+            @Override
+            public void visitReference(int index, long id) {
+                Instance value = mHeap.mSnapshot.findInstance(id);
+                if (value != null) {
+                    if (!mReferencesAdded) {
+                        value.addReference(fields[index], ClassInstance.this);
+                    }
+                    visitor.visitLater(ClassInstance.this, value);
                 }
-                visitor.visitLater(this, (Instance) field.getValue());
             }
-        }
+        });
         mReferencesAdded = true;
     }
 
+    @Override
+    public void visitReferences(@NonNull ReferenceVisitor visitor) {
+        ClassObj clazz = getClassObj();
+        if (clazz == null) {
+            return;
+        }
+        Field[] fields = clazz.getAllFields();
+        int[] offsets = clazz.getAllFieldOffsets();
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].getType() == Type.OBJECT) {
+                getBuffer().setPosition(mValuesOffset + offsets[i]);
+                long id = readId();
+                if (id != 0) {
+                    visitor.visitReference(i, id);
+                }
+            }
+        }
+    }
+
     @Override
     public boolean getIsSoftReference() {
         return getClassObj().getIsSoftReference();
@@ -97,19 +212,24 @@ public class ClassInstance extends Instance {
         int count = -1;
         int offset = 0;
         ArrayInstance charBufferArray = null;
-        for (ClassInstance.FieldValue entry : getValues()) {
-            if (charBufferArray == null && "value".equals(entry.getField().getName())) {
-                if (entry.getValue() instanceof ArrayInstance
-                        && ((ArrayInstance) entry.getValue()).getArrayType() == Type.CHAR) {
-                    charBufferArray = (ArrayInstance) entry.getValue();
+        int fieldCount = getFieldCount();
+        for (int i = 0; i < fieldCount; i++) {
+            Field field = getField(i);
+            if (charBufferArray == null && "value".equals(field.getName())) {
+                if (field.getType() == Type.OBJECT) {
+                    Instance value = mHeap.mSnapshot.findInstance(getReferenceField(i));
+                    if (value instanceof ArrayInstance
+                            && ((ArrayInstance) value).getArrayType() == Type.CHAR) {
+                        charBufferArray = (ArrayInstance) value;
+                    }
                 }
-            } else if ("count".equals(entry.getField().getName())) {
-                if (entry.getValue() instanceof Integer) {
-                    count = (Integer) entry.getValue();
+            } else if ("count".equals(field.getName())) {
+                if (field.getType() == Type.INT) {
+                    count = getIntField(i);
                 }
-            } else if ("offset".equals(entry.getField().getName())) {
-                if (entry.getValue() instanceof Integer) {
-                    offset = (Integer) entry.getValue();
+            } else if ("offset".equals(field.getName())) {
+                if (field.getType() == Type.INT) {
+                    offset = getIntField(i);
                 }
             }
         }
@@ -43,6 +43,12 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
 
     Field[] mStaticFields;
 
+    //  Instance fields including the inherited ones, in the order their values are dumped, and the
+    //  offset of each value. Computed on first use, once the class hierarchy is known.
+    private Field[] mAllFields;
+
+    private int[] mAllFieldOffsets;
+
     private int mInstanceSize;
 
     private boolean mIsSoftReference = false;
@@ -116,6 +122,47 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         return mFields;
     }
 
+    /**
+     * Returns the instance fields of this class and of its super classes, in the order their values
+     * appear in the dump of an instance.
+     */
+    @NonNull
+    Field[] getAllFields() {
+        if (mAllFields == null) {
+            computeFieldLayout();
+        }
+        return mAllFields;
+    }
+
+    /**
+     * Returns the offset of the value of each field of {@link #getAllFields()}, relative to the
+     * start of the values of an instance.
+     */
+    @NonNull
+    int[] getAllFieldOffsets() {
+        if (mAllFields == null) {
+            computeFieldLayout();
+        }
+        return mAllFieldOffsets;
+    }
+
+    private void computeFieldLayout() {
+        Field[] fields = new Field[getAllFieldsCount()];
+        int[] offsets = new int[fields.length];
+        int index = 0;
+        int offset = 0;
+        for (ClassObj clazz = this; clazz != null; clazz = clazz.getSuperClassObj()) {
+            for (Field field : clazz.getFields()) {
+                fields[index] = field;
+                offsets[index] = offset;
+                offset += mHeap.mSnapshot.getTypeSize(field.getType());
+                index++;
+            }
+        }
+        mAllFieldOffsets = offsets;
+        mAllFields = fields;
+    }
+
     public void setFields(@NonNull Field[] fields) {
         mFields = fields;
     }
@@ -203,6 +250,27 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         mReferencesAdded = true;
     }
 
+    @Override
+    public void visitReferences(@NonNull ReferenceVisitor visitor) {
+        int idSize = mHeap.mSnapshot.getTypeSize(Type.OBJECT);
+        long position = mStaticFieldsOffset;
+        getBuffer().setPosition(position);
+        int numEntries = readUnsignedShort();
+        position += 2;
+        for (int i = 0; i < numEntries; i++) {
+            Type type = mStaticFields[i].getType();
+            int size = mHeap.mSnapshot.getTypeSize(type);
+            if (type == Type.OBJECT) {
+                getBuffer().setPosition(position + idSize + 1);
+                long id = readId();
+                if (id != 0) {
+                    visitor.visitReference(i, id);
+                }
+            }
+            position += idSize + 1 + size;
+        }
+    }
+
     @Override
     public final int compareTo(@NonNull ClassObj o) {
         if (getId() == o.getId()) {
@@ -18,14 +18,35 @@ package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.DuplicableDataBuffer;
+import com.google.common.base.Throwables;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.common.primitives.UnsignedInts;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import gnu.trove.TLongObjectHashMap;
 
+/**
+ * Parser for HPROF heap dumps.
+ *
+ * Heap dumps can be parsed either sequentially, or in parallel. In the latter case, the top-level
+ * records (strings, class names, stack frames and traces) are read first, while the offsets of the
+ * heap dump segments are collected. The segments are then decoded concurrently, each on its own
+ * cursor into the buffer, into lists of parsed objects. These lists are finally added to the
+ * snapshot in file order, so the resulting snapshot is the same as with a sequential parse. This
+ * requires a {@link DuplicableDataBuffer}.
+ */
 class HprofParser {
 
     private static final int STRING_IN_UTF8 = 0x01;
@@ -119,6 +140,9 @@ class HprofParser {
 
     private static final int ROOT_PRIMITIVE_ARRAY_NODATA = 0xc3;
 
+    //  Stack depth of roots that refer to the whole stack trace of their thread.
+    private static final int WHOLE_STACK = -1;
+
     @NonNull
     private final DataBuffer mInput;
 
@@ -131,21 +155,66 @@ class HprofParser {
      * heap data.
      */
     @NonNull
-    TLongObjectHashMap<String> mStrings = new TLongObjectHashMap<String>();
+    TLongObjectHashMap<String> mStrings;
 
     @NonNull
-    TLongObjectHashMap<String> mClassNames = new TLongObjectHashMap<String>();
+    TLongObjectHashMap<String> mClassNames;
 
     static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer) {
         new HprofParser(snapshot, buffer).parse();
     }
 
+    /**
+     * Parses the buffer using up to {@code threadCount} threads to decode the heap dump segments,
+     * if the buffer can be duplicated. Unlike {@link #parseBuffer(Snapshot, DataBuffer)}, the
+     * errors are thrown.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            int threadCount) throws IOException {
+        if (threadCount <= 1 || !(buffer instanceof DuplicableDataBuffer)) {
+            new HprofParser(snapshot, buffer).parseAndThrow();
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private int mCount = 0;
+
+            @Override
+            public synchronized Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "hprof-parser-" + mCount++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            new HprofParser(snapshot, buffer).parse(executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer) {
+        this(snapshot, buffer, new TLongObjectHashMap<String>(),
+                new TLongObjectHashMap<String>());
+    }
+
+    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull TLongObjectHashMap<String> strings,
+            @NonNull TLongObjectHashMap<String> classNames) {
         mInput = buffer;
         mSnapshot = snapshot;
+        mStrings = strings;
+        mClassNames = classNames;
     }
 
     private void parse() {
+        try {
+            parseAndThrow();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void parseAndThrow() throws IOException {
         try {
             try {
                 readNullTerminatedString();  // Version, ignored for now.
@@ -200,12 +269,163 @@ class HprofParser {
             mSnapshot.resolveReferences();
             // TODO: enable this after the dominators computation is also optimized.
             // mSnapshot.computeRetainedSizes();
-        } catch (Exception e) {
-            e.printStackTrace();
+        } finally {
+            mClassNames.clear();
+            mStrings.clear();
+        }
+    }
+
+    private void parse(@NonNull ExecutorService executor) throws IOException {
+        try {
+            readNullTerminatedString();  // Version, ignored for now.
+
+            mIdSize = mInput.readInt();
+            mSnapshot.setIdSize(mIdSize);
+
+            mInput.readLong();  // Timestamp, ignored for now.
+
+            //  Heap dump segments are only located in this pass, and decoded once all the strings
+            //  and class names are known.
+            List<long[]> segments = new ArrayList<long[]>();
+            try {
+                while (mInput.hasRemaining()) {
+                    int tag = readUnsignedByte();
+                    mInput.readInt(); // Ignored: timestamp
+                    long length = readUnsignedInt();
+
+                    switch (tag) {
+                        case STRING_IN_UTF8:
+                            loadString((int) length - mIdSize);
+                            break;
+
+                        case LOAD_CLASS:
+                            loadClass();
+                            break;
+
+                        case STACK_FRAME:
+                            loadStackFrame();
+                            break;
+
+                        case STACK_TRACE:
+                            loadStackTrace();
+                            break;
+
+                        case HEAP_DUMP:
+                        case HEAP_DUMP_SEGMENT:
+                            segments.add(new long[]{mInput.position(), length});
+                            skipFully(length);
+                            break;
+
+                        default:
+                            skipFully(length);
+                    }
+                }
+            } catch (EOFException eof) {
+                //  this is fine, as in a sequential parse
+            }
+
+            List<Future<List<Object>>> results = new ArrayList<Future<List<Object>>>();
+            for (final long[] segment : segments) {
+                results.add(executor.submit(new Callable<List<Object>>() {
+                    @Override
+                    public List<Object> call() throws IOException {
+                        List<Object> parsed = new ArrayList<Object>();
+                        HprofParser parser = new SegmentParser(HprofParser.this, parsed);
+                        parser.mInput.setPosition(segment[0]);
+                        try {
+                            parser.loadHeapDump(segment[1]);
+                        } catch (EOFException eof) {
+                            //  a truncated dump, whose last segment is kept up to this point
+                        }
+                        return parsed;
+                    }
+                }));
+            }
+            //  Segments are added in file order as soon as they are decoded, while the following
+            //  ones are still being decoded.
+            for (Future<List<Object>> result : results) {
+                addParsed(getParsed(result));
+                mSnapshot.setToDefaultHeap();
+            }
+
+            mSnapshot.resolveClasses();
+            mSnapshot.resolveReferences();
+        } finally {
+            mClassNames.clear();
+            mStrings.clear();
+        }
+    }
+
+    /**
+     * Waits for a segment to be decoded, and rethrows the error of the decoding if any.
+     */
+    @NonNull
+    private static List<Object> getParsed(@NonNull Future<List<Object>> result)
+            throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding the heap dump");
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
         }
+    }
 
-        mClassNames.clear();
-        mStrings.clear();
+    /**
+     * Adds the objects recorded by a {@link SegmentParser} to the snapshot.
+     */
+    private void addParsed(@NonNull List<Object> parsed) {
+        for (Object object : parsed) {
+            if (object instanceof ClassObj) {
+                ClassObj theClass = (ClassObj) object;
+                onClass(theClass.getId(), theClass);
+            } else if (object instanceof RootObj) {
+                onRoot((RootObj) object);
+            } else if (object instanceof Instance) {
+                Instance instance = (Instance) object;
+                onInstance(instance.getId(), instance);
+            } else {
+                ((DeferredRecord) object).apply(this);
+            }
+        }
+    }
+
+    /*
+     * Called for each object of a heap dump, in file order. Unless overridden, they add the object
+     * to the snapshot directly.
+     */
+
+    void onHeapDumpInfo(int heapId, @NonNull String heapName) {
+        mSnapshot.setHeapTo(heapId, heapName);
+    }
+
+    void onRoot(@NonNull RootObj root) {
+        mSnapshot.addRoot(root);
+    }
+
+    /**
+     * Adds a root held by a thread, at the given depth of its stack, or {@link #WHOLE_STACK}.
+     */
+    void onThreadRoot(@NonNull RootType type, long id, int threadSerialNumber, int depth) {
+        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+        StackTrace trace = depth == WHOLE_STACK
+                ? mSnapshot.getStackTrace(thread.mStackTrace)
+                : mSnapshot.getStackTraceAtDepth(thread.mStackTrace, depth);
+        mSnapshot.addRoot(new RootObj(type, id, threadSerialNumber, trace));
+    }
+
+    void onThread(@NonNull ThreadObj thread, int serialNumber) {
+        mSnapshot.addThread(thread, serialNumber);
+    }
+
+    void onClass(long id, @NonNull ClassObj theClass) {
+        mSnapshot.addClass(id, theClass);
+    }
+
+    void onInstance(long id, @NonNull Instance instance) {
+        mSnapshot.addInstance(id, instance);
     }
 
     @NonNull
@@ -371,7 +591,7 @@ class HprofParser {
                     long heapNameId = readId();
                     String heapName = mStrings.get(heapNameId);
 
-                    mSnapshot.setHeapTo(heapId, heapName);
+                    onHeapDumpInfo(heapId, heapName);
                     length -= 4 + mIdSize;
                     break;
 
@@ -416,11 +636,7 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.NATIVE_LOCAL, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
+        onThreadRoot(RootType.NATIVE_LOCAL, id, threadSerialNumber, stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -429,11 +645,7 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.JAVA_LOCAL, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
+        onThreadRoot(RootType.JAVA_LOCAL, id, threadSerialNumber, stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -441,20 +653,14 @@ class HprofParser {
     private int loadNativeStack() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.NATIVE_STACK, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
+        onThreadRoot(RootType.NATIVE_STACK, id, threadSerialNumber, WHOLE_STACK);
 
         return mIdSize + 4;
     }
 
     private int loadBasicObj(RootType type) throws IOException {
         long id = readId();
-        RootObj root = new RootObj(type, id);
-
-        mSnapshot.addRoot(root);
+        onRoot(new RootObj(type, id));
 
         return mIdSize;
     }
@@ -462,11 +668,7 @@ class HprofParser {
     private int loadThreadBlock() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace stack = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.THREAD_BLOCK, id, threadSerialNumber, stack);
-
-        mSnapshot.addRoot(root);
+        onThreadRoot(RootType.THREAD_BLOCK, id, threadSerialNumber, WHOLE_STACK);
 
         return mIdSize + 4;
     }
@@ -477,7 +679,7 @@ class HprofParser {
         int stackSerialNumber = mInput.readInt();
         ThreadObj thread = new ThreadObj(id, stackSerialNumber);
 
-        mSnapshot.addThread(thread, threadSerialNumber);
+        onThread(thread, threadSerialNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -545,7 +747,7 @@ class HprofParser {
         theClass.setFields(fields);
         theClass.setInstanceSize(instanceSize);
 
-        mSnapshot.addClass(id, theClass);
+        onClass(id, theClass);
 
         return bytesRead;
     }
@@ -560,7 +762,7 @@ class HprofParser {
         long position = mInput.position();
         ClassInstance instance = new ClassInstance(id, stack, position);
         instance.setClassId(classId);
-        mSnapshot.addInstance(id, instance);
+        onInstance(id, instance);
 
         skipFully(remaining);
         return mIdSize + 4 + mIdSize + 4 + remaining;
@@ -575,7 +777,7 @@ class HprofParser {
         ArrayInstance array =
                 new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
         array.setClassId(classId);
-        mSnapshot.addInstance(id, array);
+        onInstance(id, array);
 
         int remaining = numElements * mIdSize;
         skipFully(remaining);
@@ -590,7 +792,7 @@ class HprofParser {
         Type type = Type.getType(readUnsignedByte());
         int size = mSnapshot.getTypeSize(type);
         ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
+        onInstance(id, array);
 
         int remaining = numElements * size;
         skipFully(remaining);
@@ -601,11 +803,7 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackDepth = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
-        RootObj root = new RootObj(RootType.NATIVE_MONITOR, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
+        onThreadRoot(RootType.NATIVE_MONITOR, id, threadSerialNumber, stackDepth);
 
         return mIdSize + 4 + 4;
     }
@@ -622,4 +820,76 @@ class HprofParser {
     private void skipFully(long numBytes) throws IOException {
         mInput.setPosition(mInput.position() + numBytes);
     }
+
+    /**
+     * An object of a heap dump segment whose addition depends on the state of the snapshot at that
+     * point, i.e. on the current heap and its threads.
+     */
+    private interface DeferredRecord {
+
+        void apply(@NonNull HprofParser parser);
+    }
+
+    /**
+     * Decodes a heap dump segment without modifying the snapshot, and records the parsed objects so
+     * that they can be added later on by {@link #addParsed(List)}.
+     */
+    private static final class SegmentParser extends HprofParser {
+
+        @NonNull
+        private final List<Object> mParsed;
+
+        SegmentParser(@NonNull HprofParser parent, @NonNull List<Object> parsed) {
+            super(parent.mSnapshot, ((DuplicableDataBuffer) parent.mInput).duplicate(),
+                    parent.mStrings, parent.mClassNames);
+            mIdSize = parent.mIdSize;
+            mParsed = parsed;
+        }
+
+        @Override
+        void onHeapDumpInfo(final int heapId, @NonNull final String heapName) {
+            mParsed.add(new DeferredRecord() {
+                @Override
+                public void apply(@NonNull HprofParser parser) {
+                    parser.onHeapDumpInfo(heapId, heapName);
+                }
+            });
+        }
+
+        @Override
+        void onRoot(@NonNull RootObj root) {
+            mParsed.add(root);
+        }
+
+        @Override
+        void onThreadRoot(@NonNull final RootType type, final long id,
+                final int threadSerialNumber, final int depth) {
+            mParsed.add(new DeferredRecord() {
+                @Override
+                public void apply(@NonNull HprofParser parser) {
+                    parser.onThreadRoot(type, id, threadSerialNumber, depth);
+                }
+            });
+        }
+
+        @Override
+        void onThread(@NonNull final ThreadObj thread, final int serialNumber) {
+            mParsed.add(new DeferredRecord() {
+                @Override
+                public void apply(@NonNull HprofParser parser) {
+                    parser.onThread(thread, serialNumber);
+                }
+            });
+        }
+
+        @Override
+        void onClass(long id, @NonNull ClassObj theClass) {
+            mParsed.add(theClass);
+        }
+
+        @Override
+        void onInstance(long id, @NonNull Instance instance) {
+            mParsed.add(instance);
+        }
+    }
 }
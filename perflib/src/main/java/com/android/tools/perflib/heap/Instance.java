@@ -22,8 +22,7 @@ import com.android.tools.perflib.captures.DataBuffer;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.UnsignedBytes;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public abstract class Instance {
@@ -43,31 +42,25 @@ public abstract class Instance {
     //  The size of this object
     int mSize;
 
-    //  Another identifier for this Instance, that we computed during the analysis phase.
-    int mTopologicalOrder;
-
-    int mDistanceToGcRoot = Integer.MAX_VALUE;
+    //  The node id of this instance in the snapshot's InstanceGraph, which holds its references
+    //  and analysis results. RootObj instances are not part of the graph.
+    int mNodeId = InstanceGraph.NO_NODE;
 
     boolean mReferencesAdded = false;
 
-    Instance mNextInstanceToGcRoot = null;
-
-    //  The immediate dominator of this instance, or null if not reachable from any GC roots.
-    @Nullable
-    private Instance mImmediateDominator;
-
-    //  The retained size of this object, indexed by heap (default, image, app, zygote).
-    //  Intuitively, this represents the amount of memory that could be reclaimed in each heap if
-    //  the instance were removed.
-    //  To save space, we only keep a primitive array here following the order in mSnapshot.mHeaps.
-    private long[] mRetainedSizes;
-
-    //  List of all objects that hold a live reference to this object
-    private final ArrayList<Instance> mHardReferences = new ArrayList<Instance>();
+    /**
+     * Receives the ids of the instances referenced by an instance.
+     *
+     * @see #visitReferences(ReferenceVisitor)
+     */
+    public interface ReferenceVisitor {
 
-    //  List of all objects that hold a soft/weak/phantom reference to this object.
-    //  Don't create an actual list until we need to.
-    private ArrayList<Instance> mSoftReferences = null;
+        /**
+         * @param index the index of the field, static field or array element holding the reference
+         * @param id    the id of the referenced instance
+         */
+        void visitReference(int index, long id);
+    }
 
     Instance(long id, @NonNull StackTrace stackTrace) {
         mId = id;
@@ -84,6 +77,13 @@ public abstract class Instance {
 
     public abstract void accept(Visitor visitor);
 
+    /**
+     * Calls the visitor with the id of every non-null reference held by this instance. The ids are
+     * read straight from the snapshot buffer, and nothing is allocated per reference.
+     */
+    public void visitReferences(@NonNull ReferenceVisitor visitor) {
+    }
+
     public void setClassId(long classId) {
         mClassId = classId;
     }
@@ -98,6 +98,19 @@ public abstract class Instance {
         return visitor.getCompositeSize();
     }
 
+    /**
+     * Returns the id of this instance in the snapshot's {@link InstanceGraph}, or
+     * {@link InstanceGraph#NO_NODE} if it is not part of the graph.
+     */
+    public int getNodeId() {
+        return mNodeId;
+    }
+
+    @Nullable
+    private InstanceGraph getGraph() {
+        return mNodeId == InstanceGraph.NO_NODE ? null : mHeap.mSnapshot.getGraph();
+    }
+
     //  Returns the instrinsic size of a given object
     public int getSize() {
         return mSize;
@@ -115,68 +128,68 @@ public abstract class Instance {
         return mHeap;
     }
 
+    //  Instances that are not part of the graph, such as the sentinel root, have order 0.
     public int getTopologicalOrder() {
-        return mTopologicalOrder;
+        InstanceGraph graph = getGraph();
+        return graph == null ? 0 : graph.getTopologicalOrder(mNodeId);
     }
 
     public void setTopologicalOrder(int topologicalOrder) {
-        mTopologicalOrder = topologicalOrder;
+        InstanceGraph graph = getGraph();
+        if (graph != null) {
+            graph.setTopologicalOrder(mNodeId, topologicalOrder);
+        }
     }
 
+    //  The immediate dominator of this instance, or null if not reachable from any GC roots.
     @Nullable
     public Instance getImmediateDominator() {
-        return mImmediateDominator;
+        InstanceGraph graph = getGraph();
+        return graph == null ? null : toInstance(graph, graph.getDominator(mNodeId));
     }
 
     public void setImmediateDominator(@NonNull Instance dominator) {
-        mImmediateDominator = dominator;
+        getGraph().setDominator(mNodeId, toNode(dominator));
     }
 
     public int getDistanceToGcRoot() {
-        return mDistanceToGcRoot;
+        InstanceGraph graph = getGraph();
+        return graph == null ? Integer.MAX_VALUE : graph.getDistanceToGcRoot(mNodeId);
     }
 
     public Instance getNextInstanceToGcRoot() {
-        return mNextInstanceToGcRoot;
+        InstanceGraph graph = getGraph();
+        return graph == null ? null : toInstance(graph, graph.getNextNodeToGcRoot(mNodeId));
     }
 
     public void setDistanceToGcRoot(int newDistance) {
-        assert(newDistance < mDistanceToGcRoot);
-        mDistanceToGcRoot = newDistance;
+        assert(newDistance < getDistanceToGcRoot());
+        getGraph().setDistanceToGcRoot(mNodeId, newDistance);
     }
 
     public void setNextInstanceToGcRoot(Instance instance) {
-        mNextInstanceToGcRoot = instance;
+        getGraph().setNextNodeToGcRoot(mNodeId, toNode(instance));
     }
 
+    //  The retained size of this object, indexed by heap (default, image, app, zygote).
+    //  Intuitively, this represents the amount of memory that could be reclaimed in each heap if
+    //  the instance were removed.
     public void resetRetainedSize() {
-        List<Heap> allHeaps = mHeap.mSnapshot.mHeaps;
-        if (mRetainedSizes == null) {
-            mRetainedSizes = new long[allHeaps.size()];
-        } else {
-            Arrays.fill(mRetainedSizes, 0);
-        }
-        mRetainedSizes[allHeaps.indexOf(mHeap)] = getSize();
+        getGraph().resetRetainedSize(mNodeId, mHeap.mSnapshot.mHeaps.size(), getSize());
     }
 
     public void addRetainedSize(int heapIndex, long size) {
-        mRetainedSizes[heapIndex] += size;
+        getGraph().addRetainedSize(mNodeId, heapIndex, size);
     }
 
     public long getRetainedSize(int heapIndex) {
-        return mRetainedSizes[heapIndex];
+        InstanceGraph graph = getGraph();
+        return graph == null ? 0 : graph.getRetainedSize(mNodeId, heapIndex);
     }
 
     public long getTotalRetainedSize() {
-        if (mRetainedSizes == null) {
-            return 0;
-        }
-
-        long totalSize = 0;
-        for (long mRetainedSize : mRetainedSizes) {
-            totalSize += mRetainedSize;
-        }
-        return totalSize;
+        InstanceGraph graph = getGraph();
+        return graph == null ? 0 : graph.getTotalRetainedSize(mNodeId);
     }
 
     /**
@@ -187,25 +200,49 @@ public abstract class Instance {
      * @param reference another instance that references this instance
      */
     public void addReference(@Nullable Field field, @NonNull Instance reference) {
+        InstanceGraph graph = getGraph();
+        if (graph == null || reference.mNodeId == InstanceGraph.NO_NODE) {
+            return;
+        }
         if (reference.getIsSoftReference() && field != null && field.getName().equals("referent")) {
-            if (mSoftReferences == null) {
-                mSoftReferences = new ArrayList<Instance>();
-            }
-            mSoftReferences.add(reference);
+            graph.addSoftReference(mNodeId, reference.mNodeId);
         }
         else {
-            mHardReferences.add(reference);
+            graph.addHardReference(mNodeId, reference.mNodeId);
         }
     }
 
+    //  List of all objects that hold a live reference to this object
     @NonNull
-    public ArrayList<Instance> getHardReferences() {
-        return mHardReferences;
+    public List<Instance> getHardReferences() {
+        InstanceGraph graph = getGraph();
+        return graph == null ? Collections.<Instance>emptyList() : graph.getHardReferences(mNodeId);
+    }
+
+    //  List of all objects that hold a soft/weak/phantom reference to this object, or null if none.
+    @Nullable
+    public List<Instance> getSoftReferences() {
+        InstanceGraph graph = getGraph();
+        return graph == null ? null : graph.getSoftReferences(mNodeId);
     }
 
     @Nullable
-    public ArrayList<Instance> getSoftReferences() {
-        return mSoftReferences;
+    private static Instance toInstance(@NonNull InstanceGraph graph, int node) {
+        switch (node) {
+            case InstanceGraph.NO_NODE:
+                return null;
+            case InstanceGraph.SENTINEL_NODE:
+                return Snapshot.SENTINEL_ROOT;
+            default:
+                return graph.getInstance(node);
+        }
+    }
+
+    private static int toNode(@Nullable Instance instance) {
+        if (instance == null) {
+            return InstanceGraph.NO_NODE;
+        }
+        return instance == Snapshot.SENTINEL_ROOT ? InstanceGraph.SENTINEL_NODE : instance.mNodeId;
     }
 
     /**
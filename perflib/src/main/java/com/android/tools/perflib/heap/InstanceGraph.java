@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import com.android.tools.perflib.captures.DataBuffer;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact, column-oriented storage for the object graph of a {@link Snapshot}.
+ *
+ * Every instance and class registered with the snapshot is given an int node id, starting at
+ * {@link #FIRST_NODE}. All the per-instance analysis state (heap indices, topological order,
+ * distance to the GC roots, dominators and retained sizes) is kept in parallel primitive arrays
+ * indexed by node id, and {@link Instance} only holds its node id and shallow size.
+ *
+ * References are appended as (referent, referrer) pairs while the heap is traversed, and are folded
+ * into compressed sparse row arrays the first time they are queried. For each node, the ids of the
+ * instances referring to it are stored contiguously in an edge array, between two offsets.
+ *
+ * Instances that are not part of the heap, namely {@link RootObj}s and
+ * {@link Snapshot#SENTINEL_ROOT}, have no node id.
+ */
+public final class InstanceGraph {
+
+    /**
+     * Node id of instances that are not part of the graph.
+     */
+    public static final int NO_NODE = -1;
+
+    /**
+     * Node id used for {@link Snapshot#SENTINEL_ROOT} in dominator and GC root path columns.
+     */
+    public static final int SENTINEL_NODE = 0;
+
+    /**
+     * Id of the first node of the graph.
+     */
+    public static final int FIRST_NODE = 1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int mNodeCount = FIRST_NODE;
+
+    @NonNull
+    private Instance[] mInstances = new Instance[INITIAL_CAPACITY];
+
+    @NonNull
+    private byte[] mHeapIndices = new byte[INITIAL_CAPACITY];
+
+    @NonNull
+    private int[] mTopologicalOrders = new int[INITIAL_CAPACITY];
+
+    @NonNull
+    private int[] mDistancesToGcRoot = newFilledArray(INITIAL_CAPACITY, Integer.MAX_VALUE);
+
+    @NonNull
+    private int[] mNextNodesToGcRoot = newFilledArray(INITIAL_CAPACITY, NO_NODE);
+
+    @NonNull
+    private int[] mDominators = newFilledArray(INITIAL_CAPACITY, NO_NODE);
+
+    //  Retained sizes indexed by heap index, then node id. Allocated on first use.
+    @Nullable
+    private long[][] mRetainedSizes;
+
+    @NonNull
+    private References mHardReferences = new References();
+
+    @NonNull
+    private References mSoftReferences = new References();
+
+    InstanceGraph() {
+    }
+
+    /**
+     * Registers an instance of the given heap, and returns its node id.
+     */
+    int addNode(@NonNull Instance instance, int heapIndex) {
+        if (mNodeCount == mInstances.length) {
+            int capacity = mInstances.length * 2;
+            mInstances = Arrays.copyOf(mInstances, capacity);
+            mHeapIndices = Arrays.copyOf(mHeapIndices, capacity);
+            mTopologicalOrders = Arrays.copyOf(mTopologicalOrders, capacity);
+            mDistancesToGcRoot = growFilledArray(mDistancesToGcRoot, capacity, Integer.MAX_VALUE);
+            mNextNodesToGcRoot = growFilledArray(mNextNodesToGcRoot, capacity, NO_NODE);
+            mDominators = growFilledArray(mDominators, capacity, NO_NODE);
+        }
+        int node = mNodeCount++;
+        mInstances[node] = instance;
+        mHeapIndices[node] = (byte) heapIndex;
+        return node;
+    }
+
+    /**
+     * Returns one more than the highest node id, i.e. the size of arrays indexed by node id.
+     */
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    @NonNull
+    public Instance getInstance(int node) {
+        return mInstances[node];
+    }
+
+    public int getHeapIndex(int node) {
+        return mHeapIndices[node];
+    }
+
+    public int getTopologicalOrder(int node) {
+        return mTopologicalOrders[node];
+    }
+
+    void setTopologicalOrder(int node, int order) {
+        mTopologicalOrders[node] = order;
+    }
+
+    public int getDistanceToGcRoot(int node) {
+        return mDistancesToGcRoot[node];
+    }
+
+    void setDistanceToGcRoot(int node, int distance) {
+        mDistancesToGcRoot[node] = distance;
+    }
+
+    /**
+     * Returns the next node on the shortest path to a GC root, or {@link #NO_NODE}.
+     */
+    public int getNextNodeToGcRoot(int node) {
+        return mNextNodesToGcRoot[node];
+    }
+
+    void setNextNodeToGcRoot(int node, int next) {
+        mNextNodesToGcRoot[node] = next;
+    }
+
+    /**
+     * Returns the immediate dominator of a node, {@link #SENTINEL_NODE} if the node is dominated by
+     * the sentinel root, or {@link #NO_NODE} if the node is not reachable from the GC roots.
+     */
+    public int getDominator(int node) {
+        return mDominators[node];
+    }
+
+    void setDominator(int node, int dominator) {
+        mDominators[node] = dominator;
+    }
+
+    /**
+     * Resets the retained size of a node to its own size in its heap.
+     */
+    void resetRetainedSize(int node, int heapCount, int size) {
+        if (mRetainedSizes == null || mRetainedSizes.length != heapCount
+                || mRetainedSizes[0].length < mNodeCount) {
+            mRetainedSizes = new long[heapCount][mNodeCount];
+        }
+        for (long[] heapSizes : mRetainedSizes) {
+            heapSizes[node] = 0;
+        }
+        mRetainedSizes[mHeapIndices[node]][node] = size;
+    }
+
+    void addRetainedSize(int node, int heapIndex, long size) {
+        mRetainedSizes[heapIndex][node] += size;
+    }
+
+    public long getRetainedSize(int node, int heapIndex) {
+        return mRetainedSizes == null ? 0 : mRetainedSizes[heapIndex][node];
+    }
+
+    public long getTotalRetainedSize(int node) {
+        if (mRetainedSizes == null) {
+            return 0;
+        }
+        long totalSize = 0;
+        for (long[] heapSizes : mRetainedSizes) {
+            totalSize += heapSizes[node];
+        }
+        return totalSize;
+    }
+
+    void addHardReference(int node, int referrer) {
+        mHardReferences.add(node, referrer);
+    }
+
+    void addSoftReference(int node, int referrer) {
+        mSoftReferences.add(node, referrer);
+    }
+
+    /**
+     * Returns the number of instances holding a hard reference to the given node.
+     */
+    public int getHardReferenceCount(int node) {
+        return mHardReferences.count(node, mNodeCount);
+    }
+
+    /**
+     * Returns the node id of the i-th instance holding a hard reference to the given node.
+     */
+    public int getHardReference(int node, int i) {
+        return mHardReferences.get(node, i, mNodeCount);
+    }
+
+    public int getSoftReferenceCount(int node) {
+        return mSoftReferences.count(node, mNodeCount);
+    }
+
+    public int getSoftReference(int node, int i) {
+        return mSoftReferences.get(node, i, mNodeCount);
+    }
+
+    @NonNull
+    List<Instance> getHardReferences(int node) {
+        return new ReferenceList(mHardReferences, node);
+    }
+
+    @Nullable
+    List<Instance> getSoftReferences(int node) {
+        return mSoftReferences.count(node, mNodeCount) == 0
+                ? null : new ReferenceList(mSoftReferences, node);
+    }
+
+    /**
+     * Writes the references and the analysis columns of the graph. They can be restored with
+     * {@link #read(DataBuffer)} into the graph of a snapshot parsed from the same heap dump.
+     */
+    void write(@NonNull DataOutput out) throws IOException {
+        out.writeInt(mNodeCount);
+        writeInts(out, mTopologicalOrders, mNodeCount);
+        writeInts(out, mDistancesToGcRoot, mNodeCount);
+        writeInts(out, mNextNodesToGcRoot, mNodeCount);
+        writeInts(out, mDominators, mNodeCount);
+        if (mRetainedSizes == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(mRetainedSizes.length);
+            for (long[] heapSizes : mRetainedSizes) {
+                for (int node = 0; node < mNodeCount; node++) {
+                    out.writeLong(heapSizes[node]);
+                }
+            }
+        }
+        mHardReferences.write(out, mNodeCount);
+        mSoftReferences.write(out, mNodeCount);
+    }
+
+    /**
+     * Replaces the references and the analysis columns with the ones written by
+     * {@link #write(DataOutput)}. Returns false, leaving the graph unchanged, if they were written
+     * for a different number of nodes. Runtime exceptions are thrown if the input is truncated.
+     */
+    boolean read(@NonNull DataBuffer in) {
+        if (in.readInt() != mNodeCount) {
+            return false;
+        }
+        // Everything is read before anything is replaced, so that a truncated input leaves the
+        // graph as it was.
+        int capacity = mInstances.length;
+        int[] topologicalOrders = readInts(in, new int[capacity], mNodeCount);
+        int[] distancesToGcRoot =
+                readInts(in, newFilledArray(capacity, Integer.MAX_VALUE), mNodeCount);
+        int[] nextNodesToGcRoot = readInts(in, newFilledArray(capacity, NO_NODE), mNodeCount);
+        int[] dominators = readInts(in, newFilledArray(capacity, NO_NODE), mNodeCount);
+        long[][] retainedSizes = null;
+        int heapCount = in.readInt();
+        if (heapCount > 0) {
+            retainedSizes = new long[heapCount][mNodeCount];
+            for (long[] heapSizes : retainedSizes) {
+                for (int node = 0; node < mNodeCount; node++) {
+                    heapSizes[node] = in.readLong();
+                }
+            }
+        }
+        References hardReferences = References.read(in, mNodeCount);
+        References softReferences = References.read(in, mNodeCount);
+
+        mTopologicalOrders = topologicalOrders;
+        mDistancesToGcRoot = distancesToGcRoot;
+        mNextNodesToGcRoot = nextNodesToGcRoot;
+        mDominators = dominators;
+        mRetainedSizes = retainedSizes;
+        mHardReferences = hardReferences;
+        mSoftReferences = softReferences;
+        return true;
+    }
+
+    private static void writeInts(@NonNull DataOutput out, @NonNull int[] array, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(array[i]);
+        }
+    }
+
+    @NonNull
+    private static int[] readInts(@NonNull DataBuffer in, @NonNull int[] array, int count) {
+        for (int i = 0; i < count; i++) {
+            array[i] = in.readInt();
+        }
+        return array;
+    }
+
+    @NonNull
+    private static int[] newFilledArray(int length, int value) {
+        int[] array = new int[length];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    @NonNull
+    private static int[] growFilledArray(@NonNull int[] array, int length, int value) {
+        int[] result = Arrays.copyOf(array, length);
+        Arrays.fill(result, array.length, length, value);
+        return result;
+    }
+
+    /**
+     * Incoming edges of every node, in compressed sparse row form. Edges added after the last query
+     * are kept in a pending list, and merged in when the edges are queried again.
+     */
+    private static final class References {
+
+        // Edges of node n are mEdges[mOffsets[n]..mOffsets[n + 1]).
+        @NonNull
+        private int[] mOffsets = new int[FIRST_NODE + 1];
+
+        @NonNull
+        private int[] mEdges = new int[0];
+
+        // Pending (node, referrer) pairs, interleaved.
+        @NonNull
+        private int[] mPending = new int[0];
+
+        private int mPendingCount = 0;
+
+        void add(int node, int referrer) {
+            if (2 * mPendingCount + 2 > mPending.length) {
+                mPending = Arrays.copyOf(mPending, Math.max(INITIAL_CAPACITY, 2 * mPending.length));
+            }
+            mPending[2 * mPendingCount] = node;
+            mPending[2 * mPendingCount + 1] = referrer;
+            mPendingCount++;
+        }
+
+        int count(int node, int nodeCount) {
+            compact(nodeCount);
+            return mOffsets[node + 1] - mOffsets[node];
+        }
+
+        int get(int node, int i, int nodeCount) {
+            compact(nodeCount);
+            return mEdges[mOffsets[node] + i];
+        }
+
+        void write(@NonNull DataOutput out, int nodeCount) throws IOException {
+            compact(nodeCount);
+            writeInts(out, mOffsets, nodeCount + 1);
+            writeInts(out, mEdges, mOffsets[nodeCount]);
+        }
+
+        @NonNull
+        static References read(@NonNull DataBuffer in, int nodeCount) {
+            References references = new References();
+            references.mOffsets = readInts(in, new int[nodeCount + 1], nodeCount + 1);
+            int edgeCount = references.mOffsets[nodeCount];
+            references.mEdges = readInts(in, new int[edgeCount], edgeCount);
+            return references;
+        }
+
+        /**
+         * Merges the pending edges in, keeping the edges of each node in insertion order.
+         */
+        private void compact(int nodeCount) {
+            if (mPendingCount == 0 && mOffsets.length == nodeCount + 1) {
+                return;
+            }
+            int oldNodeCount = mOffsets.length - 1;
+            int[] offsets = new int[nodeCount + 1];
+            for (int node = 0; node < oldNodeCount; node++) {
+                offsets[node + 1] = mOffsets[node + 1] - mOffsets[node];
+            }
+            for (int i = 0; i < mPendingCount; i++) {
+                offsets[mPending[2 * i] + 1]++;
+            }
+            for (int node = 0; node < nodeCount; node++) {
+                offsets[node + 1] += offsets[node];
+            }
+
+            int[] edges = new int[offsets[nodeCount]];
+            int[] cursors = Arrays.copyOf(offsets, nodeCount);
+            for (int node = 0; node < oldNodeCount; node++) {
+                int count = mOffsets[node + 1] - mOffsets[node];
+                System.arraycopy(mEdges, mOffsets[node], edges, cursors[node], count);
+                cursors[node] += count;
+            }
+            for (int i = 0; i < mPendingCount; i++) {
+                edges[cursors[mPending[2 * i]]++] = mPending[2 * i + 1];
+            }
+
+            mOffsets = offsets;
+            mEdges = edges;
+            mPending = new int[0];
+            mPendingCount = 0;
+        }
+    }
+
+    /**
+     * Read-only view of the instances referring to a node.
+     */
+    private final class ReferenceList extends AbstractList<Instance> {
+
+        @NonNull
+        private final References mReferences;
+
+        private final int mNode;
+
+        ReferenceList(@NonNull References references, int node) {
+            mReferences = references;
+            mNode = node;
+        }
+
+        @Override
+        public Instance get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return mInstances[mReferences.get(mNode, index, mNodeCount)];
+        }
+
+        @Override
+        public int size() {
+            return mReferences.count(mNode, mNodeCount);
+        }
+    }
+}
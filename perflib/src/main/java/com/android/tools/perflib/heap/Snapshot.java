@@ -21,14 +21,20 @@ import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.tools.perflib.analyzer.Capture;
 import com.android.tools.perflib.heap.analysis.Dominators;
+import com.android.tools.perflib.heap.analysis.DominatorsBase;
+import com.android.tools.perflib.heap.analysis.LinkEvalDominators;
 import com.android.tools.perflib.heap.analysis.ShortestDistanceVisitor;
 import com.android.tools.perflib.heap.analysis.TopologicalSort;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.DuplicableDataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.google.common.collect.ImmutableList;
 import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TLongObjectHashMap;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 /*
@@ -48,9 +54,27 @@ public class Snapshot extends Capture {
 
     private static final int DEFAULT_HEAP_ID = 0;
 
+    /**
+     * The available dominator computation engines.
+     */
+    public enum DominatorComputation {
+        /**
+         * Iterative fixed-point algorithm, see {@link Dominators}. Quadratic in the worst case.
+         */
+        ITERATIVE,
+        /**
+         * Lengauer-Tarjan algorithm, see {@link LinkEvalDominators}.
+         */
+        LINK_EVAL
+    }
+
     @NonNull
     private final DataBuffer mBuffer;
 
+    //  The duplicates of mBuffer through which the threads attached by attachBufferView() read.
+    @NonNull
+    private final ThreadLocal<DataBuffer> mBufferViews = new ThreadLocal<DataBuffer>();
+
     @NonNull
     ArrayList<Heap> mHeaps = new ArrayList<Heap>();
 
@@ -65,9 +89,11 @@ public class Snapshot extends Capture {
     @NonNull
     TLongObjectHashMap<StackFrame> mFrames = new TLongObjectHashMap<StackFrame>();
 
-    private ImmutableList<Instance> mTopSort;
+    //  Compact storage for the references and analysis state of every instance and class.
+    @NonNull
+    private final InstanceGraph mGraph = new InstanceGraph();
 
-    private Dominators mDominators;
+    private ImmutableList<Instance> mTopSort;
 
     //  The set of all classes that are (sub)class(es) of java.lang.ref.Reference.
     private THashSet<ClassObj> mReferenceClasses = new THashSet<ClassObj>();
@@ -83,6 +109,40 @@ public class Snapshot extends Capture {
         return snapshot;
     }
 
+    /**
+     * Creates a snapshot, decoding the heap dump segments of the buffer on up to
+     * {@code threadCount} threads if it is a {@link DuplicableDataBuffer}. The result is the same
+     * as with {@link #createSnapshot(DataBuffer)}, except that the parse errors are thrown.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(@NonNull DataBuffer buffer, int threadCount)
+            throws IOException {
+        Snapshot snapshot = new Snapshot(buffer);
+        HprofParser.parseBuffer(snapshot, buffer, threadCount);
+        return snapshot;
+    }
+
+    /**
+     * Parses a heap dump file and computes its dominators and retained sizes. The results of the
+     * analysis are reused from the given index file if it was written for the same dump, and the
+     * index file is written otherwise. See {@link SnapshotIndex}.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(@NonNull File hprofFile, @NonNull File indexFile)
+            throws IOException {
+        Snapshot snapshot = createSnapshot(new MemoryMappedFileBuffer(hprofFile));
+        if (!SnapshotIndex.read(snapshot, hprofFile, indexFile)) {
+            snapshot.computeDominators();
+            try {
+                SnapshotIndex.write(snapshot, hprofFile, indexFile);
+            } catch (IOException e) {
+                // The index is only a cache, the snapshot is usable without it.
+                e.printStackTrace();
+            }
+        }
+        return snapshot;
+    }
+
     @VisibleForTesting
     public Snapshot(@NonNull DataBuffer buffer) {
         mBuffer = buffer;
@@ -95,7 +155,41 @@ public class Snapshot extends Capture {
 
     @NonNull
     DataBuffer getBuffer() {
-        return mBuffer;
+        DataBuffer view = mBufferViews.get();
+        return view != null ? view : mBuffer;
+    }
+
+    /**
+     * Makes the values of the instances read on the calling thread go through a duplicate of the
+     * buffer, with its own position, until {@link #detachBufferView()} is called. This lets
+     * several threads read the snapshot at once. Returns false if the buffer isn't a
+     * {@link DuplicableDataBuffer}, in which case the threads still have to take turns.
+     */
+    public boolean attachBufferView() {
+        if (mBufferViews.get() != null) {
+            return true;
+        }
+        if (!(mBuffer instanceof DuplicableDataBuffer)) {
+            return false;
+        }
+        mBufferViews.set(((DuplicableDataBuffer) mBuffer).duplicate());
+        return true;
+    }
+
+    /**
+     * Releases the buffer view attached to the calling thread by {@link #attachBufferView()}.
+     */
+    public void detachBufferView() {
+        DataBuffer view = mBufferViews.get();
+        if (view != null) {
+            mBufferViews.remove();
+            view.dispose();
+        }
+    }
+
+    @NonNull
+    public InstanceGraph getGraph() {
+        return mGraph;
     }
 
     @NonNull
@@ -221,11 +315,13 @@ public class Snapshot extends Capture {
     public final void addInstance(long id, @NonNull Instance instance) {
         mCurrentHeap.addInstance(id, instance);
         instance.setHeap(mCurrentHeap);
+        instance.mNodeId = mGraph.addNode(instance, getHeapIndex(mCurrentHeap));
     }
 
     public final void addClass(long id, @NonNull ClassObj theClass) {
         mCurrentHeap.addClass(id, theClass);
         theClass.setHeap(mCurrentHeap);
+        theClass.mNodeId = mGraph.addNode(theClass, getHeapIndex(mCurrentHeap));
     }
 
     @Nullable
@@ -341,12 +437,24 @@ public class Snapshot extends Capture {
         return descendants;
     }
 
-    // TODO: Break dominator computation into fixed chunks, because it can be unbounded/expensive.
     public void computeDominators() {
-        if (mDominators == null) {
+        computeDominators(DominatorComputation.LINK_EVAL);
+    }
+
+    public void computeDominators(@NonNull DominatorComputation computation) {
+        if (mTopSort == null) {
             mTopSort = TopologicalSort.compute(getGCRoots());
-            mDominators = new Dominators(this, mTopSort);
-            mDominators.computeRetainedSizes();
+            DominatorsBase dominators;
+            switch (computation) {
+                case ITERATIVE:
+                    dominators = new Dominators(this, mTopSort);
+                    break;
+                case LINK_EVAL:
+                default:
+                    dominators = new LinkEvalDominators(this, mTopSort);
+                    break;
+            }
+            dominators.computeRetainedSizes();
 
             ShortestDistanceVisitor shortestDistanceVisitor = new ShortestDistanceVisitor();
             shortestDistanceVisitor.doVisit(getGCRoots());
@@ -368,6 +476,13 @@ public class Snapshot extends Capture {
         return mTopSort;
     }
 
+    /**
+     * Marks the dominators as computed, with the instance columns restored from an index.
+     */
+    void setTopologicalOrdering(@NonNull ImmutableList<Instance> topSort) {
+        mTopSort = topSort;
+    }
+
     public final void dumpInstanceCounts() {
         for (Heap heap : mHeaps) {
             System.out.println(
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Sidecar index file caching the analysis results of a heap dump.
+ *
+ * Parsing a heap dump is a single sequential pass, but computing the topological order, the
+ * distances to the GC roots, the dominators and the retained sizes is much more expensive. The
+ * index stores the references between instances and all of these results, indexed by node id in
+ * the {@link InstanceGraph}. Since node ids are assigned in file order, they can be restored into
+ * the snapshot of the same dump without running the analysis again.
+ *
+ * The heap dump itself still has to be parsed, since the instances are created from it, but the
+ * index saves the whole analysis.
+ *
+ * The index is keyed by a fingerprint of the heap dump: its length, its modification time and a
+ * hash of its first and last bytes, so that checking an index doesn't read the whole dump. The
+ * index is ignored if the fingerprint doesn't match. All values are big endian, so that the file
+ * can be read through a {@link MemoryMappedFileBuffer}.
+ */
+public final class SnapshotIndex {
+
+    private static final int MAGIC = 0x50464958; // "PFIX"
+
+    private static final int VERSION = 2;
+
+    private static final int HASH_SIZE = 16;
+
+    /** The size of the magic, the version and the fingerprint. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + HASH_SIZE;
+
+    /** The number of bytes hashed at each end of the heap dump. */
+    private static final int SAMPLE_SIZE = 1 << 16;
+
+    private SnapshotIndex() {
+    }
+
+    /**
+     * Restores the analysis results of the snapshot from the index file. Returns false, leaving the
+     * snapshot unchanged, if the index is missing, unreadable, or was written for another dump.
+     */
+    public static boolean read(@NonNull Snapshot snapshot, @NonNull File hprofFile,
+            @NonNull File indexFile) {
+        if (!indexFile.isFile()) {
+            return false;
+        }
+        MemoryMappedFileBuffer in = null;
+        try {
+            if (!Arrays.equals(readHeader(indexFile), header(hprofFile))) {
+                return false;
+            }
+
+            in = new MemoryMappedFileBuffer(indexFile);
+            in.setPosition(HEADER_SIZE);
+            InstanceGraph graph = snapshot.getGraph();
+            int nodeCount = in.readInt();
+            if (nodeCount != graph.getNodeCount()) {
+                return false;
+            }
+            byte[] referencesAdded = new byte[nodeCount];
+            in.read(referencesAdded);
+            int[] topSort = new int[in.readInt()];
+            for (int i = 0; i < topSort.length; i++) {
+                topSort[i] = in.readInt();
+            }
+            if (!graph.read(in)) {
+                return false;
+            }
+
+            for (int node = InstanceGraph.FIRST_NODE; node < nodeCount; node++) {
+                graph.getInstance(node).mReferencesAdded = referencesAdded[node] != 0;
+            }
+            ImmutableList.Builder<Instance> instances = ImmutableList.builder();
+            for (int node : topSort) {
+                instances.add(graph.getInstance(node));
+            }
+            snapshot.setTopologicalOrdering(instances.build());
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            // Truncated or corrupted index.
+            return false;
+        } finally {
+            if (in != null) {
+                in.dispose();
+            }
+        }
+    }
+
+    /**
+     * Writes the analysis results of the snapshot, computing them first if needed.
+     */
+    public static void write(@NonNull Snapshot snapshot, @NonNull File hprofFile,
+            @NonNull File indexFile) throws IOException {
+        snapshot.computeDominators();
+        InstanceGraph graph = snapshot.getGraph();
+
+        // Write to a temporary file first, so that an interrupted write can't leave a truncated
+        // index behind.
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+        try {
+            out.write(header(hprofFile));
+
+            int nodeCount = graph.getNodeCount();
+            out.writeInt(nodeCount);
+            out.writeByte(0);
+            for (int node = InstanceGraph.FIRST_NODE; node < nodeCount; node++) {
+                out.writeByte(graph.getInstance(node).mReferencesAdded ? 1 : 0);
+            }
+            ImmutableList<Instance> topSort = snapshot.getTopologicalOrdering();
+            out.writeInt(topSort.size());
+            for (Instance instance : topSort) {
+                out.writeInt(instance.getNodeId());
+            }
+            graph.write(out);
+        } finally {
+            out.close();
+        }
+
+        if (indexFile.exists() && !indexFile.delete() || !tempFile.renameTo(indexFile)) {
+            tempFile.delete();
+            throw new IOException("Could not write " + indexFile);
+        }
+    }
+
+    /**
+     * Returns the header of the index: the magic, the version and the fingerprint of the heap
+     * dump.
+     */
+    @NonNull
+    private static byte[] header(@NonNull File hprofFile) throws IOException {
+        long length = hprofFile.length();
+        long lastModified = hprofFile.lastModified();
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        RandomAccessFile file = new RandomAccessFile(hprofFile, "r");
+        try {
+            byte[] sample = new byte[(int) Math.min(length, SAMPLE_SIZE)];
+            file.readFully(sample);
+            hasher.putBytes(sample);
+            if (length > SAMPLE_SIZE) {
+                sample = new byte[(int) Math.min(length - SAMPLE_SIZE, SAMPLE_SIZE)];
+                file.seek(length - sample.length);
+                file.readFully(sample);
+                hasher.putBytes(sample);
+            }
+        } finally {
+            file.close();
+        }
+
+        ByteArrayDataOutput out = ByteStreams.newDataOutput(HEADER_SIZE);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(length);
+        out.writeLong(lastModified);
+        out.write(hasher.hash().asBytes());
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the header of an index file, without mapping the rest of it.
+     */
+    @NonNull
+    private static byte[] readHeader(@NonNull File indexFile) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+        try {
+            in.readFully(header);
+        } finally {
+            in.close();
+        }
+        return header;
+    }
+}
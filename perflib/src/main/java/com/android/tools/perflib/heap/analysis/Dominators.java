@@ -19,7 +19,6 @@ package com.android.tools.perflib.heap.analysis;
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.heap.*;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 
 /**
  * Initial implementation of dominator computation.
@@ -32,19 +31,13 @@ import com.google.common.collect.Iterables;
  * freed if the node were garbage collected.
  *
  * The full algorithm is described in {@see http://www.cs.rice.edu/~keith/EMBED/dom.pdf}. It's a
- * simple iterative algorithm with worst-case complexity of O(N^2).
+ * simple iterative algorithm with worst-case complexity of O(N^2). It is kept as a fallback for
+ * {@link LinkEvalDominators}, which should be preferred on large heaps.
  */
-public class Dominators {
-
-    @NonNull
-    private final Snapshot mSnapshot;
-
-    @NonNull
-    private final ImmutableList<Instance> mTopSort;
+public class Dominators extends DominatorsBase {
 
     public Dominators(@NonNull Snapshot snapshot, @NonNull ImmutableList<Instance> topSort) {
-        mSnapshot = snapshot;
-        mTopSort = topSort;
+        super(snapshot, topSort);
 
         // Only instances reachable from the GC roots will participate in dominator computation.
         // We will omit from the analysis any other nodes which could be considered roots, i.e. with
@@ -57,7 +50,8 @@ public class Dominators {
         }
     }
 
-    private void computeDominators() {
+    @Override
+    protected void computeDominators() {
         // We need to iterate on the dominator computation because the graph may contain cycles.
         // TODO: Check how long it takes to converge, and whether we need to place an upper bound.
         boolean changed = true;
@@ -100,27 +94,4 @@ public class Dominators {
             }
         }
     }
-
-    /**
-     * Kicks off the computation of dominators and retained sizes.
-     */
-    public void computeRetainedSizes() {
-        // Initialize retained sizes for all classes and objects, including unreachable ones.
-        for (Heap heap : mSnapshot.getHeaps()) {
-            for (Instance instance : Iterables.concat(heap.getClasses(), heap.getInstances())) {
-                instance.resetRetainedSize();
-            }
-        }
-        computeDominators();
-        // We only update the retained sizes of objects in the dominator tree (i.e. reachable).
-        for (Instance node : mSnapshot.getReachableInstances()) {
-            int heapIndex = mSnapshot.getHeapIndex(node.getHeap());
-            // Add the size of the current node to the retained size of every dominator up to the
-            // root, in the same heap.
-            for (Instance dom = node.getImmediateDominator(); dom != Snapshot.SENTINEL_ROOT;
-                    dom = dom.getImmediateDominator()) {
-                dom.addRetainedSize(heapIndex, node.getSize());
-            }
-        }
-    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Base class for the dominator computation engines.
+ *
+ * Subclasses only need to set the immediate dominator of every instance reachable from the GC
+ * roots through hard references. Instances dominated by more than one GC root are dominated by
+ * {@link Snapshot#SENTINEL_ROOT}. Retained sizes are then derived from the dominator tree.
+ */
+public abstract class DominatorsBase {
+
+    @NonNull
+    protected final Snapshot mSnapshot;
+
+    @NonNull
+    protected final ImmutableList<Instance> mTopSort;
+
+    protected DominatorsBase(@NonNull Snapshot snapshot, @NonNull ImmutableList<Instance> topSort) {
+        mSnapshot = snapshot;
+        mTopSort = topSort;
+    }
+
+    /**
+     * Computes the immediate dominator of every reachable instance.
+     */
+    protected abstract void computeDominators();
+
+    /**
+     * Kicks off the computation of dominators and retained sizes.
+     */
+    public void computeRetainedSizes() {
+        // Initialize retained sizes for all classes and objects, including unreachable ones.
+        for (Heap heap : mSnapshot.getHeaps()) {
+            for (Instance instance : Iterables.concat(heap.getClasses(), heap.getInstances())) {
+                instance.resetRetainedSize();
+            }
+        }
+        computeDominators();
+        accumulateRetainedSizes();
+    }
+
+    /**
+     * Sums the sizes of every subtree of the dominator tree in a single bottom-up pass, so that the
+     * cost is linear in the number of reachable instances rather than in the sum of their depths.
+     *
+     * Nodes are indexed by topological order, with {@link Snapshot#SENTINEL_ROOT} at index 0.
+     */
+    private void accumulateRetainedSizes() {
+        int nodeCount = mTopSort.size() + 1;
+        List<Heap> heaps = new ArrayList<Heap>(mSnapshot.getHeaps());
+
+        // Immediate dominator and heap index of each node, or -1 if the node is not reachable.
+        int[] dominators = new int[nodeCount];
+        int[] heapIndices = new int[nodeCount];
+        Arrays.fill(dominators, -1);
+        long[][] retainedSizes = new long[heaps.size()][nodeCount];
+        int[] childCounts = new int[nodeCount];
+        for (Instance node : mTopSort) {
+            Instance dominator = node.getImmediateDominator();
+            if (dominator == null) {
+                continue;
+            }
+            int index = node.getTopologicalOrder();
+            dominators[index] = dominator.getTopologicalOrder();
+            heapIndices[index] = heaps.indexOf(node.getHeap());
+            retainedSizes[heapIndices[index]][index] = node.getSize();
+            childCounts[dominators[index]]++;
+        }
+
+        // Lay out the children of each node contiguously, then list the nodes in breadth-first
+        // order from the sentinel so that every node comes after its dominator.
+        int[] childStarts = new int[nodeCount + 1];
+        for (int i = 0; i < nodeCount; i++) {
+            childStarts[i + 1] = childStarts[i] + childCounts[i];
+        }
+        int[] children = new int[childStarts[nodeCount]];
+        System.arraycopy(childStarts, 0, childCounts, 0, nodeCount);
+        for (int i = 1; i < nodeCount; i++) {
+            if (dominators[i] >= 0) {
+                children[childCounts[dominators[i]]++] = i;
+            }
+        }
+        int[] order = new int[children.length + 1];
+        int tail = 1;
+        for (int head = 0; head < tail; head++) {
+            int node = order[head];
+            for (int j = childStarts[node]; j < childStarts[node + 1]; j++) {
+                order[tail++] = children[j];
+            }
+        }
+
+        // Walk the nodes in reverse, adding each subtree into its dominator, then publish the sums.
+        for (int i = tail - 1; i > 0; i--) {
+            int node = order[i];
+            int dominator = dominators[node];
+            if (dominator != 0) {
+                for (long[] heapSizes : retainedSizes) {
+                    heapSizes[dominator] += heapSizes[node];
+                }
+            }
+            Instance instance = mTopSort.get(node - 1);
+            for (int heapIndex = 0; heapIndex < retainedSizes.length; heapIndex++) {
+                long size = retainedSizes[heapIndex][node];
+                if (heapIndex == heapIndices[node]) {
+                    // The shallow size was already set by resetRetainedSize().
+                    size -= instance.getSize();
+                }
+                instance.addRetainedSize(heapIndex, size);
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceGraph;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Lengauer-Tarjan dominator computation, with simple link and path-compressing eval.
+ *
+ * The algorithm is described in "A Fast Algorithm for Finding Dominators in a Flowgraph",
+ * T. Lengauer and R. E. Tarjan, ACM TOPLAS 1(1), 1979. It runs in O(M log N), where N and M are the
+ * number of nodes and hard references in the heap, regardless of the shape of the graph.
+ *
+ * The object graph is first flattened into int-indexed arrays, using the topological order of each
+ * instance as its node index and 0 for {@link Snapshot#SENTINEL_ROOT}. All the intermediate state
+ * of the algorithm lives in primitive arrays, and recursion is avoided so that very deep heaps
+ * don't overflow the stack.
+ */
+public class LinkEvalDominators extends DominatorsBase {
+
+    // Node index -> instance, with the sentinel root at index 0.
+    private Instance[] mNodes;
+
+    // Compressed adjacency lists, indexed by node index. The successors of node i are
+    // mSuccessors[mSuccessorStarts[i]..mSuccessorStarts[i + 1]), and similarly for predecessors.
+    private int[] mSuccessorStarts;
+
+    private int[] mSuccessors;
+
+    private int[] mPredecessorStarts;
+
+    private int[] mPredecessors;
+
+    // The following arrays are indexed by DFS preorder number, starting at 1. 0 means "none".
+    private int[] mVertex;
+
+    private int[] mParent;
+
+    private int[] mSemi;
+
+    private int[] mLabel;
+
+    private int[] mAncestor;
+
+    private int[] mDominator;
+
+    // Scratch stack for the non-recursive path compression.
+    private int[] mCompressStack;
+
+    public LinkEvalDominators(@NonNull Snapshot snapshot,
+            @NonNull ImmutableList<Instance> topSort) {
+        super(snapshot, topSort);
+    }
+
+    @Override
+    protected void computeDominators() {
+        buildGraph();
+        int[] preorder = new int[mNodes.length];
+        int count = depthFirstSearch(preorder);
+        computeImmediateDominators(preorder, count);
+
+        // Write the results back to the instances, and release the intermediate arrays.
+        for (int i = 2; i <= count; i++) {
+            int dominatorNode = mVertex[mDominator[i]];
+            mNodes[mVertex[i]].setImmediateDominator(
+                    dominatorNode == 0 ? Snapshot.SENTINEL_ROOT : mNodes[dominatorNode]);
+        }
+        mNodes = null;
+        mSuccessorStarts = mSuccessors = mPredecessorStarts = mPredecessors = null;
+        mVertex = mParent = mSemi = mLabel = mAncestor = mDominator = mCompressStack = null;
+    }
+
+    /**
+     * Flattens the hard references between the instances in the topological sort into compressed
+     * predecessor and successor arrays. The sentinel root is given an edge to each GC root.
+     */
+    private void buildGraph() {
+        InstanceGraph graph = mSnapshot.getGraph();
+        int nodeCount = mTopSort.size() + 1;
+        mNodes = new Instance[nodeCount];
+        mNodes[0] = Snapshot.SENTINEL_ROOT;
+        for (Instance instance : mTopSort) {
+            mNodes[instance.getTopologicalOrder()] = instance;
+        }
+
+        // Each root instance only gets one edge from the sentinel, even if it has several roots.
+        boolean[] isRoot = new boolean[nodeCount];
+        for (RootObj root : mSnapshot.getGCRoots()) {
+            int node = getNodeIndex(root.getReferredInstance());
+            if (node > 0) {
+                isRoot[node] = true;
+            }
+        }
+
+        mPredecessorStarts = new int[nodeCount + 1];
+        int[] successorCounts = new int[nodeCount];
+        int edgeCount = 0;
+        for (int i = 1; i < nodeCount; i++) {
+            mPredecessorStarts[i] = edgeCount;
+            if (isRoot[i]) {
+                successorCounts[0]++;
+                edgeCount++;
+            }
+            int graphNode = mNodes[i].getNodeId();
+            for (int j = 0; j < graph.getHardReferenceCount(graphNode); j++) {
+                int predecessor =
+                        getNodeIndex(graph.getInstance(graph.getHardReference(graphNode, j)));
+                if (predecessor > 0) {
+                    successorCounts[predecessor]++;
+                    edgeCount++;
+                }
+            }
+        }
+        mPredecessorStarts[nodeCount] = edgeCount;
+
+        mPredecessors = new int[edgeCount];
+        mSuccessors = new int[edgeCount];
+        mSuccessorStarts = new int[nodeCount + 1];
+        for (int i = 0; i < nodeCount; i++) {
+            mSuccessorStarts[i + 1] = mSuccessorStarts[i] + successorCounts[i];
+        }
+        // Reuse the counts as insertion cursors into the successor array.
+        System.arraycopy(mSuccessorStarts, 0, successorCounts, 0, nodeCount);
+        int edge = 0;
+        for (int i = 1; i < nodeCount; i++) {
+            if (isRoot[i]) {
+                mPredecessors[edge++] = 0;
+                mSuccessors[successorCounts[0]++] = i;
+            }
+            int graphNode = mNodes[i].getNodeId();
+            for (int j = 0; j < graph.getHardReferenceCount(graphNode); j++) {
+                int predecessor =
+                        getNodeIndex(graph.getInstance(graph.getHardReference(graphNode, j)));
+                if (predecessor > 0) {
+                    mPredecessors[edge++] = predecessor;
+                    mSuccessors[successorCounts[predecessor]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the node index of the given instance, or -1 if it is not part of the topological sort,
+     * e.g. when the reference was recorded by a traversal that didn't start from the GC roots.
+     */
+    private int getNodeIndex(@Nullable Instance instance) {
+        if (instance == null) {
+            return -1;
+        }
+        int order = instance.getTopologicalOrder();
+        return order > 0 && order < mNodes.length && mNodes[order] == instance ? order : -1;
+    }
+
+    /**
+     * Numbers the nodes reachable from the sentinel root in DFS preorder, and records their DFS tree
+     * parents. Returns the number of reachable nodes, including the sentinel.
+     */
+    private int depthFirstSearch(@NonNull int[] preorder) {
+        int nodeCount = mNodes.length;
+        mVertex = new int[nodeCount + 1];
+        mParent = new int[nodeCount + 1];
+
+        int[] stack = new int[nodeCount];
+        int[] nextEdge = new int[nodeCount];
+        System.arraycopy(mSuccessorStarts, 0, nextEdge, 0, nodeCount);
+
+        int count = 1;
+        preorder[0] = count;
+        mVertex[count] = 0;
+        int top = 0;
+        stack[0] = 0;
+        while (top >= 0) {
+            int node = stack[top];
+            if (nextEdge[node] < mSuccessorStarts[node + 1]) {
+                int successor = mSuccessors[nextEdge[node]++];
+                if (preorder[successor] == 0) {
+                    preorder[successor] = ++count;
+                    mVertex[count] = successor;
+                    mParent[count] = preorder[node];
+                    stack[++top] = successor;
+                }
+            } else {
+                top--;
+            }
+        }
+        return count;
+    }
+
+    private void computeImmediateDominators(@NonNull int[] preorder, int count) {
+        mSemi = new int[count + 1];
+        mLabel = new int[count + 1];
+        mAncestor = new int[count + 1];
+        mDominator = new int[count + 1];
+        mCompressStack = new int[count + 1];
+        for (int i = 1; i <= count; i++) {
+            mSemi[i] = i;
+            mLabel[i] = i;
+        }
+
+        // Buckets are kept as singly linked lists, since every node is added to exactly one bucket.
+        int[] bucketHead = new int[count + 1];
+        int[] bucketNext = new int[count + 1];
+
+        for (int w = count; w >= 2; w--) {
+            int node = mVertex[w];
+            for (int j = mPredecessorStarts[node]; j < mPredecessorStarts[node + 1]; j++) {
+                int v = preorder[mPredecessors[j]];
+                if (v != 0) {
+                    int u = eval(v);
+                    if (mSemi[u] < mSemi[w]) {
+                        mSemi[w] = mSemi[u];
+                    }
+                }
+            }
+            bucketNext[w] = bucketHead[mSemi[w]];
+            bucketHead[mSemi[w]] = w;
+
+            int parent = mParent[w];
+            mAncestor[w] = parent;
+
+            for (int v = bucketHead[parent]; v != 0; v = bucketNext[v]) {
+                int u = eval(v);
+                mDominator[v] = mSemi[u] < mSemi[v] ? u : parent;
+            }
+            bucketHead[parent] = 0;
+        }
+
+        for (int w = 2; w <= count; w++) {
+            if (mDominator[w] != mSemi[w]) {
+                mDominator[w] = mDominator[mDominator[w]];
+            }
+        }
+        mDominator[1] = 0;
+    }
+
+    private int eval(int v) {
+        if (mAncestor[v] == 0) {
+            return v;
+        }
+        compress(v);
+        return mLabel[v];
+    }
+
+    private void compress(int v) {
+        // Collect the path up to the last node whose ancestor is the forest root, then compress it
+        // top-down, which is the order the recursive formulation would unwind in.
+        int top = 0;
+        for (int u = v; mAncestor[mAncestor[u]] != 0; u = mAncestor[u]) {
+            mCompressStack[top++] = u;
+        }
+        while (top > 0) {
+            int u = mCompressStack[--top];
+            int ancestor = mAncestor[u];
+            if (mSemi[mLabel[ancestor]] < mSemi[mLabel[u]]) {
+                mLabel[u] = mLabel[ancestor];
+            }
+            mAncestor[u] = mAncestor[ancestor];
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceGraph;
+import com.android.tools.perflib.heap.Snapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Differences between two heap dumps of the same process.
+ *
+ * Each snapshot is first reduced to a {@link Summary}, which only keeps primitive columns for the
+ * reachable instances, sorted by id, and totals per class name. The snapshot can then be disposed
+ * before the next one is loaded, so that only one object graph is held in memory at a time. The
+ * summaries are compared by merging their sorted ids.
+ *
+ * Classes are matched by name, since class objects of different dumps have unrelated ids. Instances
+ * are matched by id, provided that their classes have the same name: ids of instances that were
+ * freed may have been reused by new instances of another class in the meantime.
+ */
+public final class SnapshotDiff {
+
+    private static final String JAVA_LANG_CLASS = "java.lang.Class";
+
+    private static final String UNKNOWN_CLASS = "<unknown>";
+
+    @NonNull
+    private final List<ClassDiff> mClassDiffs;
+
+    @NonNull
+    private final List<RetainedSubtree> mNewlyRetainedSubtrees;
+
+    private SnapshotDiff(@NonNull List<ClassDiff> classDiffs,
+            @NonNull List<RetainedSubtree> newlyRetainedSubtrees) {
+        mClassDiffs = classDiffs;
+        mNewlyRetainedSubtrees = newlyRetainedSubtrees;
+    }
+
+    /**
+     * Compares the summaries of an earlier and a later snapshot.
+     */
+    @NonNull
+    public static SnapshotDiff compute(@NonNull Summary before, @NonNull Summary after) {
+        Map<String, ClassDiff> classDiffs = new LinkedHashMap<String, ClassDiff>();
+        for (int i = 0; i < before.mClassNames.length; i++) {
+            ClassDiff diff = new ClassDiff(before.mClassNames[i]);
+            diff.mCountBefore = before.mClassCounts[i];
+            diff.mShallowSizeBefore = before.mClassShallowSizes[i];
+            diff.mRetainedSizeBefore = before.mClassRetainedSizes[i];
+            classDiffs.put(diff.mClassName, diff);
+        }
+        for (int i = 0; i < after.mClassNames.length; i++) {
+            ClassDiff diff = classDiffs.get(after.mClassNames[i]);
+            if (diff == null) {
+                diff = new ClassDiff(after.mClassNames[i]);
+                classDiffs.put(diff.mClassName, diff);
+            }
+            diff.mCountAfter = after.mClassCounts[i];
+            diff.mShallowSizeAfter = after.mClassShallowSizes[i];
+            diff.mRetainedSizeAfter = after.mClassRetainedSizes[i];
+        }
+        List<ClassDiff> sortedClassDiffs = new ArrayList<ClassDiff>(classDiffs.values());
+        Collections.sort(sortedClassDiffs, new Comparator<ClassDiff>() {
+            @Override
+            public int compare(ClassDiff o1, ClassDiff o2) {
+                long delta1 = o1.getRetainedSizeDelta();
+                long delta2 = o2.getRetainedSizeDelta();
+                return delta1 == delta2 ? o1.mClassName.compareTo(o2.mClassName)
+                        : delta1 > delta2 ? -1 : 1;
+            }
+        });
+
+        // Instances of the later snapshot that already existed in the earlier one.
+        boolean[] matched = new boolean[after.mIds.length];
+        int i = 0;
+        for (int j = 0; j < after.mIds.length; j++) {
+            while (i < before.mIds.length && before.mIds[i] < after.mIds[j]) {
+                i++;
+            }
+            for (int k = i; k < before.mIds.length && before.mIds[k] == after.mIds[j]; k++) {
+                if (before.getClassName(k).equals(after.getClassName(j))) {
+                    matched[j] = true;
+                    break;
+                }
+            }
+        }
+
+        // A new instance whose dominator is an old instance, or the GC roots, is the root of a
+        // dominator subtree retained since the earlier snapshot. The subtree may still hold old
+        // instances, which are now only reachable through its root.
+        List<RetainedSubtree> subtrees = new ArrayList<RetainedSubtree>();
+        for (int j = 0; j < after.mIds.length; j++) {
+            int dominator = after.mDominators[j];
+            if (!matched[j] && (dominator < 0 || matched[dominator])) {
+                subtrees.add(new RetainedSubtree(after.mIds[j], after.getClassName(j),
+                        after.mRetainedSizes[j]));
+            }
+        }
+        Collections.sort(subtrees, new Comparator<RetainedSubtree>() {
+            @Override
+            public int compare(RetainedSubtree o1, RetainedSubtree o2) {
+                return o1.mRetainedSize == o2.mRetainedSize ? 0
+                        : o1.mRetainedSize > o2.mRetainedSize ? -1 : 1;
+            }
+        });
+
+        return new SnapshotDiff(sortedClassDiffs, subtrees);
+    }
+
+    /**
+     * Returns the differences of every class found in either snapshot, by decreasing retained size
+     * delta.
+     */
+    @NonNull
+    public List<ClassDiff> getClassDiffs() {
+        return mClassDiffs;
+    }
+
+    /**
+     * Returns the dominator subtrees of the later snapshot whose root is a new instance dominated
+     * by an old instance or by the GC roots, by decreasing retained size. See
+     * {@link RetainedSubtree}.
+     */
+    @NonNull
+    public List<RetainedSubtree> getNewlyRetainedSubtrees() {
+        return mNewlyRetainedSubtrees;
+    }
+
+    @NonNull
+    private static String getClassNameOf(@NonNull Instance instance) {
+        ClassObj clazz = instance.getClassObj();
+        if (clazz != null) {
+            return clazz.getClassName();
+        }
+        return instance instanceof ClassObj ? JAVA_LANG_CLASS : UNKNOWN_CLASS;
+    }
+
+    /**
+     * Compact, primitive summary of the reachable instances of a snapshot.
+     */
+    public static final class Summary {
+
+        // Totals per class name, for reachable instances only.
+        @NonNull
+        private final String[] mClassNames;
+
+        @NonNull
+        private final int[] mClassCounts;
+
+        @NonNull
+        private final long[] mClassShallowSizes;
+
+        @NonNull
+        private final long[] mClassRetainedSizes;
+
+        // The following are indexed by the position of each reachable instance in id order.
+        @NonNull
+        private final long[] mIds;
+
+        @NonNull
+        private final int[] mClassIndices;
+
+        @NonNull
+        private final long[] mRetainedSizes;
+
+        // Position of the immediate dominator, or -1 for instances dominated by the GC roots.
+        @NonNull
+        private final int[] mDominators;
+
+        private Summary(@NonNull String[] classNames, @NonNull long[] ids,
+                @NonNull int[] classIndices, @NonNull long[] retainedSizes,
+                @NonNull int[] dominators) {
+            mClassNames = classNames;
+            mIds = ids;
+            mClassIndices = classIndices;
+            mRetainedSizes = retainedSizes;
+            mDominators = dominators;
+            mClassCounts = new int[classNames.length];
+            mClassShallowSizes = new long[classNames.length];
+            mClassRetainedSizes = new long[classNames.length];
+        }
+
+        /**
+         * Summarizes a snapshot, computing its dominators first if needed.
+         */
+        @NonNull
+        public static Summary of(@NonNull Snapshot snapshot) {
+            snapshot.computeDominators();
+            InstanceGraph graph = snapshot.getGraph();
+
+            int count = 0;
+            int[] nodes = new int[graph.getNodeCount()];
+            for (int node = InstanceGraph.FIRST_NODE; node < graph.getNodeCount(); node++) {
+                if (graph.getDominator(node) != InstanceGraph.NO_NODE) {
+                    nodes[count++] = node;
+                }
+            }
+            nodes = Arrays.copyOf(nodes, count);
+            long[] ids = new long[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = graph.getInstance(nodes[i]).getId();
+            }
+            sortByKey(ids, nodes);
+
+            int[] positions = new int[graph.getNodeCount()];
+            for (int i = 0; i < count; i++) {
+                positions[nodes[i]] = i;
+            }
+            Map<String, Integer> classIndices = new HashMap<String, Integer>();
+            List<String> classNames = new ArrayList<String>();
+            int[] instanceClasses = new int[count];
+            long[] retainedSizes = new long[count];
+            int[] dominators = new int[count];
+            for (int i = 0; i < count; i++) {
+                String className = getClassNameOf(graph.getInstance(nodes[i]));
+                Integer classIndex = classIndices.get(className);
+                if (classIndex == null) {
+                    classIndex = classNames.size();
+                    classIndices.put(className, classIndex);
+                    classNames.add(className);
+                }
+                instanceClasses[i] = classIndex;
+                retainedSizes[i] = graph.getTotalRetainedSize(nodes[i]);
+                int dominator = graph.getDominator(nodes[i]);
+                dominators[i] =
+                        dominator == InstanceGraph.SENTINEL_NODE ? -1 : positions[dominator];
+            }
+
+            Summary summary = new Summary(classNames.toArray(new String[classNames.size()]), ids,
+                    instanceClasses, retainedSizes, dominators);
+            for (int i = 0; i < count; i++) {
+                int classIndex = instanceClasses[i];
+                summary.mClassCounts[classIndex]++;
+                summary.mClassShallowSizes[classIndex] += graph.getInstance(nodes[i]).getSize();
+                // Instances dominated by an instance of the same class, e.g. the nodes of a linked
+                // list, are already accounted for by their dominator.
+                if (dominators[i] < 0 || instanceClasses[dominators[i]] != classIndex) {
+                    summary.mClassRetainedSizes[classIndex] += retainedSizes[i];
+                }
+            }
+            return summary;
+        }
+
+        /**
+         * Returns the number of reachable instances.
+         */
+        public int getInstanceCount() {
+            return mIds.length;
+        }
+
+        @NonNull
+        private String getClassName(int position) {
+            return mClassNames[mClassIndices[position]];
+        }
+
+        /**
+         * Sorts the keys in increasing order, applying the same permutation to the values.
+         */
+        private static void sortByKey(@NonNull long[] keys, @NonNull int[] values) {
+            // Bottom-up merge sort, which needs no recursion and keeps equal keys in node order.
+            int length = keys.length;
+            long[] keyBuffer = new long[length];
+            int[] valueBuffer = new int[length];
+            long[] fromKeys = keys;
+            int[] fromValues = values;
+            long[] toKeys = keyBuffer;
+            int[] toValues = valueBuffer;
+            for (int width = 1; width < length; width *= 2) {
+                for (int start = 0; start < length; start += 2 * width) {
+                    int middle = Math.min(start + width, length);
+                    int end = Math.min(start + 2 * width, length);
+                    int left = start;
+                    int right = middle;
+                    for (int k = start; k < end; k++) {
+                        if (left < middle && (right >= end || fromKeys[left] <= fromKeys[right])) {
+                            toKeys[k] = fromKeys[left];
+                            toValues[k] = fromValues[left++];
+                        } else {
+                            toKeys[k] = fromKeys[right];
+                            toValues[k] = fromValues[right++];
+                        }
+                    }
+                }
+                long[] swapKeys = fromKeys;
+                fromKeys = toKeys;
+                toKeys = swapKeys;
+                int[] swapValues = fromValues;
+                fromValues = toValues;
+                toValues = swapValues;
+            }
+            if (fromKeys != keys) {
+                System.arraycopy(fromKeys, 0, keys, 0, length);
+                System.arraycopy(fromValues, 0, values, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Count and size differences of the reachable instances of a class.
+     *
+     * The retained size of a class is the sum of the retained sizes of its instances, except for
+     * the ones immediately dominated by another instance of the same class.
+     */
+    public static final class ClassDiff {
+
+        @NonNull
+        private final String mClassName;
+
+        private int mCountBefore;
+
+        private int mCountAfter;
+
+        private long mShallowSizeBefore;
+
+        private long mShallowSizeAfter;
+
+        private long mRetainedSizeBefore;
+
+        private long mRetainedSizeAfter;
+
+        private ClassDiff(@NonNull String className) {
+            mClassName = className;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public int getCountBefore() {
+            return mCountBefore;
+        }
+
+        public int getCountAfter() {
+            return mCountAfter;
+        }
+
+        public int getCountDelta() {
+            return mCountAfter - mCountBefore;
+        }
+
+        public long getShallowSizeDelta() {
+            return mShallowSizeAfter - mShallowSizeBefore;
+        }
+
+        public long getRetainedSizeDelta() {
+            return mRetainedSizeAfter - mRetainedSizeBefore;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %+d instances, %+d bytes shallow, %+d bytes retained",
+                    mClassName, getCountDelta(), getShallowSizeDelta(), getRetainedSizeDelta());
+        }
+    }
+
+    /**
+     * A dominator subtree of the later snapshot whose root is a new instance, i.e. whose id doesn't
+     * match an instance of the same class in the earlier snapshot.
+     *
+     * The retained size is the one of the whole subtree in the later snapshot: it also includes
+     * the old instances which are now only reachable through the root. An instance whose id was
+     * reused by a new instance of the same class is taken for an old one.
+     */
+    public static final class RetainedSubtree {
+
+        private final long mId;
+
+        @NonNull
+        private final String mClassName;
+
+        private final long mRetainedSize;
+
+        private RetainedSubtree(long id, @NonNull String className, long retainedSize) {
+            mId = id;
+            mClassName = className;
+            mRetainedSize = retainedSize;
+        }
+
+        /**
+         * Returns the id of the root instance of the subtree, in the later snapshot.
+         */
+        public long getId() {
+            return mId;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public long getRetainedSize() {
+            return mRetainedSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s@0x%x: %d bytes retained", mClassName, mId, mRetainedSize);
+        }
+    }
+}
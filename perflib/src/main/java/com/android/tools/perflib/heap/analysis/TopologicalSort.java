@@ -20,7 +20,6 @@ import com.android.annotations.NonNull;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.NonRecursiveVisitor;
 import com.android.tools.perflib.heap.RootObj;
-import com.android.tools.perflib.heap.Snapshot;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
@@ -36,12 +35,10 @@ public class TopologicalSort {
         visitor.doVisit(roots);
         ImmutableList<Instance> instances = visitor.getOrderedInstances();
 
-        // We add the special sentinel node as the single root of the object graph, to ensure the
-        // dominator algorithm terminates when having to choose between two GC roots.
-        Snapshot.SENTINEL_ROOT.setTopologicalOrder(0);
-
         // Set localIDs in the range 1..keys.size(). This simplifies the algorithm & data structures
-        // for dominator computation.
+        // for dominator computation. The special sentinel node, which acts as the single root of
+        // the object graph, is not part of the graph and always has order 0. This ensures the
+        // dominator algorithm terminates when having to choose between two GC roots.
         int currentIndex = 0;
         for (Instance node : instances) {
             node.setTopologicalOrder(++currentIndex);
@@ -52,13 +52,7 @@ public class Hprof {
      */
     public void write(OutputStream os) throws IOException {
         HprofOutputStream hprof = new HprofOutputStream(idSize, os);
-        hprof.write(format.getBytes(Charsets.US_ASCII));
-        hprof.write(0);
-        hprof.writeU4(idSize);
-
-        long time = date.getTime();
-        hprof.writeU4((int)(time >> 32));
-        hprof.writeU4((int)(time >> 0));
+        writeHeader(hprof, format, idSize, date);
 
         for (HprofRecord record : records) {
             record.write(hprof);
@@ -67,4 +61,18 @@ public class Hprof {
         hprof.flush();
         hprof.close();
     }
+
+    /**
+     * Write the hprof header, which comes before the records.
+     */
+    static void writeHeader(HprofOutputStream hprof, String format, int idSize, Date date)
+            throws IOException {
+        hprof.write(format.getBytes(Charsets.US_ASCII));
+        hprof.write(0);
+        hprof.writeU4(idSize);
+
+        long time = date.getTime();
+        hprof.writeU4((int)(time >> 32));
+        hprof.writeU4((int)(time >> 0));
+    }
 }
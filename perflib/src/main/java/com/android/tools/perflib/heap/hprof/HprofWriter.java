@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.hprof;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+/**
+ * Writes hprof data incrementally, as opposed to {@link Hprof} which needs all the records up
+ * front.
+ *
+ * Heap dump sub-records are grouped into HEAP_DUMP_SEGMENT records, which are started on demand
+ * and split once they reach a maximum length. The length of each segment is back-patched in the
+ * output when the segment ends, so only the records being written are held in memory, however big
+ * the dump is.
+ */
+public class HprofWriter implements Closeable {
+    public static final int DEFAULT_MAX_SEGMENT_LENGTH = 1 << 20;
+
+    private static final long MAX_RECORD_LENGTH = 0xffffffffL;
+
+    private final FileChannel mChannel;
+    private final long mStartPosition;
+    private final CountingOutputStream mCountingStream;
+    private final HprofOutputStream mHprof;
+    private final int mMaxSegmentLength;
+
+    // Output offsets of the length field and of the contents of the current segment, or -1.
+    private long mSegmentLengthOffset = -1;
+    private long mSegmentStart = -1;
+
+    /**
+     * Construct an HprofWriter, writing the hprof header right away.
+     * @param format - "JAVA PROFILE 1.0.3", for example.
+     * @param idSize - The size of identifiers in bytes.
+     * @param date - The date of the hprof dump.
+     * @param channel - The channel to write to, starting at its current position.
+     */
+    public HprofWriter(String format, int idSize, Date date, FileChannel channel)
+            throws IOException {
+        this(format, idSize, date, channel, DEFAULT_MAX_SEGMENT_LENGTH);
+    }
+
+    /**
+     * Construct an HprofWriter, writing the hprof header right away.
+     * @param maxSegmentLength - The length in bytes after which a new heap dump segment is
+     * started. A single sub-record longer than that gets a segment of its own.
+     */
+    public HprofWriter(String format, int idSize, Date date, FileChannel channel,
+            int maxSegmentLength) throws IOException {
+        if (maxSegmentLength <= 0) {
+            throw new IllegalArgumentException("Invalid segment length: " + maxSegmentLength);
+        }
+        mChannel = channel;
+        mStartPosition = channel.position();
+        mCountingStream = new CountingOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        mHprof = new HprofOutputStream(idSize, mCountingStream);
+        mMaxSegmentLength = maxSegmentLength;
+        Hprof.writeHeader(mHprof, format, idSize, date);
+    }
+
+    /**
+     * Write a top level record, ending the current heap dump segment if any.
+     */
+    public void writeRecord(HprofRecord record) throws IOException {
+        endSegment();
+        record.write(mHprof);
+    }
+
+    /**
+     * Write a heap dump sub-record, in the current heap dump segment or in a new one.
+     */
+    public void writeDumpRecord(HprofDumpRecord record) throws IOException {
+        long length = record.getLength(mHprof.getIdSize());
+        if (mSegmentStart >= 0
+                && mCountingStream.getCount() - mSegmentStart + length > mMaxSegmentLength) {
+            endSegment();
+        }
+        if (mSegmentStart < 0) {
+            mSegmentLengthOffset = mCountingStream.getCount() + 5;
+            // The length is back-patched by endSegment().
+            mHprof.writeRecordHeader(HprofHeapDumpSegment.TAG, 0, 0);
+            mSegmentStart = mCountingStream.getCount();
+        }
+        record.write(mHprof);
+    }
+
+    /**
+     * End the heap dump, writing a HEAP_DUMP_END record.
+     */
+    public void endHeapDump() throws IOException {
+        writeRecord(new HprofHeapDumpEnd(0));
+    }
+
+    /**
+     * End the current heap dump segment if any, flush and close the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            endSegment();
+            mHprof.flush();
+        } finally {
+            mHprof.close();
+        }
+    }
+
+    private void endSegment() throws IOException {
+        if (mSegmentStart < 0) {
+            return;
+        }
+        long length = mCountingStream.getCount() - mSegmentStart;
+        if (length > MAX_RECORD_LENGTH) {
+            throw new IOException("Heap dump segment too long: " + length);
+        }
+        mHprof.flush();
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt((int) length);
+        buffer.flip();
+        long position = mStartPosition + mSegmentLengthOffset;
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+        mSegmentLengthOffset = -1;
+        mSegmentStart = -1;
+    }
+}
@@ -18,14 +18,11 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.heap.ClassInstance;
-import com.android.tools.perflib.heap.ClassObj;
-import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -36,27 +33,8 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
             @NonNull Snapshot snapshot) {
         List<AnalysisResultEntry> results = new ArrayList<AnalysisResultEntry>();
 
-        HashMultimap<String, ClassInstance> stringIndex = HashMultimap.create();
-        ClassObj stringClass = snapshot.findClass("java.lang.String");
-        if (stringClass == null) {
-            return Collections.emptyList();
-        }
-
-        for (Heap heap : configuration.mHeaps) {
-            List<Instance> instances = stringClass.getHeapInstances(heap.getId());
-
-            for (Instance instance : instances) {
-                assert instance instanceof ClassInstance;
-                ClassInstance stringInstance = (ClassInstance) instance;
-                if (stringInstance.getDistanceToGcRoot() != Integer.MAX_VALUE) {
-                    char[] characters = stringInstance.getStringChars();
-                    if (characters != null) {
-                        String string = new String(characters);
-                        stringIndex.put(string, stringInstance);
-                    }
-                }
-            }
-        }
+        SetMultimap<String, ClassInstance> stringIndex =
+                configuration.getIndex(snapshot).getReachableStrings();
 
         for (String key : stringIndex.keySet()) {
             Set<ClassInstance> classInstanceSet = stringIndex.get(key);
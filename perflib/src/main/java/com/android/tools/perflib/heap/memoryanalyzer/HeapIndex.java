@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceGraph;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only indexes over the heaps being analyzed, shared by all the {@link MemoryAnalyzerTask}s
+ * running on the same snapshot, so that each task doesn't walk the whole heap again.
+ *
+ * Each index is built by the first task that needs it, while concurrent tasks wait for it, and is
+ * never modified afterwards.
+ */
+final class HeapIndex {
+
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    @NonNull
+    private final boolean[] mIndexedHeaps;
+
+    @Nullable
+    private Map<ClassObj, List<Instance>> mInstancesByClass;
+
+    @Nullable
+    private SetMultimap<String, ClassInstance> mReachableStrings;
+
+    private boolean mReferencesIndexed = false;
+
+    HeapIndex(@NonNull Snapshot snapshot, @NonNull Collection<Heap> heaps) {
+        mSnapshot = snapshot;
+        mIndexedHeaps = new boolean[snapshot.getHeaps().size()];
+        for (Heap heap : heaps) {
+            int heapIndex = snapshot.getHeapIndex(heap);
+            if (heapIndex >= 0) {
+                mIndexedHeaps[heapIndex] = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the instances of exactly the given class in the indexed heaps, in heap dump order.
+     */
+    @NonNull
+    public List<Instance> getInstances(@NonNull ClassObj classObj) {
+        List<Instance> instances = getInstancesByClass().get(classObj);
+        return instances == null ? Collections.<Instance>emptyList() : instances;
+    }
+
+    /**
+     * Returns the strings reachable from the GC roots in the indexed heaps, keyed by value.
+     */
+    @NonNull
+    public synchronized SetMultimap<String, ClassInstance> getReachableStrings() {
+        if (mReachableStrings == null) {
+            SetMultimap<String, ClassInstance> strings = HashMultimap.create();
+            ClassObj stringClass = mSnapshot.findClass("java.lang.String");
+            if (stringClass != null) {
+                for (Instance instance : getInstances(stringClass)) {
+                    assert instance instanceof ClassInstance;
+                    ClassInstance stringInstance = (ClassInstance) instance;
+                    if (stringInstance.getDistanceToGcRoot() != Integer.MAX_VALUE) {
+                        char[] characters = stringInstance.getStringChars();
+                        if (characters != null) {
+                            strings.put(new String(characters), stringInstance);
+                        }
+                    }
+                }
+            }
+            mReachableStrings = Multimaps.unmodifiableSetMultimap(strings);
+        }
+        return mReachableStrings;
+    }
+
+    /**
+     * Returns the instances holding a hard reference to the given instance.
+     */
+    @NonNull
+    public List<Instance> getReferrers(@NonNull Instance instance) {
+        indexReferences();
+        return instance.getHardReferences();
+    }
+
+    @NonNull
+    private synchronized Map<ClassObj, List<Instance>> getInstancesByClass() {
+        if (mInstancesByClass == null) {
+            Map<ClassObj, List<Instance>> instancesByClass =
+                    new HashMap<ClassObj, List<Instance>>();
+            InstanceGraph graph = mSnapshot.getGraph();
+            for (int node = InstanceGraph.FIRST_NODE; node < graph.getNodeCount(); node++) {
+                Instance instance = graph.getInstance(node);
+                if (!mIndexedHeaps[graph.getHeapIndex(node)] || instance instanceof ClassObj
+                        || instance.getClassObj() == null) {
+                    continue;
+                }
+                List<Instance> instances = instancesByClass.get(instance.getClassObj());
+                if (instances == null) {
+                    instances = new ArrayList<Instance>();
+                    instancesByClass.put(instance.getClassObj(), instances);
+                }
+                instances.add(instance);
+            }
+            for (Map.Entry<ClassObj, List<Instance>> entry : instancesByClass.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            mInstancesByClass = instancesByClass;
+        }
+        return mInstancesByClass;
+    }
+
+    /**
+     * The reference columns of the graph are compacted on the first query, which must not race
+     * with the queries of other tasks.
+     */
+    private synchronized void indexReferences() {
+        if (!mReferencesIndexed) {
+            InstanceGraph graph = mSnapshot.getGraph();
+            if (graph.getNodeCount() > InstanceGraph.FIRST_NODE) {
+                graph.getHardReferenceCount(InstanceGraph.FIRST_NODE);
+                graph.getSoftReferenceCount(InstanceGraph.FIRST_NODE);
+            }
+            mReferencesIndexed = true;
+        }
+    }
+}
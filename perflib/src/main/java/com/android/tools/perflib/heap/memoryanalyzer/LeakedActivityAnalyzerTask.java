@@ -19,7 +19,6 @@ import com.android.annotations.NonNull;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.heap.ClassInstance;
 import com.android.tools.perflib.heap.ClassObj;
-import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
 
@@ -40,14 +39,10 @@ public class LeakedActivityAnalyzerTask extends MemoryAnalyzerTask {
             @NonNull Snapshot snapshot) {
         List<Instance> leakingInstances = new ArrayList<Instance>();
 
+        HeapIndex index = configuration.getIndex(snapshot);
         List<ClassObj> activityClasses = snapshot.findAllDescendantClasses("android.app.Activity");
         for (ClassObj activityClass : activityClasses) {
-            List<Instance> instances = new ArrayList<Instance>();
-            for (Heap heap : configuration.mHeaps) {
-                instances.addAll(activityClass.getHeapInstances(heap.getId()));
-            }
-
-            for (Instance instance : instances) {
+            for (Instance instance : index.getInstances(activityClass)) {
                 Instance immediateDominator = instance.getImmediateDominator();
                 if (!(instance instanceof ClassInstance) || immediateDominator == null) {
                     continue;
@@ -31,12 +31,18 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MemoryAnalyzer extends Analyzer {
 
@@ -50,6 +56,10 @@ public class MemoryAnalyzer extends Analyzer {
 
     private boolean mAnalysisComplete = false;
 
+    // Time spent in each task, in nanoseconds, summed over all the captures.
+    private final ConcurrentMap<MemoryAnalyzerTask, AtomicLong> mTaskTimings =
+            new ConcurrentHashMap<MemoryAnalyzerTask, AtomicLong>();
+
     private static boolean accept(@NonNull Capture capture) {
         return Snapshot.TYPE_NAME.equals(capture.getTypeName());
     }
@@ -88,6 +98,7 @@ public class MemoryAnalyzer extends Analyzer {
         for (AnalyzerTask task : tasks) {
             if (task instanceof MemoryAnalyzerTask) {
                 mTasks.add((MemoryAnalyzerTask) task);
+                mTaskTimings.putIfAbsent((MemoryAnalyzerTask) task, new AtomicLong());
             }
         }
 
@@ -111,6 +122,8 @@ public class MemoryAnalyzer extends Analyzer {
                         break;
                     }
                 }
+                // The configuration, and the indexes it holds, are shared by the tasks running
+                // concurrently on this snapshot.
                 final MemoryAnalyzerTask.Configuration configuration
                         = new MemoryAnalyzerTask.Configuration(heapsToUse);
 
@@ -123,7 +136,12 @@ public class MemoryAnalyzer extends Analyzer {
                                         return null;
                                     }
 
-                                    return task.analyze(configuration, snapshot);
+                                    long start = System.nanoTime();
+                                    try {
+                                        return analyze(task, configuration, snapshot);
+                                    } finally {
+                                        mTaskTimings.get(task).addAndGet(System.nanoTime() - start);
+                                    }
                                 }
                             });
                     Futures.addCallback(futureTask,
@@ -166,6 +184,25 @@ public class MemoryAnalyzer extends Analyzer {
         return mOutstandingReport;
     }
 
+    /**
+     * Runs a task with its own view of the snapshot's buffer, since the values of the instances
+     * are read by moving the position of the buffer. The tasks of a snapshot whose buffer can't be
+     * duplicated run one at a time.
+     */
+    private static List<AnalysisResultEntry> analyze(@NonNull MemoryAnalyzerTask task,
+            @NonNull MemoryAnalyzerTask.Configuration configuration, @NonNull Snapshot snapshot) {
+        if (snapshot.attachBufferView()) {
+            try {
+                return task.analyze(configuration, snapshot);
+            } finally {
+                snapshot.detachBufferView();
+            }
+        }
+        synchronized (snapshot) {
+            return task.analyze(configuration, snapshot);
+        }
+    }
+
     @Override
     public void cancel() {
         if (mOutstandingReport == null || mAnalysisComplete) {
@@ -177,6 +214,19 @@ public class MemoryAnalyzer extends Analyzer {
         mOutstandingReport.setCancelled();
     }
 
+    /**
+     * Returns the time spent in each task so far, summed over all the analyzed captures. The time
+     * of a task includes building the shared indexes it is the first to use.
+     */
+    @NonNull
+    public Map<MemoryAnalyzerTask, Long> getTaskTimings(@NonNull TimeUnit unit) {
+        Map<MemoryAnalyzerTask, Long> timings = new HashMap<MemoryAnalyzerTask, Long>();
+        for (Map.Entry<MemoryAnalyzerTask, AtomicLong> entry : mTaskTimings.entrySet()) {
+            timings.put(entry.getKey(), unit.convert(entry.getValue().get(), TimeUnit.NANOSECONDS));
+        }
+        return timings;
+    }
+
     public boolean isRunning() {
         return !mRunningAnalyzers.isDone();
     }
@@ -16,6 +16,7 @@
 package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.analyzer.AnalyzerTask;
 import com.android.tools.perflib.heap.Heap;
@@ -30,9 +31,23 @@ public abstract class MemoryAnalyzerTask implements AnalyzerTask {
 
         public Collection<Heap> mHeaps;
 
+        @Nullable
+        private HeapIndex mIndex;
+
         public Configuration(@NonNull Collection<Heap> heaps) {
             mHeaps = heaps;
         }
+
+        /**
+         * Returns the indexes over {@link #mHeaps} shared by the tasks analyzing the snapshot.
+         */
+        @NonNull
+        synchronized HeapIndex getIndex(@NonNull Snapshot snapshot) {
+            if (mIndex == null) {
+                mIndex = new HeapIndex(snapshot, mHeaps);
+            }
+            return mIndex;
+        }
     }
 
     abstract List<AnalysisResultEntry> analyze(@NonNull Configuration configuration,
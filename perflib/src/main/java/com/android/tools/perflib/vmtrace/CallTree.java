@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.google.common.primitives.UnsignedInts;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact, array based encoding of the call hierarchy of a thread, as an alternative to trees of
+ * {@link Call} objects for very large traces.
+ *
+ * Calls are numbered in the order in which they were invoked, starting with the top level call at
+ * index 0, so that the calls nested in a call {@code i} are the calls between {@code i + 1} and
+ * {@link #getSubtreeEnd(int)}. The direct callees of {@code i} can be iterated with:
+ * <pre>
+ *     for (int c = i + 1; c < tree.getSubtreeEnd(i); c = tree.getSubtreeEnd(c)) { ... }
+ * </pre>
+ */
+public final class CallTree {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int mSize = 0;
+
+    private long[] mMethodIds = new long[INITIAL_CAPACITY];
+    private int[] mDepths = new int[INITIAL_CAPACITY];
+    private int[] mSubtreeEnds = new int[INITIAL_CAPACITY];
+
+    /** Times are stored as unsigned integers, as in {@link Call}. */
+    private int[] mEntryThreadTimes = new int[INITIAL_CAPACITY];
+    private int[] mEntryGlobalTimes = new int[INITIAL_CAPACITY];
+    private int[] mExitThreadTimes = new int[INITIAL_CAPACITY];
+    private int[] mExitGlobalTimes = new int[INITIAL_CAPACITY];
+
+    CallTree() {
+    }
+
+    /** Returns the number of calls in the tree. */
+    public int size() {
+        return mSize;
+    }
+
+    public long getMethodId(int call) {
+        return mMethodIds[call];
+    }
+
+    /** Returns the depth of the call, the top level call being at depth 0. */
+    public int getDepth(int call) {
+        return mDepths[call];
+    }
+
+    /** Returns the index following the last call nested in the given call. */
+    public int getSubtreeEnd(int call) {
+        return mSubtreeEnds[call];
+    }
+
+    public long getEntryTime(int call, ClockType clockType, TimeUnit units) {
+        long entryTime = clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mEntryThreadTimes[call]) :
+                UnsignedInts.toLong(mEntryGlobalTimes[call]);
+        return units.convert(entryTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExitTime(int call, ClockType clockType, TimeUnit units) {
+        long exitTime = clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mExitThreadTimes[call]) :
+                UnsignedInts.toLong(mExitGlobalTimes[call]);
+        return units.convert(exitTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getInclusiveTime(int call, ClockType clockType, TimeUnit units) {
+        long inclusiveTime = clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mExitThreadTimes[call] - mEntryThreadTimes[call]) :
+                UnsignedInts.toLong(mExitGlobalTimes[call] - mEntryGlobalTimes[call]);
+        return units.convert(inclusiveTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExclusiveTime(int call, ClockType clockType, TimeUnit units) {
+        TimeUnit defaultUnits = VmTraceData.getDefaultTimeUnits();
+        long exclusiveTime = getInclusiveTime(call, clockType, defaultUnits);
+        for (int callee = call + 1; callee < mSubtreeEnds[call];
+                callee = mSubtreeEnds[callee]) {
+            exclusiveTime -= getInclusiveTime(callee, clockType, defaultUnits);
+        }
+        return units.convert(exclusiveTime, defaultUnits);
+    }
+
+    /** Appends a call at the given depth, and returns its index. */
+    int addCall(long methodId, int depth) {
+        if (mSize == mMethodIds.length) {
+            int capacity = mSize * 2;
+            mMethodIds = Arrays.copyOf(mMethodIds, capacity);
+            mDepths = Arrays.copyOf(mDepths, capacity);
+            mSubtreeEnds = Arrays.copyOf(mSubtreeEnds, capacity);
+            mEntryThreadTimes = Arrays.copyOf(mEntryThreadTimes, capacity);
+            mEntryGlobalTimes = Arrays.copyOf(mEntryGlobalTimes, capacity);
+            mExitThreadTimes = Arrays.copyOf(mExitThreadTimes, capacity);
+            mExitGlobalTimes = Arrays.copyOf(mExitGlobalTimes, capacity);
+        }
+        int call = mSize++;
+        mMethodIds[call] = methodId;
+        mDepths[call] = depth;
+        return call;
+    }
+
+    /** Records the times of a call once it exited, which ends its subtree. */
+    void setTimes(int call, int entryThreadTime, int entryGlobalTime, int exitThreadTime,
+            int exitGlobalTime) {
+        mEntryThreadTimes[call] = entryThreadTime;
+        mEntryGlobalTimes[call] = entryGlobalTime;
+        mExitThreadTimes[call] = exitThreadTime;
+        mExitGlobalTimes[call] = exitGlobalTime;
+        mSubtreeEnds[call] = mSize;
+    }
+
+    /** Releases the unused capacity once all calls were added. */
+    void trim() {
+        mMethodIds = Arrays.copyOf(mMethodIds, mSize);
+        mDepths = Arrays.copyOf(mDepths, mSize);
+        mSubtreeEnds = Arrays.copyOf(mSubtreeEnds, mSize);
+        mEntryThreadTimes = Arrays.copyOf(mEntryThreadTimes, mSize);
+        mEntryGlobalTimes = Arrays.copyOf(mEntryGlobalTimes, mSize);
+        mExitThreadTimes = Arrays.copyOf(mExitThreadTimes, mSize);
+        mExitGlobalTimes = Arrays.copyOf(mExitGlobalTimes, mSize);
+    }
+}
@@ -207,10 +207,14 @@ public class MethodProfileData {
         }
 
         private MethodStats getPerThreadStats(ThreadInfo thread) {
-            MethodStats stats = mPerThreadCumulativeStats.get(thread.getId());
+            return getPerThreadStats(thread.getId());
+        }
+
+        private MethodStats getPerThreadStats(int threadId) {
+            MethodStats stats = mPerThreadCumulativeStats.get(threadId);
             if (stats == null) {
                 stats = new MethodStats();
-                mPerThreadCumulativeStats.put(thread.getId(), stats);
+                mPerThreadCumulativeStats.put(threadId, stats);
             }
             return stats;
         }
@@ -245,6 +249,61 @@ public class MethodProfileData {
             }
         }
 
+        /**
+         * Adds a call of this method, with its times in {@link VmTraceData#getDefaultTimeUnits()}.
+         * This is equivalent to {@link #addCallTime} and {@link #incrementInvocationCount}, without
+         * the stats per callee which are added with {@link #addCallee}.
+         */
+        void addCall(int threadId, @Nullable Long callerId, boolean recursive,
+                long inclusiveThreadTime, long inclusiveGlobalTime,
+                long exclusiveThreadTime, long exclusiveGlobalTime) {
+            MethodStats threadStats = getPerThreadStats(threadId);
+            MethodStats callerStats = callerId == null ? null
+                    : getMethodStatsFromTable(threadId, callerId, mPerThreadStatsByCaller);
+
+            addCallTime(threadStats, recursive, inclusiveThreadTime, inclusiveGlobalTime,
+                    exclusiveThreadTime, exclusiveGlobalTime);
+            threadStats.mInvocationCount++;
+            if (callerStats != null) {
+                addCallTime(callerStats, recursive, inclusiveThreadTime, inclusiveGlobalTime,
+                        exclusiveThreadTime, exclusiveGlobalTime);
+                callerStats.mInvocationCount++;
+            }
+            if (recursive) {
+                setRecursive();
+            }
+        }
+
+        /**
+         * Adds a call from this method to the given callee, with its inclusive times in
+         * {@link VmTraceData#getDefaultTimeUnits()}.
+         */
+        void addCallee(int threadId, long calleeId, boolean recursive,
+                long inclusiveThreadTime, long inclusiveGlobalTime) {
+            MethodStats stats = getMethodStatsFromTable(threadId, calleeId,
+                    mPerThreadStatsByCallee);
+            if (!recursive) {
+                addInclusiveTime(stats, toDataTimeUnits(inclusiveThreadTime), ClockType.THREAD);
+                addInclusiveTime(stats, toDataTimeUnits(inclusiveGlobalTime), ClockType.GLOBAL);
+            }
+            stats.mInvocationCount++;
+        }
+
+        private void addCallTime(MethodStats stats, boolean recursive,
+                long inclusiveThreadTime, long inclusiveGlobalTime,
+                long exclusiveThreadTime, long exclusiveGlobalTime) {
+            addExclusiveTime(stats, toDataTimeUnits(exclusiveThreadTime), ClockType.THREAD);
+            addExclusiveTime(stats, toDataTimeUnits(exclusiveGlobalTime), ClockType.GLOBAL);
+            if (!recursive) {
+                addInclusiveTime(stats, toDataTimeUnits(inclusiveThreadTime), ClockType.THREAD);
+                addInclusiveTime(stats, toDataTimeUnits(inclusiveGlobalTime), ClockType.GLOBAL);
+            }
+        }
+
+        private static long toDataTimeUnits(long time) {
+            return DATA_TIME_UNITS.convert(time, VmTraceData.getDefaultTimeUnits());
+        }
+
         public MethodProfileData build() {
             return new MethodProfileData(this);
         }
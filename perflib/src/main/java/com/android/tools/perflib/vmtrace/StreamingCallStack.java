@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.primitives.UnsignedInts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates the {@link MethodProfileData} of a thread as its trace actions are received, instead
+ * of reconstructing its call tree first as {@link CallStackReconstructor} does. Only the calls on
+ * the stack are kept in memory, along with the {@link CallTree} of the thread if requested.
+ *
+ * The statistics match those computed from the {@link Call} tree. In particular,
+ * {@link CallStackReconstructor} nests the calls under the methods that were exited without having
+ * been entered, and all of them under a top level call. Here, these methods must be known up front,
+ * and are pushed on the stack before the first trace action.
+ */
+class StreamingCallStack {
+    private final int mThreadId;
+
+    /** Map from method id to method data builders, shared by all threads. */
+    @NonNull
+    private final Map<Long, MethodProfileData.Builder> mProfileData;
+
+    @Nullable
+    private final CallTree mCallTree;
+
+    /** Frames of the current call stack, reused across calls. */
+    private final List<Frame> mFrames = new ArrayList<Frame>();
+
+    private int mDepth = 0;
+
+    /**
+     * @param unmatchedExits methods exited without having been entered, innermost first
+     */
+    StreamingCallStack(int threadId, long topLevelCallId, @Nullable List<Long> unmatchedExits,
+            @NonNull Map<Long, MethodProfileData.Builder> profileData, boolean keepCallTree) {
+        mThreadId = threadId;
+        mProfileData = profileData;
+        mCallTree = keepCallTree ? new CallTree() : null;
+
+        push(topLevelCallId, true);
+        if (unmatchedExits != null) {
+            for (int i = unmatchedExits.size() - 1; i >= 0; i--) {
+                push(unmatchedExits.get(i), true);
+            }
+        }
+    }
+
+    public void addTraceAction(long methodId, TraceAction action, int threadTime, int globalTime) {
+        if (action == TraceAction.METHOD_ENTER) {
+            Frame caller = mFrames.get(mDepth - 1);
+            Frame frame = push(methodId, false);
+            frame.mEntryThreadTime = threadTime;
+            frame.mEntryGlobalTime = globalTime;
+            caller.setFirstCalleeEntryTime(threadTime, globalTime);
+        } else {
+            Frame frame = mFrames.get(mDepth - 1);
+            if (mDepth == 1 || frame.mMethodId != methodId) {
+                String msg = String
+                        .format("Error during call stack reconstruction. Attempt to exit from method 0x%1$x while in method 0x%2$x",
+                                frame.mMethodId, methodId);
+                throw new RuntimeException(msg);
+            }
+            pop(threadTime, globalTime);
+        }
+    }
+
+    /**
+     * Exits from the methods without exit trace action, and from the top level call.
+     *
+     * @return the call tree of the thread, if it was kept
+     */
+    @Nullable
+    public CallTree finish() {
+        while (mDepth > 0) {
+            // As in CallStackReconstructor, these calls are assumed to exit 1 unit of time after
+            // their last callee, or after their entry if they have no callees.
+            Frame frame = mFrames.get(mDepth - 1);
+            if (frame.mHasCallees) {
+                pop(frame.mLastCalleeExitThreadTime + 1, frame.mLastCalleeExitGlobalTime + 1);
+            } else {
+                pop(frame.mEntryThreadTime + 1, frame.mEntryGlobalTime + 1);
+            }
+        }
+        if (mCallTree != null) {
+            mCallTree.trim();
+        }
+        return mCallTree;
+    }
+
+    @NonNull
+    private Frame push(long methodId, boolean entryBeforeTracing) {
+        boolean recursive = false;
+        for (int i = 0; i < mDepth; i++) {
+            if (mFrames.get(i).mMethodId == methodId) {
+                recursive = true;
+                break;
+            }
+        }
+
+        if (mDepth == mFrames.size()) {
+            mFrames.add(new Frame());
+        }
+        Frame frame = mFrames.get(mDepth);
+        frame.reset(methodId, getProfileDataBuilder(methodId), entryBeforeTracing, recursive);
+        if (mCallTree != null) {
+            frame.mCallIndex = mCallTree.addCall(methodId, mDepth);
+        }
+        mDepth++;
+        return frame;
+    }
+
+    private void pop(int exitThreadTime, int exitGlobalTime) {
+        Frame frame = mFrames.get(--mDepth);
+        Frame caller = mDepth > 0 ? mFrames.get(mDepth - 1) : null;
+
+        if (frame.mEntryBeforeTracing) {
+            // Guess the entry time as CallStackReconstructor does: just before the first callee,
+            // or just before the exit if there are no callees.
+            if (frame.mHasCallees) {
+                frame.mEntryThreadTime = Math.max(frame.mFirstCalleeEntryThreadTime - 1, 0);
+                frame.mEntryGlobalTime = Math.max(frame.mFirstCalleeEntryGlobalTime - 1, 0);
+            } else {
+                frame.mEntryThreadTime = exitThreadTime - 1;
+                frame.mEntryGlobalTime = exitGlobalTime - 1;
+            }
+            if (caller != null) {
+                caller.setFirstCalleeEntryTime(frame.mEntryThreadTime, frame.mEntryGlobalTime);
+            }
+        }
+
+        long inclusiveThreadTime = UnsignedInts.toLong(exitThreadTime - frame.mEntryThreadTime);
+        long inclusiveGlobalTime = UnsignedInts.toLong(exitGlobalTime - frame.mEntryGlobalTime);
+        frame.mProfileData.addCall(mThreadId, caller != null ? caller.mMethodId : null,
+                frame.mRecursive, inclusiveThreadTime, inclusiveGlobalTime,
+                inclusiveThreadTime - frame.mInclusiveThreadTimeInCallees,
+                inclusiveGlobalTime - frame.mInclusiveGlobalTimeInCallees);
+
+        if (caller != null) {
+            caller.mProfileData.addCallee(mThreadId, frame.mMethodId, caller.mRecursive,
+                    inclusiveThreadTime, inclusiveGlobalTime);
+            caller.mInclusiveThreadTimeInCallees += inclusiveThreadTime;
+            caller.mInclusiveGlobalTimeInCallees += inclusiveGlobalTime;
+            caller.mLastCalleeExitThreadTime = exitThreadTime;
+            caller.mLastCalleeExitGlobalTime = exitGlobalTime;
+        }
+
+        if (mCallTree != null) {
+            mCallTree.setTimes(frame.mCallIndex, frame.mEntryThreadTime, frame.mEntryGlobalTime,
+                    exitThreadTime, exitGlobalTime);
+        }
+    }
+
+    @NonNull
+    private MethodProfileData.Builder getProfileDataBuilder(long methodId) {
+        MethodProfileData.Builder builder = mProfileData.get(methodId);
+        if (builder == null) {
+            builder = new MethodProfileData.Builder();
+            mProfileData.put(methodId, builder);
+        }
+        return builder;
+    }
+
+    /** A call on the stack. */
+    private static class Frame {
+        private long mMethodId;
+        private MethodProfileData.Builder mProfileData;
+        private boolean mEntryBeforeTracing;
+        private boolean mRecursive;
+        private int mCallIndex;
+
+        private int mEntryThreadTime;
+        private int mEntryGlobalTime;
+
+        private boolean mHasCallees;
+        private int mFirstCalleeEntryThreadTime;
+        private int mFirstCalleeEntryGlobalTime;
+        private int mLastCalleeExitThreadTime;
+        private int mLastCalleeExitGlobalTime;
+
+        private long mInclusiveThreadTimeInCallees;
+        private long mInclusiveGlobalTimeInCallees;
+
+        void reset(long methodId, @NonNull MethodProfileData.Builder profileData,
+                boolean entryBeforeTracing, boolean recursive) {
+            mMethodId = methodId;
+            mProfileData = profileData;
+            mEntryBeforeTracing = entryBeforeTracing;
+            mRecursive = recursive;
+            mEntryThreadTime = 0;
+            mEntryGlobalTime = 0;
+            mHasCallees = false;
+            mInclusiveThreadTimeInCallees = 0;
+            mInclusiveGlobalTimeInCallees = 0;
+        }
+
+        void setFirstCalleeEntryTime(int threadTime, int globalTime) {
+            if (!mHasCallees) {
+                mHasCallees = true;
+                mFirstCalleeEntryThreadTime = threadTime;
+                mFirstCalleeEntryGlobalTime = globalTime;
+            }
+        }
+    }
+}
@@ -29,10 +29,24 @@ public class ThreadInfo {
     /** Top level call in this thread */
     private final Call mTopLevelCall;
 
+    /** Compact call hierarchy of this thread, when the trace was parsed in streaming mode */
+    private final CallTree mCallTree;
+
+    /** Method id of the top level call in this thread */
+    private final Long mTopLevelMethodId;
+
     public ThreadInfo(int threadId, @NonNull String name, @Nullable Call topLevelCall) {
+        this(threadId, name, topLevelCall, null, null);
+    }
+
+    public ThreadInfo(int threadId, @NonNull String name, @Nullable Call topLevelCall,
+            @Nullable CallTree callTree, @Nullable Long topLevelMethodId) {
         mId = threadId;
         mName = name;
         mTopLevelCall = topLevelCall;
+        mCallTree = callTree;
+        mTopLevelMethodId = topLevelCall != null ? Long.valueOf(topLevelCall.getMethodId())
+                : topLevelMethodId;
     }
 
     public int getId() {
@@ -48,4 +62,15 @@ public class ThreadInfo {
     public Call getTopLevelCall() {
         return mTopLevelCall;
     }
+
+    @Nullable
+    public CallTree getCallTree() {
+        return mCallTree;
+    }
+
+    /** Returns the method id of the top level call, or null if there is no activity. */
+    @Nullable
+    public Long getTopLevelMethodId() {
+        return mTopLevelMethodId;
+    }
 }
@@ -16,6 +16,8 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.SparseArray;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
@@ -76,7 +78,8 @@ public class VmTraceData {
                 name = String.format("%1$s-%2$d", name, id);
             }
 
-            info = new ThreadInfo(id, name, b.mTopLevelCalls.get(id));
+            info = new ThreadInfo(id, name, b.mTopLevelCalls.get(id), b.mCallTrees.get(id),
+                    b.mTopLevelCallIds.get(id));
             mThreadInfo.put(name, info);
         }
     }
@@ -121,7 +124,7 @@ public class VmTraceData {
             @Override
             public boolean apply(
                     com.android.tools.perflib.vmtrace.ThreadInfo input) {
-                return input.getTopLevelCall() != null;
+                return input.getTopLevelMethodId() != null;
             }
         }));
     }
@@ -152,12 +155,12 @@ public class VmTraceData {
      * in given thread.
      */
     public double getDurationPercentage(long methodTime, ThreadInfo thread, ClockType clockType) {
-        Call topCall = getThread(thread.getName()).getTopLevelCall();
-        if (topCall == null) {
+        Long topMethodId = getThread(thread.getName()).getTopLevelMethodId();
+        if (topMethodId == null) {
             return 100.;
         }
 
-        MethodInfo topInfo = getMethod(topCall.getMethodId());
+        MethodInfo topInfo = getMethod(topMethodId);
 
         // always use inclusive time to obtain the top level's time when computing percentages
         TimeSelector selector = TimeSelector.create(clockType, true);
@@ -172,8 +175,8 @@ public class VmTraceData {
         Set<MethodInfo> methods = new HashSet<MethodInfo>();
         Set<Call> calls = new HashSet<Call>();
 
-        Call topLevelCall = getThread(thread.getName()).getTopLevelCall();
-        if (topLevelCall == null) {
+        ThreadInfo threadInfo = getThread(thread.getName());
+        if (threadInfo.getTopLevelMethodId() == null) {
             // no matches
             return new SearchResult(methods, calls);
         }
@@ -191,7 +194,11 @@ public class VmTraceData {
             }
         }
 
-        // Find all invocations of the matched methods
+        // Find all invocations of the matched methods, unless the call tree was not kept
+        Call topLevelCall = threadInfo.getTopLevelCall();
+        if (topLevelCall == null) {
+            return new SearchResult(methods, calls);
+        }
         Iterator<Call> iterator = topLevelCall.getCallHierarchyIterator();
         while (iterator.hasNext()) {
             Call c = iterator.next();
@@ -226,6 +233,29 @@ public class VmTraceData {
         /** Map from thread id to the top level call for that thread. */
         private final SparseArray<Call> mTopLevelCalls = new SparseArray<Call>(10);
 
+        /**
+         * Map from thread id to the methods of that thread exited without having been entered, in
+         * streaming mode. Null when the call trees are reconstructed as {@link Call} objects.
+         */
+        @Nullable
+        private SparseArray<List<Long>> mUnmatchedExits;
+
+        private boolean mKeepCallTrees;
+
+        /** Map from thread id to the per thread streaming call stack. */
+        private final SparseArray<StreamingCallStack> mStreamingCallStacks
+                = new SparseArray<StreamingCallStack>(10);
+
+        /** Map from method id to method data builders, in streaming mode. */
+        private final Map<Long, MethodProfileData.Builder> mProfileData =
+                new HashMap<Long, MethodProfileData.Builder>(100);
+
+        /** Map from thread id to the compact call tree for that thread, in streaming mode. */
+        private final SparseArray<CallTree> mCallTrees = new SparseArray<CallTree>(10);
+
+        /** Map from thread id to the method id of the top level call for that thread. */
+        private final SparseArray<Long> mTopLevelCallIds = new SparseArray<Long>(10);
+
         public void setVersion(int version) {
             mVersion = version;
         }
@@ -254,6 +284,20 @@ public class VmTraceData {
             mVm = vm;
         }
 
+        /**
+         * Aggregates the method statistics as trace actions are added, instead of reconstructing
+         * the call trees.
+         *
+         * @param unmatchedExits map from thread id to the methods exited without having been
+         *                       entered, innermost first
+         * @param keepCallTrees whether to keep the call hierarchies as {@link CallTree}s
+         */
+        void setStreaming(@NonNull SparseArray<List<Long>> unmatchedExits,
+                boolean keepCallTrees) {
+            mUnmatchedExits = unmatchedExits;
+            mKeepCallTrees = keepCallTrees;
+        }
+
         public void addThread(int id, String name) {
             mThreads.put(id, name);
         }
@@ -282,6 +326,19 @@ public class VmTraceData {
                         mThreads.get(threadId), methodId, methodInfo.getShortName(), methodAction);
             }
 
+            if (mUnmatchedExits != null) {
+                StreamingCallStack stack = mStreamingCallStacks.get(threadId);
+                if (stack == null) {
+                    long topLevelCallId = createUniqueMethodIdForThread(threadId);
+                    stack = new StreamingCallStack(threadId, topLevelCallId,
+                            mUnmatchedExits.get(threadId), mProfileData, mKeepCallTrees);
+                    mStreamingCallStacks.put(threadId, stack);
+                    mTopLevelCallIds.put(threadId, topLevelCallId);
+                }
+                stack.addTraceAction(methodId, methodAction, threadTime, globalTime);
+                return;
+            }
+
             CallStackReconstructor reconstructor = mStackReconstructors.get(threadId);
             if (reconstructor == null) {
                 long topLevelCallId = createUniqueMethodIdForThread(threadId);
@@ -308,6 +365,17 @@ public class VmTraceData {
                 mTopLevelCalls.put(threadId, reconstructor.getTopLevel());
             }
 
+            for (int i = 0; i < mStreamingCallStacks.size(); i++) {
+                CallTree callTree = mStreamingCallStacks.valueAt(i).finish();
+                if (callTree != null) {
+                    mCallTrees.put(mStreamingCallStacks.keyAt(i), callTree);
+                }
+            }
+            mStreamingCallStacks.clear();
+            for (Map.Entry<Long, MethodProfileData.Builder> entry : mProfileData.entrySet()) {
+                mMethods.get(entry.getKey()).setProfileData(entry.getValue().build());
+            }
+
             return new VmTraceData(this);
         }
     }
@@ -19,6 +19,8 @@ package com.android.tools.perflib.vmtrace;
 import com.android.annotations.NonNull;
 import com.android.annotations.VisibleForTesting;
 import com.android.ddmlib.ByteBufferUtil;
+import com.android.utils.SparseArray;
+import com.android.utils.SparseIntArray;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
@@ -31,6 +33,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -46,6 +51,9 @@ public class VmTraceParser {
     private static final String KEY_DATA_OVERFLOW = "data-file-overflow";
     private static final String KEY_VM = "vm";
 
+    /** Size of the windows in which the data section is mapped when parsing in streaming mode. */
+    private static final long STREAMING_WINDOW_SIZE = 1 << 28;
+
     private final File mTraceFile;
 
     private final VmTraceData.Builder mTraceDataBuilder;
@@ -67,6 +75,37 @@ public class VmTraceParser {
         computeTimingStatistics();
     }
 
+    /**
+     * Parses the trace without reconstructing the {@link Call} tree of each thread: the statistics
+     * of each method are aggregated while the records are decoded, and the data section is mapped
+     * in windows, so that traces larger than the heap or than 2GB can be analyzed.
+     *
+     * The call hierarchy of each thread is kept as a {@link CallTree} if {@code keepCallTrees} is
+     * set, and dropped otherwise. In both cases, {@link ThreadInfo#getTopLevelCall()} is null.
+     */
+    public void parseStreaming(boolean keepCallTrees) throws IOException {
+        long headerLength = parseHeader(mTraceFile);
+        FileInputStream in = new FileInputStream(mTraceFile);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, headerLength,
+                    Math.min(channel.size() - headerLength, STREAMING_WINDOW_SIZE));
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            int recordSize = readDataFileHeader(header);
+            long dataOffset = headerLength + header.position();
+
+            // Methods exited before being entered were on the stack when tracing started, and are
+            // found by a first pass so that the second one only ever sees nested calls.
+            UnmatchedExitScanner scanner = new UnmatchedExitScanner();
+            parseMethodTraceData(channel, dataOffset, recordSize, scanner);
+
+            mTraceDataBuilder.setStreaming(scanner.mUnmatchedExits, keepCallTrees);
+            parseMethodTraceData(channel, dataOffset, recordSize, mBuilderHandler);
+        } finally {
+            in.close();
+        }
+    }
+
     public VmTraceData getTraceData() {
         if (mTraceData == null) {
             mTraceData = mTraceDataBuilder.build();
@@ -237,7 +276,23 @@ public class VmTraceParser {
      */
     private void parseData(ByteBuffer buffer) {
         int recordSize = readDataFileHeader(buffer);
-        parseMethodTraceData(buffer, recordSize);
+        parseMethodTraceData(buffer, recordSize, mBuilderHandler);
+    }
+
+    /**
+     * Parses the records of the data section starting at the given offset, mapping at most
+     * {@link #STREAMING_WINDOW_SIZE} bytes at a time.
+     */
+    private void parseMethodTraceData(FileChannel channel, long offset, int recordSize,
+            TraceActionHandler handler) throws IOException {
+        long windowSize = Math.max(1, STREAMING_WINDOW_SIZE / recordSize) * recordSize;
+        long end = channel.size();
+        for (long position = offset; position < end; position += windowSize) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(windowSize, end - position));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            parseMethodTraceData(buffer, recordSize, handler);
+        }
     }
 
     /**
@@ -260,7 +315,8 @@ public class VmTraceParser {
      *
      * 32 bits of microseconds is 70 minutes.
      */
-    private void parseMethodTraceData(ByteBuffer buffer, int recordSize) {
+    private void parseMethodTraceData(ByteBuffer buffer, int recordSize,
+            TraceActionHandler handler) {
         int methodId;
         int threadId;
         int version = mTraceDataBuilder.getVersion();
@@ -314,7 +370,7 @@ public class VmTraceParser {
             }
             methodId = methodId & ~0x03;
 
-            mTraceDataBuilder.addMethodAction(threadId, UnsignedInts.toLong(methodId), methodAction,
+            handler.addMethodAction(threadId, UnsignedInts.toLong(methodId), methodAction,
                     threadTime, globalTime);
         }
     }
@@ -384,6 +440,51 @@ public class VmTraceParser {
         return recordSize;
     }
 
+    /** Receives the trace actions decoded from the data section. */
+    private interface TraceActionHandler {
+        void addMethodAction(int threadId, long methodId, TraceAction methodAction,
+                int threadTime, int globalTime);
+    }
+
+    private final TraceActionHandler mBuilderHandler = new TraceActionHandler() {
+        @Override
+        public void addMethodAction(int threadId, long methodId, TraceAction methodAction,
+                int threadTime, int globalTime) {
+            mTraceDataBuilder.addMethodAction(threadId, methodId, methodAction, threadTime,
+                    globalTime);
+        }
+    };
+
+    /**
+     * Finds the methods of each thread that are exited without having been entered, i.e. that
+     * were already on the call stack when tracing started, innermost first.
+     */
+    private static class UnmatchedExitScanner implements TraceActionHandler {
+        /** Map from thread id to the current call stack depth. */
+        private final SparseIntArray mDepths = new SparseIntArray(10);
+
+        /** Map from thread id to its methods exited without having been entered. */
+        private final SparseArray<List<Long>> mUnmatchedExits = new SparseArray<List<Long>>(10);
+
+        @Override
+        public void addMethodAction(int threadId, long methodId, TraceAction methodAction,
+                int threadTime, int globalTime) {
+            int depth = mDepths.get(threadId, 0);
+            if (methodAction == TraceAction.METHOD_ENTER) {
+                mDepths.put(threadId, depth + 1);
+            } else if (depth > 0) {
+                mDepths.put(threadId, depth - 1);
+            } else {
+                List<Long> exits = mUnmatchedExits.get(threadId);
+                if (exits == null) {
+                    exits = new ArrayList<Long>();
+                    mUnmatchedExits.put(threadId, exits);
+                }
+                exits.add(methodId);
+            }
+        }
+    }
+
     private void computeTimingStatistics() {
         VmTraceData data = getTraceData();
 
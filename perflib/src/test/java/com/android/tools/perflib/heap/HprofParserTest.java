@@ -17,10 +17,13 @@
 package com.android.tools.perflib.heap;
 
 import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
 
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -142,6 +145,53 @@ public class HprofParserTest extends TestCase {
         assertEquals(0, fields.get(0).getValue());
     }
 
+    public void testFieldAccessors() {
+        ClassObj clazz = mSnapshot.findClass("java.lang.Thread$State");
+        ClassInstance instance = (ClassInstance) clazz.getStaticField(Type.OBJECT, "NEW");
+        List<ClassInstance.FieldValue> values = instance.getValues();
+        assertEquals(values.size(), instance.getFieldCount());
+
+        final List<Instance> references = new ArrayList<Instance>();
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(values.get(i).getField(), instance.getField(i));
+            if (values.get(i).getValue() instanceof Instance) {
+                Instance value = (Instance) values.get(i).getValue();
+                assertEquals(value.getId(), instance.getReferenceField(i));
+                references.add(value);
+            }
+        }
+        assertEquals(0, instance.getIntField(instance.getFieldIndex("ordinal")));
+        assertEquals(-1, instance.getFieldIndex("missing"));
+
+        instance.visitReferences(new Instance.ReferenceVisitor() {
+            @Override
+            public void visitReference(int index, long id) {
+                assertSame(references.remove(0), mSnapshot.findInstance(id));
+            }
+        });
+        assertTrue(references.isEmpty());
+
+        ClassInstance name = (ClassInstance) mSnapshot.findInstance(
+                instance.getReferenceField(instance.getFieldIndex("name")));
+        assertEquals("NEW", new String(name.getStringChars()));
+    }
+
+    public void testArrayReferences() {
+        ClassObj clazz = mSnapshot.findClass("java.lang.Thread$State");
+        final ArrayInstance array = (ArrayInstance) clazz.getStaticField(Type.OBJECT, "$VALUES");
+        final Object[] values = array.getValues();
+        final int[] count = new int[1];
+        array.visitReferences(new Instance.ReferenceVisitor() {
+            @Override
+            public void visitReference(int index, long id) {
+                assertEquals(count[0]++, index);
+                assertSame(values[index], mSnapshot.findInstance(id));
+                assertEquals(id, array.getReferenceValue(index));
+            }
+        });
+        assertEquals(values.length, count[0]);
+    }
+
     /**
      * Tests getValues to make sure it's not adding duplicate entries to the back references.
      */
@@ -159,6 +209,49 @@ public class HprofParserTest extends TestCase {
         assertEquals(1, child.getHardReferences().size());
     }
 
+    public void testParallelParsing() throws Exception {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        Snapshot parallel = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file), 4);
+        try {
+            mSnapshot.computeDominators();
+            parallel.computeDominators();
+
+            assertEquals(mSnapshot.getHeaps().size(), parallel.getHeaps().size());
+            assertEquals(mSnapshot.getGCRoots().size(), parallel.getGCRoots().size());
+            InstanceGraph expected = mSnapshot.getGraph();
+            InstanceGraph actual = parallel.getGraph();
+            assertEquals(expected.getNodeCount(), actual.getNodeCount());
+            for (int node = InstanceGraph.FIRST_NODE; node < expected.getNodeCount(); node++) {
+                assertEquals(expected.getInstance(node).getId(), actual.getInstance(node).getId());
+                assertEquals(expected.getHeapIndex(node), actual.getHeapIndex(node));
+                assertEquals(expected.getDominator(node), actual.getDominator(node));
+                assertEquals(expected.getTotalRetainedSize(node),
+                        actual.getTotalRetainedSize(node));
+            }
+        } finally {
+            parallel.dispose();
+        }
+    }
+
+    public void testParallelParsingThrows() throws Exception {
+        //  A heap dump segment with an invalid id size, only found when the segment is decoded.
+        ByteBuffer dump = ByteBuffer.allocate(64);
+        dump.put("JAVA PROFILE 1.0.3".getBytes("US-ASCII")).put((byte) 0);
+        dump.putInt(3).putLong(0);
+        dump.put((byte) 0x1c).putInt(0).putInt(4);
+        dump.put((byte) 0xff).put(new byte[3]);
+        byte[] bytes = new byte[dump.position()];
+        dump.flip();
+        dump.get(bytes);
+
+        try {
+            Snapshot.createSnapshot(new InMemoryBuffer(bytes), 4);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //  expected
+        }
+    }
+
     public void testResolveReferences() {
         mSnapshot = new SnapshotBuilder(1).addRoot(1).build();
         ClassObj subSoftReferenceClass = new ClassObj(98, null, "SubSoftReference", 0);
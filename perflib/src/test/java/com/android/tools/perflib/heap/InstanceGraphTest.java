@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class InstanceGraphTest extends TestCase {
+
+    public void testNodeIds() {
+        Snapshot snapshot = new SnapshotBuilder(3).addReferences(1, 2, 3).addRoot(1).build();
+        InstanceGraph graph = snapshot.getGraph();
+
+        for (int i = 1; i <= 3; i++) {
+            Instance instance = snapshot.findInstance(i);
+            assertTrue(instance.getNodeId() >= InstanceGraph.FIRST_NODE);
+            assertSame(instance, graph.getInstance(instance.getNodeId()));
+            assertEquals(snapshot.getHeapIndex(instance.getHeap()),
+                    graph.getHeapIndex(instance.getNodeId()));
+        }
+        for (RootObj root : snapshot.getGCRoots()) {
+            assertEquals(InstanceGraph.NO_NODE, root.getNodeId());
+        }
+        assertEquals(InstanceGraph.NO_NODE, Snapshot.SENTINEL_ROOT.getNodeId());
+    }
+
+    public void testReferencesKeepInsertionOrder() {
+        Snapshot snapshot = new SnapshotBuilder(4)
+                .addReferences(1, 4)
+                .addReferences(2, 4)
+                .addRoot(1)
+                .addRoot(2)
+                .build();
+        Instance node1 = snapshot.findInstance(1);
+        Instance node2 = snapshot.findInstance(2);
+        Instance node3 = snapshot.findInstance(3);
+        Instance node4 = snapshot.findInstance(4);
+
+        node4.addReference(null, node2);
+        node4.addReference(null, node1);
+        List<Instance> references = node4.getHardReferences();
+        assertEquals(2, references.size());
+        assertSame(node2, references.get(0));
+        assertSame(node1, references.get(1));
+
+        // References added after the edges have been compacted are appended.
+        node4.addReference(null, node3);
+        assertEquals(3, references.size());
+        assertSame(node3, references.get(2));
+        assertEquals(0, node1.getHardReferences().size());
+        assertNull(node4.getSoftReferences());
+
+        InstanceGraph graph = snapshot.getGraph();
+        assertEquals(3, graph.getHardReferenceCount(node4.getNodeId()));
+        assertEquals(node3.getNodeId(), graph.getHardReference(node4.getNodeId(), 2));
+    }
+
+    public void testAnalysisColumns() {
+        Snapshot snapshot = new SnapshotBuilder(3)
+                .addReferences(1, 2)
+                .addReferences(2, 3)
+                .addRoot(1)
+                .build();
+        snapshot.computeDominators();
+        InstanceGraph graph = snapshot.getGraph();
+
+        Instance node1 = snapshot.findInstance(1);
+        Instance node2 = snapshot.findInstance(2);
+        Instance node3 = snapshot.findInstance(3);
+        assertEquals(InstanceGraph.SENTINEL_NODE, graph.getDominator(node1.getNodeId()));
+        assertEquals(node1.getNodeId(), graph.getDominator(node2.getNodeId()));
+        assertEquals(node2.getNodeId(), graph.getDominator(node3.getNodeId()));
+        assertEquals(node2.getNodeId(), graph.getNextNodeToGcRoot(node3.getNodeId()));
+        assertEquals(2, graph.getDistanceToGcRoot(node3.getNodeId()));
+        assertEquals(6, graph.getTotalRetainedSize(node1.getNodeId()));
+        assertEquals(node1.getTopologicalOrder(), graph.getTopologicalOrder(node1.getNodeId()));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+public class SnapshotIndexTest extends TestCase {
+
+    private File mHprofFile;
+
+    private File mIndexFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHprofFile = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        mIndexFile = File.createTempFile("dialer", ".index");
+        mIndexFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mIndexFile.delete();
+        super.tearDown();
+    }
+
+    public void testRestoredAnalysisMatches() throws Exception {
+        Snapshot expected = Snapshot.createSnapshot(mHprofFile, mIndexFile);
+        assertTrue(mIndexFile.isFile());
+
+        Snapshot actual = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mHprofFile));
+        assertTrue(SnapshotIndex.read(actual, mHprofFile, mIndexFile));
+
+        assertEquals(expected.getTopologicalOrdering().size(),
+                actual.getTopologicalOrdering().size());
+        assertEquals(expected.getReachableInstances().size(),
+                actual.getReachableInstances().size());
+        InstanceGraph expectedGraph = expected.getGraph();
+        InstanceGraph actualGraph = actual.getGraph();
+        for (int node = InstanceGraph.FIRST_NODE; node < expectedGraph.getNodeCount(); node++) {
+            assertEquals(expectedGraph.getTopologicalOrder(node),
+                    actualGraph.getTopologicalOrder(node));
+            assertEquals(expectedGraph.getDominator(node), actualGraph.getDominator(node));
+            assertEquals(expectedGraph.getDistanceToGcRoot(node),
+                    actualGraph.getDistanceToGcRoot(node));
+            assertEquals(expectedGraph.getNextNodeToGcRoot(node),
+                    actualGraph.getNextNodeToGcRoot(node));
+            assertEquals(expectedGraph.getTotalRetainedSize(node),
+                    actualGraph.getTotalRetainedSize(node));
+            assertEquals(expectedGraph.getHardReferenceCount(node),
+                    actualGraph.getHardReferenceCount(node));
+            assertEquals(expectedGraph.getSoftReferenceCount(node),
+                    actualGraph.getSoftReferenceCount(node));
+        }
+
+        // Dominators are not computed again.
+        Instance instance = actual.getTopologicalOrdering().get(0);
+        actual.computeDominators();
+        assertSame(instance, actual.getTopologicalOrdering().get(0));
+    }
+
+    public void testMismatchedIndexIsIgnored() throws Exception {
+        Snapshot.createSnapshot(mHprofFile, mIndexFile);
+
+        // Same length, different contents.
+        File otherFile = File.createTempFile("other", ".hprof");
+        try {
+            RandomAccessFile file = new RandomAccessFile(otherFile, "rw");
+            file.setLength(mHprofFile.length());
+            file.close();
+            Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mHprofFile));
+            assertFalse(SnapshotIndex.read(snapshot, otherFile, mIndexFile));
+            assertNull(snapshot.getTopologicalOrdering());
+        } finally {
+            otherFile.delete();
+        }
+    }
+
+    public void testChangedDumpIsDetected() throws Exception {
+        File copy = File.createTempFile("dialer", ".hprof");
+        try {
+            Files.copy(mHprofFile, copy);
+            long lastModified = copy.lastModified();
+            Snapshot.createSnapshot(copy, mIndexFile);
+            Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(copy));
+            assertTrue(SnapshotIndex.read(snapshot, copy, mIndexFile));
+
+            // A rewritten tail, with the same length and modification time.
+            RandomAccessFile file = new RandomAccessFile(copy, "rw");
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xff);
+            file.close();
+            assertTrue(copy.setLastModified(lastModified));
+            snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mHprofFile));
+            assertFalse(SnapshotIndex.read(snapshot, copy, mIndexFile));
+
+            // The same content, modified later.
+            Files.copy(mHprofFile, copy);
+            assertTrue(copy.setLastModified(lastModified + 10000));
+            assertFalse(SnapshotIndex.read(snapshot, copy, mIndexFile));
+            assertNull(snapshot.getTopologicalOrdering());
+        } finally {
+            copy.delete();
+        }
+    }
+
+    public void testTruncatedIndexIsIgnored() throws Exception {
+        Snapshot.createSnapshot(mHprofFile, mIndexFile);
+        RandomAccessFile file = new RandomAccessFile(mIndexFile, "rw");
+        file.setLength(file.length() / 2);
+        file.close();
+
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mHprofFile));
+        assertFalse(SnapshotIndex.read(snapshot, mHprofFile, mIndexFile));
+        assertNull(snapshot.getTopologicalOrdering());
+        assertEquals(InstanceGraph.NO_NODE,
+                snapshot.getGraph().getDominator(InstanceGraph.FIRST_NODE));
+
+        // The index is rewritten on the next open.
+        FileOutputStream empty = new FileOutputStream(mIndexFile);
+        empty.close();
+        Snapshot.createSnapshot(mHprofFile, mIndexFile);
+        assertTrue(SnapshotIndex.read(
+                Snapshot.createSnapshot(new MemoryMappedFileBuffer(mHprofFile)), mHprofFile,
+                mIndexFile));
+    }
+}
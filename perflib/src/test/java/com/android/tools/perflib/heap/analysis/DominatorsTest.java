@@ -22,7 +22,9 @@ import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class DominatorsTest extends TestCase {
@@ -271,6 +273,112 @@ public class DominatorsTest extends TestCase {
         assertEquals(576, activityThread.getRetainedSize(appIndex));
     }
 
+    public void testLongChain() {
+        // A linked list deep enough to blow the stack of a recursive implementation.
+        int length = 20000;
+        SnapshotBuilder builder = new SnapshotBuilder(length).addRoot(1);
+        for (int i = 1; i < length; i++) {
+            builder.addReferences(i, i + 1);
+        }
+        mSnapshot = builder.build();
+
+        mSnapshot.computeDominators();
+
+        assertEquals(length, mSnapshot.getReachableInstances().size());
+        long expectedSize = 0;
+        for (int i = length; i >= 1; i--) {
+            expectedSize += i;
+            assertEquals(expectedSize, mSnapshot.findInstance(i).getRetainedSize(1));
+        }
+        assertDominates(length - 1, length);
+    }
+
+    public void testDominatorEnginesAgree() {
+        SnapshotBuilder[] builders = {
+                new SnapshotBuilder(9)
+                        .addReferences(1, 2)
+                        .addReferences(2, 3, 9)
+                        .addReferences(3, 2, 4)
+                        .addReferences(4, 3, 5)
+                        .addReferences(5, 4, 6)
+                        .addReferences(6, 5, 7)
+                        .addReferences(7, 6, 8)
+                        .addReferences(8, 7, 9)
+                        .addReferences(9, 2, 8)
+                        .addRoot(1),
+                new SnapshotBuilder(6)
+                        .addReferences(1, 3)
+                        .addReferences(2, 4)
+                        .addReferences(3, 5)
+                        .addReferences(4, 5)
+                        .addReferences(5, 6)
+                        .addRoot(1)
+                        .addRoot(2),
+                new SnapshotBuilder(8)
+                        .addReferences(1, 7, 8)
+                        .addReferences(7, 2, 3)
+                        .addReferences(8, 2)
+                        .addReferences(2, 4)
+                        .addReferences(3, 5)
+                        .addReferences(5, 4)
+                        .addReferences(4, 6)
+                        .addRoot(1),
+                new SnapshotBuilder(11, 2, 1)
+                        .addReferences(1, 2, 3)
+                        .insertSoftReference(1, 11)
+                        .addReferences(2, 4)
+                        .addReferences(3, 5, 6)
+                        .insertSoftReference(4, 9)
+                        .addReferences(5, 7)
+                        .addReferences(6, 7)
+                        .addReferences(7, 8, 10)
+                        .insertSoftAndHardReference(8, 10, 9)
+                        .addRoot(1)
+        };
+
+        for (SnapshotBuilder builder : builders) {
+            Snapshot iterative = builder.build();
+            iterative.computeDominators(Snapshot.DominatorComputation.ITERATIVE);
+            Snapshot linkEval = builder.build();
+            linkEval.computeDominators(Snapshot.DominatorComputation.LINK_EVAL);
+            assertSameDominators(iterative, linkEval);
+        }
+    }
+
+    /**
+     * Asserts that two snapshots of the same heap have identical dominator trees and retained sizes.
+     */
+    private static void assertSameDominators(Snapshot expected, Snapshot actual) {
+        assertEquals(expected.getReachableInstances().size(),
+                actual.getReachableInstances().size());
+        for (Heap expectedHeap : expected.getHeaps()) {
+            Heap actualHeap = actual.getHeap(expectedHeap.getId());
+            assertNotNull(actualHeap);
+            List<Instance> expectedInstances = new ArrayList<Instance>(expectedHeap.getClasses());
+            expectedInstances.addAll(expectedHeap.getInstances());
+            for (Instance expectedInstance : expectedInstances) {
+                Instance actualInstance = expectedInstance instanceof ClassObj
+                        ? actualHeap.getClass(expectedInstance.getId())
+                        : actualHeap.getInstance(expectedInstance.getId());
+                assertNotNull(actualInstance);
+
+                Instance expectedDominator = expectedInstance.getImmediateDominator();
+                Instance actualDominator = actualInstance.getImmediateDominator();
+                if (expectedDominator == null || expectedDominator == Snapshot.SENTINEL_ROOT) {
+                    assertSame(expectedDominator, actualDominator);
+                } else {
+                    assertNotNull(actualDominator);
+                    assertEquals(expectedDominator.getId(), actualDominator.getId());
+                }
+
+                for (int i = 0; i < expected.getHeaps().size(); i++) {
+                    assertEquals(expectedInstance.getRetainedSize(i),
+                            actualInstance.getRetainedSize(i));
+                }
+            }
+        }
+    }
+
     /**
      * Asserts that nodeA dominates nodeB in mHeap.
      */
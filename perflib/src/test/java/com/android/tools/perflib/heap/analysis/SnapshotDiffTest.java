@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class SnapshotDiffTest extends TestCase {
+
+    public void testIdenticalSnapshots() {
+        SnapshotDiff.Summary before = SnapshotDiff.Summary.of(
+                new SnapshotBuilder(3).addReferences(1, 2).addReferences(2, 3).addRoot(1).build());
+        SnapshotDiff.Summary after = SnapshotDiff.Summary.of(
+                new SnapshotBuilder(3).addReferences(1, 2).addReferences(2, 3).addRoot(1).build());
+        assertEquals(3, after.getInstanceCount());
+
+        SnapshotDiff diff = SnapshotDiff.compute(before, after);
+        assertTrue(diff.getNewlyRetainedSubtrees().isEmpty());
+        for (SnapshotDiff.ClassDiff classDiff : diff.getClassDiffs()) {
+            assertEquals(0, classDiff.getCountDelta());
+            assertEquals(0, classDiff.getShallowSizeDelta());
+            assertEquals(0, classDiff.getRetainedSizeDelta());
+        }
+    }
+
+    public void testNewSubtree() {
+        // Node i is an instance of "Class" + i / 2, and has size i.
+        Snapshot snapshot = new SnapshotBuilder(3)
+                .addReferences(1, 2)
+                .addReferences(2, 3)
+                .addRoot(1)
+                .build();
+        SnapshotDiff.Summary before = SnapshotDiff.Summary.of(snapshot);
+        snapshot.dispose();
+
+        snapshot = new SnapshotBuilder(5)
+                .addReferences(1, 2, 4)
+                .addReferences(2, 3)
+                .addReferences(4, 5)
+                .addRoot(1)
+                .build();
+        SnapshotDiff.Summary after = SnapshotDiff.Summary.of(snapshot);
+        snapshot.dispose();
+
+        SnapshotDiff diff = SnapshotDiff.compute(before, after);
+        List<SnapshotDiff.RetainedSubtree> subtrees = diff.getNewlyRetainedSubtrees();
+        assertEquals(1, subtrees.size());
+        assertEquals(4, subtrees.get(0).getId());
+        assertEquals("Class2", subtrees.get(0).getClassName());
+        assertEquals(9, subtrees.get(0).getRetainedSize());
+
+        List<SnapshotDiff.ClassDiff> classDiffs = diff.getClassDiffs();
+        assertEquals(3, classDiffs.size());
+        // Node 5 is dominated by node 4 of the same class, and doesn't add to the retained size.
+        assertEquals("Class0", classDiffs.get(0).getClassName());
+        assertEquals(0, classDiffs.get(0).getCountDelta());
+        assertEquals(9, classDiffs.get(0).getRetainedSizeDelta());
+        assertEquals("Class2", classDiffs.get(1).getClassName());
+        assertEquals(2, classDiffs.get(1).getCountDelta());
+        assertEquals(9, classDiffs.get(1).getShallowSizeDelta());
+        assertEquals(9, classDiffs.get(1).getRetainedSizeDelta());
+        assertEquals("Class1", classDiffs.get(2).getClassName());
+        assertEquals(0, classDiffs.get(2).getRetainedSizeDelta());
+    }
+
+    public void testSubtreeRetainsOldInstances() {
+        SnapshotDiff.Summary before = SnapshotDiff.Summary.of(new SnapshotBuilder(3)
+                .addReferences(1, 2, 3)
+                .addRoot(1)
+                .build());
+        SnapshotDiff.Summary after = SnapshotDiff.Summary.of(new SnapshotBuilder(4)
+                .addReferences(1, 2, 4)
+                .addReferences(4, 3)
+                .addRoot(1)
+                .build());
+
+        // Node 3 existed before, but is now only reachable through the new node 4.
+        List<SnapshotDiff.RetainedSubtree> subtrees =
+                SnapshotDiff.compute(before, after).getNewlyRetainedSubtrees();
+        assertEquals(1, subtrees.size());
+        assertEquals(4, subtrees.get(0).getId());
+        assertEquals(7, subtrees.get(0).getRetainedSize());
+    }
+
+    public void testFreedInstances() {
+        SnapshotDiff.Summary before = SnapshotDiff.Summary.of(new SnapshotBuilder(4)
+                .addReferences(1, 2)
+                .addReferences(2, 3, 4)
+                .addRoot(1)
+                .build());
+        SnapshotDiff.Summary after = SnapshotDiff.Summary.of(new SnapshotBuilder(4)
+                .addReferences(1, 2)
+                .addRoot(1)
+                .build());
+
+        SnapshotDiff diff = SnapshotDiff.compute(before, after);
+        assertTrue(diff.getNewlyRetainedSubtrees().isEmpty());
+        SnapshotDiff.ClassDiff last = diff.getClassDiffs().get(diff.getClassDiffs().size() - 1);
+        // Nodes 2 and 3 are Class1, and node 3 is gone.
+        assertEquals("Class1", last.getClassName());
+        assertEquals(-1, last.getCountDelta());
+        assertEquals(-3, last.getShallowSizeDelta());
+        assertEquals(2, last.getCountBefore());
+        assertEquals(1, last.getCountAfter());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.hprof;
+
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+public class HprofWriterTest extends TestCase {
+
+    private static final int NUM_INSTANCES = 100;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("writer", ".hprof");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testSegmentsAreSplit() throws Exception {
+        HprofStringBuilder strings = new HprofStringBuilder(0);
+        int className = strings.get("Node");
+        int fieldName = strings.get("next");
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        HprofWriter writer = new HprofWriter("JAVA PROFILE 1.0.3", 4, new Date(),
+                file.getChannel(), 256);
+        try {
+            for (HprofString string : strings.getStringRecords()) {
+                writer.writeRecord(string);
+            }
+            writer.writeRecord(new HprofLoadClass(0, 1, 1000, 0, className));
+            writer.writeDumpRecord(new HprofRootUnknown(1));
+            writer.writeDumpRecord(new HprofClassDump(1000, 0, 0, 0, 0, 0, 0, 0, 4,
+                    new HprofConstant[0], new HprofStaticField[0],
+                    new HprofInstanceField[]{
+                            new HprofInstanceField(fieldName, HprofType.TYPE_OBJECT)}));
+            for (int i = 1; i <= NUM_INSTANCES; i++) {
+                ByteBuffer next = ByteBuffer.allocate(4);
+                next.putInt(i < NUM_INSTANCES ? i + 1 : 0);
+                writer.writeDumpRecord(new HprofInstanceDump(i, 0, 1000, next.array()));
+            }
+            writer.endHeapDump();
+        } finally {
+            writer.close();
+            file.close();
+        }
+
+        byte[] bytes = Files.toByteArray(mFile);
+        assertTrue(countRecords(bytes, HprofHeapDumpSegment.TAG) > 1);
+        assertEquals(1, countRecords(bytes, HprofHeapDumpEnd.TAG));
+
+        Snapshot snapshot = Snapshot.createSnapshot(new InMemoryBuffer(bytes));
+        ClassObj node = snapshot.findClass("Node");
+        assertNotNull(node);
+        assertEquals(NUM_INSTANCES, node.getInstanceCount());
+        assertNotNull(snapshot.findInstance(NUM_INSTANCES));
+        snapshot.dispose();
+    }
+
+    public void testEmptyHeapDump() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        HprofWriter writer = new HprofWriter("JAVA PROFILE 1.0.3", 4, new Date(),
+                file.getChannel());
+        writer.endHeapDump();
+        writer.close();
+        file.close();
+
+        byte[] bytes = Files.toByteArray(mFile);
+        assertEquals(0, countRecords(bytes, HprofHeapDumpSegment.TAG));
+        assertEquals(1, countRecords(bytes, HprofHeapDumpEnd.TAG));
+    }
+
+    /**
+     * Walks the top level records of an hprof file with 4 byte ids, checking that every record
+     * length is consistent with the file length.
+     */
+    private static int countRecords(byte[] bytes, byte tag) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.get() != 0) {
+        }
+        buffer.position(buffer.position() + 12);
+
+        int count = 0;
+        while (buffer.hasRemaining()) {
+            byte recordTag = buffer.get();
+            buffer.getInt();
+            long length = buffer.getInt() & 0xffffffffL;
+            assertTrue(buffer.position() + length <= bytes.length);
+            buffer.position(buffer.position() + (int) length);
+            if (recordTag == tag) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
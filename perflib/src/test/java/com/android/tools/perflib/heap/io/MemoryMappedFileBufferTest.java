@@ -51,6 +51,30 @@ public class MemoryMappedFileBufferTest extends TestCase {
         assertSnapshotCorrect(snapshot);
     }
 
+    public void testOffsetMapping() throws Exception {
+        // The dump follows a header, as when streamed from a JDWP packet.
+        File tmpFile = File.createTempFile("test_offset", ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            raf.write(new byte[19]);
+            raf.getChannel().transferFrom(inputStream.getChannel(), 19, file.length());
+        } finally {
+            inputStream.close();
+            raf.close();
+        }
+
+        MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(tmpFile, 19, file.length());
+        try {
+            assertEquals(file.length(), buffer.remaining());
+            Snapshot snapshot = Snapshot.createSnapshot(buffer);
+            assertSnapshotCorrect(snapshot);
+        } finally {
+            buffer.dispose();
+            tmpFile.delete();
+        }
+    }
+
     public void testMemoryMappingRemoval() throws Exception {
         File tmpFile = File.createTempFile("test_vm", ".tmp");
         System.err.println("vm temp file: " + tmpFile.getAbsolutePath());
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisReport;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.analyzer.CaptureGroup;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class HeapIndexTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSnapshot = new SnapshotBuilder(4)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 4)
+                .addRoot(1)
+                .build();
+        mSnapshot.computeDominators();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSnapshot.dispose();
+        super.tearDown();
+    }
+
+    public void testInstancesByClass() {
+        Heap heap = mSnapshot.getHeap("testHeap");
+        HeapIndex index = new HeapIndex(mSnapshot, Collections.singletonList(heap));
+
+        Instance instance = mSnapshot.findInstance(3);
+        List<Instance> instances = index.getInstances(instance.getClassObj());
+        assertEquals(Collections.singletonList(instance), instances);
+        assertSame(instances, index.getInstances(instance.getClassObj()));
+
+        // Instances of other heaps are not indexed.
+        HeapIndex emptyIndex = new HeapIndex(mSnapshot, Collections.<Heap>emptyList());
+        assertTrue(emptyIndex.getInstances(instance.getClassObj()).isEmpty());
+    }
+
+    public void testReferrers() {
+        HeapIndex index = new HeapIndex(mSnapshot, mSnapshot.getHeaps());
+        List<Instance> referrers = index.getReferrers(mSnapshot.findInstance(4));
+        assertEquals(2, referrers.size());
+        assertTrue(referrers.contains(mSnapshot.findInstance(2)));
+        assertTrue(referrers.contains(mSnapshot.findInstance(3)));
+    }
+
+    public void testTasksReadTheSnapshotConcurrently() throws Exception {
+        final CountDownLatch started = new CountDownLatch(3);
+        final CountDownLatch done = new CountDownLatch(3);
+        final AtomicBoolean mismatch = new AtomicBoolean();
+        Set<MemoryAnalyzerTask> tasks = new HashSet<MemoryAnalyzerTask>();
+        for (int i = 0; i < 3; i++) {
+            // Each task reads the fields of a different instance, at the same time as the others.
+            final ClassInstance instance = (ClassInstance) mSnapshot.findInstance(i + 1);
+            final List<Object> expectedValues = getValues(instance);
+            tasks.add(new MemoryAnalyzerTask() {
+                @Override
+                List<AnalysisResultEntry> analyze(@NonNull Configuration configuration,
+                        @NonNull Snapshot snapshot) {
+                    started.countDown();
+                    try {
+                        if (started.await(10, TimeUnit.SECONDS)) {
+                            for (int j = 0; j < 100000; j++) {
+                                if (!expectedValues.equals(getValues(instance))) {
+                                    mismatch.set(true);
+                                }
+                            }
+                        } else {
+                            mismatch.set(true);
+                        }
+                    } catch (InterruptedException e) {
+                        mismatch.set(true);
+                    }
+                    done.countDown();
+                    return Collections.emptyList();
+                }
+
+                @NonNull
+                @Override
+                public String getTaskName() {
+                    return "test";
+                }
+
+                @NonNull
+                @Override
+                public String getTaskDescription() {
+                    return "test";
+                }
+            });
+        }
+        CaptureGroup captureGroup = new CaptureGroup();
+        captureGroup.addCapture(mSnapshot);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            new MemoryAnalyzer().analyze(captureGroup,
+                    Collections.<AnalysisReport.Listener>emptySet(), tasks,
+                    MoreExecutors.sameThreadExecutor(), executor);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertFalse(mismatch.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testSharedConfiguration() {
+        MemoryAnalyzerTask.Configuration configuration =
+                new MemoryAnalyzerTask.Configuration(mSnapshot.getHeaps());
+        assertSame(configuration.getIndex(mSnapshot), configuration.getIndex(mSnapshot));
+        assertTrue(configuration.getIndex(mSnapshot).getReachableStrings().isEmpty());
+    }
+
+    @NonNull
+    private static List<Object> getValues(@NonNull ClassInstance instance) {
+        List<Object> values = new ArrayList<Object>();
+        for (ClassInstance.FieldValue fieldValue : instance.getValues()) {
+            values.add(fieldValue.getValue());
+        }
+        return values;
+    }
+}
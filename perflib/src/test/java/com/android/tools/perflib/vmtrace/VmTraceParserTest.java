@@ -335,6 +335,103 @@ public class VmTraceParserTest extends TestCase {
         }
     }
 
+    public void testStreamingParse() throws IOException {
+        String[] traces = {"/basic.trace", "/basic-api10.trace", "/mismatched.trace",
+                "/exception.trace"};
+        for (String trace : traces) {
+            VmTraceData expected = getVmTraceData(trace);
+
+            VmTraceParser parser = new VmTraceParser(getFile(trace));
+            parser.parseStreaming(true);
+            VmTraceData actual = parser.getTraceData();
+
+            assertEquals(expected.getMethods().keySet(), actual.getMethods().keySet());
+            assertEquals(expected.getThreads(true).size(), actual.getThreads(true).size());
+            for (ThreadInfo expectedThread : expected.getThreads(true)) {
+                ThreadInfo actualThread = actual.getThread(expectedThread.getName());
+                assertNull(actualThread.getTopLevelCall());
+                assertEquals(expectedThread.getTopLevelMethodId(),
+                        actualThread.getTopLevelMethodId());
+                assertCallTreeEquals(expectedThread.getTopLevelCall(),
+                        actualThread.getCallTree());
+
+                for (Map.Entry<Long, MethodInfo> entry : expected.getMethods().entrySet()) {
+                    assertProfileDataEquals(entry.getValue().getProfileData(),
+                            actual.getMethod(entry.getKey()).getProfileData(), expectedThread,
+                            actualThread);
+                }
+            }
+        }
+    }
+
+    public void testStreamingParseWithoutCallTrees() throws IOException {
+        VmTraceParser parser = new VmTraceParser(getFile("/basic.trace"));
+        parser.parseStreaming(false);
+        VmTraceData traceData = parser.getTraceData();
+        ThreadInfo thread = traceData.getThread("AsyncTask #1");
+        assertNull(thread.getCallTree());
+
+        SearchResult results = traceData.searchFor("startMethodTracing", thread);
+        assertEquals(3, results.getMethods().size());
+        assertTrue(results.getInstances().isEmpty());
+    }
+
+    private static void assertCallTreeEquals(Call expected, CallTree actual) {
+        Iterator<Call> it = expected.getCallHierarchyIterator();
+        int index = 0;
+        while (it.hasNext()) {
+            Call call = it.next();
+            assertEquals(call.getMethodId(), actual.getMethodId(index));
+            assertEquals(call.getDepth(), actual.getDepth(index));
+            for (ClockType type : ClockType.values()) {
+                assertEquals(call.getEntryTime(type, TimeUnit.MICROSECONDS),
+                        actual.getEntryTime(index, type, TimeUnit.MICROSECONDS));
+                assertEquals(call.getExitTime(type, TimeUnit.MICROSECONDS),
+                        actual.getExitTime(index, type, TimeUnit.MICROSECONDS));
+                assertEquals(call.getExclusiveTime(type, TimeUnit.MICROSECONDS),
+                        actual.getExclusiveTime(index, type, TimeUnit.MICROSECONDS));
+            }
+            index++;
+        }
+        assertEquals(index, actual.size());
+        assertEquals(index, actual.getSubtreeEnd(0));
+    }
+
+    private static void assertProfileDataEquals(MethodProfileData expected,
+            MethodProfileData actual, ThreadInfo expectedThread, ThreadInfo actualThread) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.isRecursive(), actual.isRecursive());
+        assertEquals(expected.getInvocationCount(expectedThread),
+                actual.getInvocationCount(actualThread));
+        assertEquals(expected.getCallers(expectedThread), actual.getCallers(actualThread));
+        assertEquals(expected.getCallees(expectedThread), actual.getCallees(actualThread));
+        for (ClockType type : ClockType.values()) {
+            TimeUnit unit = TimeUnit.NANOSECONDS;
+            assertEquals(expected.getInclusiveTime(expectedThread, type, unit),
+                    actual.getInclusiveTime(actualThread, type, unit));
+            assertEquals(expected.getExclusiveTime(expectedThread, type, unit),
+                    actual.getExclusiveTime(actualThread, type, unit));
+            for (Long caller : expected.getCallers(expectedThread)) {
+                assertEquals(expected.getInvocationCountFromCaller(expectedThread, caller),
+                        actual.getInvocationCountFromCaller(actualThread, caller));
+                assertEquals(
+                        expected.getInclusiveTimeByCaller(expectedThread, caller, type, unit),
+                        actual.getInclusiveTimeByCaller(actualThread, caller, type, unit));
+                assertEquals(
+                        expected.getExclusiveTimeByCaller(expectedThread, caller, type, unit),
+                        actual.getExclusiveTimeByCaller(actualThread, caller, type, unit));
+            }
+            for (Long callee : expected.getCallees(expectedThread)) {
+                assertEquals(
+                        expected.getInclusiveTimeByCallee(expectedThread, callee, type, unit),
+                        actual.getInclusiveTimeByCallee(actualThread, callee, type, unit));
+            }
+        }
+    }
+
     private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
         VmTraceParser parser = new VmTraceParser(getFile(traceFilePath));
         parser.parse();
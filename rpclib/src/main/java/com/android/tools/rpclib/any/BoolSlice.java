@@ -79,18 +79,14 @@ final class BoolSlice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             BoolSlice o = (BoolSlice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.bool(o.mValue[i]);
-            }
+            e.bool(o.mValue);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             BoolSlice o = (BoolSlice)obj;
             o.mValue = new boolean[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.bool();
-            }
+            d.bool(o.mValue);
         }
         //<<<End:Java.KlassBody:2>>>
     }
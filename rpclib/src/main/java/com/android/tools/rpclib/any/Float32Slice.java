@@ -79,18 +79,14 @@ final class Float32Slice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Float32Slice o = (Float32Slice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.float32(o.mValue[i]);
-            }
+            e.float32(o.mValue);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Float32Slice o = (Float32Slice)obj;
             o.mValue = new float[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.float32();
-            }
+            d.float32(o.mValue);
         }
         //<<<End:Java.KlassBody:2>>>
     }
@@ -79,18 +79,14 @@ final class Float64Slice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Float64Slice o = (Float64Slice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.float64(o.mValue[i]);
-            }
+            e.float64(o.mValue);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Float64Slice o = (Float64Slice)obj;
             o.mValue = new double[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.float64();
-            }
+            d.float64(o.mValue);
         }
         //<<<End:Java.KlassBody:2>>>
     }
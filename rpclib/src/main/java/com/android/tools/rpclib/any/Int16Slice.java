@@ -79,18 +79,14 @@ final class Int16Slice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Int16Slice o = (Int16Slice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.int16(o.mValue[i]);
-            }
+            e.int16(o.mValue);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Int16Slice o = (Int16Slice)obj;
             o.mValue = new short[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.int16();
-            }
+            d.int16(o.mValue);
         }
         //<<<End:Java.KlassBody:2>>>
     }
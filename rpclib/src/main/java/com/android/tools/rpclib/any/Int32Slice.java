@@ -79,18 +79,14 @@ final class Int32Slice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Int32Slice o = (Int32Slice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.int32(o.mValue[i]);
-            }
+            e.int32(o.mValue);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Int32Slice o = (Int32Slice)obj;
             o.mValue = new int[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.int32();
-            }
+            d.int32(o.mValue);
         }
         //<<<End:Java.KlassBody:2>>>
     }
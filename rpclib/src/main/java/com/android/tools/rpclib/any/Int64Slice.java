@@ -79,18 +79,14 @@ final class Int64Slice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Int64Slice o = (Int64Slice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.int64(o.mValue[i]);
-            }
+            e.int64(o.mValue);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Int64Slice o = (Int64Slice)obj;
             o.mValue = new long[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.int64();
-            }
+            d.int64(o.mValue);
         }
         //<<<End:Java.KlassBody:2>>>
     }
@@ -79,18 +79,14 @@ final class Int8Slice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Int8Slice o = (Int8Slice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.int8(o.mValue[i]);
-            }
+            e.write(o.mValue, o.mValue.length);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Int8Slice o = (Int8Slice)obj;
             o.mValue = new byte[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.int8();
-            }
+            d.read(o.mValue, o.mValue.length);
         }
         //<<<End:Java.KlassBody:2>>>
     }
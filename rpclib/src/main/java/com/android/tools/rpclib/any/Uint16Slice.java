@@ -79,18 +79,14 @@ final class Uint16Slice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Uint16Slice o = (Uint16Slice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.uint16(o.mValue[i]);
-            }
+            e.uint16(o.mValue);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Uint16Slice o = (Uint16Slice)obj;
             o.mValue = new short[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.uint16();
-            }
+            d.uint16(o.mValue);
         }
         //<<<End:Java.KlassBody:2>>>
     }
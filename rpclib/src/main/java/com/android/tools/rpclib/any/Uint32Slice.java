@@ -79,18 +79,14 @@ final class Uint32Slice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Uint32Slice o = (Uint32Slice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.uint32(o.mValue[i]);
-            }
+            e.uint32(o.mValue);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Uint32Slice o = (Uint32Slice)obj;
             o.mValue = new int[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.uint32();
-            }
+            d.uint32(o.mValue);
         }
         //<<<End:Java.KlassBody:2>>>
     }
@@ -79,18 +79,14 @@ final class Uint64Slice extends Box implements BinaryObject {
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Uint64Slice o = (Uint64Slice)obj;
             e.uint32(o.mValue.length);
-            for (int i = 0; i < o.mValue.length; i++) {
-                e.uint64(o.mValue[i]);
-            }
+            e.uint64(o.mValue);
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Uint64Slice o = (Uint64Slice)obj;
             o.mValue = new long[d.uint32()];
-            for (int i = 0; i <o.mValue.length; i++) {
-                o.mValue[i] = d.uint64();
-            }
+            d.uint64(o.mValue);
         }
         //<<<End:Java.KlassBody:2>>>
     }
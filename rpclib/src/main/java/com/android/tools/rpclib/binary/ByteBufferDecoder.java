@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A {@link Decoder} reading directly from a {@link ByteBuffer}, either a pooled direct buffer
+ * filled from a channel, or a buffer holding the data to decode.
+ * Values are decoded from the buffer without going through an {@link InputStream}, and slices of
+ * primitives are decoded in a single pass. The encoding is identical to the one of {@link Decoder}.
+ */
+public class ByteBufferDecoder extends Decoder {
+  @NotNull private final Input mInput;
+
+  public ByteBufferDecoder(@NotNull ReadableByteChannel channel) {
+    this(channel, ByteBufferPool.getDefault());
+  }
+
+  public ByteBufferDecoder(@NotNull ReadableByteChannel channel, @NotNull ByteBufferPool pool) {
+    this(new Input(channel, pool, pool.acquire()));
+  }
+
+  /**
+   * Decodes the remaining bytes of the given buffer, without copying them.
+   */
+  public ByteBufferDecoder(@NotNull ByteBuffer buffer) {
+    this(new Input(null, null, buffer));
+  }
+
+  private ByteBufferDecoder(@NotNull Input input) {
+    super(input);
+    mInput = input;
+  }
+
+  /**
+   * Gives the buffer back to the pool. The channel is left open, and any data read from it but
+   * not decoded yet is lost.
+   */
+  public void release() {
+    mInput.close();
+  }
+
+  @Override
+  public void read(byte[] buf, int count) throws IOException {
+    int off = 0;
+    while (off < count) {
+      int n = mInput.read(buf, off, count - off);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      off += n;
+    }
+  }
+
+  @Override
+  public boolean bool() throws IOException {
+    return mInput.require(1).get() != 0;
+  }
+
+  @Override
+  public byte int8() throws IOException {
+    return mInput.require(1).get();
+  }
+
+  @Override
+  public byte uint8() throws IOException {
+    return int8();
+  }
+
+  @Override
+  public short int16() throws IOException {
+    return (short)intv();
+  }
+
+  @Override
+  public short uint16() throws IOException {
+    return (short)uintv();
+  }
+
+  @Override
+  public int int32() throws IOException {
+    return (int)intv();
+  }
+
+  @Override
+  public int uint32() throws IOException {
+    return (int)uintv();
+  }
+
+  @Override
+  public long int64() throws IOException {
+    return intv();
+  }
+
+  @Override
+  public long uint64() throws IOException {
+    return uintv();
+  }
+
+  @Override
+  public float float32() throws IOException {
+    return Float.intBitsToFloat(Integer.reverseBytes((int)uintv()));
+  }
+
+  @Override
+  public double float64() throws IOException {
+    return Double.longBitsToDouble(Long.reverseBytes(uintv()));
+  }
+
+  @Override
+  public void bool(@NotNull boolean[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = mInput.require(1).get() != 0;
+    }
+  }
+
+  @Override
+  public void int16(@NotNull short[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = (short)intv();
+    }
+  }
+
+  @Override
+  public void uint16(@NotNull short[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = (short)uintv();
+    }
+  }
+
+  @Override
+  public void int32(@NotNull int[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = (int)intv();
+    }
+  }
+
+  @Override
+  public void uint32(@NotNull int[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = (int)uintv();
+    }
+  }
+
+  @Override
+  public void int64(@NotNull long[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = intv();
+    }
+  }
+
+  @Override
+  public void uint64(@NotNull long[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = uintv();
+    }
+  }
+
+  @Override
+  public void float32(@NotNull float[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = Float.intBitsToFloat(Integer.reverseBytes((int)uintv()));
+    }
+  }
+
+  @Override
+  public void float64(@NotNull double[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = Double.longBitsToDouble(Long.reverseBytes(uintv()));
+    }
+  }
+
+  @Override
+  public String string() throws IOException {
+    byte[] bytes = new byte[uint32()];
+    read(bytes, bytes.length);
+    try {
+      return new String(bytes, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // Should never happen
+    }
+  }
+
+  private long intv() throws IOException {
+    long uv = uintv();
+    long v = uv >>> 1;
+    if ((uv & 1) != 0) {
+      v = ~v;
+    }
+    return v;
+  }
+
+  private long uintv() throws IOException {
+    ByteBuffer buffer = mInput.mBuffer;
+    if (buffer.remaining() < ByteBufferEncoder.MAX_VARINT_SIZE) {
+      // Near the end of the buffer, only ask for the bytes of this value.
+      buffer = mInput.require(1);
+      buffer = mInput.require(1 + getTrailingByteCount(buffer.get(buffer.position())));
+    }
+    int tag = buffer.get();
+    int count = getTrailingByteCount(tag);
+    long v = tag & (0xff >> count);
+    for (int i = 0; i < count; i++) {
+      v = (v << 8) | (buffer.get() & 0xffL);
+    }
+    return v;
+  }
+
+  /**
+   * Returns the number of bytes following the first byte of a varint, encoded as the number of
+   * leading one bits of the first byte.
+   */
+  private static int getTrailingByteCount(int tag) {
+    return Math.min(Integer.numberOfLeadingZeros(~tag << 24), 8);
+  }
+
+  /**
+   * The stream of the decoder, reading from the buffer.
+   */
+  private static final class Input extends InputStream {
+    @Nullable private final ReadableByteChannel mChannel;
+    @Nullable private final ByteBufferPool mPool;
+    // The data not decoded yet is between the position and the limit.
+    @NotNull private ByteBuffer mBuffer;
+
+    Input(@Nullable ReadableByteChannel channel, @Nullable ByteBufferPool pool,
+          @NotNull ByteBuffer buffer) {
+      mChannel = channel;
+      mPool = pool;
+      mBuffer = buffer;
+      if (channel != null) {
+        mBuffer.flip();
+      }
+    }
+
+    /**
+     * Returns the buffer, with at least count bytes remaining.
+     */
+    @NotNull
+    ByteBuffer require(int count) throws IOException {
+      if (mBuffer.remaining() < count && !fill(count)) {
+        throw new EOFException();
+      }
+      return mBuffer;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!mBuffer.hasRemaining() && !fill(1)) {
+        return -1;
+      }
+      return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!mBuffer.hasRemaining()) {
+        if (mChannel != null && len >= mBuffer.capacity()) {
+          // Large arrays are read into as is.
+          return mChannel.read(ByteBuffer.wrap(b, off, len));
+        }
+        if (!fill(1)) {
+          return -1;
+        }
+      }
+      int n = Math.min(len, mBuffer.remaining());
+      mBuffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return mBuffer.remaining();
+    }
+
+    @Override
+    public void close() {
+      if (mPool != null) {
+        mBuffer.clear();
+        mPool.release(mBuffer);
+        // Keep an empty buffer, so that the decoder reports the end of the data if used again.
+        mBuffer = ByteBuffer.allocate(0);
+      }
+    }
+
+    /**
+     * Reads from the channel until at least count bytes are remaining, returning false if the end
+     * of the data is reached first.
+     */
+    private boolean fill(int count) throws IOException {
+      if (mChannel == null || mBuffer.capacity() < count) {
+        return false;
+      }
+      mBuffer.compact();
+      try {
+        while (mBuffer.position() < count) {
+          if (mChannel.read(mBuffer) < 0) {
+            return false;
+          }
+        }
+      } finally {
+        mBuffer.flip();
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An {@link Encoder} writing directly into a pooled direct {@link ByteBuffer}, which is written to
+ * a channel when full or when {@link #flush()} is called.
+ * Values are encoded into the buffer without going through an {@link OutputStream}, and slices of
+ * primitives are encoded in a single pass. The encoding is identical to the one of {@link Encoder}.
+ */
+public class ByteBufferEncoder extends Encoder {
+  /** The maximum size of an encoded varint. */
+  static final int MAX_VARINT_SIZE = 9;
+
+  @NotNull private final Output mOutput;
+
+  public ByteBufferEncoder(@NotNull WritableByteChannel channel) {
+    this(channel, ByteBufferPool.getDefault());
+  }
+
+  public ByteBufferEncoder(@NotNull WritableByteChannel channel, @NotNull ByteBufferPool pool) {
+    this(new Output(channel, pool));
+  }
+
+  private ByteBufferEncoder(@NotNull Output output) {
+    super(output);
+    mOutput = output;
+  }
+
+  /**
+   * Writes all the encoded data to the channel.
+   */
+  public void flush() throws IOException {
+    mOutput.flush();
+  }
+
+  /**
+   * Writes all the encoded data to the channel, and gives the buffer back to the pool. The channel
+   * is left open, and the encoder can still be used afterwards.
+   */
+  public void release() throws IOException {
+    mOutput.close();
+  }
+
+  @Override
+  public void write(byte[] b, int len) throws IOException {
+    mOutput.write(b, 0, len);
+  }
+
+  @Override
+  public void bool(boolean v) throws IOException {
+    mOutput.reserve(1).put((byte)(v ? 1 : 0));
+  }
+
+  @Override
+  public void int8(byte v) throws IOException {
+    mOutput.reserve(1).put(v);
+  }
+
+  @Override
+  public void uint8(short v) throws IOException {
+    mOutput.reserve(1).put((byte)(v & 0xff));
+  }
+
+  @Override
+  public void int16(short v) throws IOException {
+    putIntv(mOutput.reserve(MAX_VARINT_SIZE), v);
+  }
+
+  @Override
+  public void uint16(int v) throws IOException {
+    putUintv(mOutput.reserve(MAX_VARINT_SIZE), v);
+  }
+
+  @Override
+  public void int32(int v) throws IOException {
+    putIntv(mOutput.reserve(MAX_VARINT_SIZE), v);
+  }
+
+  @Override
+  public void uint32(long v) throws IOException {
+    putUintv(mOutput.reserve(MAX_VARINT_SIZE), v);
+  }
+
+  @Override
+  public void int64(long v) throws IOException {
+    putIntv(mOutput.reserve(MAX_VARINT_SIZE), v);
+  }
+
+  @Override
+  public void uint64(long v) throws IOException {
+    putUintv(mOutput.reserve(MAX_VARINT_SIZE), v);
+  }
+
+  @Override
+  public void float32(float v) throws IOException {
+    putUintv(mOutput.reserve(MAX_VARINT_SIZE), Integer.reverseBytes(Float.floatToIntBits(v)));
+  }
+
+  @Override
+  public void float64(double v) throws IOException {
+    putUintv(mOutput.reserve(MAX_VARINT_SIZE), Long.reverseBytes(Double.doubleToLongBits(v)));
+  }
+
+  @Override
+  public void bool(@NotNull boolean[] v) throws IOException {
+    for (boolean b : v) {
+      mOutput.reserve(1).put((byte)(b ? 1 : 0));
+    }
+  }
+
+  @Override
+  public void int16(@NotNull short[] v) throws IOException {
+    for (short s : v) {
+      putIntv(mOutput.reserve(MAX_VARINT_SIZE), s);
+    }
+  }
+
+  @Override
+  public void uint16(@NotNull short[] v) throws IOException {
+    for (short s : v) {
+      putUintv(mOutput.reserve(MAX_VARINT_SIZE), s);
+    }
+  }
+
+  @Override
+  public void int32(@NotNull int[] v) throws IOException {
+    for (int i : v) {
+      putIntv(mOutput.reserve(MAX_VARINT_SIZE), i);
+    }
+  }
+
+  @Override
+  public void uint32(@NotNull int[] v) throws IOException {
+    for (int i : v) {
+      putUintv(mOutput.reserve(MAX_VARINT_SIZE), i);
+    }
+  }
+
+  @Override
+  public void int64(@NotNull long[] v) throws IOException {
+    for (long l : v) {
+      putIntv(mOutput.reserve(MAX_VARINT_SIZE), l);
+    }
+  }
+
+  @Override
+  public void uint64(@NotNull long[] v) throws IOException {
+    for (long l : v) {
+      putUintv(mOutput.reserve(MAX_VARINT_SIZE), l);
+    }
+  }
+
+  @Override
+  public void float32(@NotNull float[] v) throws IOException {
+    for (float f : v) {
+      putUintv(mOutput.reserve(MAX_VARINT_SIZE), Integer.reverseBytes(Float.floatToIntBits(f)));
+    }
+  }
+
+  @Override
+  public void float64(@NotNull double[] v) throws IOException {
+    for (double d : v) {
+      putUintv(mOutput.reserve(MAX_VARINT_SIZE), Long.reverseBytes(Double.doubleToLongBits(d)));
+    }
+  }
+
+  @Override
+  public void string(@Nullable String v) throws IOException {
+    try {
+      if (v == null) {
+        uint32(0);
+        return;
+      }
+
+      byte[] bytes = v.getBytes("UTF-8");
+      uint32(bytes.length);
+      mOutput.write(bytes, 0, bytes.length);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // Should never happen
+    }
+  }
+
+  private static void putIntv(@NotNull ByteBuffer buffer, long v) {
+    long uv = v << 1;
+    if (v < 0) uv = ~uv;
+    putUintv(buffer, uv);
+  }
+
+  /**
+   * Encodes an unsigned varint: the number of leading one bits of the first byte is the number of
+   * bytes following it, which hold the rest of the value in big endian order.
+   */
+  static void putUintv(@NotNull ByteBuffer buffer, long v) {
+    if ((v & ~0x7fL) == 0) {
+      buffer.put((byte)v);
+      return;
+    }
+    int count = 1;
+    while (count < 8 && ((v >>> (8 * count)) & ~((1L << (7 - count)) - 1)) != 0) {
+      count++;
+    }
+    int tag = (0xff00 >> count) & 0xff;
+    buffer.put((byte)(count == 8 ? tag : (v >>> (8 * count)) | tag));
+    for (int i = count - 1; i >= 0; i--) {
+      buffer.put((byte)(v >>> (8 * i)));
+    }
+  }
+
+  /**
+   * The stream of the encoder, buffering everything written into the pooled buffer.
+   */
+  private static final class Output extends OutputStream {
+    @NotNull private final WritableByteChannel mChannel;
+    @NotNull private final ByteBufferPool mPool;
+    @Nullable private ByteBuffer mBuffer;
+
+    Output(@NotNull WritableByteChannel channel, @NotNull ByteBufferPool pool) {
+      mChannel = channel;
+      mPool = pool;
+    }
+
+    /**
+     * Returns the buffer, with at least count bytes remaining.
+     */
+    @NotNull
+    ByteBuffer reserve(int count) throws IOException {
+      ByteBuffer buffer = mBuffer;
+      if (buffer == null) {
+        buffer = mBuffer = mPool.acquire();
+      }
+      if (buffer.remaining() < count) {
+        drain(buffer);
+      }
+      return buffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      reserve(1).put((byte)b);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = reserve(0);
+      if (len > buffer.remaining()) {
+        drain(buffer);
+        if (len >= buffer.capacity()) {
+          // Large arrays are written as is.
+          writeFully(ByteBuffer.wrap(b, off, len));
+          return;
+        }
+      }
+      buffer.put(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (mBuffer != null) {
+        drain(mBuffer);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (mBuffer != null) {
+        drain(mBuffer);
+        mPool.release(mBuffer);
+        mBuffer = null;
+      }
+    }
+
+    private void drain(@NotNull ByteBuffer buffer) throws IOException {
+      buffer.flip();
+      writeFully(buffer);
+      buffer.clear();
+    }
+
+    private void writeFully(@NotNull ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        mChannel.write(buffer);
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread safe pool of direct byte buffers of a fixed size.
+ * Direct buffers are expensive to allocate and are only freed by the garbage collector, so the
+ * buffers of the {@link ByteBufferEncoder}s and {@link ByteBufferDecoder}s are recycled.
+ */
+public final class ByteBufferPool {
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  private static final ByteBufferPool DEFAULT = new ByteBufferPool(DEFAULT_BUFFER_SIZE, 16);
+
+  private final int mBufferSize;
+  private final int mMaxPooled;
+  @NotNull private final Queue<ByteBuffer> mBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+  @NotNull private final AtomicInteger mPooled = new AtomicInteger();
+
+  public ByteBufferPool(int bufferSize, int maxPooled) {
+    if (bufferSize < 16) {
+      throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+    }
+    mBufferSize = bufferSize;
+    mMaxPooled = maxPooled;
+  }
+
+  @NotNull
+  public static ByteBufferPool getDefault() {
+    return DEFAULT;
+  }
+
+  public int getBufferSize() {
+    return mBufferSize;
+  }
+
+  /**
+   * Returns a cleared buffer, which should be given back with {@link #release} once unused.
+   */
+  @NotNull
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = mBuffers.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(mBufferSize);
+    }
+    mPooled.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  public void release(@NotNull ByteBuffer buffer) {
+    if (buffer.capacity() != mBufferSize || !buffer.isDirect()) {
+      return;
+    }
+    if (mPooled.incrementAndGet() > mMaxPooled) {
+      mPooled.decrementAndGet();
+      return;
+    }
+    mBuffers.offer(buffer);
+  }
+}
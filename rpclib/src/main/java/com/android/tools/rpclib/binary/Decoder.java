@@ -145,6 +145,60 @@ public class Decoder {
     return Double.longBitsToDouble(shuffled);
   }
 
+  public void bool(@NotNull boolean[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = bool();
+    }
+  }
+
+  public void int16(@NotNull short[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = int16();
+    }
+  }
+
+  public void uint16(@NotNull short[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = uint16();
+    }
+  }
+
+  public void int32(@NotNull int[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = int32();
+    }
+  }
+
+  public void uint32(@NotNull int[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = uint32();
+    }
+  }
+
+  public void int64(@NotNull long[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = int64();
+    }
+  }
+
+  public void uint64(@NotNull long[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = uint64();
+    }
+  }
+
+  public void float32(@NotNull float[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = float32();
+    }
+  }
+
+  public void float64(@NotNull double[] v) throws IOException {
+    for (int i = 0; i < v.length; i++) {
+      v[i] = float64();
+    }
+  }
+
   public String string() throws IOException {
     int size = uint32();
     byte[] bytes = new byte[size];
@@ -135,6 +135,60 @@ public class Encoder {
     uintv(shuffled);
   }
 
+  public void bool(@NotNull boolean[] v) throws IOException {
+    for (boolean b : v) {
+      bool(b);
+    }
+  }
+
+  public void int16(@NotNull short[] v) throws IOException {
+    for (short s : v) {
+      int16(s);
+    }
+  }
+
+  public void uint16(@NotNull short[] v) throws IOException {
+    for (short s : v) {
+      uint16(s);
+    }
+  }
+
+  public void int32(@NotNull int[] v) throws IOException {
+    for (int i : v) {
+      int32(i);
+    }
+  }
+
+  public void uint32(@NotNull int[] v) throws IOException {
+    for (int i : v) {
+      uint32(i);
+    }
+  }
+
+  public void int64(@NotNull long[] v) throws IOException {
+    for (long l : v) {
+      int64(l);
+    }
+  }
+
+  public void uint64(@NotNull long[] v) throws IOException {
+    for (long l : v) {
+      uint64(l);
+    }
+  }
+
+  public void float32(@NotNull float[] v) throws IOException {
+    for (float f : v) {
+      float32(f);
+    }
+  }
+
+  public void float64(@NotNull double[] v) throws IOException {
+    for (double d : v) {
+      float64(d);
+    }
+  }
+
   public void string(@Nullable String v) throws IOException {
     try {
       if (v == null) {
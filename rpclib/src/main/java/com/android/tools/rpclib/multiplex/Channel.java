@@ -48,26 +48,50 @@ public class Channel implements Closeable {
     return mOutputStream;
   }
 
+  /**
+   * @see PipeInputStream#setReadyListener
+   */
+  public void setInputReadyListener(@NotNull Runnable listener) {
+    mPipeInputStream.setReadyListener(listener);
+  }
+
   @Override
-  public synchronized void close() throws IOException {
-    if (!mIsClosed) {
-      mIsClosed = true;
-      mEventHandler.closeChannel(mId);
-      mInputStream.close();
-      mOutputStream.close();
+  public void close() throws IOException {
+    if (!markClosed()) {
+      return;
     }
+    // Sending the event may wait for the I/O thread, which takes the lock to close the channel on a remote
+    // close: it must not be held here.
+    mEventHandler.closeChannel(mId);
+    mInputStream.close();
+    mOutputStream.close();
   }
 
   void receive(byte[] data) throws IOException {
     mPipeInputStream.getSource().write(data);
   }
 
-  synchronized void closeNoEvent() throws IOException {
-    if (!mIsClosed) {
-      mIsClosed = true;
-      mInputStream.close();
-      mOutputStream.close();
+  void receive(@NotNull ReceiveArena.Slab slab, int offset, int count) {
+    mPipeInputStream.receive(slab, offset, count);
+  }
+
+  void closeNoEvent() throws IOException {
+    if (!markClosed()) {
+      return;
+    }
+    // Let the reader reach the end of the stream once it has read everything received.
+    mPipeInputStream.getSource().close();
+    mInputStream.close();
+    mOutputStream.close();
+  }
+
+  /** @return true if the channel was open. */
+  private synchronized boolean markClosed() {
+    if (mIsClosed) {
+      return false;
     }
+    mIsClosed = true;
+    return true;
   }
 
   interface EventHandler {
@@ -25,6 +25,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -32,11 +33,13 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class Multiplexer {
   @NotNull private static final Logger LOG = Logger.getInstance(Multiplexer.class);
-  private final Decoder mDecoder;
-  private final Encoder mEncoder;
+  @Nullable private final Decoder mDecoder;
+  @Nullable private final Encoder mEncoder;
   private final NewChannelListener mNewChannelListener;
   private final Channel.EventHandler mChannelEventHandler;
-  private final Sender mSender;
+  // Only set for stream based multiplexers, whose sender is started and stopped with the channels.
+  @Nullable private final Sender mSender;
+  private final MessageSender mMessageSender;
   private final AtomicLong mNextChannelId;
   @GuardedBy("mChannelMap") private final Map<Long, Channel> mChannelMap;
 
@@ -48,15 +51,35 @@ public class Multiplexer {
     mNewChannelListener = newChannelListener;
     mChannelEventHandler = new ChannelEventHandler();
     mSender = new Sender(mtu, executorService);
+    mMessageSender = mSender;
     mChannelMap = new HashMap<Long, Channel>();
     mNextChannelId = new AtomicLong(0);
     executorService.execute(new Receiver());
   }
 
+  /**
+   * Creates a multiplexer over a socket, which is switched to non-blocking mode and served by a single thread of the
+   * executor service, for both directions. Closing the socket shuts down the multiplexer and closes all its channels.
+   */
+  public Multiplexer(@NotNull SocketChannel socket, int mtu,
+                     @NotNull ExecutorService executorService,
+                     @Nullable NewChannelListener newChannelListener) throws IOException {
+    mDecoder = null;
+    mEncoder = null;
+    mNewChannelListener = newChannelListener;
+    mChannelEventHandler = new ChannelEventHandler();
+    mSender = null;
+    NioTransport transport = new NioTransport(socket, mtu, new TransportListener());
+    mMessageSender = transport;
+    mChannelMap = new HashMap<Long, Channel>();
+    mNextChannelId = new AtomicLong(0);
+    executorService.execute(transport);
+  }
+
   public Channel openChannel() throws IOException {
     final long id = mNextChannelId.getAndIncrement();
     Channel channel = newChannel(id);
-    mSender.sendOpenChannel(id);
+    mMessageSender.sendOpenChannel(id);
     return channel;
   }
 
@@ -65,7 +88,7 @@ public class Multiplexer {
     Channel channel = new Channel(id, mChannelEventHandler);
 
     synchronized (mChannelMap) {
-      if (mChannelMap.isEmpty()) {
+      if (mSender != null && mChannelMap.isEmpty()) {
         mSender.begin(mEncoder);
       }
       mChannelMap.put(key, channel);
@@ -80,7 +103,7 @@ public class Multiplexer {
       if (mChannelMap.containsKey(key)) {
         // TODO: Mark channel closed.
         mChannelMap.remove(key);
-        if (mChannelMap.isEmpty()) {
+        if (mSender != null && mChannelMap.isEmpty()) {
           mSender.end();
         }
       }
@@ -104,7 +127,8 @@ public class Multiplexer {
     synchronized (mChannelMap) {
       for (Channel c : mChannelMap.values()) {
         try {
-          c.close();
+          // The connection is gone, so there is no point in notifying the remote end.
+          c.closeNoEvent();
         }
         catch (IOException ignored) {}
       }
@@ -115,13 +139,51 @@ public class Multiplexer {
   private class ChannelEventHandler implements Channel.EventHandler {
     @Override
     public void closeChannel(long id) throws IOException {
-      mSender.sendCloseChannel(id);
+      mMessageSender.sendCloseChannel(id);
       deleteChannel(id);
     }
 
     @Override
     public void writeChannel(long id, byte[] b, int off, int len) throws IOException {
-      mSender.sendData(id, b, off, len);
+      mMessageSender.sendData(id, b, off, len);
+    }
+  }
+
+  private void onOpenChannel(long id) throws IOException {
+    Channel channel = newChannel(id);
+    if (mNewChannelListener != null) {
+      mNewChannelListener.onNewChannel(channel);
+    }
+  }
+
+  private void onCloseChannel(long id) throws IOException {
+    Channel channel = getChannel(id);
+    if (channel != null) {
+      channel.closeNoEvent();
+      deleteChannel(id);
+    }
+  }
+
+  private class TransportListener implements NioTransport.Listener {
+    @Override
+    public void onOpenChannel(long id) throws IOException {
+      Multiplexer.this.onOpenChannel(id);
+    }
+
+    @Override
+    public void onCloseChannel(long id) throws IOException {
+      Multiplexer.this.onCloseChannel(id);
+    }
+
+    @Nullable
+    @Override
+    public Channel getChannel(long id) {
+      return Multiplexer.this.getChannel(id);
+    }
+
+    @Override
+    public void onDisconnected() {
+      closeAllChannels();
     }
   }
 
@@ -137,21 +199,12 @@ public class Multiplexer {
           short msgType = mDecoder.uint8();
           long id = ~(mDecoder.uint32() & 0xffffffff);
           switch (msgType) {
-            case Message.OPEN_CHANNEL: {
-              Channel channel = newChannel(id);
-              if (mNewChannelListener != null) {
-                mNewChannelListener.onNewChannel(channel);
-              }
+            case Message.OPEN_CHANNEL:
+              onOpenChannel(id);
               break;
-            }
-            case Message.CLOSE_CHANNEL: {
-              Channel channel = getChannel(id);
-              if (channel != null) {
-                channel.closeNoEvent();
-                deleteChannel(id);
-              }
+            case Message.CLOSE_CHANNEL:
+              onCloseChannel(id);
               break;
-            }
             case Message.DATA: {
               int count = mDecoder.uint32();
               byte[] buf = new byte[count];
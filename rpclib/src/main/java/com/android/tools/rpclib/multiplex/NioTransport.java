@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.multiplex;
+
+import com.android.tools.rpclib.binary.ByteBufferDecoder;
+import com.android.tools.rpclib.binary.ByteBufferPool;
+import com.android.tools.rpclib.binary.Encoder;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends and receives the messages of a {@link Multiplexer} over a non-blocking {@link SocketChannel}, from a single
+ * thread driven by a {@link Selector}.
+ * <p/>
+ * Each channel has an outbox, a {@link SpscQueue} of the messages to send, drained by the I/O thread. Writers return
+ * as soon as their data is copied into the slabs of a {@link ReceiveArena} and queued, and only block once a channel
+ * has {@link #MAX_PENDING_BYTES} waiting to be sent. Control messages never wait, so that closing a channel does not
+ * depend on the I/O thread making progress.
+ * The outboxes with messages are served in turn, one chunk of at most the MTU at a time, so that a large write does
+ * not starve the other channels.
+ * <p/>
+ * Received data is copied into the slabs of a {@link ReceiveArena}, and handed over to the {@link PipeInputStream}
+ * of the channel without allocating.
+ * <p/>
+ * The transport stops when the socket is closed, by either end.
+ */
+final class NioTransport implements MessageSender, Runnable {
+  @NotNull private static final Logger LOG = Logger.getInstance(NioTransport.class);
+  // A message type and two uint32 varints.
+  private static final int MAX_HEADER_SIZE = 1 + 9 + 9;
+  private static final int MAX_PENDING_BYTES = 1 << 20;
+  // Closing the socket from another thread does not wake up the selector, so it is checked periodically.
+  private static final long SELECT_TIMEOUT_MS = 1000;
+
+  interface Listener {
+    void onOpenChannel(long id) throws IOException;
+
+    void onCloseChannel(long id) throws IOException;
+
+    @Nullable
+    Channel getChannel(long id);
+
+    void onDisconnected();
+  }
+
+  @NotNull private final SocketChannel mSocket;
+  @NotNull private final Selector mSelector;
+  @NotNull private final SelectionKey mKey;
+  private final int mMtu;
+  @NotNull private final Listener mListener;
+  @NotNull private final ByteBufferPool mPool;
+  @NotNull private final ConcurrentMap<Long, Outbox> mOutboxes = new ConcurrentHashMap<Long, Outbox>();
+  @NotNull private final Queue<Outbox> mReadyOutboxes = new ConcurrentLinkedQueue<Outbox>();
+  // Holds the data of the queued messages, filled by the writers in turn.
+  @NotNull private final ReceiveArena mSendArena = new ReceiveArena();
+  @Nullable private volatile IOException mFailure;
+
+  // The following are only used by the I/O thread.
+  @NotNull private final ReceiveArena mArena = new ReceiveArena();
+  @NotNull private final ByteBuffer mReceiveBuffer;
+  @NotNull private final ByteBufferDecoder mDecoder;
+  @NotNull private final ByteBuffer mSendBuffer;
+  @NotNull private final Encoder mEncoder;
+  // The DATA message being received, whose payload may span several reads.
+  @Nullable private Channel mDataChannel;
+  private int mDataRemaining;
+
+  NioTransport(@NotNull SocketChannel socket, int mtu, @NotNull Listener listener) throws IOException {
+    mSocket = socket;
+    mMtu = mtu;
+    mListener = listener;
+    mPool = ByteBufferPool.getDefault();
+    socket.configureBlocking(false);
+    mSelector = Selector.open();
+    mKey = socket.register(mSelector, SelectionKey.OP_READ);
+
+    mReceiveBuffer = mPool.acquire();
+    mReceiveBuffer.flip();
+    mDecoder = new ByteBufferDecoder(mReceiveBuffer);
+    mSendBuffer = mPool.acquire();
+    mEncoder = new Encoder(new OutputStream() {
+      @Override
+      public void write(int b) {
+        mSendBuffer.put((byte)b);
+      }
+
+      @Override
+      public void write(@NotNull byte[] b, int off, int len) {
+        mSendBuffer.put(b, off, len);
+      }
+    });
+  }
+
+  @Override
+  public void sendOpenChannel(long channel) throws IOException {
+    getOutbox(channel).offer(Message.OPEN_CHANNEL, null, 0, 0);
+  }
+
+  @Override
+  public void sendCloseChannel(long channel) throws IOException {
+    Outbox outbox = mOutboxes.remove(channel);
+    if (outbox == null) {
+      outbox = new Outbox(channel);
+    }
+    outbox.offer(Message.CLOSE_CHANNEL, null, 0, 0);
+  }
+
+  @Override
+  public void sendData(long channel, byte b[], int off, int len) throws IOException {
+    getOutbox(channel).offer(Message.DATA, b, off, len);
+  }
+
+  @Override
+  public void run() {
+    IOException failure = null;
+    try {
+      while (true) {
+        fillSendBuffer();
+        boolean writePending = flushSendBuffer();
+        mKey.interestOps(writePending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        if (!mReadyOutboxes.isEmpty() && mSendBuffer.remaining() > MAX_HEADER_SIZE) {
+          mSelector.selectNow();
+        }
+        else {
+          mSelector.select(SELECT_TIMEOUT_MS);
+        }
+        if (!mSocket.isOpen()) {
+          throw new ClosedChannelException();
+        }
+        // The ready set of a key is only updated when the key is selected.
+        if (mSelector.selectedKeys().remove(mKey) && mKey.isReadable()) {
+          receive();
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      failure = e;
+    }
+    catch (CancelledKeyException e) {
+      failure = new ClosedChannelException();
+    }
+    catch (UnsupportedOperationException e) {
+      LOG.error(e);
+      failure = new IOException(e.getMessage());
+    }
+    finally {
+      shutdown(failure != null ? failure : new ClosedChannelException());
+    }
+  }
+
+  @NotNull
+  private Outbox getOutbox(long channel) {
+    Outbox outbox = mOutboxes.get(channel);
+    if (outbox == null) {
+      outbox = new Outbox(channel);
+      Outbox existing = mOutboxes.putIfAbsent(channel, outbox);
+      if (existing != null) {
+        outbox = existing;
+      }
+    }
+    return outbox;
+  }
+
+  private void checkOpen() throws IOException {
+    IOException failure = mFailure;
+    if (failure != null) {
+      IOException e = new IOException("Multiplexer disconnected");
+      e.initCause(failure);
+      throw e;
+    }
+  }
+
+  /** Encodes messages from the ready outboxes, in turn, until the send buffer is full. */
+  private void fillSendBuffer() throws IOException {
+    while (mSendBuffer.remaining() > MAX_HEADER_SIZE) {
+      Outbox outbox = mReadyOutboxes.poll();
+      if (outbox == null) {
+        break;
+      }
+      Chunk chunk = outbox.mQueue.peek();
+      if (chunk != null && encode(outbox.mId, chunk)) {
+        outbox.mQueue.poll();
+        outbox.onSent(chunk);
+      }
+      if (!outbox.mQueue.isEmpty()) {
+        mReadyOutboxes.offer(outbox);
+      }
+      else {
+        outbox.mScheduled.set(false);
+        // A message may have been queued before the flag was cleared, without scheduling the outbox again.
+        if (!outbox.mQueue.isEmpty() && outbox.mScheduled.compareAndSet(false, true)) {
+          mReadyOutboxes.offer(outbox);
+        }
+      }
+    }
+  }
+
+  /**
+   * Encodes the chunk, or as much of its data as fits in the send buffer and the MTU.
+   *
+   * @return true if the chunk was fully encoded.
+   */
+  private boolean encode(long id, @NotNull Chunk chunk) throws IOException {
+    int space = mSendBuffer.remaining() - MAX_HEADER_SIZE;
+    mEncoder.uint8(chunk.mType);
+    mEncoder.uint32(id);
+    if (chunk.mSlab == null) {
+      return true;
+    }
+    int count = Math.min(Math.min(chunk.mLength - chunk.mSent, mMtu), space);
+    mEncoder.uint32(count);
+    mSendBuffer.put(chunk.mSlab.getData(), chunk.mStart + chunk.mSent, count);
+    chunk.mSent += count;
+    return chunk.mSent == chunk.mLength;
+  }
+
+  /** @return true if some data could not be written yet. */
+  private boolean flushSendBuffer() throws IOException {
+    if (mSendBuffer.position() == 0) {
+      return false;
+    }
+    mSendBuffer.flip();
+    mSocket.write(mSendBuffer);
+    mSendBuffer.compact();
+    return mSendBuffer.position() > 0;
+  }
+
+  private void receive() throws IOException {
+    mReceiveBuffer.compact();
+    try {
+      if (mSocket.read(mReceiveBuffer) < 0) {
+        throw new EOFException();
+      }
+    }
+    finally {
+      mReceiveBuffer.flip();
+    }
+    while (true) {
+      if (mDataRemaining > 0) {
+        if (!mReceiveBuffer.hasRemaining()) {
+          break;
+        }
+        receiveData(Math.min(mDataRemaining, mReceiveBuffer.remaining()));
+      }
+      else if (!receiveMessage()) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Decodes a message header, leaving the buffer untouched if it is not fully received yet.
+   *
+   * @return true if a message header was decoded.
+   */
+  private boolean receiveMessage() throws IOException {
+    mReceiveBuffer.mark();
+    short msgType;
+    long id;
+    try {
+      msgType = mDecoder.uint8();
+      id = ~(mDecoder.uint32() & 0xffffffff);
+      if (msgType == Message.DATA) {
+        mDataRemaining = mDecoder.uint32();
+      }
+    }
+    catch (EOFException e) {
+      mReceiveBuffer.reset();
+      return false;
+    }
+    switch (msgType) {
+      case Message.OPEN_CHANNEL:
+        mListener.onOpenChannel(id);
+        break;
+      case Message.CLOSE_CHANNEL:
+        mListener.onCloseChannel(id);
+        mOutboxes.remove(id);
+        break;
+      case Message.DATA:
+        mDataChannel = mListener.getChannel(id);
+        if (mDataChannel == null) {
+          // Likely this channel was closed this side, and we're receiving data
+          // that should be dropped on the floor.
+          LOG.info("Received data on unknown channel " + id);
+        }
+        break;
+      default:
+        throw new UnsupportedOperationException("Unknown msgType: " + msgType);
+    }
+    return true;
+  }
+
+  private void receiveData(int count) throws IOException {
+    if (mDataChannel != null) {
+      ReceiveArena.Slab slab = mArena.copy(mReceiveBuffer, count);
+      mDataChannel.receive(slab, slab.getLastOffset(), count);
+    }
+    else {
+      mReceiveBuffer.position(mReceiveBuffer.position() + count);
+    }
+    mDataRemaining -= count;
+    if (mDataRemaining == 0) {
+      mDataChannel = null;
+    }
+  }
+
+  private void shutdown(@NotNull IOException failure) {
+    mFailure = failure;
+    for (Outbox outbox : mOutboxes.values()) {
+      outbox.wakeUpWriter();
+    }
+    try {
+      mSelector.close();
+    }
+    catch (IOException ignored) {}
+    try {
+      mSocket.close();
+    }
+    catch (IOException ignored) {}
+    mPool.release(mReceiveBuffer);
+    mPool.release(mSendBuffer);
+    mListener.onDisconnected();
+  }
+
+  /** A message to send, split into several DATA messages if its data is larger than the MTU. */
+  private static final class Chunk {
+    final short mType;
+    // The slab holding the data, released once it has been sent.
+    @Nullable final ReceiveArena.Slab mSlab;
+    final int mStart;
+    final int mLength;
+    int mSent;
+
+    Chunk(short type, @Nullable ReceiveArena.Slab slab, int start, int length) {
+      mType = type;
+      mSlab = slab;
+      mStart = start;
+      mLength = length;
+    }
+  }
+
+  /**
+   * The messages of a channel waiting to be sent. Messages are usually queued by a single thread, but calls to
+   * {@link #offer} are serialized so that the queue always has a single producer.
+   */
+  private final class Outbox {
+    final long mId;
+    @NotNull final SpscQueue<Chunk> mQueue = new SpscQueue<Chunk>();
+    // Whether the outbox is in the ready queue, or being served by the I/O thread.
+    @NotNull final AtomicBoolean mScheduled = new AtomicBoolean();
+    @NotNull final AtomicInteger mPendingBytes = new AtomicInteger();
+    // The thread waiting for pending bytes to be sent, if any.
+    @Nullable volatile Thread mWriter;
+
+    Outbox(long id) {
+      mId = id;
+    }
+
+    synchronized void offer(short type, @Nullable byte[] data, int off, int len) throws IOException {
+      Chunk chunk;
+      if (data == null) {
+        checkOpen();
+        chunk = new Chunk(type, null, 0, 0);
+      }
+      else {
+        awaitCapacity();
+        synchronized (mSendArena) {
+          ReceiveArena.Slab slab = mSendArena.copy(ByteBuffer.wrap(data, off, len), len);
+          chunk = new Chunk(type, slab, slab.getLastOffset(), len);
+        }
+      }
+      mQueue.offer(chunk);
+      mPendingBytes.addAndGet(chunk.mLength);
+      if (mScheduled.compareAndSet(false, true)) {
+        mReadyOutboxes.offer(this);
+        mSelector.wakeup();
+      }
+    }
+
+    void onSent(@NotNull Chunk chunk) {
+      if (chunk.mSlab != null) {
+        chunk.mSlab.release();
+        mPendingBytes.addAndGet(-chunk.mLength);
+        wakeUpWriter();
+      }
+    }
+
+    void wakeUpWriter() {
+      Thread writer = mWriter;
+      if (writer != null) {
+        LockSupport.unpark(writer);
+      }
+    }
+
+    private void awaitCapacity() throws IOException {
+      checkOpen();
+      if (mPendingBytes.get() <= MAX_PENDING_BYTES) {
+        return;
+      }
+      mWriter = Thread.currentThread();
+      try {
+        // The pending bytes are checked again after publishing the writer, so that a wake up is not missed.
+        while (mPendingBytes.get() > MAX_PENDING_BYTES && mFailure == null) {
+          LockSupport.park(this);
+          if (Thread.interrupted()) {
+            throw new InterruptedIOException();
+          }
+        }
+      }
+      finally {
+        mWriter = null;
+      }
+      checkOpen();
+    }
+  }
+}
@@ -15,11 +15,14 @@
  */
 package com.android.tools.rpclib.multiplex;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * An object that provides an {@link java.io.InputStream} interface to read data that has been written to a
@@ -29,19 +32,25 @@ import java.util.concurrent.Semaphore;
  * and are assumed immutable. Mutation of any buffers passed to the {@link java.io.OutputStream#write} after the method
  * has returned will result in undefined behaviour when calling the {@link #read} methods.
  * <p/>
+ * The stream is meant to be written by a single thread and read by a single thread, which hand over the buffers
+ * through a lock-free {@link SpscQueue}. The reader is only parked when there is nothing to read.
+ * <p/>
  * Note: This is similar to {@link java.io.PipedInputStream} and {@link java.io.PipedOutputStream}, except this
  * implementation does not use an internal ring buffer, and and does not suffer from 1 second stalls (JDK-4404700).
  */
 public class PipeInputStream extends InputStream {
-  private static final Item ITEM_CLOSE = new Item(null, 0, 0);
+  private static final Item ITEM_CLOSE = new Item(null, 0, 0, null);
   private final OutputStream mSource;
-  private final LinkedList<Item> mQueue;
-  private final Semaphore mSemaphore;
+  private final SpscQueue<Item> mQueue;
   private final byte[] mByte;
+  // The thread blocked in read, if any.
+  private volatile Thread mReader;
+  // Run once when there is something to read.
+  private final AtomicReference<Runnable> mReadyListener = new AtomicReference<Runnable>();
+  private volatile boolean mReady;
 
   PipeInputStream() {
-    mQueue = new LinkedList<Item>();
-    mSemaphore = new Semaphore(0);
+    mQueue = new SpscQueue<Item>();
     mByte = new byte[1];
     mSource = new Writer();
   }
@@ -50,6 +59,37 @@ public class PipeInputStream extends InputStream {
     return mSource;
   }
 
+  /**
+   * Queues count bytes of the slab, starting at offset, which is released once they have been read.
+   */
+  void receive(ReceiveArena.Slab slab, int offset, int count) {
+    if (count > 0) {
+      offer(new Item(slab.getData(), offset, offset + count, slab));
+    }
+    else {
+      slab.release();
+    }
+  }
+
+  /**
+   * Runs the listener once there is something to read, i.e. data or the end of the stream, so that reading does not
+   * need to wait for the writer. The listener is run right away if there already is, or else on the writing thread:
+   * it must not block.
+   */
+  public void setReadyListener(@NotNull Runnable listener) {
+    mReadyListener.set(listener);
+    if (mReady) {
+      runReadyListener();
+    }
+  }
+
+  private void runReadyListener() {
+    Runnable listener = mReadyListener.getAndSet(null);
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
   @Override
   public int read() throws IOException {
     return (read(mByte, 0, 1) > 0) ? mByte[0] : -1;
@@ -60,26 +100,21 @@ public class PipeInputStream extends InputStream {
     int n = 0;
     boolean closed = false;
     while (!closed && len > n) {
-      try {
-        mSemaphore.acquire();
-        synchronized (mQueue) {
-          Item item = mQueue.getFirst();
-          if (item != ITEM_CLOSE) {
-            n += item.read(b, off + n, len - n);
-            if (item.remaining() == 0) {
-              mQueue.removeFirst();
-            }
-            else {
-              mSemaphore.release();
-            }
-          }
-          else {
-            closed = true;
-          }
+      Item item = mQueue.peek();
+      if (item == null) {
+        if (!await()) {
+          break;
+        }
+      }
+      else if (item != ITEM_CLOSE) {
+        n += item.read(b, off + n, len - n);
+        if (item.remaining() == 0) {
+          mQueue.poll();
+          item.release();
         }
       }
-      catch (InterruptedException e) {
-        break;
+      else {
+        closed = true;
       }
     }
     if (n == 0 && closed) {
@@ -88,15 +123,47 @@ public class PipeInputStream extends InputStream {
     return n;
   }
 
+  /**
+   * Parks the reader until an item is queued, returning false if it was interrupted.
+   */
+  private boolean await() {
+    mReader = Thread.currentThread();
+    try {
+      // The queue is checked again after publishing the reader, so that an item queued in between is not missed.
+      while (mQueue.peek() == null) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          return false;
+        }
+      }
+      return true;
+    }
+    finally {
+      mReader = null;
+    }
+  }
+
+  private void offer(Item item) {
+    mQueue.offer(item);
+    Thread reader = mReader;
+    if (reader != null) {
+      LockSupport.unpark(reader);
+    }
+    mReady = true;
+    runReadyListener();
+  }
+
   private static class Item {
     private final byte[] mData;
-    private final int mCount;
+    private final int mEnd;
+    @Nullable private final ReceiveArena.Slab mSlab;
     private int mOffset;
 
-    public Item(byte[] data, int offset, int count) {
+    public Item(byte[] data, int offset, int end, @Nullable ReceiveArena.Slab slab) {
       mData = data;
-      mCount = count;
+      mEnd = end;
       mOffset = offset;
+      mSlab = slab;
     }
 
     public int read(byte[] out, int offset, int count) {
@@ -110,7 +177,13 @@ public class PipeInputStream extends InputStream {
     }
 
     public int remaining() {
-      return mCount - mOffset;
+      return mEnd - mOffset;
+    }
+
+    public void release() {
+      if (mSlab != null) {
+        mSlab.release();
+      }
     }
   }
 
@@ -123,19 +196,13 @@ public class PipeInputStream extends InputStream {
     @Override
     public void write(byte b[], int off, int len) throws IOException {
       if (len > 0) {
-        synchronized (mQueue) {
-          mQueue.addLast(new Item(b, off, len));
-        }
-        mSemaphore.release();
+        offer(new Item(b, off, off + len, null));
       }
     }
 
     @Override
     public void close() throws IOException {
-      synchronized (mQueue) {
-        mQueue.addLast(ITEM_CLOSE);
-        mSemaphore.release();
-      }
+      offer(ITEM_CLOSE);
     }
   }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.multiplex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies data into large, recycled slabs, so that receiving or queuing a message does not allocate.
+ * <p/>
+ * Messages are appended to the current slab until it is full. Each slab counts the messages that
+ * have not been consumed yet, i.e. fully read from their {@link PipeInputStream} or sent, and goes
+ * back to the arena once they all have been and the arena moved on to another slab. The slabs of
+ * messages that are never consumed, e.g. on channels closed before reading, are simply left to the
+ * garbage collector.
+ * <p/>
+ * Slabs are only ever filled by one thread at a time, but may be released from any thread.
+ */
+final class ReceiveArena {
+  static final int SLAB_SIZE = 256 * 1024;
+  private static final int MAX_POOLED_SLABS = 16;
+
+  @NotNull private final Queue<Slab> mFreeSlabs = new ConcurrentLinkedQueue<Slab>();
+  @NotNull private final AtomicInteger mFreeSlabCount = new AtomicInteger();
+  @Nullable private Slab mCurrent;
+
+  /**
+   * Copies count bytes from the buffer into a slab, returning it with a reference held for the
+   * message. The message starts at {@link Slab#getLastOffset()}.
+   */
+  @NotNull
+  Slab copy(@NotNull ByteBuffer buffer, int count) {
+    Slab slab = mCurrent;
+    if (slab == null || slab.mData.length - slab.mUsed < count) {
+      if (slab != null) {
+        slab.release();
+      }
+      slab = mCurrent = acquire(count);
+    }
+    buffer.get(slab.mData, slab.mUsed, count);
+    slab.mLastOffset = slab.mUsed;
+    slab.mUsed += count;
+    slab.mReferences.incrementAndGet();
+    return slab;
+  }
+
+  @NotNull
+  private Slab acquire(int count) {
+    if (count > SLAB_SIZE) {
+      // Not pooled, see recycle().
+      return new Slab(this, count);
+    }
+    Slab slab = mFreeSlabs.poll();
+    if (slab == null) {
+      return new Slab(this, SLAB_SIZE);
+    }
+    mFreeSlabCount.decrementAndGet();
+    slab.mUsed = 0;
+    slab.mReferences.set(1);
+    return slab;
+  }
+
+  private void recycle(@NotNull Slab slab) {
+    if (slab.mData.length != SLAB_SIZE) {
+      return;
+    }
+    if (mFreeSlabCount.incrementAndGet() > MAX_POOLED_SLABS) {
+      mFreeSlabCount.decrementAndGet();
+      return;
+    }
+    mFreeSlabs.offer(slab);
+  }
+
+  static final class Slab {
+    @NotNull private final ReceiveArena mArena;
+    @NotNull private final byte[] mData;
+    // The arena holds a reference to its current slab, in addition to the unread messages.
+    @NotNull private final AtomicInteger mReferences = new AtomicInteger(1);
+    private int mUsed;
+    private int mLastOffset;
+
+    private Slab(@NotNull ReceiveArena arena, int size) {
+      mArena = arena;
+      mData = new byte[size];
+    }
+
+    @NotNull
+    byte[] getData() {
+      return mData;
+    }
+
+    int getLastOffset() {
+      return mLastOffset;
+    }
+
+    /** Drops a reference to the slab, once a message it holds has been consumed. */
+    void release() {
+      if (mReferences.decrementAndGet() == 0) {
+        mArena.recycle(this);
+      }
+    }
+  }
+}
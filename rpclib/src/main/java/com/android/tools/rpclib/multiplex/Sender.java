@@ -26,7 +26,7 @@ import java.util.Queue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 
-class Sender {
+class Sender implements MessageSender {
   private static final int MAX_PENDING_SEND_COUNT = 1024;
   private static final SendItem NOP_ITEM = new SendNop();
   private final int mMtu;
@@ -60,15 +60,18 @@ class Sender {
     }
   }
 
-  void sendData(long channel, byte b[], int off, int len) throws IOException {
+  @Override
+  public void sendData(long channel, byte b[], int off, int len) throws IOException {
     send(new SendData(channel, b, off, len));
   }
 
-  void sendOpenChannel(long channel) throws IOException {
+  @Override
+  public void sendOpenChannel(long channel) throws IOException {
     send(new OpenChannel(channel));
   }
 
-  void sendCloseChannel(long channel) throws IOException {
+  @Override
+  public void sendCloseChannel(long channel) throws IOException {
     send(new CloseChannel(channel));
   }
 
@@ -280,7 +283,7 @@ class Sender {
         if (item.send(e)) {
           // Item has been fully encoded.
           queue.remove();
-          if (queue.poll() == null) {
+          if (queue.isEmpty()) {
             it.remove();
           }
         }
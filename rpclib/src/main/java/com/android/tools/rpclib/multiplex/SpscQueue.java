@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.multiplex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An unbounded, lock-free queue for a single producer thread and a single consumer thread.
+ * <p/>
+ * Neither side ever blocks or takes a lock: the producer links a new node after the tail, and
+ * publishes it with a single volatile write that the consumer observes from the head. Callers
+ * that may produce from several threads must serialize their calls to {@link #offer}.
+ */
+final class SpscQueue<E> {
+  // Consumer side: the head is a sentinel node, whose successor holds the first element.
+  private Node<E> mHead;
+  // Producer side.
+  private Node<E> mTail;
+
+  SpscQueue() {
+    mHead = mTail = new Node<E>(null);
+  }
+
+  /** Appends an element. Must only be called by the producer. */
+  void offer(@NotNull E value) {
+    Node<E> node = new Node<E>(value);
+    mTail.mNext = node;
+    mTail = node;
+  }
+
+  /** Returns the first element without removing it. Must only be called by the consumer. */
+  @Nullable
+  E peek() {
+    Node<E> next = mHead.mNext;
+    return next == null ? null : next.mValue;
+  }
+
+  /** Removes and returns the first element. Must only be called by the consumer. */
+  @Nullable
+  E poll() {
+    Node<E> next = mHead.mNext;
+    if (next == null) {
+      return null;
+    }
+    E value = next.mValue;
+    next.mValue = null;
+    mHead = next;
+    return value;
+  }
+
+  /** Returns true if there are no elements. Must only be called by the consumer. */
+  boolean isEmpty() {
+    return mHead.mNext == null;
+  }
+
+  private static final class Node<E> {
+    private E mValue;
+    private volatile Node<E> mNext;
+
+    Node(E value) {
+      mValue = value;
+    }
+  }
+}
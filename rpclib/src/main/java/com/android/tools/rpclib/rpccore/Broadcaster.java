@@ -20,22 +20,79 @@ import com.android.tools.rpclib.binary.Decoder;
 import com.android.tools.rpclib.binary.Encoder;
 import com.android.tools.rpclib.multiplex.Channel;
 import com.android.tools.rpclib.multiplex.Multiplexer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Sends RPC calls over a {@link Multiplexer}, each call on a channel of its own.
+ * <p/>
+ * Calls can either be sent synchronously with {@link #Send}, or asynchronously with {@link #SendAsync}, in which
+ * case many calls are in flight at the same time over the multiplexed connection. An asynchronous call does not hold
+ * a thread while it waits for its response: the response is only read, on a thread of the executor service, once it
+ * starts arriving. The number of asynchronous calls in flight is bounded, and {@link #SendAsync} blocks once the limit
+ * is reached.
+ */
 public class Broadcaster {
+  public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
   private final Multiplexer mMultiplexer;
   private final int mMtu;
+  private final ListeningExecutorService mExecutorService;
+  private final int mMaxInFlight;
+  private final Semaphore mInFlight;
 
   public Broadcaster(@NotNull InputStream in, @NotNull OutputStream out, int mtu,
                      @NotNull ExecutorService executorService) {
-    mMultiplexer = new Multiplexer(in, out, mtu, executorService, null);
+    this(in, out, mtu, executorService, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * @param maxInFlight the maximum number of asynchronous calls waiting for their response.
+   */
+  public Broadcaster(@NotNull InputStream in, @NotNull OutputStream out, int mtu,
+                     @NotNull ExecutorService executorService, int maxInFlight) {
+    // Checked before the multiplexer starts using the streams.
+    this(checkMaxInFlight(maxInFlight), new Multiplexer(in, out, mtu, executorService, null), mtu, executorService);
+  }
+
+  /**
+   * Sends the calls over a socket, served by a single non-blocking thread whatever the number of calls in flight.
+   *
+   * @param maxInFlight the maximum number of asynchronous calls waiting for their response.
+   */
+  public Broadcaster(@NotNull SocketChannel socket, int mtu, @NotNull ExecutorService executorService,
+                     int maxInFlight) throws IOException {
+    // Checked before the multiplexer starts using the socket.
+    this(checkMaxInFlight(maxInFlight), new Multiplexer(socket, mtu, executorService, null), mtu, executorService);
+  }
+
+  private Broadcaster(int maxInFlight, @NotNull Multiplexer multiplexer, int mtu,
+                      @NotNull ExecutorService executorService) {
+    mMultiplexer = multiplexer;
     mMtu = mtu;
+    mExecutorService = MoreExecutors.listeningDecorator(executorService);
+    mMaxInFlight = maxInFlight;
+    mInFlight = new Semaphore(maxInFlight);
+  }
+
+  private static int checkMaxInFlight(int maxInFlight) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("Invalid maximum number of calls in flight: " + maxInFlight);
+    }
+    return maxInFlight;
   }
 
   private static void writeHeader(@NotNull Encoder encoder) throws IOException {
@@ -49,32 +106,119 @@ public class Broadcaster {
     Channel channel = mMultiplexer.openChannel();
 
     try {
-      BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), mMtu);
-      Encoder e = new Encoder(out);
-      Decoder d = new Decoder(channel.getInputStream());
+      writeCall(channel, call);
+      return readResponse(channel);
+    }
+    finally {
+      // Close the channel
+      channel.close();
+    }
+  }
 
-      // Write the RPC header
-      writeHeader(e);
+  /**
+   * Sends the call, blocking until the number of calls in flight drops below the limit. The call is written on the
+   * calling thread, and its response is read on a thread of the executor service once it starts arriving.
+   * <p/>
+   * The returned future fails with an {@link RpcException} if the call returned an error, or with an
+   * {@link IOException} if the call could not be sent. Cancelling it closes the channel of the call. The call counts as
+   * in flight until its response is read or its channel is closed.
+   */
+  public ListenableFuture<BinaryObject> SendAsync(@NotNull BinaryObject call) throws InterruptedException {
+    mInFlight.acquire();
+    final SettableFuture<BinaryObject> result = SettableFuture.create();
+    final Channel channel;
+    try {
+      channel = mMultiplexer.openChannel();
+    }
+    catch (IOException e) {
+      mInFlight.release();
+      result.setException(e);
+      return result;
+    }
+    // Ends the call exactly once, whether it completes, fails or is cancelled.
+    final AtomicBoolean ended = new AtomicBoolean();
+    final Runnable end = new Runnable() {
+      @Override
+      public void run() {
+        if (ended.compareAndSet(false, true)) {
+          try {
+            channel.close();
+          }
+          catch (IOException ignored) {
+          }
+          mInFlight.release();
+        }
+      }
+    };
+    result.addListener(end, MoreExecutors.sameThreadExecutor());
 
-      // Write the call
-      e.object(call);
+    try {
+      writeCall(channel, call);
+    }
+    catch (IOException e) {
+      result.setException(e);
+      return result;
+    }
+    channel.setInputReadyListener(new Runnable() {
+      @Override
+      public void run() {
+        // Run by the thread receiving the data, which must not wait for the whole response.
+        try {
+          mExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                result.set(readResponse(channel));
+              }
+              catch (Throwable t) {
+                result.setException(t);
+              }
+            }
+          });
+        }
+        catch (RejectedExecutionException e) {
+          result.setException(e);
+        }
+      }
+    });
+    return result;
+  }
 
-      // Flush the buffer
-      out.flush();
+  private void writeCall(@NotNull Channel channel, @NotNull BinaryObject call) throws IOException {
+    BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), mMtu);
+    Encoder e = new Encoder(out);
 
-      // Wait for and read the response
-      BinaryObject res = d.object();
+    // Write the RPC header
+    writeHeader(e);
 
-      // Check to see if the response was an error
-      if (res instanceof RpcError) {
-        throw new RpcException((RpcError)res);
-      }
+    // Write the call
+    e.object(call);
 
-      return res;
-    }
-    finally {
-      // Close the channel
-      channel.close();
+    // Flush the buffer
+    out.flush();
+  }
+
+  @NotNull
+  private static BinaryObject readResponse(@NotNull Channel channel) throws IOException, RpcException {
+    Decoder d = new Decoder(channel.getInputStream());
+
+    // Wait for and read the response
+    BinaryObject res = d.object();
+
+    // Check to see if the response was an error
+    if (res instanceof RpcError) {
+      throw new RpcException((RpcError)res);
     }
+
+    return res;
+  }
+
+  /** Returns the number of asynchronous calls waiting for their response. */
+  public int getInFlightCount() {
+    return mMaxInFlight - mInFlight.availablePermits();
+  }
+
+  public int getMaxInFlight() {
+    return mMaxInFlight;
   }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.schema;
+
+import com.android.tools.rpclib.binary.*;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * A struct of any {@link Entity}, like {@link Dynamic}, but stored without boxing.
+ * <p/>
+ * The entity is compiled once into a {@link FieldCodec} per field when the class is created. Primitive fields are
+ * then stored in a single {@code long[]}, slices and arrays of primitives are decoded straight into primitive Java
+ * arrays, e.g. an {@code int[]} for a slice of Int32, and only the other fields are stored as objects.
+ */
+public class CompiledStruct implements BinaryObject {
+
+    private final Klass mKlass;
+
+    private final long[] mPrimitives;
+
+    private final Object[] mObjects;
+
+    public CompiledStruct(Klass klass) {
+        mKlass = klass;
+        mPrimitives = new long[klass.mPrimitiveCount];
+        mObjects = new Object[klass.mObjectCount];
+    }
+
+    public Entity type() {
+        return mKlass.mType;
+    }
+
+    public static BinaryClass register(Entity type) {
+        BinaryClass klass = compile(type);
+        Namespace.register(klass);
+        return klass;
+    }
+
+    /**
+     * Compiles the codec of the entity, without registering it.
+     */
+    public static Klass compile(Entity type) {
+        return new Klass(type);
+    }
+
+    public int getFieldCount() {
+        return mKlass.mCodecs.length;
+    }
+
+    public Field getFieldInfo(int index) {
+        return mKlass.mType.getFields()[index];
+    }
+
+    /**
+     * Returns the value of an integer field, zero extended for unsigned fields other than Uint64.
+     */
+    public long getLong(int index) {
+        return mPrimitives[mKlass.getPrimitiveSlot(index)];
+    }
+
+    public void setLong(int index, long value) {
+        mPrimitives[mKlass.getPrimitiveSlot(index)] = value;
+    }
+
+    public boolean getBoolean(int index) {
+        return getLong(index) != 0;
+    }
+
+    public void setBoolean(int index, boolean value) {
+        setLong(index, value ? 1 : 0);
+    }
+
+    public float getFloat(int index) {
+        return Float.intBitsToFloat((int) getLong(index));
+    }
+
+    public void setFloat(int index, float value) {
+        setLong(index, Float.floatToRawIntBits(value));
+    }
+
+    public double getDouble(int index) {
+        return Double.longBitsToDouble(getLong(index));
+    }
+
+    public void setDouble(int index, double value) {
+        setLong(index, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Returns the value of a field that is not a primitive: a string, a primitive Java array, or the value decoded by
+     * the {@link Type} of the field.
+     */
+    public Object getObject(int index) {
+        return mObjects[mKlass.getObjectSlot(index)];
+    }
+
+    public void setObject(int index, Object value) {
+        mObjects[mKlass.getObjectSlot(index)] = value;
+    }
+
+    @NotNull
+    @Override
+    public Klass klass() {
+        return mKlass;
+    }
+
+    public static class Klass implements BinaryClass {
+
+        private final Entity mType;
+
+        private final FieldCodec[] mCodecs;
+
+        // Whether each field is stored in the primitive storage, or in the object storage.
+        private final boolean[] mIsPrimitive;
+
+        private final int mPrimitiveCount;
+
+        private final int mObjectCount;
+
+        Klass(Entity type) {
+            mType = type;
+            Field[] fields = type.getFields();
+            mCodecs = new FieldCodec[fields.length];
+            mIsPrimitive = new boolean[fields.length];
+            int primitiveCount = 0, objectCount = 0;
+            for (int i = 0; i < fields.length; i++) {
+                Type fieldType = fields[i].getType();
+                mIsPrimitive[i] = FieldCodec.isPrimitive(fieldType);
+                mCodecs[i] = FieldCodec.compile(fieldType, mIsPrimitive[i] ? primitiveCount++ : objectCount++);
+            }
+            mPrimitiveCount = primitiveCount;
+            mObjectCount = objectCount;
+        }
+
+        @NotNull
+        @Override
+        public Entity entity() {
+            return mType;
+        }
+
+        @Override
+        @NotNull
+        public BinaryObject create() {
+            return new CompiledStruct(this);
+        }
+
+        @Override
+        public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
+            CompiledStruct o = (CompiledStruct) obj;
+            assert (o.mKlass == this);
+            for (FieldCodec codec : mCodecs) {
+                codec.encode(e, o.mPrimitives, o.mObjects);
+            }
+        }
+
+        @Override
+        public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
+            CompiledStruct o = (CompiledStruct) obj;
+            for (FieldCodec codec : mCodecs) {
+                codec.decode(d, o.mPrimitives, o.mObjects);
+            }
+        }
+
+        private int getPrimitiveSlot(int index) {
+            if (!mIsPrimitive[index]) {
+                throw new IllegalArgumentException("Field " + mType.getFields()[index].getName() + " is not a primitive");
+            }
+            return mCodecs[index].mSlot;
+        }
+
+        private int getObjectSlot(int index) {
+            if (mIsPrimitive[index]) {
+                throw new IllegalArgumentException("Field " + mType.getFields()[index].getName() + " is a primitive");
+            }
+            return mCodecs[index].mSlot;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.schema;
+
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes a single field of a {@link CompiledStruct}, specialised for the type of the field when it is
+ * first compiled, so that no per-value dispatch on the schema nor boxing is needed afterwards.
+ * <p/>
+ * Primitive fields are stored in a slot of the primitive storage of the struct, as the bits of their value. Other
+ * fields are stored in a slot of the object storage: slices and arrays of primitives as primitive Java arrays, and
+ * anything else as decoded by its {@link Type}.
+ */
+abstract class FieldCodec {
+    final int mSlot;
+
+    private FieldCodec(int slot) {
+        mSlot = slot;
+    }
+
+    abstract void encode(@NotNull Encoder e, @NotNull long[] primitives, @NotNull Object[] objects)
+            throws IOException;
+
+    abstract void decode(@NotNull Decoder d, @NotNull long[] primitives, @NotNull Object[] objects)
+            throws IOException;
+
+    /** Returns true if the field is stored in the primitive storage of the struct. */
+    static boolean isPrimitive(@NotNull Type type) {
+        return type instanceof Primitive && ((Primitive) type).getMethod().value != Method.String;
+    }
+
+    /**
+     * Returns the codec of a field of the given type, stored in the given slot of the primitive storage if the type
+     * {@link #isPrimitive}, or of the object storage otherwise.
+     */
+    @NotNull
+    static FieldCodec compile(@NotNull Type type, int slot) {
+        if (isPrimitive(type)) {
+            return new PrimitiveCodec(slot, ((Primitive) type).getMethod().value);
+        }
+        if (type instanceof Primitive) {
+            return new StringCodec(slot);
+        }
+        if (type instanceof Slice && ((Slice) type).getValueType() instanceof Primitive) {
+            return new PrimitiveArrayCodec(slot, ((Primitive) ((Slice) type).getValueType()).getMethod().value, -1);
+        }
+        if (type instanceof Array && ((Array) type).getValueType() instanceof Primitive) {
+            Array array = (Array) type;
+            return new PrimitiveArrayCodec(slot, ((Primitive) array.getValueType()).getMethod().value,
+                    array.getSize());
+        }
+        return new GenericCodec(slot, type);
+    }
+
+    private static final class PrimitiveCodec extends FieldCodec {
+        private final byte mMethod;
+
+        PrimitiveCodec(int slot, byte method) {
+            super(slot);
+            mMethod = method;
+        }
+
+        @Override
+        void encode(@NotNull Encoder e, @NotNull long[] primitives, @NotNull Object[] objects)
+                throws IOException {
+            long v = primitives[mSlot];
+            switch (mMethod) {
+                case Method.Bool:
+                    e.bool(v != 0);
+                    break;
+                case Method.Int8:
+                    e.int8((byte) v);
+                    break;
+                case Method.Uint8:
+                    e.uint8((short) v);
+                    break;
+                case Method.Int16:
+                    e.int16((short) v);
+                    break;
+                case Method.Uint16:
+                    e.uint16((int) v);
+                    break;
+                case Method.Int32:
+                    e.int32((int) v);
+                    break;
+                case Method.Uint32:
+                    e.uint32(v);
+                    break;
+                case Method.Int64:
+                    e.int64(v);
+                    break;
+                case Method.Uint64:
+                    e.uint64(v);
+                    break;
+                case Method.Float32:
+                    e.float32(Float.intBitsToFloat((int) v));
+                    break;
+                case Method.Float64:
+                    e.float64(Double.longBitsToDouble(v));
+                    break;
+                default:
+                    throw new IOException("Invalid primitive method in encode");
+            }
+        }
+
+        @Override
+        void decode(@NotNull Decoder d, @NotNull long[] primitives, @NotNull Object[] objects)
+                throws IOException {
+            long v;
+            switch (mMethod) {
+                case Method.Bool:
+                    v = d.bool() ? 1 : 0;
+                    break;
+                case Method.Int8:
+                    v = d.int8();
+                    break;
+                case Method.Uint8:
+                    v = d.uint8() & 0xff;
+                    break;
+                case Method.Int16:
+                    v = d.int16();
+                    break;
+                case Method.Uint16:
+                    v = d.uint16() & 0xffff;
+                    break;
+                case Method.Int32:
+                    v = d.int32();
+                    break;
+                case Method.Uint32:
+                    v = d.uint32() & 0xffffffffL;
+                    break;
+                case Method.Int64:
+                    v = d.int64();
+                    break;
+                case Method.Uint64:
+                    v = d.uint64();
+                    break;
+                case Method.Float32:
+                    v = Float.floatToRawIntBits(d.float32());
+                    break;
+                case Method.Float64:
+                    v = Double.doubleToRawLongBits(d.float64());
+                    break;
+                default:
+                    throw new IOException("Invalid primitive method in decode");
+            }
+            primitives[mSlot] = v;
+        }
+    }
+
+    private static final class StringCodec extends FieldCodec {
+        StringCodec(int slot) {
+            super(slot);
+        }
+
+        @Override
+        void encode(@NotNull Encoder e, @NotNull long[] primitives, @NotNull Object[] objects)
+                throws IOException {
+            e.string((String) objects[mSlot]);
+        }
+
+        @Override
+        void decode(@NotNull Decoder d, @NotNull long[] primitives, @NotNull Object[] objects)
+                throws IOException {
+            objects[mSlot] = d.string();
+        }
+    }
+
+    /**
+     * Slices and arrays of primitives, stored as Java arrays of the matching primitive type. Both signed and unsigned
+     * values are stored with the bits of the encoded value, as in the {@code any} slices.
+     */
+    private static final class PrimitiveArrayCodec extends FieldCodec {
+        private final byte mMethod;
+        // The size of fixed size arrays, or -1 for slices.
+        private final int mSize;
+
+        PrimitiveArrayCodec(int slot, byte method, int size) {
+            super(slot);
+            mMethod = method;
+            mSize = size;
+        }
+
+        @Override
+        void encode(@NotNull Encoder e, @NotNull long[] primitives, @NotNull Object[] objects)
+                throws IOException {
+            Object array = objects[mSlot];
+            if (mSize < 0) {
+                e.uint32(java.lang.reflect.Array.getLength(array));
+            }
+            switch (mMethod) {
+                case Method.Bool:
+                    e.bool((boolean[]) array);
+                    break;
+                case Method.Int8:
+                case Method.Uint8:
+                    byte[] bytes = (byte[]) array;
+                    e.write(bytes, bytes.length);
+                    break;
+                case Method.Int16:
+                    e.int16((short[]) array);
+                    break;
+                case Method.Uint16:
+                    e.uint16((short[]) array);
+                    break;
+                case Method.Int32:
+                    e.int32((int[]) array);
+                    break;
+                case Method.Uint32:
+                    e.uint32((int[]) array);
+                    break;
+                case Method.Int64:
+                    e.int64((long[]) array);
+                    break;
+                case Method.Uint64:
+                    e.uint64((long[]) array);
+                    break;
+                case Method.Float32:
+                    e.float32((float[]) array);
+                    break;
+                case Method.Float64:
+                    e.float64((double[]) array);
+                    break;
+                case Method.String:
+                    for (String s : (String[]) array) {
+                        e.string(s);
+                    }
+                    break;
+                default:
+                    throw new IOException("Invalid primitive method in encode");
+            }
+        }
+
+        @Override
+        void decode(@NotNull Decoder d, @NotNull long[] primitives, @NotNull Object[] objects)
+                throws IOException {
+            int length = mSize < 0 ? d.uint32() : mSize;
+            Object array;
+            switch (mMethod) {
+                case Method.Bool:
+                    boolean[] bools = new boolean[length];
+                    d.bool(bools);
+                    array = bools;
+                    break;
+                case Method.Int8:
+                case Method.Uint8:
+                    byte[] bytes = new byte[length];
+                    d.read(bytes, length);
+                    array = bytes;
+                    break;
+                case Method.Int16:
+                    short[] int16s = new short[length];
+                    d.int16(int16s);
+                    array = int16s;
+                    break;
+                case Method.Uint16:
+                    short[] uint16s = new short[length];
+                    d.uint16(uint16s);
+                    array = uint16s;
+                    break;
+                case Method.Int32:
+                    int[] int32s = new int[length];
+                    d.int32(int32s);
+                    array = int32s;
+                    break;
+                case Method.Uint32:
+                    int[] uint32s = new int[length];
+                    d.uint32(uint32s);
+                    array = uint32s;
+                    break;
+                case Method.Int64:
+                    long[] int64s = new long[length];
+                    d.int64(int64s);
+                    array = int64s;
+                    break;
+                case Method.Uint64:
+                    long[] uint64s = new long[length];
+                    d.uint64(uint64s);
+                    array = uint64s;
+                    break;
+                case Method.Float32:
+                    float[] float32s = new float[length];
+                    d.float32(float32s);
+                    array = float32s;
+                    break;
+                case Method.Float64:
+                    double[] float64s = new double[length];
+                    d.float64(float64s);
+                    array = float64s;
+                    break;
+                case Method.String:
+                    String[] strings = new String[length];
+                    for (int i = 0; i < length; i++) {
+                        strings[i] = d.string();
+                    }
+                    array = strings;
+                    break;
+                default:
+                    throw new IOException("Invalid primitive method in decode");
+            }
+            objects[mSlot] = array;
+        }
+    }
+
+    /** Any other type, encoded and decoded by the type itself. */
+    private static final class GenericCodec extends FieldCodec {
+        @NotNull private final Type mType;
+
+        GenericCodec(int slot, @NotNull Type type) {
+            super(slot);
+            mType = type;
+        }
+
+        @Override
+        void encode(@NotNull Encoder e, @NotNull long[] primitives, @NotNull Object[] objects)
+                throws IOException {
+            mType.encodeValue(e, objects[mSlot]);
+        }
+
+        @Override
+        void decode(@NotNull Decoder d, @NotNull long[] primitives, @NotNull Object[] objects)
+                throws IOException {
+            objects[mSlot] = mType.decodeValue(d);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+public class ByteBufferCodecTest extends TestCase {
+  private static final short[] SHORTS = new short[]{0, 1, -1, 63, 64, 32767, -32768};
+  private static final int[] INTS = new int[]{0, 1, -1, 0x3f, 0x40, 0x1fff, 0x2000, Integer.MAX_VALUE, Integer.MIN_VALUE};
+  private static final long[] LONGS = new long[]{0, 1, -1, 0x3fffffffffL, 0x4000000000L, Long.MAX_VALUE, Long.MIN_VALUE};
+  private static final float[] FLOATS = new float[]{0, 1, -1, 3.5f, -0.25f, Float.MAX_VALUE, Float.NaN};
+  private static final double[] DOUBLES = new double[]{0, 1, -1, 3.5, -0.25, Double.MIN_VALUE, Double.NEGATIVE_INFINITY};
+  private static final boolean[] BOOLS = new boolean[]{true, false, true};
+  private static final String[] STRINGS = new String[]{"", "hello", "é中", null};
+
+  // A pool of tiny buffers, so that values straddle buffer boundaries.
+  private static final ByteBufferPool SMALL_POOL = new ByteBufferPool(16, 4);
+
+  public void testWireCompatibility() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    writeScalars(new Encoder(expected));
+    for (ByteBufferPool pool : new ByteBufferPool[]{ByteBufferPool.getDefault(), SMALL_POOL}) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      ByteBufferEncoder e = new ByteBufferEncoder(Channels.newChannel(output), pool);
+      writeScalars(e);
+      e.flush();
+      Assert.assertArrayEquals(expected.toByteArray(), output.toByteArray());
+    }
+  }
+
+  public void testSliceWireCompatibility() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    writeSlicesAsScalars(new Encoder(expected));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ByteBufferEncoder e = new ByteBufferEncoder(Channels.newChannel(output), SMALL_POOL);
+    writeSlices(e);
+    e.release();
+    Assert.assertArrayEquals(expected.toByteArray(), output.toByteArray());
+  }
+
+  public void testDecodeFromChannel() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    writeScalars(e);
+    writeSlicesAsScalars(e);
+    for (ByteBufferPool pool : new ByteBufferPool[]{ByteBufferPool.getDefault(), SMALL_POOL}) {
+      ByteBufferDecoder d = new ByteBufferDecoder(
+        Channels.newChannel(new ByteArrayInputStream(output.toByteArray())), pool);
+      checkScalars(d);
+      checkSlices(d);
+      d.release();
+    }
+  }
+
+  public void testDecodeFromBuffer() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    writeScalars(e);
+    writeSlicesAsScalars(e);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(output.size());
+    buffer.put(output.toByteArray()).flip();
+    ByteBufferDecoder d = new ByteBufferDecoder(buffer);
+    checkScalars(d);
+    checkSlices(d);
+    try {
+      d.int8();
+      fail("Expected EOFException");
+    }
+    catch (EOFException expected) {
+    }
+  }
+
+  public void testLargeBytes() throws IOException {
+    byte[] bytes = new byte[100000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte)(i * 31);
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ByteBufferEncoder e = new ByteBufferEncoder(Channels.newChannel(output), SMALL_POOL);
+    e.uint32(7);
+    e.write(bytes, bytes.length);
+    e.int8((byte)5);
+    e.flush();
+
+    ByteBufferDecoder d = new ByteBufferDecoder(
+      Channels.newChannel(new ByteArrayInputStream(output.toByteArray())), SMALL_POOL);
+    assertEquals(7, d.uint32());
+    byte[] read = new byte[bytes.length];
+    d.read(read, read.length);
+    Assert.assertArrayEquals(bytes, read);
+    assertEquals(5, d.int8());
+  }
+
+  private static void writeScalars(Encoder e) throws IOException {
+    for (boolean v : BOOLS) {
+      e.bool(v);
+    }
+    for (short v : SHORTS) {
+      e.int8((byte)v);
+      e.uint8(v);
+      e.int16(v);
+      e.uint16(v);
+    }
+    for (int v : INTS) {
+      e.int32(v);
+      e.uint32(v);
+    }
+    for (long v : LONGS) {
+      e.int64(v);
+      e.uint64(v);
+    }
+    for (float v : FLOATS) {
+      e.float32(v);
+    }
+    for (double v : DOUBLES) {
+      e.float64(v);
+    }
+    for (String v : STRINGS) {
+      e.string(v);
+    }
+  }
+
+  private static void checkScalars(Decoder d) throws IOException {
+    for (boolean v : BOOLS) {
+      assertEquals(v, d.bool());
+    }
+    for (short v : SHORTS) {
+      assertEquals((byte)v, d.int8());
+      assertEquals((byte)v, d.uint8());
+      assertEquals(v, d.int16());
+      assertEquals(v, d.uint16());
+    }
+    for (int v : INTS) {
+      assertEquals(v, d.int32());
+      assertEquals(v, d.uint32());
+    }
+    for (long v : LONGS) {
+      assertEquals(v, d.int64());
+      assertEquals(v, d.uint64());
+    }
+    for (float v : FLOATS) {
+      assertEquals(Float.floatToIntBits(v), Float.floatToIntBits(d.float32()));
+    }
+    for (double v : DOUBLES) {
+      assertEquals(Double.doubleToLongBits(v), Double.doubleToLongBits(d.float64()));
+    }
+    for (String v : STRINGS) {
+      assertEquals(v == null ? "" : v, d.string());
+    }
+  }
+
+  private static void writeSlices(Encoder e) throws IOException {
+    e.bool(BOOLS);
+    e.int16(SHORTS);
+    e.uint16(SHORTS);
+    e.int32(INTS);
+    e.uint32(INTS);
+    e.int64(LONGS);
+    e.uint64(LONGS);
+    e.float32(FLOATS);
+    e.float64(DOUBLES);
+  }
+
+  private static void writeSlicesAsScalars(Encoder e) throws IOException {
+    for (boolean v : BOOLS) {
+      e.bool(v);
+    }
+    for (short v : SHORTS) {
+      e.int16(v);
+    }
+    for (short v : SHORTS) {
+      e.uint16(v);
+    }
+    for (int v : INTS) {
+      e.int32(v);
+    }
+    for (int v : INTS) {
+      e.uint32(v);
+    }
+    for (long v : LONGS) {
+      e.int64(v);
+    }
+    for (long v : LONGS) {
+      e.uint64(v);
+    }
+    for (float v : FLOATS) {
+      e.float32(v);
+    }
+    for (double v : DOUBLES) {
+      e.float64(v);
+    }
+  }
+
+  private static void checkSlices(Decoder d) throws IOException {
+    boolean[] bools = new boolean[BOOLS.length];
+    d.bool(bools);
+    assertTrue(Arrays.equals(BOOLS, bools));
+    short[] shorts = new short[SHORTS.length];
+    d.int16(shorts);
+    assertTrue(Arrays.equals(SHORTS, shorts));
+    d.uint16(shorts);
+    assertTrue(Arrays.equals(SHORTS, shorts));
+    int[] ints = new int[INTS.length];
+    d.int32(ints);
+    Assert.assertArrayEquals(INTS, ints);
+    d.uint32(ints);
+    Assert.assertArrayEquals(INTS, ints);
+    long[] longs = new long[LONGS.length];
+    d.int64(longs);
+    Assert.assertArrayEquals(LONGS, longs);
+    d.uint64(longs);
+    Assert.assertArrayEquals(LONGS, longs);
+    float[] floats = new float[FLOATS.length];
+    d.float32(floats);
+    assertTrue(Arrays.equals(FLOATS, floats));
+    double[] doubles = new double[DOUBLES.length];
+    d.float64(doubles);
+    assertTrue(Arrays.equals(DOUBLES, doubles));
+  }
+}
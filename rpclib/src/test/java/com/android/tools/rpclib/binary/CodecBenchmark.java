@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+/**
+ * Compares the throughput of the stream based and of the buffer based codecs on large slices,
+ * which is their main use. Not run as part of the tests; run its main method with a warm JVM.
+ */
+public class CodecBenchmark {
+  private static final int SLICE_LENGTH = 1 << 20;
+  private static final int ITERATIONS = 20;
+
+  public static void main(String[] args) throws IOException {
+    Random random = new Random(0);
+    int[] ints = new int[SLICE_LENGTH];
+    float[] floats = new float[SLICE_LENGTH];
+    for (int i = 0; i < SLICE_LENGTH; i++) {
+      ints[i] = random.nextInt();
+      floats[i] = random.nextFloat();
+    }
+
+    for (int round = 0; round < 3; round++) {
+      long streamEncode = 0, bufferEncode = 0, streamDecode = 0, bufferDecode = 0;
+      byte[] encoded = null;
+      for (int i = 0; i < ITERATIONS; i++) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(SLICE_LENGTH * 10);
+        Encoder e = new Encoder(output);
+        for (int v : ints) {
+          e.int32(v);
+        }
+        for (float v : floats) {
+          e.float32(v);
+        }
+        streamEncode += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        output = new ByteArrayOutputStream(SLICE_LENGTH * 10);
+        ByteBufferEncoder be = new ByteBufferEncoder(Channels.newChannel(output));
+        be.int32(ints);
+        be.float32(floats);
+        be.release();
+        bufferEncode += System.nanoTime() - start;
+        encoded = output.toByteArray();
+
+        start = System.nanoTime();
+        Decoder d = new Decoder(new ByteArrayInputStream(encoded));
+        for (int j = 0; j < SLICE_LENGTH; j++) {
+          ints[j] = d.int32();
+        }
+        for (int j = 0; j < SLICE_LENGTH; j++) {
+          floats[j] = d.float32();
+        }
+        streamDecode += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        ByteBufferDecoder bd = new ByteBufferDecoder(Channels.newChannel(new ByteArrayInputStream(encoded)));
+        bd.int32(ints);
+        bd.float32(floats);
+        bd.release();
+        bufferDecode += System.nanoTime() - start;
+      }
+      System.out.printf("round %d, %d MB per iteration:%n", round, encoded.length >> 20);
+      report("Encoder", streamEncode);
+      report("ByteBufferEncoder", bufferEncode);
+      report("Decoder", streamDecode);
+      report("ByteBufferDecoder", bufferDecode);
+    }
+  }
+
+  private static void report(String name, long nanos) {
+    System.out.printf("  %-20s %8.2f ms%n", name, nanos / 1e6 / ITERATIONS);
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.multiplex;
+
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MultiplexerTest extends TestCase {
+  private static final int MTU = 1024;
+  private static final int CHANNEL_COUNT = 64;
+  private static final int BLOCK_SIZE = 4096;
+  private static final int DATA_SIZE = 64 * BLOCK_SIZE;
+
+  private ExecutorService mExecutor;
+  private ServerSocketChannel mServer;
+
+  @Override
+  protected void setUp() throws Exception {
+    mExecutor = Executors.newCachedThreadPool();
+    mServer = ServerSocketChannel.open();
+    mServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mServer.close();
+    mExecutor.shutdownNow();
+  }
+
+  public void testNioEcho() throws Exception {
+    SocketChannel client = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+    SocketChannel server = mServer.accept();
+    new Multiplexer(server, MTU, mExecutor, new EchoListener());
+    Multiplexer multiplexer = new Multiplexer(client, MTU, mExecutor, null);
+    checkEcho(multiplexer);
+    client.close();
+  }
+
+  public void testNioToStreamEcho() throws Exception {
+    Socket client = new Socket();
+    client.connect(mServer.socket().getLocalSocketAddress());
+    SocketChannel server = mServer.accept();
+    new Multiplexer(server, MTU, mExecutor, new EchoListener());
+    Multiplexer multiplexer = new Multiplexer(client.getInputStream(), client.getOutputStream(), MTU, mExecutor, null);
+    checkEcho(multiplexer);
+    client.close();
+  }
+
+  public void testStreamToNioEcho() throws Exception {
+    // The streams of a socket obtained from a channel share a lock on some JDKs, so that a blocked read stops the
+    // writes: the stream end uses a plain socket.
+    ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    try {
+      SocketChannel client = SocketChannel.open(serverSocket.getLocalSocketAddress());
+      Socket server = serverSocket.accept();
+      new Multiplexer(server.getInputStream(), server.getOutputStream(), MTU, mExecutor, new EchoListener());
+      Multiplexer multiplexer = new Multiplexer(client, MTU, mExecutor, null);
+      checkEcho(multiplexer);
+      client.close();
+      server.close();
+    }
+    finally {
+      serverSocket.close();
+    }
+  }
+
+  public void testChannelsClosedOnDisconnect() throws Exception {
+    SocketChannel client = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+    SocketChannel server = mServer.accept();
+    new Multiplexer(server, MTU, mExecutor, new EchoListener());
+    Multiplexer multiplexer = new Multiplexer(client, MTU, mExecutor, null);
+    Channel channel = multiplexer.openChannel();
+    server.close();
+    assertEquals(-1, channel.getInputStream().read(new byte[BLOCK_SIZE], 0, BLOCK_SIZE));
+  }
+
+  public void testRemoteCloseWhileClosingWithFullOutbox() throws Exception {
+    // The remote end is a plain socket, which stops reading so that the outbox stays full.
+    mServer.socket().setReceiveBufferSize(BLOCK_SIZE);
+    SocketChannel client = SocketChannel.open();
+    client.socket().setSendBufferSize(BLOCK_SIZE);
+    client.connect(mServer.socket().getLocalSocketAddress());
+    final Socket server = mServer.accept().socket();
+    Multiplexer multiplexer = new Multiplexer(client, MTU, mExecutor, null);
+    final Channel channel = multiplexer.openChannel();
+    Decoder decoder = new Decoder(server.getInputStream());
+    assertEquals(Message.OPEN_CHANNEL, decoder.uint8());
+    long id = decoder.uint32() & 0xffffffffL;
+
+    byte[] data = new byte[4 << 20];
+    channel.getOutputStream().write(data, 0, data.length);
+    Future<Void> close = mExecutor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        channel.close();
+        return null;
+      }
+    });
+    Thread.sleep(200);
+
+    // The remote end closes the channel too, then drains the socket.
+    Encoder encoder = new Encoder(server.getOutputStream());
+    encoder.uint8(Message.CLOSE_CHANNEL);
+    encoder.uint32(~id & 0xffffffffL);
+    server.getOutputStream().flush();
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[BLOCK_SIZE];
+        try {
+          InputStream in = server.getInputStream();
+          while (in.read(buffer) >= 0) {
+            // Drop everything.
+          }
+        }
+        catch (IOException ignored) {
+          // The test is over.
+        }
+      }
+    });
+
+    close.get(10, TimeUnit.SECONDS);
+    client.close();
+    server.close();
+  }
+
+  private void checkEcho(final Multiplexer multiplexer) throws Exception {
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+    for (int i = 0; i < CHANNEL_COUNT; i++) {
+      final int seed = i;
+      results.add(mExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          byte[] data = new byte[DATA_SIZE];
+          new Random(seed).nextBytes(data);
+          Channel channel = multiplexer.openChannel();
+          channel.getOutputStream().write(data, 0, data.length);
+          byte[] echo = new byte[DATA_SIZE];
+          InputStream in = channel.getInputStream();
+          for (int offset = 0; offset < echo.length; ) {
+            int n = in.read(echo, offset, echo.length - offset);
+            assertTrue(n > 0);
+            offset += n;
+          }
+          Assert.assertArrayEquals(data, echo);
+          channel.close();
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> result : results) {
+      result.get(30, TimeUnit.SECONDS);
+    }
+  }
+
+  /** Writes back everything received on the channels opened by the remote end. */
+  private class EchoListener implements NewChannelListener {
+    @Override
+    public void onNewChannel(final Channel channel) {
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          byte[] buffer = new byte[BLOCK_SIZE];
+          InputStream in = channel.getInputStream();
+          OutputStream out = channel.getOutputStream();
+          try {
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+              out.write(buffer, 0, n);
+            }
+          }
+          catch (IOException ignored) {
+            // The channel was closed by the remote end.
+          }
+        }
+      });
+    }
+  }
+}
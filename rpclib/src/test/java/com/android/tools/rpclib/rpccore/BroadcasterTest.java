@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.rpccore;
+
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import com.android.tools.rpclib.binary.Factory;
+import com.android.tools.rpclib.binary.TypeA;
+import com.android.tools.rpclib.multiplex.Channel;
+import com.android.tools.rpclib.multiplex.Multiplexer;
+import com.android.tools.rpclib.multiplex.NewChannelListener;
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.TestCase;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class BroadcasterTest extends TestCase {
+  private static final int MTU = 1024;
+  private static final int MAX_IN_FLIGHT = 8;
+
+  private ExecutorService mExecutor;
+  private ServerSocketChannel mServer;
+  private SocketChannel mClient;
+  private Broadcaster mBroadcaster;
+  // The echo server waits for it before answering.
+  private volatile CountDownLatch mAnswerGate = new CountDownLatch(0);
+
+  @Override
+  protected void setUp() throws Exception {
+    Factory.register();
+    mExecutor = Executors.newCachedThreadPool();
+    mServer = ServerSocketChannel.open();
+    mServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+    mClient = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+    new Multiplexer(mServer.accept(), MTU, mExecutor, new EchoServer());
+    mBroadcaster = new Broadcaster(mClient, MTU, mExecutor, MAX_IN_FLIGHT);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mClient.close();
+    mServer.close();
+    mExecutor.shutdownNow();
+  }
+
+  public void testSend() throws Exception {
+    BinaryObject response = mBroadcaster.Send(new TypeA().setData("hello"));
+    assertEquals("hello!", ((TypeA)response).getData());
+  }
+
+  public void testSendAsync() throws Exception {
+    List<ListenableFuture<BinaryObject>> futures = new ArrayList<ListenableFuture<BinaryObject>>();
+    for (int i = 0; i < 200; i++) {
+      futures.add(mBroadcaster.SendAsync(new TypeA().setData("call " + i)));
+      assertTrue(mBroadcaster.getInFlightCount() <= MAX_IN_FLIGHT);
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      assertEquals("call " + i + "!", ((TypeA)futures.get(i).get(10, TimeUnit.SECONDS)).getData());
+    }
+  }
+
+  public void testInvalidMaxInFlight() throws Exception {
+    SocketChannel client = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+    try {
+      new Broadcaster(client, MTU, mExecutor, 0);
+      fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException expected) {
+    }
+    finally {
+      client.close();
+    }
+    // The socket was left alone.
+    assertTrue(client.isBlocking());
+  }
+
+  public void testSendAsyncDoesNotHoldThreads() throws Exception {
+    mAnswerGate = new CountDownLatch(1);
+    ThreadPoolExecutor executor = (ThreadPoolExecutor)Executors.newCachedThreadPool();
+    SocketChannel client = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+    new Multiplexer(mServer.accept(), MTU, mExecutor, new EchoServer());
+    try {
+      Broadcaster broadcaster = new Broadcaster(client, MTU, executor, MAX_IN_FLIGHT);
+      List<ListenableFuture<BinaryObject>> futures = new ArrayList<ListenableFuture<BinaryObject>>();
+      for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+        futures.add(broadcaster.SendAsync(new TypeA().setData("call " + i)));
+      }
+      Thread.sleep(200);
+      // Only the transport runs while the calls wait for their response.
+      assertEquals(MAX_IN_FLIGHT, broadcaster.getInFlightCount());
+      assertEquals(1, executor.getActiveCount());
+
+      mAnswerGate.countDown();
+      for (int i = 0; i < futures.size(); i++) {
+        assertEquals("call " + i + "!", ((TypeA)futures.get(i).get(10, TimeUnit.SECONDS)).getData());
+      }
+      long deadline = System.currentTimeMillis() + 10000;
+      while (broadcaster.getInFlightCount() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, broadcaster.getInFlightCount());
+    }
+    finally {
+      client.close();
+      executor.shutdownNow();
+    }
+  }
+
+  public void testCancelEndsTheCall() throws Exception {
+    mAnswerGate = new CountDownLatch(1);
+    ListenableFuture<BinaryObject> future = mBroadcaster.SendAsync(new TypeA().setData("call"));
+    assertEquals(1, mBroadcaster.getInFlightCount());
+    future.cancel(true);
+    assertEquals(0, mBroadcaster.getInFlightCount());
+    mAnswerGate.countDown();
+  }
+
+  /** Answers each call with a {@link TypeA} holding the data of the call followed by "!". */
+  private class EchoServer implements NewChannelListener {
+    @Override
+    public void onNewChannel(final Channel channel) {
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Decoder d = new Decoder(channel.getInputStream());
+            byte[] header = new byte[4];
+            d.read(header, header.length);
+            assertEquals("rpc0", new String(header, "US-ASCII"));
+            TypeA call = (TypeA)d.object();
+            mAnswerGate.await();
+
+            BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), MTU);
+            new Encoder(out).object(new TypeA().setData(call.getData() + "!"));
+            out.flush();
+          }
+          catch (IOException ignored) {
+          }
+          catch (InterruptedException ignored) {
+          }
+        }
+      });
+    }
+  }
+}
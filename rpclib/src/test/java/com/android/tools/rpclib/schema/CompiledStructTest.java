@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.schema;
+
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CompiledStructTest extends TestCase {
+  private static final int BOOL = 0, INT8 = 1, UINT16 = 2, INT32 = 3, UINT32 = 4, INT64 = 5, FLOAT32 = 6, FLOAT64 = 7,
+    STRING = 8, INT32_SLICE = 9, FLOAT64_SLICE = 10, UINT8_ARRAY = 11, STRING_SLICE = 12, NESTED_SLICE = 13;
+
+  static Entity createEntity() {
+    Entity entity = new Entity("test", "Struct", "", "");
+    entity.setFields(new Field[]{
+      new Field("Bool", new Primitive("bool", Method.Bool)),
+      new Field("Int8", new Primitive("int8", Method.Int8)),
+      new Field("Uint16", new Primitive("uint16", Method.Uint16)),
+      new Field("Int32", new Primitive("int32", Method.Int32)),
+      new Field("Uint32", new Primitive("uint32", Method.Uint32)),
+      new Field("Int64", new Primitive("int64", Method.Int64)),
+      new Field("Float32", new Primitive("float32", Method.Float32)),
+      new Field("Float64", new Primitive("float64", Method.Float64)),
+      new Field("String", new Primitive("string", Method.String)),
+      new Field("Int32s", new Slice("", new Primitive("int32", Method.Int32))),
+      new Field("Float64s", new Slice("", new Primitive("float64", Method.Float64))),
+      new Field("Uint8s", new Array("", new Primitive("uint8", Method.Uint8), 4)),
+      new Field("Strings", new Slice("", new Primitive("string", Method.String))),
+      new Field("Nested", new Slice("", new Slice("", new Primitive("int64", Method.Int64)))),
+    });
+    return entity;
+  }
+
+  static CompiledStruct createStruct(CompiledStruct.Klass klass) {
+    CompiledStruct struct = (CompiledStruct)klass.create();
+    struct.setBoolean(BOOL, true);
+    struct.setLong(INT8, -5);
+    struct.setLong(UINT16, 0xffff);
+    struct.setLong(INT32, Integer.MIN_VALUE);
+    struct.setLong(UINT32, 0xfffffffeL);
+    struct.setLong(INT64, Long.MAX_VALUE);
+    struct.setFloat(FLOAT32, 1.5f);
+    struct.setDouble(FLOAT64, -2.25);
+    struct.setObject(STRING, "hello");
+    struct.setObject(INT32_SLICE, new int[]{1, -1, 1000000});
+    struct.setObject(FLOAT64_SLICE, new double[]{0.5, Double.NaN});
+    struct.setObject(UINT8_ARRAY, new byte[]{1, 2, (byte)0xff, 4});
+    struct.setObject(STRING_SLICE, new String[]{"a", "", "c"});
+    struct.setObject(NESTED_SLICE, new Object[]{new Object[]{1L, 2L}, new Object[]{}});
+    return struct;
+  }
+
+  public void testWireCompatibility() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    Encoder e = new Encoder(expected);
+    e.bool(true);
+    e.int8((byte)-5);
+    e.uint16(0xffff);
+    e.int32(Integer.MIN_VALUE);
+    e.uint32(0xfffffffeL);
+    e.int64(Long.MAX_VALUE);
+    e.float32(1.5f);
+    e.float64(-2.25);
+    e.string("hello");
+    e.uint32(3);
+    e.int32(1);
+    e.int32(-1);
+    e.int32(1000000);
+    e.uint32(2);
+    e.float64(0.5);
+    e.float64(Double.NaN);
+    e.uint8((short)1);
+    e.uint8((short)2);
+    e.uint8((short)0xff);
+    e.uint8((short)4);
+    e.uint32(3);
+    e.string("a");
+    e.string("");
+    e.string("c");
+    e.uint32(2);
+    e.uint32(2);
+    e.int64(1);
+    e.int64(2);
+    e.uint32(0);
+
+    CompiledStruct.Klass klass = CompiledStruct.compile(createEntity());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    klass.encode(new Encoder(output), createStruct(klass));
+    Assert.assertArrayEquals(expected.toByteArray(), output.toByteArray());
+  }
+
+  public void testRoundTrip() throws IOException {
+    CompiledStruct.Klass klass = CompiledStruct.compile(createEntity());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    klass.encode(new Encoder(output), createStruct(klass));
+
+    CompiledStruct struct = (CompiledStruct)klass.create();
+    klass.decode(new Decoder(new ByteArrayInputStream(output.toByteArray())), struct);
+    assertEquals(14, struct.getFieldCount());
+    assertTrue(struct.getBoolean(BOOL));
+    assertEquals(-5, struct.getLong(INT8));
+    assertEquals(0xffff, struct.getLong(UINT16));
+    assertEquals(Integer.MIN_VALUE, struct.getLong(INT32));
+    assertEquals(0xfffffffeL, struct.getLong(UINT32));
+    assertEquals(Long.MAX_VALUE, struct.getLong(INT64));
+    assertEquals(1.5f, struct.getFloat(FLOAT32));
+    assertEquals(-2.25, struct.getDouble(FLOAT64));
+    assertEquals("hello", struct.getObject(STRING));
+    Assert.assertArrayEquals(new int[]{1, -1, 1000000}, (int[])struct.getObject(INT32_SLICE));
+    assertTrue(Arrays.equals(new double[]{0.5, Double.NaN}, (double[])struct.getObject(FLOAT64_SLICE)));
+    Assert.assertArrayEquals(new byte[]{1, 2, (byte)0xff, 4}, (byte[])struct.getObject(UINT8_ARRAY));
+    Assert.assertArrayEquals(new String[]{"a", "", "c"}, (String[])struct.getObject(STRING_SLICE));
+    Object[] nested = (Object[])struct.getObject(NESTED_SLICE);
+    Assert.assertArrayEquals(new Object[]{1L, 2L}, (Object[])nested[0]);
+
+    ByteArrayOutputStream reencoded = new ByteArrayOutputStream();
+    klass.encode(new Encoder(reencoded), struct);
+    Assert.assertArrayEquals(output.toByteArray(), reencoded.toByteArray());
+  }
+
+  public void testDecodeAsDynamic() throws IOException {
+    Entity entity = createEntity();
+    CompiledStruct.Klass klass = CompiledStruct.compile(entity);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    klass.encode(new Encoder(output), createStruct(klass));
+
+    Dynamic.Klass dynamicKlass = new Dynamic.Klass(entity);
+    Dynamic dynamic = (Dynamic)dynamicKlass.create();
+    dynamicKlass.decode(new Decoder(new ByteArrayInputStream(output.toByteArray())), dynamic);
+    assertEquals(Integer.MIN_VALUE, dynamic.getFieldValue(INT32));
+    assertEquals(Long.MAX_VALUE, dynamic.getFieldValue(INT64));
+    assertEquals("hello", dynamic.getFieldValue(STRING));
+    Assert.assertArrayEquals(new Object[]{1, -1, 1000000}, (Object[])dynamic.getFieldValue(INT32_SLICE));
+  }
+
+  public void testWrongStorage() {
+    CompiledStruct struct = (CompiledStruct)CompiledStruct.compile(createEntity()).create();
+    try {
+      struct.getLong(STRING);
+      fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException expected) {
+    }
+    try {
+      struct.getObject(INT32);
+      fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException expected) {
+    }
+  }
+}
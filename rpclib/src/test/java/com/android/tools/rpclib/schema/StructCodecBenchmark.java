@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.schema;
+
+import com.android.tools.rpclib.binary.BinaryClass;
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.ByteBufferDecoder;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares decoding many small structs with {@link Dynamic} and with {@link CompiledStruct}. Not run as part of the
+ * tests; run its main method with -verbose:gc to also compare the garbage produced.
+ */
+public class StructCodecBenchmark {
+  private static final int STRUCT_COUNT = 200000;
+  private static final int ITERATIONS = 10;
+
+  public static void main(String[] args) throws IOException {
+    Entity entity = CompiledStructTest.createEntity();
+    CompiledStruct.Klass compiled = CompiledStruct.compile(entity);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    CompiledStruct struct = CompiledStructTest.createStruct(compiled);
+    for (int i = 0; i < STRUCT_COUNT; i++) {
+      compiled.encode(e, struct);
+    }
+    byte[] data = output.toByteArray();
+    System.out.printf("%d structs, %d KB%n", STRUCT_COUNT, data.length >> 10);
+
+    Dynamic.Klass dynamic = new Dynamic.Klass(entity);
+    for (int round = 0; round < 3; round++) {
+      System.out.printf("round %d:%n", round);
+      report("Dynamic", decode(dynamic, data));
+      report("CompiledStruct", decode(compiled, data));
+    }
+  }
+
+  private static long decode(BinaryClass klass, byte[] data) throws IOException {
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      Decoder d = new ByteBufferDecoder(ByteBuffer.wrap(data));
+      for (int j = 0; j < STRUCT_COUNT; j++) {
+        BinaryObject obj = klass.create();
+        klass.decode(d, obj);
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String name, long nanos) {
+    System.out.printf("  %-16s %8.2f ms%n", name, nanos / 1e6 / ITERATIONS);
+  }
+}